@@ -0,0 +1,291 @@
+package cc.mallet.examples;
+
+import cc.mallet.util.*;
+import cc.mallet.types.*;
+import cc.mallet.topics.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+
+/**
+ * Runs a grid of RedditLDA hyperparameter settings over one corpus.
+ * <p>
+ * All runs share a single {@link RedditCorpus}, so the instances, subreddit map and
+ * per-document arrays are built once. Runs are scheduled on a pool sized by the number
+ * of cores divided by the threads per run, and each run must also reserve its estimated
+ * model memory from a shared budget before it starts. Every run writes its results to
+ * its own directory under the output directory. Sweeps over different corpora or modes
+ * can share one {@link Scheduler}, so that all their runs are in progress together.
+ * <p>
+ * A grid spec lists comma-separated values for each parameter, for example
+ * <code>"topics=20,30 alpha=0.5,1 beta=0.01 gamma=0.15,9000 eta=0.01"</code>. A gamma of
+ * 1 or more runs plain LDA. Parameters that are left out take the defaults below.
+ */
+public class RedditLDASweep {
+
+	public static final String FIT = "fit";
+	public static final String CLASSIFY = "classify";
+
+	/** One point in the grid. */
+	public static class Run {
+		public int topics;
+		public double alpha;
+		public double beta;
+		public double gamma;
+		public double eta;
+
+		public Run(int topics, double alpha, double beta, double gamma, double eta) {
+			this.topics = topics;
+			this.alpha = alpha;
+			this.beta = beta;
+			this.gamma = gamma;
+			this.eta = eta;
+		}
+
+		public boolean isSparse() {
+			return gamma < 1;
+		}
+
+		public String getName(String topsub) {
+			if (isSparse()) {
+				return "sparse_" + topsub + "_" + topics + "_" + alpha + "_" + beta + "_" + gamma + "_" + eta;
+			}
+			return "LDA_" + topsub + "_" + topics + "_" + alpha + "_" + beta;
+		}
+	}
+
+	RedditCorpus corpus;
+	String topsub;
+	File outputDir;
+
+	String mode = FIT;
+	int iterations = 1000;
+	int threadsPerRun = 1;
+	int classifySamples = 25;
+	int maxConcurrentRuns;
+	long memoryBudget;
+	int randomSeed = -1;
+
+	public RedditLDASweep(InstanceList docs, String topsub, File outputDir) {
+		this(new RedditCorpus(docs, topsub), topsub, outputDir);
+	}
+
+	public RedditLDASweep(RedditCorpus corpus, String topsub, File outputDir) {
+		this.corpus = corpus;
+		this.topsub = topsub;
+		this.outputDir = outputDir;
+
+		// By default, use every core and the heap that is not already in use
+		this.maxConcurrentRuns = Runtime.getRuntime().availableProcessors();
+		this.memoryBudget = freeMemory();
+	}
+
+	/** Either {@link #FIT} (estimate on all documents) or {@link #CLASSIFY} (estimate on 80%, classify the rest). */
+	public void setMode(String mode) {
+		if (! mode.equals(FIT) && ! mode.equals(CLASSIFY)) {
+			throw new IllegalArgumentException("Unknown sweep mode: " + mode);
+		}
+		this.mode = mode;
+	}
+
+	public void setIterations(int iterations) { this.iterations = iterations; }
+	public void setThreadsPerRun(int threads) { this.threadsPerRun = threads; }
+	public void setClassifySamples(int samples) { this.classifySamples = samples; }
+	public void setRandomSeed(int seed) { this.randomSeed = seed; }
+
+	/** Limit the number of runs in progress, in addition to the limit set by the cores. */
+	public void setMaxConcurrentRuns(int runs) { this.maxConcurrentRuns = runs; }
+
+	/** The total number of bytes that concurrent runs may reserve for their models. */
+	public void setMemoryBudget(long bytes) { this.memoryBudget = bytes; }
+
+	/**
+	 *  Expand a grid spec into one Run per combination of values.
+	 *   Unspecified parameters default to 20 topics, alpha 0.5,
+	 *   beta 0.01 and plain LDA (gamma and eta 9000).
+	 */
+	public static List<Run> parseGrid(String spec) {
+		Map<String, String[]> values = new HashMap<String, String[]>();
+		values.put("topics", new String[] {"20"});
+		values.put("alpha", new String[] {"0.5"});
+		values.put("beta", new String[] {"0.01"});
+		values.put("gamma", new String[] {"9000"});
+		values.put("eta", new String[] {"9000"});
+
+		for (String field : spec.trim().split("\\s+")) {
+			String[] parts = field.split("=");
+			if (parts.length != 2 || ! values.containsKey(parts[0])) {
+				throw new IllegalArgumentException("Bad grid field: " + field);
+			}
+			values.put(parts[0], parts[1].split(","));
+		}
+
+		List<Run> runs = new ArrayList<Run>();
+		for (String topics : values.get("topics")) {
+			for (String alpha : values.get("alpha")) {
+				for (String beta : values.get("beta")) {
+					for (String gamma : values.get("gamma")) {
+						for (String eta : values.get("eta")) {
+							runs.add(new Run(Integer.parseInt(topics), Double.parseDouble(alpha),
+											 Double.parseDouble(beta), Double.parseDouble(gamma),
+											 Double.parseDouble(eta)));
+						}
+					}
+				}
+			}
+		}
+		return runs;
+	}
+
+	/**
+	 *  Runs from any number of sweeps, sharing one pool of threads and one memory budget,
+	 *   so the grids of several sweeps can be in progress at once.
+	 */
+	public static class Scheduler {
+		ExecutorService executor;
+		Semaphore memory;
+		int budgetMB;
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+
+		/** Use every core and the heap that is not already in use. */
+		public Scheduler() {
+			this(Runtime.getRuntime().availableProcessors(), freeMemory());
+		}
+
+		/**
+		 *  @param maxConcurrentRuns The number of runs in progress at once
+		 *  @param memoryBudget The total number of bytes that concurrent runs may reserve for their models
+		 */
+		public Scheduler(int maxConcurrentRuns, long memoryBudget) {
+			// Reserve memory in MB so that the permit count fits in an int
+			budgetMB = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget >> 20));
+			memory = new Semaphore(budgetMB, true);
+			executor = Executors.newFixedThreadPool(Math.max(1, maxConcurrentRuns));
+
+			System.out.println("Sweep: up to " + Math.max(1, maxConcurrentRuns) +
+							   " runs at once, " + budgetMB + " MB model budget");
+		}
+
+		synchronized void submit(final String name, long bytes, final Callable<?> task) {
+			final int runMB = (int) Math.min(budgetMB, (bytes >> 20) + 1);
+			futures.add(executor.submit(new Runnable() {
+				public void run() {
+					memory.acquireUninterruptibly(runMB);
+					try {
+						task.call();
+					} catch (Exception e) {
+						System.err.println("Run " + name + " failed");
+						e.printStackTrace();
+					} finally {
+						memory.release(runMB);
+					}
+				}
+			}));
+		}
+
+		/** Block until every submitted run has finished, then stop the threads. Failed runs are reported and skipped. */
+		public void await() throws InterruptedException {
+			List<Future<?>> submitted;
+			synchronized (this) {
+				submitted = new ArrayList<Future<?>>(futures);
+			}
+			for (Future<?> future : submitted) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					e.getCause().printStackTrace();
+				}
+			}
+			executor.shutdown();
+		}
+	}
+
+	static long freeMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+	}
+
+	/**
+	 *  Queue every setting on <code>scheduler</code>, which may also be running the
+	 *   grids of other sweeps, and return without waiting for them.
+	 */
+	public void submit(Scheduler scheduler, List<Run> runs) {
+		System.out.println("Sweep: " + runs.size() + " " + mode + " runs for " + topsub);
+		for (int index = 0; index < runs.size(); index++) {
+			final Run run = runs.get(index);
+			final int runIndex = index;
+			scheduler.submit(run.getName(topsub), RedditLDA.estimateMemory(corpus, run.topics, threadsPerRun),
+							 new Callable<Object>() {
+								 public Object call() throws Exception {
+									 runOne(run, runIndex);
+									 return null;
+								 }
+							 });
+		}
+	}
+
+	/** Run every setting, blocking until all have finished. Failed runs are reported and skipped. */
+	public void run(List<Run> runs) throws InterruptedException {
+		int cores = Runtime.getRuntime().availableProcessors();
+		Scheduler scheduler = new Scheduler(Math.min(maxConcurrentRuns, cores / threadsPerRun), memoryBudget);
+		submit(scheduler, runs);
+		scheduler.await();
+	}
+
+	void runOne(Run run, int runIndex) throws Exception {
+		String name = run.getName(topsub);
+		File runDir = new File(outputDir, mode + "_" + name);
+		if (! runDir.isDirectory() && ! runDir.mkdirs()) {
+			throw new IOException("Couldn't create " + runDir);
+		}
+
+		Randoms random = randomSeed == -1 ? new Randoms() : new Randoms(randomSeed + runIndex);
+		RedditLDA model = new RedditLDA(corpus, run.topics, run.alpha, run.beta, run.gamma, run.eta, random);
+		model.setNumThreads(threadsPerRun);
+
+		// Each run keeps its own log likelihood threads; stop them once it is done
+		try {
+			if (mode.equals(CLASSIFY)) {
+				int end = (int) Math.floor(corpus.getNumDocs() * 0.8);
+				model.estimate(0, end, iterations, 0, random);
+				int[][] confusion = new int[model.numSubreddits][model.numSubreddits];
+				double accuracy = model.classifyDocuments(classifySamples, confusion, random);
+				System.out.println(name + " Accuracy: " + accuracy + "\tF-score (macro): " + model.FMacro);
+				new RedditResultsExporter(model).writeConfusions(confusion, new File(runDir, "confusions.json"));
+				TestLDA.write_accuracy(model, accuracy, new File(runDir, "accuracy.txt").getPath());
+			}
+			else {
+				model.estimate(0, corpus.getNumDocs(), iterations, 0, random);
+				RedditResultsExporter exporter = new RedditResultsExporter(model);
+				exporter.writeSubredditTopics(new File(runDir, "subreddit_topics.json"));
+				TestLDA.write_top_words(model, new File(runDir, "topic_words.txt").getPath());
+				TestLDA.write_log_like(model, new File(runDir, "model_log_like.txt").getPath());
+				if (run.isSparse()) {
+					exporter.writeAlphas(new File(runDir, "subreddit_alphas.json"));
+				}
+			}
+		} finally {
+			model.shutdown();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.err.println("Usage: RedditLDASweep instances.mallet topsub output-dir \"grid spec\" " +
+							   "[fit|classify] [iterations] [threads-per-run] [memory-budget-MB]");
+			System.exit(1);
+		}
+
+		InstanceList docs = InstanceList.load(new File(args[0]));
+		RedditLDASweep sweep = new RedditLDASweep(docs, args[1], new File(args[2]));
+		List<Run> runs = parseGrid(args[3]);
+		if (args.length > 4) { sweep.setMode(args[4]); }
+		if (args.length > 5) { sweep.setIterations(Integer.parseInt(args[5])); }
+		if (args.length > 6) { sweep.setThreadsPerRun(Integer.parseInt(args[6])); }
+		if (args.length > 7) { sweep.setMemoryBudget(Long.parseLong(args[7]) << 20); }
+
+		sweep.run(runs);
+	}
+
+}
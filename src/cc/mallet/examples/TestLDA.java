@@ -58,66 +58,15 @@ public class TestLDA {
 	}
 	
 	public static void write_sub_dists(RedditLDA model, String fname) throws Exception {
-		HashMap<String, double[]> targetTopics = model.getSubredditTopicDistributions(false);
-		Writer writer = new BufferedWriter(new OutputStreamWriter(
-                new FileOutputStream(fname), "utf-8"));
-        writer.write("{");
-        
-        for(String target : model.getSubredditSet()){
-        	double[] dist = targetTopics.get(target);
-        	writer.write("\"" + target + "\":[");
-        	for(int c = 0; c < model.numTopics; c++) {
-        		if(c > 0)
-        			writer.write(",");
-        		writer.write(String.valueOf(dist[c]));
-        	}
-        	writer.write("],");
-        }
-        writer.write("\"gg\":4}");
-        writer.close();
+		new RedditResultsExporter(model).writeSubredditTopics(new File(fname));
 	}
 	
 	public static void write_alphas(RedditLDA model, String fname) throws Exception {
-		double[][] alpha = model.alpha;
-		Writer writer = new BufferedWriter(new OutputStreamWriter(
-                new FileOutputStream(fname), "utf-8"));
-        writer.write("{");
-        
-        for(String target : model.getSubredditSet()){
-        	int sub = model.subredditMap.get(target);
-        	
-        	double[] dist = alpha[sub];
-        	writer.write("\"" + target + "\":[");
-        	for(int c = 0; c < model.numTopics; c++) {
-        		if(c > 0)
-        			writer.write(",");
-        		writer.write(String.valueOf(dist[c]));
-        	}
-        	writer.write("],");
-        }
-        writer.write("\"gg\":4}");
-        writer.close();
+		new RedditResultsExporter(model).writeAlphas(new File(fname));
 	}
 	
 	public static void write_confusions(RedditLDA model, int[][] confusions, String fname) throws Exception {
-		Writer writer = new BufferedWriter(new OutputStreamWriter(
-                new FileOutputStream(fname), "utf-8"));
-        writer.write("{");
-        
-        for(String target : model.getSubredditSet()){
-        	int sub = model.subredditMap.get(target);
-        	
-        	int[] dist = confusions[sub];
-        	writer.write("\"" + target + "\":[");
-        	for(int c = 0; c < model.numSubreddits; c++) {
-        		if(c > 0)
-        			writer.write(",");
-        		writer.write(String.valueOf(dist[c]));
-        	}
-        	writer.write("],");
-        }
-        writer.write("\"gg\":4}");
-        writer.close();
+		new RedditResultsExporter(model).writeConfusions(confusions, new File(fname));
 	}
 	
 	public static void write_top_words(RedditLDA model, String fname) throws Exception {
@@ -178,39 +127,26 @@ public class TestLDA {
 		//classifyLDA("nhl", 40, 20, 1, 0.01, instances);
 		
 		
-		//Parallel classification tasks
-		LDAClassifyWorker w1 = new LDAClassifyWorker("nhl", 1000, 30, 0.5, 0.01, 0.15, 0.01, nhlinstances);
-		LDAClassifyWorker w2 = new LDAClassifyWorker("nhl", 1000, 30, 0.5, 0.01, 9000, 9000, nhlinstances);
-		w1.start();
-		w2.start();
-		
-		LDAClassifyWorker w3 = new LDAClassifyWorker("nfl", 1000, 30, 0.5, 0.01, 0.15, 0.01, nflinstances);
-		LDAClassifyWorker w4 = new LDAClassifyWorker("nfl", 1000, 30, 0.5, 0.01, 9000, 9000, nflinstances);
-		w3.start();
-		w4.start();
-		
-		
-		//Parallel whole corpus fitting tasks
-		LDAWorker w5 = new LDAWorker("nhl", 1000, 30, 0.25, 0.01, 9000, 9000, nhlinstances);
-		LDAWorker w6 = new LDAWorker("nhl", 1000, 30, 0.5,  0.01, 0.15, 0.01, nhlinstances);
-		w5.start();
-		w6.start();
-		
-		LDAWorker w7 = new LDAWorker("nfl", 1000, 30, 0.25, 0.01, 9000, 9000, nflinstances);
-		LDAWorker w8 = new LDAWorker("nfl", 1000, 30, 0.5,  0.01, 0.15, 0.01, nflinstances);
-		w7.start();
-		w8.start();
-		
-		System.out.println("Stuff is working");
-		
-		w1.join();
-		w2.join();
-		w3.join();
-		w4.join();
-		w5.join();
-		w6.join();
-		w7.join();
-		w8.join();
+		//Sweeps share one corpus per top subreddit, and every run of both
+		// subreddits is scheduled together by the available cores and heap
+		RedditLDASweep.Scheduler scheduler = new RedditLDASweep.Scheduler();
+		for (String topsub : new String[] {"nhl", "nfl"}) {
+			InstanceList instances = topsub.equals("nhl") ? nhlinstances : nflinstances;
+			RedditCorpus corpus = new RedditCorpus(instances, topsub);
+
+			//Classification tasks
+			RedditLDASweep classify = new RedditLDASweep(corpus, topsub, new File("."));
+			classify.setMode(RedditLDASweep.CLASSIFY);
+			classify.submit(scheduler, RedditLDASweep.parseGrid("topics=30 alpha=0.5 beta=0.01 gamma=0.15,9000 eta=0.01"));
+
+			//Whole corpus fitting tasks
+			RedditLDASweep fit = new RedditLDASweep(corpus, topsub, new File("."));
+			List<RedditLDASweep.Run> runs = new ArrayList<RedditLDASweep.Run>();
+			runs.addAll(RedditLDASweep.parseGrid("topics=30 alpha=0.25 beta=0.01 gamma=9000 eta=9000"));
+			runs.addAll(RedditLDASweep.parseGrid("topics=30 alpha=0.5 beta=0.01 gamma=0.15 eta=0.01"));
+			fit.submit(scheduler, runs);
+		}
+		scheduler.await();
 		
 		
 		//TestLDA.SparseLDA("nhl", 100, 20, 1, 0.01, 0.10, 0.005, instances);
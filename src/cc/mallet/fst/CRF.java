@@ -127,6 +127,9 @@ public class CRF extends Transducer implements Serializable
 	
 	protected int cachedNumParametersStamp = -1; // A copy of weightsStructureChangeStamp the last time numParameters was calculated
 	protected int numParameters;
+
+	// The states and transitions in flat arrays, rebuilt when the weights structure changes
+	transient CRFTopology topology;
 	
 	
 	/** A simple, transparent container to hold the parameters or sufficient statistics for the CRF. */
@@ -355,6 +358,7 @@ public class CRF extends Transducer implements Serializable
 			public void incrementInitialState(Transducer.State s, double count) {
 				initialWeights[s.getIndex()] += count;
 			}
+			Factors getFactors () { return Factors.this; }
 			public void incrementTransition(Transducer.TransitionIterator ti, double count) {
 				int index = ti.getIndex();
 				CRF.State source = (CRF.State)ti.getSourceState(); 
@@ -394,6 +398,7 @@ public class CRF extends Transducer implements Serializable
 			public WeightedIncrementor (double instanceWeight) { 
 				this.instanceWeight = instanceWeight; 
 			}
+			Factors getFactors () { return Factors.this; }
 			public void incrementFinalState(Transducer.State s, double count) {
 				finalWeights[s.getIndex()] += count * instanceWeight;
 			}
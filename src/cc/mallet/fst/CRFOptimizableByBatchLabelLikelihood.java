@@ -96,10 +96,15 @@ public class CRFOptimizableByBatchLabelLikelihood implements Optimizable.ByCombi
 		assert (constraints.structureMatches(crf.parameters));
 		constraints.zero();
 
+		SumLatticeDense.Workspace workspace = CRFTopology.supports(crf) ? SumLatticeDense.getWorkspace() : null;
 		for (Instance instance : ilist) {
 			FeatureVectorSequence input = (FeatureVectorSequence) instance.getData();
 			FeatureSequence output = (FeatureSequence) instance.getTarget();
 			double instanceWeight = ilist.getInstanceWeight(instance);
+			if (workspace != null) {
+				workspace.forwardBackward(this.crf, input, output, constraints, instanceWeight);
+				continue;
+			}
 			Transducer.Incrementor incrementor =
 				instanceWeight == 1.0 ? constraints.new Incrementor()
 			: constraints.new WeightedIncrementor(instanceWeight);
@@ -122,6 +127,9 @@ public class CRFOptimizableByBatchLabelLikelihood implements Optimizable.ByCombi
 		int numInfUnlabeledWeight = 0;
 		int numInfWeight = 0;
 
+		// Each batch runs on its own thread, so each gets that thread's workspace
+		SumLatticeDense.Workspace workspace = CRFTopology.supports(crf) ? SumLatticeDense.getWorkspace() : null;
+
 		double value = 0;
 		double unlabeledWeight, labeledWeight, weight;
 		for (int ii = batchAssignments[0]; ii < batchAssignments[1]; ii++) {
@@ -130,14 +138,21 @@ public class CRFOptimizableByBatchLabelLikelihood implements Optimizable.ByCombi
 			FeatureVectorSequence input = (FeatureVectorSequence) instance.getData();
 			FeatureSequence output = (FeatureSequence) instance.getTarget();
 
-			labeledWeight = new SumLatticeDefault (this.crf, input, output, null).getTotalWeight();
+			if (workspace != null)
+				labeledWeight = workspace.forwardBackward(this.crf, input, output, null, 0);
+			else
+				labeledWeight = new SumLatticeDefault (this.crf, input, output, null).getTotalWeight();
 			if (Double.isInfinite (labeledWeight)) {
 				++numInfLabeledWeight;
 			}
 
-			Transducer.Incrementor incrementor = instanceWeight == 1.0 ? batchExpectations.new Incrementor()
-				: batchExpectations.new WeightedIncrementor (instanceWeight);
-			unlabeledWeight = new SumLatticeDefault (this.crf, input, null, incrementor).getTotalWeight();
+			if (workspace != null)
+				unlabeledWeight = workspace.forwardBackward(this.crf, input, null, batchExpectations, instanceWeight);
+			else {
+				Transducer.Incrementor incrementor = instanceWeight == 1.0 ? batchExpectations.new Incrementor()
+					: batchExpectations.new WeightedIncrementor (instanceWeight);
+				unlabeledWeight = new SumLatticeDefault (this.crf, input, null, incrementor).getTotalWeight();
+			}
 			if (Double.isInfinite (unlabeledWeight)) {
 				++numInfUnlabeledWeight;
 			}
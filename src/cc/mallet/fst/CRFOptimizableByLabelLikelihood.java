@@ -73,11 +73,17 @@ public class CRFOptimizableByLabelLikelihood implements Optimizable.ByGradientVa
 		assert (constraints.structureMatches(crf.parameters));
 		constraints.zero();
 
+		// Plain CRFs use the allocation-free lattice, adding straight into the constraints
+		SumLatticeDense.Workspace workspace = CRFTopology.supports(crf) ? SumLatticeDense.getWorkspace() : null;
 		for (Instance instance : ilist) {
 			FeatureVectorSequence input = (FeatureVectorSequence) instance.getData();
 			FeatureSequence output = (FeatureSequence) instance.getTarget();
 			double instanceWeight = ilist.getInstanceWeight(instance);
 			//System.out.println ("Constraint-gathering on instance "+i+" of "+ilist.size());
+			if (workspace != null) {
+				workspace.forwardBackward (this.crf, input, output, constraints, instanceWeight);
+				continue;
+			}
 			Transducer.Incrementor incrementor = instanceWeight == 1.0 ? constraints.new Incrementor() : constraints.new WeightedIncrementor(instanceWeight);
 			new SumLatticeDefault (this.crf, input, output, incrementor); 
 		}
@@ -130,6 +136,8 @@ public class CRFOptimizableByLabelLikelihood implements Optimizable.ByGradientVa
 		int numInfUnlabeledWeight = 0;
 		int numInfWeight = 0;
 		
+		SumLatticeDense.Workspace workspace = CRFTopology.supports(crf) ? SumLatticeDense.getWorkspace() : null;
+
 		// Calculate the value of each instance, and also fill in expectations
 		double unlabeledWeight, labeledWeight, weight;
 		for (int ii = 0; ii < trainingSet.size(); ii++) {
@@ -137,7 +145,10 @@ public class CRFOptimizableByLabelLikelihood implements Optimizable.ByGradientVa
 			double instanceWeight = trainingSet.getInstanceWeight(instance);
 			FeatureVectorSequence input = (FeatureVectorSequence) instance.getData();
 			FeatureSequence output = (FeatureSequence) instance.getTarget();
-			labeledWeight = new SumLatticeDefault (this.crf, input, output, (Transducer.Incrementor)null).getTotalWeight();
+			if (workspace != null)
+				labeledWeight = workspace.forwardBackward (this.crf, input, output, null, 0);
+			else
+				labeledWeight = new SumLatticeDefault (this.crf, input, output, (Transducer.Incrementor)null).getTotalWeight();
 			String instanceName = instance.getName() == null ? "instance#"+ii : instance.getName().toString();
 			//System.out.println ("labeledWeight = "+labeledWeight);
 			if (Double.isInfinite (labeledWeight)) {
@@ -145,8 +156,12 @@ public class CRFOptimizableByLabelLikelihood implements Optimizable.ByGradientVa
 				logger.warning (instanceName + " has -infinite labeled weight.\n"+(instance.getSource() != null ? instance.getSource() : ""));
 			}
 			
-			Transducer.Incrementor incrementor = instanceWeight == 1.0 ? expectations.new Incrementor() : expectations.new WeightedIncrementor (instanceWeight);
-			unlabeledWeight = new SumLatticeDefault (this.crf, input, null, incrementor).getTotalWeight();
+			if (workspace != null)
+				unlabeledWeight = workspace.forwardBackward (this.crf, input, null, expectations, instanceWeight);
+			else {
+				Transducer.Incrementor incrementor = instanceWeight == 1.0 ? expectations.new Incrementor() : expectations.new WeightedIncrementor (instanceWeight);
+				unlabeledWeight = new SumLatticeDefault (this.crf, input, null, incrementor).getTotalWeight();
+			}
 			//System.out.println ("unlabeledWeight = "+unlabeledWeight);
 			if (Double.isInfinite (unlabeledWeight)) {
 				++numInfUnlabeledWeight;
@@ -0,0 +1,411 @@
+/* Copyright (C) 2002 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.fst;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import java.util.logging.Logger;
+
+import cc.mallet.optimize.Optimizable;
+
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.FeatureVectorSequence;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.MatrixOps;
+import cc.mallet.types.Sequence;
+
+import cc.mallet.util.Maths;
+import cc.mallet.util.MalletLogger;
+
+/**
+ * The label likelihood of a CRF and a Gaussian or hyperbolic prior, as in
+ * {@link CRFOptimizableByLabelLikelihood}, computed by several threads that share
+ * the CRF's parameters. <p>
+ *
+ * <tt>CRFOptimizableByBatchLabelLikelihood</tt>, run by a <tt>ThreadedOptimizable</tt>,
+ * gives each batch its own <tt>CRF.Factors</tt> of expectations and two gradient
+ * arrays the size of the parameters, and adds them all up on one thread for every
+ * gradient. Here each thread instead collects the expectations of its share of the
+ * instances in a {@link SparseFactors}, which holds only the parameters of the
+ * features those instances contain. The gradient is then assembled by all the
+ * threads at once, each filling in the parameters of one range of features (and of
+ * one range of default weights) from the constraints, the prior and every thread's
+ * expectations. Besides the CRF's parameters, only the constraints, the cached
+ * gradient and an index of the parameters of each feature are stored densely. <p>
+ *
+ * Each thread keeps its <tt>SparseFactors</tt> and its <tt>SumLatticeDense.Workspace</tt>
+ * from one iteration to the next, so training allocates little after the first
+ * iteration. CRFs that <tt>SumLatticeDense</tt> doesn't support use
+ * <tt>SumLatticeDefault</tt>. <p>
+ *
+ * *Note*: As in <tt>CRFOptimizableByBatchLabelLikelihood</tt>, instances with
+ * infinite weights are left out of the value. Call <tt>shutdown</tt> when done
+ * to stop the threads.
+ */
+public class CRFOptimizableByThreadedLabelLikelihood implements Optimizable.ByGradientValue, Serializable
+{
+	private static Logger logger = MalletLogger.getLogger(CRFOptimizableByThreadedLabelLikelihood.class.getName());
+
+	static final double DEFAULT_GAUSSIAN_PRIOR_VARIANCE = 1.0;
+	static final double DEFAULT_HYPERBOLIC_PRIOR_SLOPE = 0.2;
+	static final double DEFAULT_HYPERBOLIC_PRIOR_SHARPNESS = 10.0;
+
+	protected CRF crf;
+	protected InstanceList trainingSet;
+	protected int numThreads;
+
+	// constraints over the whole training set, in the layout of CRF.Factors.getParameters
+	protected double[] constraints;
+	protected double cachedValue = -123456789;
+	protected double[] cachedGradient;
+	private int cachedValueWeightsStamp = -1;
+	private int cachedGradientWeightsStamp = -1;
+
+	boolean usingHyperbolicPrior = false;
+	double gaussianPriorVariance = DEFAULT_GAUSSIAN_PRIOR_VARIANCE;
+	double hyperbolicPriorSlope = DEFAULT_HYPERBOLIC_PRIOR_SLOPE;
+	double hyperbolicPriorSharpness = DEFAULT_HYPERBOLIC_PRIOR_SHARPNESS;
+
+	// one per thread, each with a contiguous share of the training set
+	private transient Worker[] workers;
+	private transient SparseFactors.Index index;
+	private transient int[] weightRanges;      // first weight index of each thread's range, plus one
+	private transient int[] featureRanges;     // first feature of each thread's range, plus one
+	private final WorkerPool pool;
+
+	public CRFOptimizableByThreadedLabelLikelihood (CRF crf, InstanceList ilist, int numThreads)
+	{
+		if (numThreads < 1)
+			throw new IllegalArgumentException ("Number of threads must be at least 1: " + numThreads);
+		this.crf = crf;
+		this.trainingSet = ilist;
+		this.numThreads = numThreads;
+		this.pool = new WorkerPool (numThreads, "CRFOptimizableByThreadedLabelLikelihood");
+		int numFactors = crf.parameters.getNumFactors();
+		cachedGradient = new double[numFactors];
+		constraints = new double[numFactors];
+
+		gatherConstraints ();
+	}
+
+	/**
+	 * Set the constraints by running forward-backward with the <i>output label
+	 * sequence provided</i>, thus restricting it to only those paths that agree with
+	 * the label sequence.
+	 */
+	protected void gatherConstraints ()
+	{
+		logger.info ("Gathering constraints...");
+		runWorkers (true);
+		// Each range of default weights and of features has its own parameters, so the threads don't collide
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>> ();
+		for (int range = 0; range < numThreads; range++) {
+			final int r = range;
+			tasks.add (new Callable<Object> () {
+				public Object call () {
+					for (Worker worker : workers) {
+						worker.counts.addDefaultsTo (constraints, weightRanges[r], weightRanges[r+1], r == 0, 1.0);
+						worker.counts.addWeightsTo (constraints, featureRanges[r], featureRanges[r+1], 1.0);
+					}
+					return null;
+				}
+			});
+		}
+		pool.invokeAll (tasks, "computing the label likelihood");
+		assert (!MatrixOps.isNaNOrInfinite (constraints));
+	}
+
+	private void setUp ()
+	{
+		if (workers != null) return;
+		index = new SparseFactors.Index (crf);
+		featureRanges = index.featureRanges (numThreads);
+		weightRanges = new int[numThreads + 1];
+		for (int range = 0; range <= numThreads; range++)
+			weightRanges[range] = (int) ((long) crf.parameters.weights.length * range / numThreads);
+		boolean dense = CRFTopology.supports (crf);
+		workers = new Worker[numThreads];
+		for (int thread = 0; thread < numThreads; thread++) {
+			int start = (int) ((long) trainingSet.size() * thread / numThreads);
+			int end = (int) ((long) trainingSet.size() * (thread + 1) / numThreads);
+			workers[thread] = new Worker (start, end, dense);
+		}
+	}
+
+	// Runs every worker on its share of the instances, returning the sum of their values
+	private double runWorkers (boolean constrained)
+	{
+		setUp ();
+		List<Callable<Double>> tasks = new ArrayList<Callable<Double>> ();
+		for (Worker worker : workers) {
+			worker.constrained = constrained;
+			tasks.add (worker);
+		}
+		double value = 0;
+		// Add up in worker order, so the value doesn't depend on thread timing
+		for (Double workerValue : pool.invokeAll (tasks, "computing the label likelihood"))
+			value += workerValue;
+
+		int numInfLabeledWeight = 0;
+		int numInfUnlabeledWeight = 0;
+		int numInfWeight = 0;
+		for (Worker worker : workers) {
+			numInfLabeledWeight += worker.numInfLabeledWeight;
+			numInfUnlabeledWeight += worker.numInfUnlabeledWeight;
+			numInfWeight += worker.numInfWeight;
+		}
+		if (numInfLabeledWeight > 0 || numInfUnlabeledWeight > 0 || numInfWeight > 0) {
+			logger.warning("Number of instances with:\n" +
+					"\t -infinite labeled weight: " + numInfLabeledWeight + "\n" +
+					"\t -infinite unlabeled weight: " + numInfUnlabeledWeight + "\n" +
+					"\t -infinite weight: " + numInfWeight);
+		}
+		return value;
+	}
+
+	/** Returns the log probability of the training sequence labels and the prior over parameters. */
+	public double getValue ()
+	{
+		if (crf.weightsValueChangeStamp != cachedValueWeightsStamp) {
+			// The cached value is not up to date; it was calculated for a different set of CRF weights.
+			cachedValueWeightsStamp = crf.weightsValueChangeStamp;  // cachedValue will soon no longer be stale
+			long startingTime = System.currentTimeMillis();
+
+			// Get the value of all the all the true labels, also filling in each worker's expectations.
+			cachedValue = runWorkers (false);
+
+			// Incorporate prior on parameters
+			if (usingHyperbolicPrior) // Hyperbolic prior
+				cachedValue += crf.parameters.hyberbolicPrior(hyperbolicPriorSlope, hyperbolicPriorSharpness);
+			else // Gaussian prior
+				cachedValue += crf.parameters.gaussianPrior(gaussianPriorVariance);
+
+			assert(!(Double.isNaN(cachedValue) || Double.isInfinite(cachedValue))) : "Label likelihood is NaN/Infinite";
+
+			logger.info ("getValue() (loglikelihood, optimizable by label likelihood) = "+cachedValue);
+			long endingTime = System.currentTimeMillis();
+			logger.fine ("Inference milliseconds = "+(endingTime - startingTime));
+		}
+		return cachedValue;
+	}
+
+	public void getValueGradient (double [] buffer)
+	{
+		// Gradient is (constraint - expectation + PriorGradient), assembled one range of parameters per thread
+		if (cachedGradientWeightsStamp != crf.weightsValueChangeStamp) {
+			cachedGradientWeightsStamp = crf.weightsValueChangeStamp; // cachedGradient will soon no longer be stale
+			// This will fill in the workers' expectations, updating them if necessary
+			getValue ();
+			// crf parameters are allowed to have infinite values
+			crf.parameters.assertNotNaN();
+
+			List<Callable<Object>> tasks = new ArrayList<Callable<Object>> ();
+			for (int range = 0; range < numThreads; range++) {
+				final int r = range;
+				tasks.add (new Callable<Object> () {
+					public Object call () {
+						assembleGradient (r);
+						return null;
+					}
+				});
+			}
+			pool.invokeAll (tasks, "computing the label likelihood");
+			assert (!MatrixOps.isNaNOrInfinite (cachedGradient));
+		}
+		System.arraycopy(cachedGradient, 0, buffer, 0, cachedGradient.length);
+	}
+
+	// Fills in the gradient of one range of default weights and one range of features
+	private void assembleGradient (int range)
+	{
+		CRF.Factors parameters = crf.parameters;
+		if (range == 0) {
+			// The prior is skipped for states with infinite initial or final weights, as in CRF.Factors
+			for (int i = 0; i < parameters.initialWeights.length; i++) {
+				cachedGradient[2*i] = constraints[2*i];
+				if (!Double.isInfinite (parameters.initialWeights[i]))
+					cachedGradient[2*i] -= priorGradient (parameters.initialWeights[i]);
+				cachedGradient[2*i+1] = constraints[2*i+1];
+				if (!Double.isInfinite (parameters.finalWeights[i]))
+					cachedGradient[2*i+1] -= priorGradient (parameters.finalWeights[i]);
+			}
+		}
+		// Frozen weights have no constraints or expectations, and get no prior
+		for (int w = weightRanges[range]; w < weightRanges[range+1]; w++) {
+			int position = index.weightOffsets[w];
+			if (parameters.weightsFrozen[w])
+				cachedGradient[position] = 0;
+			else
+				cachedGradient[position] = constraints[position] - priorGradient (parameters.defaultWeights[w]);
+		}
+		for (int f = featureRanges[range]; f < featureRanges[range+1]; f++)
+			for (int entry = index.featureStart[f]; entry < index.featureStart[f+1]; entry++) {
+				int w = index.entryWeight[entry];
+				int position = index.entryPosition[entry];
+				if (parameters.weightsFrozen[w])
+					cachedGradient[position] = 0;
+				else {
+					double parameter = parameters.weights[w].valueAtLocation (position - index.weightOffsets[w] - 1);
+					cachedGradient[position] = constraints[position] - priorGradient (parameter);
+				}
+			}
+		for (Worker worker : workers) {
+			worker.counts.addDefaultsTo (cachedGradient, weightRanges[range], weightRanges[range+1], range == 0, -1.0);
+			worker.counts.addWeightsTo (cachedGradient, featureRanges[range], featureRanges[range+1], -1.0);
+		}
+	}
+
+	// The derivative of the negated log prior at a parameter
+	private double priorGradient (double parameter)
+	{
+		if (usingHyperbolicPrior)
+			return hyperbolicPriorSlope * hyperbolicPriorSharpness * Maths.tanh (parameter);
+		return parameter / gaussianPriorVariance;
+	}
+
+	/** Runs forward-backward on a contiguous share of the training set. */
+	private class Worker implements Callable<Double>
+	{
+		final int start, end;
+		final SparseFactors counts;
+		final SumLatticeDense.Workspace workspace;
+		boolean constrained;   // if true, gather the constraints rather than the expectations
+		int numInfLabeledWeight, numInfUnlabeledWeight, numInfWeight;
+
+		Worker (int start, int end, boolean dense)
+		{
+			this.start = start;
+			this.end = end;
+			this.counts = new SparseFactors (index);
+			this.workspace = dense ? new SumLatticeDense.Workspace () : null;
+		}
+
+		public Double call ()
+		{
+			counts.zero();
+			numInfLabeledWeight = numInfUnlabeledWeight = numInfWeight = 0;
+			double value = 0;
+			for (int ii = start; ii < end; ii++) {
+				Instance instance = trainingSet.get(ii);
+				double instanceWeight = trainingSet.getInstanceWeight(instance);
+				FeatureVectorSequence input = (FeatureVectorSequence) instance.getData();
+				FeatureSequence output = (FeatureSequence) instance.getTarget();
+				counts.setInstanceWeight (instanceWeight);
+				if (constrained) {
+					forwardBackward (input, output, counts);
+					continue;
+				}
+
+				double labeledWeight = forwardBackward (input, output, null);
+				if (Double.isInfinite (labeledWeight))
+					++numInfLabeledWeight;
+				double unlabeledWeight = forwardBackward (input, null, counts);
+				if (Double.isInfinite (unlabeledWeight))
+					++numInfUnlabeledWeight;
+
+				// weight is log(conditional probability correct label sequence)
+				double weight = labeledWeight - unlabeledWeight;
+				if (Double.isInfinite(weight))
+					++numInfWeight;
+				else
+					value += weight * instanceWeight;
+			}
+			return value;
+		}
+
+		private double forwardBackward (FeatureVectorSequence input, Sequence output, Transducer.Incrementor incrementor)
+		{
+			if (workspace != null)
+				return workspace.forwardBackward (crf, input, output, incrementor);
+			return new SumLatticeDefault (crf, input, output, incrementor).getTotalWeight();
+		}
+	}
+
+	/** Stops the threads. They are started again if the value or gradient is needed. */
+	public void shutdown ()
+	{
+		pool.shutdown ();
+	}
+
+	public int getNumThreads () { return numThreads; }
+
+	public void setUseHyperbolicPrior (boolean f) { usingHyperbolicPrior = f; }
+	public void setHyperbolicPriorSlope (double p) { hyperbolicPriorSlope = p; }
+	public void setHyperbolicPriorSharpness (double p) { hyperbolicPriorSharpness = p; }
+	public double getUseHyperbolicPriorSlope () { return hyperbolicPriorSlope; }
+	public double getUseHyperbolicPriorSharpness () { return hyperbolicPriorSharpness; }
+	public void setGaussianPriorVariance (double p) { gaussianPriorVariance = p; }
+	public double getGaussianPriorVariance () { return gaussianPriorVariance; }
+	public int getNumParameters () {return crf.parameters.getNumFactors();}
+
+	public void getParameters (double[] buffer) {
+		crf.parameters.getParameters(buffer);
+	}
+
+	public double getParameter (int index) {
+		return crf.parameters.getParameter(index);
+	}
+
+	public void setParameters (double [] buff) {
+		crf.parameters.setParameters(buff);
+		crf.weightsValueChanged();
+	}
+
+	public void setParameter (int index, double value) {
+		crf.parameters.setParameter(index, value);
+		crf.weightsValueChanged();
+	}
+
+	private static final long serialVersionUID = 1;
+	private static final int CURRENT_SERIAL_VERSION = 0;
+
+	private void writeObject (ObjectOutputStream out) throws IOException {
+		out.writeInt (CURRENT_SERIAL_VERSION);
+		out.writeObject(trainingSet);
+		out.writeObject(crf);
+		out.writeInt(numThreads);
+		out.writeObject(constraints);
+		out.writeDouble(cachedValue);
+		out.writeObject(cachedGradient);
+		out.writeBoolean(usingHyperbolicPrior);
+		out.writeDouble(gaussianPriorVariance);
+		out.writeDouble(hyperbolicPriorSlope);
+		out.writeDouble(hyperbolicPriorSharpness);
+	}
+
+	private void readObject (ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.readInt ();
+		trainingSet = (InstanceList) in.readObject();
+		crf = (CRF) in.readObject();
+		numThreads = in.readInt();
+		constraints = (double[]) in.readObject();
+		cachedValue = in.readDouble();
+		cachedGradient = (double[]) in.readObject();
+		usingHyperbolicPrior = in.readBoolean();
+		gaussianPriorVariance = in.readDouble();
+		hyperbolicPriorSlope = in.readDouble();
+		hyperbolicPriorSharpness = in.readDouble();
+		// The value and gradient are recomputed, since the cached stamps are not saved
+		cachedValueWeightsStamp = -1;
+		cachedGradientWeightsStamp = -1;
+	}
+
+	public static class Factory {
+		public Optimizable.ByGradientValue newCRFOptimizable (CRF crf, InstanceList trainingData, int numThreads) {
+			return new CRFOptimizableByThreadedLabelLikelihood (crf, trainingData, numThreads);
+		}
+	}
+}
@@ -0,0 +1,139 @@
+/* Copyright (C) 2002 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.fst;
+
+import java.util.Arrays;
+
+import cc.mallet.types.Alphabet;
+
+/**
+ * The states and transitions of a {@link CRF}, in flat arrays.
+ * <p>
+ * Transitions are numbered by source state, in the order of each state's destinations,
+ * so the transitions out of state <code>i</code> are
+ * <code>[outgoingStart[i], outgoingStart[i+1])</code>. The transitions into each state
+ * are listed separately in <code>incoming</code>. For each transition the table holds
+ * its destination, the index of its label in the CRF's output alphabet, and the
+ * indices of the weights that are summed to score it.
+ * <p>
+ * A table is built on first use and kept until the structure of the CRF's weights
+ * changes. It is immutable, so it can be shared by threads.
+ */
+public final class CRFTopology
+{
+	final int numStates;
+	final int numTransitions;
+	final int numWeights;
+
+	final int[] outgoingStart;          // indexed by source state, plus one
+	final int[] transitionSource;       // indexed by transition
+	final int[] transitionDestination;
+	final int[] transitionLabel;        // index into the CRF's output alphabet
+	final int[][] transitionWeights;    // indices into CRF.parameters.weights
+
+	final int[] incomingStart;          // indexed by destination state, plus one
+	final int[] incoming;               // transitions, grouped by destination
+
+	final int[] usedWeights;            // weight indices used by any transition
+	final int[][] labelWeights;         // weight indices used by transitions with each label
+
+	final int structureStamp;
+
+	CRFTopology (CRF crf)
+	{
+		structureStamp = crf.weightsStructureChangeStamp;
+		numStates = crf.numStates();
+		numWeights = crf.parameters.weights == null ? 0 : crf.parameters.weights.length;
+		Alphabet outputAlphabet = crf.getOutputAlphabet();
+
+		outgoingStart = new int[numStates + 1];
+		for (int i = 0; i < numStates; i++)
+			outgoingStart[i+1] = outgoingStart[i] + ((CRF.State) crf.getState(i)).destinations.length;
+		numTransitions = outgoingStart[numStates];
+
+		transitionSource = new int[numTransitions];
+		transitionDestination = new int[numTransitions];
+		transitionLabel = new int[numTransitions];
+		transitionWeights = new int[numTransitions][];
+		incomingStart = new int[numStates + 1];
+		for (int i = 0; i < numStates; i++) {
+			CRF.State s = (CRF.State) crf.getState(i);
+			for (int d = 0; d < s.destinations.length; d++) {
+				int t = outgoingStart[i] + d;
+				transitionSource[t] = i;
+				transitionDestination[t] = s.getDestinationState(d).getIndex();
+				transitionLabel[t] = outputAlphabet.lookupIndex(s.labels[d], false);
+				transitionWeights[t] = s.weightsIndices[d];
+				incomingStart[transitionDestination[t]+1]++;
+			}
+		}
+
+		for (int j = 0; j < numStates; j++)
+			incomingStart[j+1] += incomingStart[j];
+		incoming = new int[numTransitions];
+		int[] next = Arrays.copyOf(incomingStart, numStates);
+		for (int t = 0; t < numTransitions; t++)
+			incoming[next[transitionDestination[t]]++] = t;
+
+		usedWeights = weightsOf(-1);
+		labelWeights = new int[outputAlphabet.size()][];
+		for (int label = 0; label < labelWeights.length; label++)
+			labelWeights[label] = weightsOf(label);
+	}
+
+	// The distinct weight indices of the transitions with this label, or of all transitions if label is -1
+	private int[] weightsOf (int label)
+	{
+		boolean[] used = new boolean[numWeights];
+		int count = 0;
+		for (int t = 0; t < numTransitions; t++) {
+			if (label >= 0 && transitionLabel[t] != label) continue;
+			for (int w : transitionWeights[t])
+				if (!used[w]) {
+					used[w] = true;
+					count++;
+				}
+		}
+		int[] ret = new int[count];
+		count = 0;
+		for (int w = 0; w < numWeights; w++)
+			if (used[w]) ret[count++] = w;
+		return ret;
+	}
+
+	/** Returns the table for the current structure of the CRF, building it if needed. */
+	public static CRFTopology get (CRF crf)
+	{
+		CRFTopology topology = crf.topology;
+		if (topology == null || topology.structureStamp != crf.weightsStructureChangeStamp) {
+			topology = new CRFTopology (crf);
+			crf.topology = topology;
+		}
+		return topology;
+	}
+
+	/**
+	 * Returns true if every state of the transducer is a plain <tt>CRF.State</tt>, whose
+	 * transitions are scored by summing dot products of weights with the input.
+	 * Subclasses such as <tt>MEMM</tt> score transitions differently.
+	 */
+	public static boolean supports (Transducer t)
+	{
+		if (!(t instanceof CRF)) return false;
+		for (int i = 0; i < t.numStates(); i++)
+			if (t.getState(i).getClass() != CRF.State.class) return false;
+		return true;
+	}
+
+	public int numStates () { return numStates; }
+	public int numTransitions () { return numTransitions; }
+	public int getSource (int transition) { return transitionSource[transition]; }
+	public int getDestination (int transition) { return transitionDestination[transition]; }
+	public int getLabel (int transition) { return transitionLabel[transition]; }
+	public int[] getWeightIndices (int transition) { return transitionWeights[transition]; }
+}
@@ -13,6 +13,12 @@ import cc.mallet.util.MalletLogger;
  *
  * Multi-threaded version of CRF trainer.  Note that multi-threaded feature induction
  * and hyperbolic prior are not supported by this code.  
+ * <p>
+ * By default each thread fills in its own copy of the expectations, which are then
+ * added up on one thread. With {@link #setUseSparseExpectations} the threads keep
+ * only the expectations of the parameters their instances touch, and add them into
+ * the gradient in parallel (see <tt>CRFOptimizableByThreadedLabelLikelihood</tt>),
+ * which saves memory and time for CRFs with many parameters.
  */
 public class CRFTrainerByThreadedLabelLikelihood extends TransducerTrainer implements TransducerTrainer.ByOptimization {
 	private static Logger logger = MalletLogger.getLogger(CRFTrainerByThreadedLabelLikelihood.class.getName());
@@ -21,6 +27,7 @@ public class CRFTrainerByThreadedLabelLikelihood extends TransducerTrainer imple
 
 	private boolean useSparseWeights;
 	private boolean useNoWeights;
+	private boolean useSparseExpectations;
 	private transient boolean useSomeUnsupportedTrick;
 	private boolean converged;
 	private int numThreads;
@@ -29,6 +36,7 @@ public class CRFTrainerByThreadedLabelLikelihood extends TransducerTrainer imple
 	private CRF crf;
 	private CRFOptimizableByBatchLabelLikelihood optimizable;
 	private ThreadedOptimizable threadedOptimizable;
+	private CRFOptimizableByThreadedLabelLikelihood sparseOptimizable;
 	private Optimizer optimizer;
 	private int cachedWeightsStructureStamp; 
 
@@ -36,6 +44,7 @@ public class CRFTrainerByThreadedLabelLikelihood extends TransducerTrainer imple
 		this.crf = crf;
 		this.useSparseWeights = true;
 		this.useNoWeights = false;
+		this.useSparseExpectations = false;
 		this.useSomeUnsupportedTrick = true;
 		this.converged = false;
 		this.numThreads = numThreads;
@@ -77,11 +86,64 @@ public class CRFTrainerByThreadedLabelLikelihood extends TransducerTrainer imple
 		this.useNoWeights = flag;
 	}
 
+	/**
+	 * Sets whether each thread keeps only the expectations of the parameters its
+	 * instances touch, rather than a full copy of them, and the gradient is assembled
+	 * by all threads at once. Takes effect at the next call to <tt>train</tt>.
+	 *
+	 * @param b Whether to use sparse expectations
+	 */
+	public void setUseSparseExpectations (boolean b) {
+		if (b != useSparseExpectations) {
+			useSparseExpectations = b;
+			optimizer = null;
+		}
+	}
+	public boolean getUseSparseExpectations () { return useSparseExpectations; }
+
 	public void shutdown() {
-		threadedOptimizable.shutdown();
+		if (threadedOptimizable != null)
+			threadedOptimizable.shutdown();
+		if (sparseOptimizable != null)
+			sparseOptimizable.shutdown();
 	}
 	
+	/**
+	 * Returns the optimizable used when sparse expectations are off, creating it
+	 * if needed.
+	 */
 	public CRFOptimizableByBatchLabelLikelihood getOptimizableCRF (InstanceList trainingSet) {
+		setWeightsDimension (trainingSet);
+		if (optimizable == null || optimizable.trainingSet != trainingSet) {
+			if (threadedOptimizable != null)
+				threadedOptimizable.shutdown();
+			optimizable = new CRFOptimizableByBatchLabelLikelihood(crf, trainingSet, numThreads);
+			optimizable.setGaussianPriorVariance(gaussianPriorVariance);
+			threadedOptimizable = new ThreadedOptimizable(optimizable, trainingSet, crf.getParameters().getNumFactors(),
+	      new CRFCacheStaleIndicator(crf));
+			optimizer = null;
+		}
+		return optimizable;
+	}
+	
+	/**
+	 * Returns the optimizable used when sparse expectations are on, creating it
+	 * if needed.
+	 */
+	public CRFOptimizableByThreadedLabelLikelihood getSparseOptimizableCRF (InstanceList trainingSet) {
+		setWeightsDimension (trainingSet);
+		if (sparseOptimizable == null || sparseOptimizable.trainingSet != trainingSet) {
+			if (sparseOptimizable != null)
+				sparseOptimizable.shutdown();
+			sparseOptimizable = new CRFOptimizableByThreadedLabelLikelihood(crf, trainingSet, numThreads);
+			sparseOptimizable.setGaussianPriorVariance(gaussianPriorVariance);
+			optimizer = null;
+		}
+		return sparseOptimizable;
+	}
+
+	// Sets up the CRF's weights for this training set when their structure has changed
+	private void setWeightsDimension (InstanceList trainingSet) {
 		if (cachedWeightsStructureStamp != crf.weightsStructureChangeStamp) {
 			if (!useNoWeights) {
 				if (useSparseWeights) {
@@ -92,19 +154,21 @@ public class CRFTrainerByThreadedLabelLikelihood extends TransducerTrainer imple
 				}
 			}
 			optimizable = null;
+			if (sparseOptimizable != null)
+				sparseOptimizable.shutdown();
+			sparseOptimizable = null;
 			cachedWeightsStructureStamp = crf.weightsStructureChangeStamp;
 		}
-		if (optimizable == null || optimizable.trainingSet != trainingSet) {
-			optimizable = new CRFOptimizableByBatchLabelLikelihood(crf, trainingSet, numThreads);
-			optimizable.setGaussianPriorVariance(gaussianPriorVariance);
-			threadedOptimizable = new ThreadedOptimizable(optimizable, trainingSet, crf.getParameters().getNumFactors(),
-	      new CRFCacheStaleIndicator(crf));
-			optimizer = null;
-		}
-		return optimizable;
 	}
 	
 	public Optimizer getOptimizer (InstanceList trainingSet) {
+		if (useSparseExpectations) {
+			getSparseOptimizableCRF(trainingSet);
+			if (optimizer == null || sparseOptimizable != optimizer.getOptimizable()) {
+				optimizer = new LimitedMemoryBFGS(sparseOptimizable);
+			}
+			return optimizer;
+		}
 		getOptimizableCRF(trainingSet);
 		if (optimizer == null || optimizable != optimizer.getOptimizable()) {
 			optimizer = new LimitedMemoryBFGS(threadedOptimizable);
@@ -122,8 +186,7 @@ public class CRFTrainerByThreadedLabelLikelihood extends TransducerTrainer imple
 		}
 		assert (trainingSet.size() > 0);
 
-		getOptimizableCRF(trainingSet); // This will set this.mcrf if necessary
-		getOptimizer(trainingSet); // This will set this.opt if necessary
+		getOptimizer(trainingSet); // This will set up the optimizable and this.optimizer if necessary
 
 		boolean converged = false;
 		logger.info ("CRF about to train with "+numIterations+" iterations");
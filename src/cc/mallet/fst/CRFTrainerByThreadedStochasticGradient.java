@@ -0,0 +1,434 @@
+/* Copyright (C) 2002 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.fst;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.FeatureVectorSequence;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.Sequence;
+import cc.mallet.types.SparseVector;
+import cc.mallet.util.MalletLogger;
+
+/**
+ * Trains a CRF by stochastic gradient on mini-batches, on several threads at once.
+ * Most effective on large training sets.
+ * <p>
+ * Each iteration shuffles the training set and splits it into mini-batches, which
+ * the threads take in turn. A thread runs forward-backward on every instance of its
+ * batch, collecting the constraints minus the expectations in a {@link SparseFactors},
+ * and then changes only the parameters of the features in the batch. Threads change
+ * the shared parameters without locking ("Hogwild"): a thread may read parameters
+ * that another is changing, and an occasional update may be lost, which stochastic
+ * gradient tolerates. With one thread, training is repeatable for a given seed.
+ * <p>
+ * The Gaussian prior shrinks every parameter at every step. Rather than visiting
+ * them all, the shrinkage owed by each parameter is applied when it is next changed
+ * (and to all of them at the end of each iteration), so a step costs time in
+ * proportion to the features of its batch. Over the steps a parameter is left alone
+ * its value is multiplied by <tt>exp(-sum of rate / (variance * numInstances))</tt>.
+ * <p>
+ * The learning rate at step <tt>t</tt> is <tt>rate / (1 + decay * t)</tt>. By default
+ * the decay is <tt>rate / (variance * numInstances)</tt>, for plain stochastic
+ * gradient, and zero with AdaGrad, which divides the learning rate of each parameter
+ * by the square root of the sum of its squared gradients. The default rate suits
+ * AdaGrad; for plain stochastic gradient, choose one with
+ * {@link #setLearningRateByLikelihood}.
+ */
+public class CRFTrainerByThreadedStochasticGradient extends TransducerTrainer.ByIncrements
+{
+	private static Logger logger = MalletLogger.getLogger(CRFTrainerByThreadedStochasticGradient.class.getName());
+
+	static final double DEFAULT_GAUSSIAN_PRIOR_VARIANCE = 1.0;
+	static final double DEFAULT_LEARNING_RATE = 0.1;
+	static final int DEFAULT_BATCH_SIZE = 10;
+	static final double ADAGRAD_EPSILON = 1e-8;
+
+	protected CRF crf;
+	protected int numThreads;
+	protected int batchSize = DEFAULT_BATCH_SIZE;
+	protected double learningRate = DEFAULT_LEARNING_RATE;
+	protected double learningRateDecay = Double.NaN;   // NaN means choose by default
+	protected boolean useAdaGrad = false;
+	protected double gaussianPriorVariance = DEFAULT_GAUSSIAN_PRIOR_VARIANCE;
+	protected boolean useSparseWeights = true;
+	protected boolean useNoWeights = false;
+	protected boolean useSomeUnsupportedTrick = true;
+	protected Random random = new Random (1);
+
+	protected int iterationCount = 0;
+	protected boolean converged = false;
+
+	// The number of steps taken so far, over all calls to train
+	protected long numSteps = 0;
+
+	// State for each parameter, in the layout of CRF.Factors.getParameters
+	private double[] shrinkageApplied;     // value of totalShrinkage when last applied
+	private double[] squaredGradients;     // for AdaGrad
+	// The sum over steps of rate / (variance * numInstances), as the bits of a double
+	private final AtomicLong totalShrinkage = new AtomicLong (Double.doubleToLongBits (0.0));
+
+	private SparseFactors.Index index;
+	private Worker[] workers;
+	private int cachedWeightsStructureStamp = -1;
+	// True if the weights were sized for the sample given to setLearningRateByLikelihood
+	private boolean sizedForSample = false;
+	private final WorkerPool pool;
+
+	public CRFTrainerByThreadedStochasticGradient (CRF crf, int numThreads)
+	{
+		if (numThreads < 1)
+			throw new IllegalArgumentException ("Number of threads must be at least 1: " + numThreads);
+		this.crf = crf;
+		this.numThreads = numThreads;
+		this.pool = new WorkerPool (numThreads, "CRFTrainerByThreadedStochasticGradient");
+	}
+
+	public Transducer getTransducer () { return crf; }
+	public CRF getCRF () { return crf; }
+	public int getIteration () { return iterationCount; }
+	public boolean isFinishedTraining () { return converged; }
+
+	public void setBatchSize (int batchSize) {
+		if (batchSize < 1)
+			throw new IllegalArgumentException ("Batch size must be at least 1: " + batchSize);
+		this.batchSize = batchSize;
+	}
+	public int getBatchSize () { return batchSize; }
+	public void setLearningRate (double r) { learningRate = r; }
+	public double getLearningRate () { return learningRate; }
+	/** Sets the decay of the learning rate per step; <tt>Double.NaN</tt> chooses it by default. */
+	public void setLearningRateDecay (double decay) { learningRateDecay = decay; }
+	public double getLearningRateDecay () { return learningRateDecay; }
+	public void setUseAdaGrad (boolean b) { useAdaGrad = b; }
+	public boolean getUseAdaGrad () { return useAdaGrad; }
+	public void setGaussianPriorVariance (double p) { gaussianPriorVariance = p; }
+	public double getGaussianPriorVariance () { return gaussianPriorVariance; }
+	public void setUseSparseWeights (boolean b) { useSparseWeights = b; }
+	public boolean getUseSparseWeights () { return useSparseWeights; }
+	public void setUseSomeUnsupportedTrick (boolean b) { useSomeUnsupportedTrick = b; }
+	/** If true, this trainer adds no factors to the CRF. */
+	public void setAddNoFactors (boolean flag) { useNoWeights = flag; }
+	public void setRandomSeed (long seed) { random = new Random (seed); }
+
+	// Sets up the weights, the index of their features and each parameter's state when their
+	// structure has changed, or when the weights were sized for a sample and this is a training set
+	private void setUp (InstanceList trainingSet, boolean sample)
+	{
+		if (cachedWeightsStructureStamp == crf.weightsStructureChangeStamp && (sample || !sizedForSample)) return;
+		if (!useNoWeights) {
+			if (useSparseWeights)
+				crf.setWeightsDimensionAsIn (trainingSet, useSomeUnsupportedTrick);
+			else
+				crf.setWeightsDimensionDensely ();
+		}
+		cachedWeightsStructureStamp = crf.weightsStructureChangeStamp;
+		sizedForSample = sample && useSparseWeights && !useNoWeights;
+
+		index = new SparseFactors.Index (crf);
+		int numFactors = crf.parameters.getNumFactors();
+		shrinkageApplied = new double[numFactors];
+		squaredGradients = new double[numFactors];
+		totalShrinkage.set (Double.doubleToLongBits (0.0));
+		// SumLatticeDefault reads the parameters on both passes, so a lattice could see
+		// them change halfway; CRFs it alone supports are trained on one thread
+		boolean dense = CRFTopology.supports (crf);
+		workers = new Worker[dense ? numThreads : 1];
+		for (int thread = 0; thread < workers.length; thread++)
+			workers[thread] = new Worker (dense);
+	}
+
+	public boolean trainIncremental (InstanceList trainingSet)
+	{
+		return train (trainingSet, 1);
+	}
+
+	public boolean train (InstanceList trainingSet, int numIterations)
+	{
+		if (numIterations <= 0)
+			return false;
+		assert (trainingSet.size() > 0);
+		setUp (trainingSet, false);
+
+		converged = false;
+		double oldLoglik = Double.NEGATIVE_INFINITY;
+		for (int iteration = 0; iteration < numIterations; iteration++) {
+			iterationCount++;
+			long startingTime = System.currentTimeMillis();
+			double loglik = trainIteration (trainingSet, learningRate);
+			logger.info ("loglikelihood[" + iterationCount + "] = " + loglik + " ("
+					+ (System.currentTimeMillis() - startingTime) + " ms)");
+			if (Math.abs (loglik - oldLoglik) < 1e-3) {
+				converged = true;
+				break;
+			}
+			oldLoglik = loglik;
+
+			runEvaluators ();
+		}
+		return converged;
+	}
+
+	/**
+	 * Sets the learning rate to half the one, of powers of two up to one, that most
+	 * increases the likelihood of <tt>trainingSample</tt> in one iteration, as
+	 * <tt>CRFTrainerByStochasticGradient.setLearningRateByLikelihood</tt> does. The
+	 * CRF's parameters are restored after each trial. If the CRF's weights have not been
+	 * set up yet, they are set up for the sample, and set up again for the whole training
+	 * set by the next call to <tt>train</tt>.
+	 */
+	public void setLearningRateByLikelihood (InstanceList trainingSample)
+	{
+		setUp (trainingSample, true);
+		double[] parameters = new double[crf.parameters.getNumFactors()];
+		crf.parameters.getParameters (parameters);
+		long savedNumSteps = numSteps;
+		double before = computeLikelihood (trainingSample);
+
+		double bestLearningRate = learningRate;
+		double bestLikelihoodChange = Double.NEGATIVE_INFINITY;
+		for (double rate = 1.0 / 1024; rate <= 1; rate *= 2) {
+			trainIteration (trainingSample, rate);
+			double likelihoodChange = computeLikelihood (trainingSample) - before;
+			logger.fine ("likelihood change = " + likelihoodChange + " for learning rate " + rate);
+			if (likelihoodChange > bestLikelihoodChange) {
+				bestLikelihoodChange = likelihoodChange;
+				bestLearningRate = rate;
+			}
+			crf.parameters.setParameters (parameters);
+			resetSteps (savedNumSteps);
+		}
+		crf.weightsValueChanged ();
+
+		// conservative estimate for learning rate
+		learningRate = bestLearningRate / 2;
+		logger.info ("Setting learning rate to " + learningRate);
+	}
+
+	// Forgets the steps since numSteps was savedNumSteps, and each parameter's AdaGrad sum
+	private void resetSteps (long savedNumSteps)
+	{
+		numSteps = savedNumSteps;
+		Arrays.fill (shrinkageApplied, 0);
+		Arrays.fill (squaredGradients, 0);
+		totalShrinkage.set (Double.doubleToLongBits (0.0));
+	}
+
+	private double computeLikelihood (InstanceList instances)
+	{
+		Worker worker = workers[0];
+		double loglik = 0;
+		for (Instance instance : instances) {
+			FeatureVectorSequence input = (FeatureVectorSequence) instance.getData();
+			double labeledWeight = worker.forwardBackward (input, (Sequence) instance.getTarget(), null);
+			if (labeledWeight == Transducer.IMPOSSIBLE_WEIGHT) continue;
+			loglik += (labeledWeight - worker.forwardBackward (input, null, null)) * instances.getInstanceWeight (instance);
+		}
+		return loglik;
+	}
+
+	/**
+	 * Takes a step on each mini-batch of a shuffle of the training set and applies all
+	 * the shrinkage owed, returning the log probability of the labels summed as the
+	 * batches were trained.
+	 */
+	private double trainIteration (final InstanceList trainingSet, final double initialRate)
+	{
+		final double shrinkagePerRate = 1.0 / (gaussianPriorVariance * trainingSet.size());
+		final double decay = !Double.isNaN (learningRateDecay) ? learningRateDecay
+				: useAdaGrad ? 0.0 : initialRate * shrinkagePerRate;
+
+		final int[] order = new int[trainingSet.size()];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		for (int i = order.length - 1; i > 0; i--) {
+			int j = random.nextInt (i + 1);
+			int swap = order[i];
+			order[i] = order[j];
+			order[j] = swap;
+		}
+		final int numBatches = (order.length + batchSize - 1) / batchSize;
+
+		final AtomicInteger nextBatch = new AtomicInteger ();
+		final long firstStep = numSteps;
+		List<Callable<Double>> tasks = new ArrayList<Callable<Double>> ();
+		for (final Worker worker : workers) {
+			tasks.add (new Callable<Double> () {
+				public Double call () {
+					double loglik = 0;
+					for (int batch = nextBatch.getAndIncrement(); batch < numBatches; batch = nextBatch.getAndIncrement()) {
+						double rate = initialRate / (1 + decay * (firstStep + batch));
+						loglik += worker.trainBatch (trainingSet, order, batch * batchSize,
+								Math.min (order.length, (batch + 1) * batchSize), rate, rate * shrinkagePerRate);
+					}
+					return loglik;
+				}
+			});
+		}
+		double loglik = 0;
+		for (Double workerLoglik : pool.invokeAll (tasks, "training"))
+			loglik += workerLoglik;
+		numSteps += numBatches;
+
+		applyShrinkage ();
+		crf.weightsValueChanged ();
+		return loglik;
+	}
+
+	// Adds to the total shrinkage, returning the new total
+	private double addShrinkage (double shrinkage)
+	{
+		while (true) {
+			long bits = totalShrinkage.get();
+			double total = Double.longBitsToDouble (bits) + shrinkage;
+			if (totalShrinkage.compareAndSet (bits, Double.doubleToLongBits (total)))
+				return total;
+		}
+	}
+
+	// The shrinkage owed by a parameter is multiplied by its AdaGrad scale, which is constant while it is left alone
+	private double scale (int position)
+	{
+		return useAdaGrad ? 1.0 / (ADAGRAD_EPSILON + Math.sqrt (squaredGradients[position])) : 1.0;
+	}
+
+	/**
+	 * Returns the parameter after the shrinkage it owes and a step along the gradient.
+	 * Infinite parameters, such as impossible initial weights, are left alone.
+	 */
+	private double step (double value, int position, double gradient, double rate, double total)
+	{
+		if (Double.isInfinite (value)) return value;
+		// Another thread may have applied a later total already
+		double owed = total - shrinkageApplied[position];
+		if (owed > 0) {
+			value *= Math.exp (-owed * scale (position));
+			shrinkageApplied[position] = total;
+		}
+		if (useAdaGrad)
+			squaredGradients[position] += gradient * gradient;
+		return value + rate * scale (position) * gradient;
+	}
+
+	/** Applies the shrinkage owed by every parameter. */
+	private void applyShrinkage ()
+	{
+		CRF.Factors parameters = crf.parameters;
+		double total = Double.longBitsToDouble (totalShrinkage.get());
+		for (int i = 0; i < parameters.initialWeights.length; i++) {
+			parameters.initialWeights[i] = step (parameters.initialWeights[i], 2*i, 0, 0, total);
+			parameters.finalWeights[i] = step (parameters.finalWeights[i], 2*i+1, 0, 0, total);
+		}
+		for (int w = 0; w < parameters.weights.length; w++) {
+			if (parameters.weightsFrozen[w]) continue;
+			int offset = index.weightOffsets[w];
+			parameters.defaultWeights[w] = step (parameters.defaultWeights[w], offset, 0, 0, total);
+			SparseVector weights = parameters.weights[w];
+			for (int loc = 0; loc < weights.numLocations(); loc++)
+				weights.setValueAtLocation (loc, step (weights.valueAtLocation (loc), offset + 1 + loc, 0, 0, total));
+		}
+	}
+
+	/** Trains on mini-batches on one thread, keeping its counts and lattice workspace from batch to batch. */
+	private class Worker
+	{
+		final SparseFactors counts;
+		final SumLatticeDense.Workspace workspace;
+
+		Worker (boolean dense)
+		{
+			counts = new SparseFactors (index);
+			workspace = dense ? new SumLatticeDense.Workspace () : null;
+		}
+
+		/**
+		 * Takes one step on the instances <tt>order[start]</tt> to <tt>order[end-1]</tt>,
+		 * returning the log probability of their labels before the step.
+		 */
+		double trainBatch (InstanceList trainingSet, int[] order, int start, int end, double rate, double shrinkage)
+		{
+			counts.zero();
+			double loglik = 0;
+			for (int i = start; i < end; i++) {
+				Instance instance = trainingSet.get (order[i]);
+				double instanceWeight = trainingSet.getInstanceWeight (instance);
+				FeatureVectorSequence input = (FeatureVectorSequence) instance.getData();
+				FeatureSequence output = (FeatureSequence) instance.getTarget();
+				// Gradient is (constraints - expectations)
+				counts.setInstanceWeight (instanceWeight);
+				double labeledWeight = forwardBackward (input, output, counts);
+				if (labeledWeight == Transducer.IMPOSSIBLE_WEIGHT)
+					continue;
+				counts.setInstanceWeight (-instanceWeight);
+				double unlabeledWeight = forwardBackward (input, null, counts);
+				loglik += (labeledWeight - unlabeledWeight) * instanceWeight;
+			}
+
+			double total = addShrinkage (shrinkage);
+			double factor = 1.0 / (end - start);
+			update (rate, factor, total);
+			return loglik;
+		}
+
+		private double forwardBackward (FeatureVectorSequence input, Sequence output, Transducer.Incrementor incrementor)
+		{
+			if (workspace != null)
+				return workspace.forwardBackward (crf, input, output, incrementor);
+			return new SumLatticeDefault (crf, input, output, incrementor).getTotalWeight();
+		}
+
+		// Steps each parameter of the batch by rate times factor times its count, obeying weightsFrozen
+		private void update (double rate, double factor, double total)
+		{
+			CRF.Factors parameters = crf.parameters;
+			for (int i = 0; i < parameters.initialWeights.length; i++) {
+				if (counts.initialWeights[i] != 0)
+					parameters.initialWeights[i] = step (parameters.initialWeights[i], 2*i, counts.initialWeights[i] * factor, rate, total);
+				if (counts.finalWeights[i] != 0)
+					parameters.finalWeights[i] = step (parameters.finalWeights[i], 2*i+1, counts.finalWeights[i] * factor, rate, total);
+			}
+			for (int w = 0; w < parameters.weights.length; w++) {
+				if (counts.defaultWeights[w] == 0 || parameters.weightsFrozen[w]) continue;
+				int position = index.weightOffsets[w];
+				parameters.defaultWeights[w] = step (parameters.defaultWeights[w], position, counts.defaultWeights[w] * factor, rate, total);
+			}
+
+			int[] featureStart = index.featureStart;
+			int[] entryWeight = index.entryWeight;
+			int[] entryPosition = index.entryPosition;
+			for (int i = 0; i < counts.numSeenFeatures; i++) {
+				int feature = counts.seenFeatures[i];
+				int block = counts.blockOf[feature];
+				for (int entry = featureStart[feature]; entry < featureStart[feature+1]; entry++) {
+					int w = entryWeight[entry];
+					if (parameters.weightsFrozen[w]) continue;
+					int position = entryPosition[entry];
+					int loc = position - index.weightOffsets[w] - 1;
+					SparseVector weights = parameters.weights[w];
+					double gradient = counts.counts[block + entry - featureStart[feature]] * factor;
+					weights.setValueAtLocation (loc, step (weights.valueAtLocation (loc), position, gradient, rate, total));
+				}
+			}
+		}
+	}
+
+	/** Stops the threads. They are started again by the next call to <tt>train</tt>. */
+	public void shutdown ()
+	{
+		pool.shutdown ();
+	}
+}
@@ -0,0 +1,534 @@
+/* Copyright (C) 2002 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.fst;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.FeatureVectorSequence;
+import cc.mallet.types.SparseVector;
+import cc.mallet.util.CommandOption;
+
+/**
+ * A read-only {@link CRF} for decoding, loaded by memory-mapping a flat file.
+ * <p>
+ * {@link #write} compiles a plain CRF (see {@link CRFTopology#supports}) into a file
+ * of primitive arrays: the initial and final weights of the states; the destination,
+ * label and weight indices of the transitions; the default weights; the weights
+ * themselves, in rows indexed by input feature, each holding the non-zero weight of
+ * every weight index for that feature; the labels; and the names of the input
+ * features, with an open-addressing hash table over them. {@link #load} maps the file
+ * and copies only the tables of the states and transitions, which are small; the
+ * weights and feature names are read from the mapping in place. So a model loads in
+ * the time it takes to map it, takes almost no heap, and its pages are shared by
+ * every process that maps the same file.
+ * <p>
+ * Weights are stored as doubles, which decode exactly as the CRF does, or as floats,
+ * which halve the size of the file. Decoding takes the best path as
+ * {@link MaxLatticeDense} does. A <tt>CompiledCRF</tt> is immutable and may be used
+ * by many threads at once. Since a mapping is limited to 2GB, so is the file.
+ */
+public class CompiledCRF
+{
+	static final int MAGIC = 0x4d435246; // "MCRF"
+	static final int VERSION = 1;
+
+	static final int SINGLE_PRECISION = 1;
+	static final Charset UTF8 = Charset.forName ("UTF-8");
+
+	final int numStates;
+	final int numTransitions;
+	final int numWeights;
+	final int numFeatures;
+	final boolean singlePrecision;
+
+	// Small tables, copied onto the heap
+	final double[] initialWeights;      // indexed by state
+	final double[] finalWeights;        // indexed by state
+	final double[] defaultWeights;      // indexed by weight index
+	final int[] outgoingStart;          // indexed by source state, plus one
+	final int[] transitionSource;       // indexed by transition
+	final int[] transitionLabel;        // index into labels
+	final int[][] transitionWeights;    // weight indices summed to score each transition
+	final int[] incomingStart;          // indexed by destination state, plus one
+	final int[] incoming;               // transitions, grouped by destination
+	final String[] labels;
+
+	// Large tables, read from the mapping
+	final IntBuffer featureStart;       // indexed by feature, plus one
+	final IntBuffer entryWeight;        // weight index of each entry
+	final DoubleBuffer entryValue;      // null if singlePrecision
+	final FloatBuffer entryValueFloat;  // null unless singlePrecision
+	final IntBuffer featureTable;       // feature index + 1 in each slot, or 0
+	final IntBuffer featureNameStart;   // indexed by feature, plus one
+	final ByteBuffer featureNames;      // UTF-8
+
+	private final ThreadLocal<Workspace> workspaces = new ThreadLocal<Workspace> () {
+		protected Workspace initialValue () { return new Workspace (); }
+	};
+
+	/**
+	 * Writes <tt>crf</tt> to <tt>file</tt>, with its weights as floats if
+	 * <tt>singlePrecision</tt> is true. The file is written under a temporary name and
+	 * then renamed, so processes that have mapped an older version are not disturbed.
+	 */
+	public static void write (CRF crf, File file, boolean singlePrecision) throws IOException
+	{
+		if (!CRFTopology.supports (crf))
+			throw new IllegalArgumentException ("Only CRFs of plain CRF.States can be compiled");
+		CRFTopology topology = CRFTopology.get (crf);
+		CRF.Factors parameters = crf.parameters;
+		Alphabet inputAlphabet = crf.getInputAlphabet();
+		int numStates = topology.numStates;
+		int numTransitions = topology.numTransitions;
+		int numWeights = parameters.weights.length;
+
+		// Turn the weight vectors around, into a row of non-zero weights for each feature
+		int numFeatures = inputAlphabet.size();
+		for (SparseVector weights : parameters.weights)
+			for (int loc = 0; loc < weights.numLocations(); loc++)
+				numFeatures = Math.max (numFeatures, weights.indexAtLocation (loc) + 1);
+		int[] featureStart = new int[numFeatures + 1];
+		for (SparseVector weights : parameters.weights)
+			for (int loc = 0; loc < weights.numLocations(); loc++)
+				if (weights.valueAtLocation (loc) != 0)
+					featureStart[weights.indexAtLocation (loc) + 1]++;
+		for (int f = 0; f < numFeatures; f++)
+			featureStart[f+1] += featureStart[f];
+		int numEntries = featureStart[numFeatures];
+		int[] entryWeight = new int[numEntries];
+		double[] entryValue = new double[numEntries];
+		int[] next = Arrays.copyOf (featureStart, numFeatures);
+		for (int w = 0; w < numWeights; w++) {
+			SparseVector weights = parameters.weights[w];
+			for (int loc = 0; loc < weights.numLocations(); loc++) {
+				if (weights.valueAtLocation (loc) == 0) continue;
+				int entry = next[weights.indexAtLocation (loc)]++;
+				entryWeight[entry] = w;
+				entryValue[entry] = weights.valueAtLocation (loc);
+			}
+		}
+
+		int numTransitionWeights = 0;
+		for (int t = 0; t < numTransitions; t++)
+			numTransitionWeights += topology.transitionWeights[t].length;
+
+		// The labels the transitions output, as the states name them
+		Alphabet labels = new Alphabet (String.class);
+		int[] transitionLabel = new int[numTransitions];
+		for (int i = 0; i < numStates; i++) {
+			String[] stateLabels = ((CRF.State) crf.getState (i)).labels;
+			for (int t = topology.outgoingStart[i]; t < topology.outgoingStart[i+1]; t++)
+				transitionLabel[t] = labels.lookupIndex (stateLabels[t - topology.outgoingStart[i]]);
+		}
+
+		// Feature names and a hash table over them, at most half full
+		byte[][] names = new byte[numFeatures][];
+		int namesLength = 0;
+		for (int f = 0; f < numFeatures; f++) {
+			names[f] = f < inputAlphabet.size() ? inputAlphabet.lookupObject(f).toString().getBytes (UTF8) : new byte[0];
+			namesLength += names[f].length;
+		}
+		int tableSize = 2;
+		while (tableSize < 2 * numFeatures)
+			tableSize *= 2;
+		int[] table = new int[tableSize];
+		for (int f = 0; f < inputAlphabet.size(); f++) {
+			int slot = hash (names[f], 0, names[f].length) & (tableSize - 1);
+			while (table[slot] != 0)
+				slot = (slot + 1) & (tableSize - 1);
+			table[slot] = f + 1;
+		}
+
+		File temp = new File (file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream (new BufferedOutputStream (new FileOutputStream (temp), 1 << 16));
+		try {
+			out.writeInt (MAGIC);
+			out.writeInt (VERSION);
+			out.writeInt (singlePrecision ? SINGLE_PRECISION : 0);
+			out.writeInt (numStates);
+			out.writeInt (numTransitions);
+			out.writeInt (numTransitionWeights);
+			out.writeInt (numWeights);
+			out.writeInt (numFeatures);
+			out.writeInt (numEntries);
+			out.writeInt (labels.size());
+			out.writeInt (tableSize);
+			out.writeInt (namesLength);
+
+			for (double weight : parameters.initialWeights) out.writeDouble (weight);
+			for (double weight : parameters.finalWeights) out.writeDouble (weight);
+			for (double weight : parameters.defaultWeights) out.writeDouble (weight);
+			for (int i = 0; i <= numStates; i++) out.writeInt (topology.outgoingStart[i]);
+			for (int t = 0; t < numTransitions; t++) out.writeInt (topology.transitionDestination[t]);
+			for (int t = 0; t < numTransitions; t++) out.writeInt (transitionLabel[t]);
+			for (int t = 0; t < numTransitions; t++) out.writeInt (topology.transitionWeights[t].length);
+			for (int t = 0; t < numTransitions; t++)
+				for (int w : topology.transitionWeights[t])
+					out.writeInt (w);
+			for (int i = 0; i < labels.size(); i++) {
+				byte[] label = ((String) labels.lookupObject(i)).getBytes (UTF8);
+				out.writeInt (label.length);
+				out.write (label);
+			}
+			pad (out);
+
+			for (int f = 0; f <= numFeatures; f++) out.writeInt (featureStart[f]);
+			for (int entry = 0; entry < numEntries; entry++) out.writeInt (entryWeight[entry]);
+			pad (out);
+			for (int entry = 0; entry < numEntries; entry++) {
+				if (singlePrecision)
+					out.writeFloat ((float) entryValue[entry]);
+				else
+					out.writeDouble (entryValue[entry]);
+			}
+			pad (out);
+			for (int slot = 0; slot < tableSize; slot++) out.writeInt (table[slot]);
+			int start = 0;
+			for (int f = 0; f < numFeatures; f++) {
+				out.writeInt (start);
+				start += names[f].length;
+			}
+			out.writeInt (start);
+			for (int f = 0; f < numFeatures; f++) out.write (names[f]);
+			if (out.size() < 0)
+				throw new IOException ("Compiled CRF would be larger than 2GB");
+		} finally {
+			out.close();
+		}
+		Files.move (temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	// Pads the output to a multiple of 8 bytes, so the arrays after it can be viewed in place
+	private static void pad (DataOutputStream out) throws IOException
+	{
+		while (out.size() % 8 != 0)
+			out.writeByte (0);
+	}
+
+	// FNV-1a over bytes
+	static int hash (byte[] bytes, int start, int end)
+	{
+		int hash = 0x811c9dc5;
+		for (int i = start; i < end; i++) {
+			hash ^= bytes[i] & 0xff;
+			hash *= 0x01000193;
+		}
+		return hash;
+	}
+
+	/** Maps a file written by {@link #write}. */
+	public static CompiledCRF load (File file) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile (file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException ("Compiled CRF is larger than 2GB: " + file);
+			// The mapping stays valid after the channel is closed
+			return new CompiledCRF (channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size()), file);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private CompiledCRF (ByteBuffer buffer, File file) throws IOException
+	{
+		if (buffer.getInt() != MAGIC)
+			throw new IOException ("Not a compiled CRF: " + file);
+		int version = buffer.getInt();
+		if (version != VERSION)
+			throw new IOException ("Unsupported compiled CRF version " + version + ": " + file);
+		singlePrecision = (buffer.getInt() & SINGLE_PRECISION) != 0;
+		numStates = buffer.getInt();
+		numTransitions = buffer.getInt();
+		int numTransitionWeights = buffer.getInt();
+		numWeights = buffer.getInt();
+		numFeatures = buffer.getInt();
+		int numEntries = buffer.getInt();
+		int numLabels = buffer.getInt();
+		int tableSize = buffer.getInt();
+		int namesLength = buffer.getInt();
+
+		initialWeights = getDoubles (buffer, numStates);
+		finalWeights = getDoubles (buffer, numStates);
+		defaultWeights = getDoubles (buffer, numWeights);
+		outgoingStart = getInts (buffer, numStates + 1);
+		int[] destination = getInts (buffer, numTransitions);
+		transitionLabel = getInts (buffer, numTransitions);
+		transitionWeights = new int[numTransitions][];
+		for (int t = 0; t < numTransitions; t++)
+			transitionWeights[t] = new int[buffer.getInt()];
+		for (int t = 0; t < numTransitions; t++)
+			for (int i = 0; i < transitionWeights[t].length; i++)
+				transitionWeights[t][i] = buffer.getInt();
+		labels = new String[numLabels];
+		for (int i = 0; i < numLabels; i++) {
+			byte[] label = new byte[buffer.getInt()];
+			buffer.get (label);
+			labels[i] = new String (label, UTF8);
+		}
+		align (buffer);
+
+		transitionSource = new int[numTransitions];
+		incomingStart = new int[numStates + 1];
+		for (int i = 0; i < numStates; i++)
+			for (int t = outgoingStart[i]; t < outgoingStart[i+1]; t++) {
+				transitionSource[t] = i;
+				incomingStart[destination[t]+1]++;
+			}
+		for (int j = 0; j < numStates; j++)
+			incomingStart[j+1] += incomingStart[j];
+		incoming = new int[numTransitions];
+		int[] next = Arrays.copyOf (incomingStart, numStates);
+		for (int t = 0; t < numTransitions; t++)
+			incoming[next[destination[t]]++] = t;
+
+		// The (ByteBuffer) casts here and in intView keep this running on JDK 8, where Buffer.limit returns a Buffer
+		featureStart = intView (buffer, numFeatures + 1);
+		entryWeight = intView (buffer, numEntries);
+		align (buffer);
+		if (singlePrecision) {
+			entryValueFloat = ((ByteBuffer) buffer.slice().limit (4 * numEntries)).asFloatBuffer();
+			entryValue = null;
+			buffer.position (buffer.position() + 4 * numEntries);
+		}
+		else {
+			entryValue = ((ByteBuffer) buffer.slice().limit (8 * numEntries)).asDoubleBuffer();
+			entryValueFloat = null;
+			buffer.position (buffer.position() + 8 * numEntries);
+		}
+		align (buffer);
+		featureTable = intView (buffer, tableSize);
+		featureNameStart = intView (buffer, numFeatures + 1);
+		featureNames = ((ByteBuffer) buffer.slice().limit (namesLength)).slice();
+	}
+
+	private static double[] getDoubles (ByteBuffer buffer, int length)
+	{
+		double[] ret = new double[length];
+		for (int i = 0; i < length; i++)
+			ret[i] = buffer.getDouble();
+		return ret;
+	}
+
+	private static int[] getInts (ByteBuffer buffer, int length)
+	{
+		int[] ret = new int[length];
+		for (int i = 0; i < length; i++)
+			ret[i] = buffer.getInt();
+		return ret;
+	}
+
+	// A view of the next length ints, which are skipped
+	private static IntBuffer intView (ByteBuffer buffer, int length)
+	{
+		IntBuffer view = ((ByteBuffer) buffer.slice().limit (4 * length)).asIntBuffer();
+		buffer.position (buffer.position() + 4 * length);
+		return view;
+	}
+
+	private static void align (ByteBuffer buffer)
+	{
+		while (buffer.position() % 8 != 0)
+			buffer.get();
+	}
+
+	public int numStates () { return numStates; }
+	public int numFeatures () { return numFeatures; }
+	public int numLabels () { return labels.length; }
+	public String getLabel (int index) { return labels[index]; }
+	public boolean isSinglePrecision () { return singlePrecision; }
+
+	/** Returns the index of the named input feature, or -1 if the model doesn't have it. */
+	public int featureIndex (String name)
+	{
+		byte[] bytes = name.getBytes (UTF8);
+		int mask = featureTable.limit() - 1;
+		for (int slot = hash (bytes, 0, bytes.length) & mask; ; slot = (slot + 1) & mask) {
+			int feature = featureTable.get (slot) - 1;
+			if (feature < 0)
+				return -1;
+			int start = featureNameStart.get (feature);
+			if (featureNameStart.get (feature+1) - start != bytes.length)
+				continue;
+			int i = 0;
+			while (i < bytes.length && featureNames.get (start + i) == bytes[i])
+				i++;
+			if (i == bytes.length)
+				return feature;
+		}
+	}
+
+	/**
+	 * Returns the best labels for a sequence whose feature indices come from the
+	 * CRF's input alphabet, or null if no path has finite weight.
+	 */
+	public String[] tag (FeatureVectorSequence input)
+	{
+		Workspace workspace = workspaces.get();
+		workspace.start (input.size());
+		for (int ip = 0; ip < input.size(); ip++) {
+			FeatureVector fv = input.get(ip);
+			for (int loc = 0; loc < fv.numLocations(); loc++)
+				addWeights (workspace.emissions, ip * numWeights, fv.indexAtLocation (loc), fv.valueAtLocation (loc));
+		}
+		return workspace.viterbi ();
+	}
+
+	/**
+	 * Returns the best labels for a sequence of tokens, each given by the names of its
+	 * binary features, or null if no path has finite weight. Features the model
+	 * doesn't have are ignored.
+	 */
+	public String[] tag (String[][] tokens)
+	{
+		Workspace workspace = workspaces.get();
+		workspace.start (tokens.length);
+		for (int ip = 0; ip < tokens.length; ip++) {
+			for (String name : tokens[ip]) {
+				int feature = featureIndex (name);
+				if (feature >= 0)
+					addWeights (workspace.emissions, ip * numWeights, feature, 1.0);
+			}
+		}
+		return workspace.viterbi ();
+	}
+
+	// Adds value times the weights of the feature to emissions, indexed by offset+weight
+	private void addWeights (double[] emissions, int offset, int feature, double value)
+	{
+		if (feature >= numFeatures) return;
+		int end = featureStart.get (feature+1);
+		if (singlePrecision)
+			for (int entry = featureStart.get (feature); entry < end; entry++)
+				emissions[offset + entryWeight.get (entry)] += value * entryValueFloat.get (entry);
+		else
+			for (int entry = featureStart.get (feature); entry < end; entry++)
+				emissions[offset + entryWeight.get (entry)] += value * entryValue.get (entry);
+	}
+
+	/** Scratch arrays for decoding on one thread, as in <tt>MaxLatticeDense.Workspace</tt>. */
+	private class Workspace
+	{
+		int length;
+		double[] emissions = new double[0];   // indexed by ip*numWeights+weight
+		double[] deltas = new double[0];      // indexed by ip*numStates+i
+		int[] backpointers = new int[0];      // best transition into each state, indexed by ip*numStates+j
+
+		void start (int length)
+		{
+			this.length = length;
+			if (emissions.length < length * numWeights)
+				emissions = new double[length * numWeights];
+			if (deltas.length < (length+1) * numStates) {
+				deltas = new double[(length+1) * numStates];
+				backpointers = new int[length * numStates];
+			}
+			Arrays.fill (emissions, 0, length * numWeights, 0.0);
+		}
+
+		String[] viterbi ()
+		{
+			for (int i = 0; i < numStates; i++)
+				deltas[i] = initialWeights[i] > Transducer.IMPOSSIBLE_WEIGHT ? initialWeights[i] : Transducer.IMPOSSIBLE_WEIGHT;
+
+			for (int ip = 0; ip < length; ip++) {
+				// Default weights are added after the features, as by CRF.State's dot products
+				int emissionOffset = ip * numWeights;
+				for (int w = 0; w < numWeights; w++)
+					emissions[emissionOffset + w] += defaultWeights[w];
+				int from = ip * numStates;
+				int to = from + numStates;
+				for (int j = 0; j < numStates; j++) {
+					double max = Transducer.IMPOSSIBLE_WEIGHT;
+					int best = -1;
+					for (int k = incomingStart[j]; k < incomingStart[j+1]; k++) {
+						int t = incoming[k];
+						double delta = deltas[from + transitionSource[t]];
+						if (delta == Transducer.IMPOSSIBLE_WEIGHT) continue;
+						for (int w : transitionWeights[t])
+							delta += emissions[emissionOffset + w];
+						if (delta > max) {
+							max = delta;
+							best = t;
+						}
+					}
+					deltas[to + j] = max;
+					backpointers[from + j] = best;
+				}
+			}
+
+			int last = length * numStates;
+			double bestWeight = Transducer.IMPOSSIBLE_WEIGHT;
+			int bestState = -1;
+			for (int i = 0; i < numStates; i++) {
+				if (deltas[last + i] == Transducer.IMPOSSIBLE_WEIGHT) continue;
+				double weight = deltas[last + i] + (length > 0 ? finalWeights[i] : 0);
+				if (weight > bestWeight) {
+					bestWeight = weight;
+					bestState = i;
+				}
+			}
+			if (bestState < 0)
+				return null;
+
+			String[] output = new String[length];
+			int state = bestState;
+			for (int ip = length-1; ip >= 0; ip--) {
+				int t = backpointers[ip * numStates + state];
+				output[ip] = labels[transitionLabel[t]];
+				state = transitionSource[t];
+			}
+			return output;
+		}
+	}
+
+	static CommandOption.File modelFile = new CommandOption.File
+		(CompiledCRF.class, "model-file", "FILENAME", true, null,
+		 "The serialized CRF to compile, as written by SimpleTagger.", null);
+
+	static CommandOption.File outputFile = new CommandOption.File
+		(CompiledCRF.class, "output", "FILENAME", true, null,
+		 "The file to write the compiled CRF to.", null);
+
+	static CommandOption.Boolean singlePrecisionOption = new CommandOption.Boolean
+		(CompiledCRF.class, "single-precision", "true|false", true, false,
+		 "Whether to store the weights as floats, halving the size of the file.", null);
+
+	public static void main (String[] args) throws IOException, ClassNotFoundException
+	{
+		CommandOption.setSummary (CompiledCRF.class,
+								  "Compile a CRF into a read-only file that can be memory-mapped for decoding.");
+		CommandOption.process (CompiledCRF.class, args);
+		if (modelFile.value == null || outputFile.value == null)
+			throw new IllegalArgumentException ("Both --model-file and --output are required");
+
+		ObjectInputStream in = new ObjectInputStream (new FileInputStream (modelFile.value));
+		CRF crf = (CRF) in.readObject();
+		in.close();
+		write (crf, outputFile.value, singlePrecisionOption.value);
+	}
+}
@@ -0,0 +1,293 @@
+/* Copyright (C) 2002 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.fst;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import cc.mallet.fst.Transducer.State;
+import cc.mallet.types.ArraySequence;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.FeatureVectorSequence;
+import cc.mallet.types.Sequence;
+
+/**
+ * Viterbi decoding of the single best path through a {@link CRF}, over flat arrays
+ * of primitives.
+ * <p>
+ * {@link MaxLatticeDefault} builds a <tt>ViterbiNode</tt> for every position and
+ * state, a <tt>TransitionIterator</tt> for every state and position, and an A*
+ * search to read off the best paths, which is wasted when only the best one is
+ * wanted. This lattice computes the dot product of each weight with each input
+ * position once, keeps for every position and state only the best score and the
+ * transition it came by, and follows those back from the best final state.
+ * <p>
+ * The arrays live in a {@link Workspace}, one per thread, that grows to the longest
+ * sequence seen and is reused after that; {@link Workspace#bestOutputSequence}
+ * decodes a sequence without building a lattice at all. Ties are broken as in
+ * <tt>MaxLatticeDefault</tt>, in favor of the lowest source state.
+ * <p>
+ * The deltas are the same as <tt>MaxLatticeDefault</tt>'s, and the best path is the
+ * one they lead back from, including its final weight. <tt>MaxLatticeDefault</tt>'s
+ * A* search leaves the final weights out of the cost of the paths it returns, so the
+ * two can choose different paths for a CRF whose final weights differ.
+ * <p>
+ * Only plain <tt>CRF.State</tt>s are supported (see {@link CRFTopology#supports}),
+ * and only the best path: asking for more than one decodes again with
+ * <tt>MaxLatticeDefault</tt>. The {@link Factory} falls back to
+ * <tt>MaxLatticeDefault</tt> for other transducers and for outputs that are
+ * constrained to match a given sequence.
+ */
+public class MaxLatticeDense implements MaxLattice
+{
+	private static final ThreadLocal<Workspace> workspaces = new ThreadLocal<Workspace> () {
+		protected Workspace initialValue () { return new Workspace (); }
+	};
+
+	/** Returns the calling thread's workspace. */
+	public static Workspace getWorkspace () { return workspaces.get(); }
+
+	// "ip" == "input position", "i" == "state index"
+	CRF crf;
+	Sequence input;
+	int latticeLength;
+	int numStates;
+	double bestWeight;
+	double[] deltas;             // indexed by ip*numStates+i
+	int[] bestStates;            // indexed by ip; null if no path has finite weight
+	Object[] bestOutput;         // indexed by ip
+
+	public MaxLatticeDense (CRF crf, Sequence input)
+	{
+		this.crf = crf;
+		this.input = input;
+		latticeLength = input.size()+1;
+		numStates = crf.numStates();
+
+		Workspace workspace = workspaces.get();
+		bestWeight = workspace.viterbi (crf, (FeatureVectorSequence) input);
+		deltas = Arrays.copyOf (workspace.deltas, latticeLength * numStates);
+		if (bestWeight == Transducer.IMPOSSIBLE_WEIGHT)
+			return;
+		bestStates = Arrays.copyOf (workspace.bestStates, latticeLength);
+		bestOutput = new Object[latticeLength-1];
+		workspace.fillBestOutput (bestOutput);
+	}
+
+	public double getDelta (int ip, int stateIndex) { return deltas[ip*numStates + stateIndex]; }
+
+	/** Returns the weight of the best path, or <tt>IMPOSSIBLE_WEIGHT</tt> if there is none. */
+	public double bestWeight () { return bestWeight; }
+
+	private void checkPath ()
+	{
+		if (bestStates == null)
+			throw new IllegalStateException ("No path through the lattice has finite weight");
+	}
+
+	public Sequence<Object> bestOutputSequence ()
+	{
+		checkPath ();
+		return new ArraySequence<Object> (bestOutput, false);
+	}
+
+	public List<Sequence<Object>> bestOutputSequences (int n)
+	{
+		if (n > 1)
+			return new MaxLatticeDefault (crf, input).bestOutputSequences (n);
+		List<Sequence<Object>> ret = new ArrayList<Sequence<Object>> (1);
+		ret.add (bestOutputSequence ());
+		return ret;
+	}
+
+	/** Returns the best sequence of states, which starts with the initial state, so is one longer than the input. */
+	public Sequence<State> bestStateSequence ()
+	{
+		checkPath ();
+		State[] states = new State[latticeLength];
+		for (int ip = 0; ip < latticeLength; ip++)
+			states[ip] = crf.getState (bestStates[ip]);
+		return new ArraySequence<State> (states, false);
+	}
+
+	public List<Sequence<State>> bestStateSequences (int n)
+	{
+		if (n > 1)
+			return new MaxLatticeDefault (crf, input).bestStateSequences (n);
+		List<Sequence<State>> ret = new ArrayList<Sequence<State>> (1);
+		ret.add (bestStateSequence ());
+		return ret;
+	}
+
+	public Transducer getTransducer () { return crf; }
+
+	public double elementwiseAccuracy (Sequence referenceOutput)
+	{
+		int accuracy = 0;
+		Sequence output = bestOutputSequence();
+		assert (referenceOutput.size() == output.size());
+		for (int i = 0; i < output.size(); i++)
+			if (referenceOutput.get(i).toString().equals (output.get(i).toString()))
+				accuracy++;
+		return ((double)accuracy)/output.size();
+	}
+
+
+	/**
+	 * Scratch arrays for Viterbi, sized for the longest sequence and the largest CRF
+	 * seen so far. A workspace must only be used by one thread at a time.
+	 */
+	public static class Workspace
+	{
+		CRF crf;
+		CRFTopology topology;
+		int length;                   // number of input positions
+
+		double[] emissions = new double[0];   // indexed by weight
+		double[] deltas = new double[0];      // indexed by ip*numStates+i
+		int[] backpointers = new int[0];      // best transition into each state, indexed by ip*numStates+j
+		int[] bestStates = new int[0];        // indexed by ip
+
+		public Workspace () { }
+
+		/**
+		 * Returns the best output sequence for <tt>input</tt>, or null if no path
+		 * through the CRF has finite weight.
+		 */
+		public Sequence<Object> bestOutputSequence (CRF crf, FeatureVectorSequence input)
+		{
+			if (viterbi (crf, input) == Transducer.IMPOSSIBLE_WEIGHT)
+				return null;
+			Object[] output = new Object[length];
+			fillBestOutput (output);
+			return new ArraySequence<Object> (output, false);
+		}
+
+		private void ensureCapacity ()
+		{
+			int numStates = topology.numStates;
+			if (emissions.length < topology.numWeights)
+				emissions = new double[topology.numWeights];
+			if (deltas.length < (length+1) * numStates) {
+				deltas = new double[(length+1) * numStates];
+				backpointers = new int[length * numStates];
+			}
+			if (bestStates.length < length+1)
+				bestStates = new int[length+1];
+		}
+
+		/**
+		 * Runs Viterbi and follows the backpointers into <tt>bestStates</tt>, returning
+		 * the weight of the best path, or <tt>IMPOSSIBLE_WEIGHT</tt> if there is none.
+		 * As in <tt>MaxLatticeDefault</tt>, final weights are only added after the last
+		 * input position.
+		 */
+		double viterbi (CRF crf, FeatureVectorSequence input)
+		{
+			this.crf = crf;
+			this.topology = CRFTopology.get (crf);
+			this.length = input.size();
+			ensureCapacity ();
+
+			int numStates = topology.numStates;
+			int[] incomingStart = topology.incomingStart;
+			int[] incoming = topology.incoming;
+			int[] source = topology.transitionSource;
+			int[][] transitionWeights = topology.transitionWeights;
+			CRF.Factors parameters = crf.parameters;
+
+			double[] initialWeights = parameters.initialWeights;
+			for (int i = 0; i < numStates; i++)
+				deltas[i] = initialWeights[i] > Transducer.IMPOSSIBLE_WEIGHT ? initialWeights[i] : Transducer.IMPOSSIBLE_WEIGHT;
+
+			for (int ip = 0; ip < length; ip++) {
+				// The dot product of each weight with this input position, computed once
+				FeatureVector fv = input.get(ip);
+				for (int w : topology.usedWeights)
+					emissions[w] = parameters.weights[w].dotProduct (fv) + parameters.defaultWeights[w];
+
+				int from = ip * numStates;
+				int to = from + numStates;
+				for (int j = 0; j < numStates; j++) {
+					double max = Transducer.IMPOSSIBLE_WEIGHT;
+					int best = -1;
+					for (int k = incomingStart[j]; k < incomingStart[j+1]; k++) {
+						int t = incoming[k];
+						double delta = deltas[from + source[t]];
+						if (delta == Transducer.IMPOSSIBLE_WEIGHT) continue;
+						for (int w : transitionWeights[t])
+							delta += emissions[w];
+						if (delta > max) {
+							max = delta;
+							best = t;
+						}
+					}
+					deltas[to + j] = max;
+					backpointers[from + j] = best;
+				}
+			}
+
+			int last = length * numStates;
+			double[] finalWeights = parameters.finalWeights;
+			double bestWeight = Transducer.IMPOSSIBLE_WEIGHT;
+			int bestState = -1;
+			for (int i = 0; i < numStates; i++) {
+				if (deltas[last + i] == Transducer.IMPOSSIBLE_WEIGHT) continue;
+				if (length > 0)
+					deltas[last + i] += finalWeights[i];
+				if (deltas[last + i] > bestWeight) {
+					bestWeight = deltas[last + i];
+					bestState = i;
+				}
+			}
+			if (bestState < 0)
+				return Transducer.IMPOSSIBLE_WEIGHT;
+
+			bestStates[length] = bestState;
+			for (int ip = length-1; ip >= 0; ip--)
+				bestStates[ip] = source[backpointers[ip * numStates + bestStates[ip+1]]];
+			return bestWeight;
+		}
+
+		// The labels of the transitions along the best path; must follow a successful viterbi
+		void fillBestOutput (Object[] output)
+		{
+			int numStates = topology.numStates;
+			for (int ip = 0; ip < length; ip++) {
+				int t = backpointers[ip * numStates + bestStates[ip+1]];
+				int source = topology.transitionSource[t];
+				output[ip] = ((CRF.State) crf.getState (source)).labels[t - topology.outgoingStart[source]];
+			}
+		}
+	}
+
+	public static class Factory extends MaxLatticeFactory implements Serializable
+	{
+		public MaxLattice newMaxLattice (Transducer trans, Sequence inputSequence, Sequence outputSequence)
+		{
+			if (outputSequence == null && inputSequence instanceof FeatureVectorSequence && CRFTopology.supports (trans))
+				return new MaxLatticeDense ((CRF) trans, inputSequence);
+			return new MaxLatticeDefault (trans, inputSequence, outputSequence);
+		}
+
+		private static final long serialVersionUID = 1;
+		private static final int CURRENT_SERIAL_VERSION = 1;
+
+		private void writeObject(ObjectOutputStream out) throws IOException {
+			out.writeInt(CURRENT_SERIAL_VERSION);
+		}
+		private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+			in.readInt();
+		}
+	}
+}
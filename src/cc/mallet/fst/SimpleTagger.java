@@ -7,12 +7,15 @@
 
 package cc.mallet.fst;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.io.Reader;
 
 import java.util.ArrayList;
@@ -270,7 +273,7 @@ public class SimpleTagger {
   
 	private static final CommandOption.Integer numThreads = new CommandOption.Integer
 		(SimpleTagger.class, "threads", "INTEGER", true, 1,
-		 "Number of threads to use for CRF training.", null);
+		 "Number of threads to use for CRF training, and for decoding when n-best is 1.", null);
 	
 	private static final CommandOption.List commandOptions =
 		new CommandOption.List (
@@ -464,6 +467,56 @@ public class SimpleTagger {
 		return answers;
 	}
 
+	/**
+	 * Apply a transducer to each instance of a stream of unlabeled input and print
+	 * the best output sequences in the same format as {@link #main main}, in the
+	 * order of the input. The input is decoded on <code>numThreads</code> threads
+	 * as it is read, so it need not fit in memory.
+	 *
+	 * @param model the <code>Transducer</code>
+	 * @param p the pipe that makes instances of blocks of lines
+	 * @param input the input, one instance per block of lines
+	 * @param numThreads the number of threads to decode on
+	 * @param includeInput whether to print the input features after each output
+	 */
+	public static void tag(Transducer model, Pipe p, Reader input,
+						   int numThreads, final boolean includeInput) {
+		// Features not seen in training have no weights, so needn't be kept
+		if (!includeInput)
+			p.getDataAlphabet().stopGrowth();
+		final PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+		ThreadedTagger tagger = new ThreadedTagger(model, numThreads);
+		try {
+			tagger.tag(p.newIteratorFrom(new LineGroupIterator(input, Pattern.compile("^\\s*$"), true)),
+					   new ThreadedTagger.Listener() {
+						   int i = 0;
+						   public void tagged(Instance instance, Sequence output) {
+							   Sequence input = (Sequence)instance.getData();
+							   if (output == null || output.size() != input.size()) {
+								   logger.info("Failed to decode input sequence " + i + ", answer 0");
+							   }
+							   else {
+								   StringBuilder buf = new StringBuilder();
+								   for (int j = 0; j < input.size(); j++) {
+									   buf.append(output.get(j).toString()).append(" ");
+									   if (includeInput) {
+										   FeatureVector fv = (FeatureVector)input.get(j);
+										   buf.append(fv.toString(true));
+									   }
+									   buf.append('\n');
+								   }
+								   out.println(buf);
+							   }
+							   i++;
+						   }
+					   });
+		}
+		finally {
+			tagger.shutdown();
+			out.flush();
+		}
+	}
+
 	/**
 	 * Command-line wrapper to train, test, or run a generic CRF-based tagger.
 	 *
@@ -506,7 +559,7 @@ public class SimpleTagger {
 	 *<dt><code>--include-input</code> <em>boolean</em></dt>
 	 *<dd>Whether to include input features when printing decoding output. Default is <code>false</code>.</dd>
 	 *<dt><code>--threads</code> <em>positive-integer</em></dt>
-	 *<dd>Number of threads for CRF training. Default is 1.</dd>
+	 *<dd>Number of threads for CRF training, and for decoding when applying the model with <code>--n-best 1</code>. Default is 1.</dd>
 	 *</dl>
 	 * Remaining arguments:
 	 *<ul>
@@ -594,10 +647,13 @@ public class SimpleTagger {
 		}
 		else {
 				p.setTargetProcessing(false);
-				testData = new InstanceList(p);
-				testData.addThruPipe(
-									 new LineGroupIterator(testFile,
-														   Pattern.compile("^\\s*$"), true));
+				// The single best outputs are written as the input is read, in tag()
+				if (nBestOption.value > 1) {
+					testData = new InstanceList(p);
+					testData.addThruPipe(
+										 new LineGroupIterator(testFile,
+															   Pattern.compile("^\\s*$"), true));
+				}
 		}
 		logger.info ("Number of predicates: "+p.getDataAlphabet().size());
     
@@ -674,6 +730,9 @@ public class SimpleTagger {
 			if (eval != null) {
 				test(new NoopTransducerTrainer(crf), eval, testData);
 			}
+			else if (testData == null) {
+				tag(crf, p, testFile, numThreads.value, includeInputOption.value());
+			}
 			else {
 				boolean includeInput = includeInputOption.value();
 				for (int i = 0; i < testData.size(); i++) {
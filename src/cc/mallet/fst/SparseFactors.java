@@ -0,0 +1,262 @@
+/* Copyright (C) 2002 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.fst;
+
+import java.util.Arrays;
+
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.SparseVector;
+
+/**
+ * Sufficient statistics of a {@link CRF}'s parameters, such as expectations or
+ * constraints, that take space only for the input features that have been seen.
+ * <p>
+ * Where a <tt>CRF.Factors</tt> holds a value for every parameter, this holds values
+ * for the parameters of the features that occur in the sequences passed to it. A
+ * thread that sees a small share of the training data sees a small part of a large
+ * CRF's features, so every thread can keep its own counts without a copy of all the
+ * parameters.
+ * <p>
+ * The parameters of each feature, one for each weight index whose weights include it,
+ * are listed in an {@link Index} shared by all <tt>SparseFactors</tt> of the CRF.
+ * The first time a feature is seen its parameters get a block of slots; after that a
+ * count for the feature is added to its block without any search. Clearing the counts
+ * keeps the space of the blocks, so they can be refilled without allocating.
+ * <p>
+ * Counts are added into an array in the layout of <tt>CRF.Factors.getParameters</tt>.
+ * Since no two features share a parameter, several threads can add up the counts of
+ * many <tt>SparseFactors</tt> at once, each taking a different range of features.
+ */
+public class SparseFactors implements Transducer.Incrementor
+{
+	final Index index;
+	final boolean[] weightsFrozen;
+	final double[] initialWeights;      // indexed by state index
+	final double[] finalWeights;        // indexed by state index
+	final double[] defaultWeights;      // indexed by weight index
+	int[] blockOf;                      // start of each feature's block in counts, or -1
+	int[] seenFeatures = new int[64];
+	int numSeenFeatures;
+	double[] counts = new double[256];
+	int size;                           // slots of counts in use
+	double instanceWeight = 1.0;
+
+	public SparseFactors (Index index)
+	{
+		this.index = index;
+		weightsFrozen = index.parameters.weightsFrozen;
+		initialWeights = new double[index.parameters.initialWeights.length];
+		finalWeights = new double[index.parameters.finalWeights.length];
+		defaultWeights = new double[index.parameters.weights.length];
+		blockOf = new int[index.numFeatures];
+		Arrays.fill (blockOf, -1);
+	}
+
+	/**
+	 * For each input feature, the parameters of a CRF's weights that multiply it,
+	 * listed in order of weight index. Immutable, so it can be shared by threads; it
+	 * must be rebuilt when the structure of the CRF's weights changes.
+	 */
+	public static class Index
+	{
+		final CRF.Factors parameters;
+		final int numFeatures;
+		final int[] weightOffsets;     // position of each weight index's default weight
+		final int[] featureStart;      // indexed by feature, plus one
+		final int[] entryWeight;       // weight index of each entry
+		final int[] entryPosition;     // position of each entry in the layout of CRF.Factors.getParameters
+
+		public Index (CRF crf)
+		{
+			parameters = crf.parameters;
+			SparseVector[] weights = parameters.weights;
+			weightOffsets = new int[weights.length];
+			int position = 2 * parameters.initialWeights.length;
+			int maxFeature = -1;
+			for (int w = 0; w < weights.length; w++) {
+				weightOffsets[w] = position;
+				position += 1 + weights[w].numLocations();
+				for (int loc = 0; loc < weights[w].numLocations(); loc++)
+					maxFeature = Math.max (maxFeature, weights[w].indexAtLocation (loc));
+			}
+			numFeatures = maxFeature + 1;
+
+			featureStart = new int[numFeatures + 1];
+			for (int w = 0; w < weights.length; w++)
+				for (int loc = 0; loc < weights[w].numLocations(); loc++)
+					featureStart[weights[w].indexAtLocation (loc) + 1]++;
+			for (int f = 0; f < numFeatures; f++)
+				featureStart[f+1] += featureStart[f];
+			entryWeight = new int[featureStart[numFeatures]];
+			entryPosition = new int[featureStart[numFeatures]];
+			int[] next = Arrays.copyOf (featureStart, numFeatures);
+			for (int w = 0; w < weights.length; w++)
+				for (int loc = 0; loc < weights[w].numLocations(); loc++) {
+					int entry = next[weights[w].indexAtLocation (loc)]++;
+					entryWeight[entry] = w;
+					entryPosition[entry] = weightOffsets[w] + 1 + loc;
+				}
+		}
+
+		public int numFeatures () { return numFeatures; }
+
+		/**
+		 * Splits the features into contiguous ranges with about the same number of
+		 * parameters, returning the first feature of each range followed by the number
+		 * of features.
+		 */
+		public int[] featureRanges (int numRanges)
+		{
+			int[] starts = new int[numRanges + 1];
+			long total = featureStart[numFeatures];
+			int range = 1;
+			for (int f = 0; f < numFeatures; f++)
+				while (range < numRanges && featureStart[f] >= total * range / numRanges)
+					starts[range++] = f;
+			while (range <= numRanges)
+				starts[range++] = numFeatures;
+			return starts;
+		}
+	}
+
+	/** Sets the factor applied to the counts passed to the <tt>Incrementor</tt> methods. */
+	public void setInstanceWeight (double instanceWeight) { this.instanceWeight = instanceWeight; }
+
+	/** Returns the number of parameters with space for a count. */
+	public int size () { return size; }
+
+	public void zero ()
+	{
+		for (int i = 0; i < numSeenFeatures; i++)
+			blockOf[seenFeatures[i]] = -1;
+		numSeenFeatures = 0;
+		Arrays.fill (counts, 0, size, 0);
+		size = 0;
+		Arrays.fill (initialWeights, 0);
+		Arrays.fill (finalWeights, 0);
+		Arrays.fill (defaultWeights, 0);
+	}
+
+	/**
+	 * Adds <tt>factor</tt> times the counts of the initial, final and default weights
+	 * to <tt>buffer</tt>, for the weight indices in <tt>[firstWeight, endWeight)</tt> and,
+	 * if <tt>states</tt> is true, the states.
+	 */
+	public void addDefaultsTo (double[] buffer, int firstWeight, int endWeight, boolean states, double factor)
+	{
+		if (states)
+			for (int i = 0; i < initialWeights.length; i++) {
+				buffer[2*i] += initialWeights[i] * factor;
+				buffer[2*i+1] += finalWeights[i] * factor;
+			}
+		for (int w = firstWeight; w < endWeight; w++)
+			if (!weightsFrozen[w])
+				buffer[index.weightOffsets[w]] += defaultWeights[w] * factor;
+	}
+
+	/** Adds <tt>factor</tt> times the counts of the features in <tt>[firstFeature, endFeature)</tt> to <tt>buffer</tt>. */
+	public void addWeightsTo (double[] buffer, int firstFeature, int endFeature, double factor)
+	{
+		int[] featureStart = index.featureStart;
+		int[] entryWeight = index.entryWeight;
+		int[] entryPosition = index.entryPosition;
+		endFeature = Math.min (endFeature, blockOf.length);
+		for (int f = firstFeature; f < endFeature; f++) {
+			int block = blockOf[f];
+			if (block < 0) continue;
+			for (int entry = featureStart[f]; entry < featureStart[f+1]; entry++)
+				if (!weightsFrozen[entryWeight[entry]])
+					buffer[entryPosition[entry]] += counts[block + entry - featureStart[f]] * factor;
+		}
+	}
+
+	/** Adds <tt>factor</tt> times all the counts to <tt>buffer</tt>. */
+	public void addTo (double[] buffer, double factor)
+	{
+		addDefaultsTo (buffer, 0, defaultWeights.length, true, factor);
+		addWeightsTo (buffer, 0, index.numFeatures, factor);
+	}
+
+	// The start of the feature's block of counts, made if the feature hasn't been seen, or -1 if it has no parameters
+	private int block (int feature)
+	{
+		if (feature >= blockOf.length) return -1;
+		int block = blockOf[feature];
+		if (block >= 0) return block;
+		int length = index.featureStart[feature+1] - index.featureStart[feature];
+		if (length == 0) return -1;
+		if (size + length > counts.length)
+			counts = Arrays.copyOf (counts, Math.max (2 * counts.length, size + length));
+		if (numSeenFeatures == seenFeatures.length)
+			seenFeatures = Arrays.copyOf (seenFeatures, 2 * seenFeatures.length);
+		seenFeatures[numSeenFeatures++] = feature;
+		block = blockOf[feature] = size;
+		size += length;
+		return block;
+	}
+
+	void incrementInitial (int state, double count) { initialWeights[state] += count; }
+
+	void incrementFinal (int state, double count) { finalWeights[state] += count; }
+
+	/**
+	 * Adds the counts of one input position: <tt>weightCounts[w]</tt> times
+	 * <tt>factor</tt> to each default weight of <tt>weightIndices</tt>, and that times
+	 * <tt>fv</tt> to their weights. Other entries of <tt>weightCounts</tt> must be zero.
+	 */
+	void incrementPosition (FeatureVector fv, double[] weightCounts, int[] weightIndices, double factor)
+	{
+		for (int w : weightIndices)
+			defaultWeights[w] += weightCounts[w] * factor;
+		int[] featureStart = index.featureStart;
+		int[] entryWeight = index.entryWeight;
+		int numLocations = fv.numLocations();
+		for (int loc = 0; loc < numLocations; loc++) {
+			int feature = fv.indexAtLocation (loc);
+			int block = block (feature);
+			if (block < 0) continue;
+			double value = fv.valueAtLocation (loc) * factor;
+			int first = featureStart[feature];
+			int end = featureStart[feature+1];
+			for (int entry = first; entry < end; entry++)
+				counts[block + entry - first] += value * weightCounts[entryWeight[entry]];
+		}
+	}
+
+	public void incrementInitialState (Transducer.State s, double count)
+	{
+		incrementInitial (s.getIndex(), count * instanceWeight);
+	}
+
+	public void incrementFinalState (Transducer.State s, double count)
+	{
+		incrementFinal (s.getIndex(), count * instanceWeight);
+	}
+
+	public void incrementTransition (Transducer.TransitionIterator ti, double count)
+	{
+		int index = ti.getIndex();
+		CRF.State source = (CRF.State) ti.getSourceState();
+		FeatureVector fv = (FeatureVector) ti.getInput();
+		int[] featureStart = this.index.featureStart;
+		int[] entryWeight = this.index.entryWeight;
+		count *= instanceWeight;
+		for (int weightsIndex : source.weightsIndices[index]) {
+			defaultWeights[weightsIndex] += count;
+			for (int loc = 0; loc < fv.numLocations(); loc++) {
+				int feature = fv.indexAtLocation (loc);
+				int block = block (feature);
+				if (block < 0) continue;
+				// Features the weights don't have are ignored, as in SparseVector.plusEqualsSparse
+				for (int entry = featureStart[feature]; entry < featureStart[feature+1]; entry++)
+					if (entryWeight[entry] == weightsIndex)
+						counts[block + entry - featureStart[feature]] += fv.valueAtLocation (loc) * count;
+			}
+		}
+	}
+}
@@ -0,0 +1,568 @@
+/* Copyright (C) 2002 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.fst;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+import cc.mallet.fst.Transducer.State;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.FeatureVectorSequence;
+import cc.mallet.types.LabelAlphabet;
+import cc.mallet.types.LabelVector;
+import cc.mallet.types.MatrixOps;
+import cc.mallet.types.Sequence;
+import cc.mallet.types.SparseVector;
+
+/**
+ * Forward-backward for {@link CRF}s over flat arrays of primitives.
+ * <p>
+ * Unlike {@link SumLatticeDefault}, which builds a <tt>LatticeNode</tt> for every
+ * position and state and a <tt>TransitionIterator</tt> (recomputing its dot products)
+ * for every state in both passes, this lattice computes the dot product of each weight
+ * with each input position once, scores every transition from those, and runs both
+ * passes over arrays indexed by position and state.
+ * <p>
+ * The arrays live in a {@link Workspace}, one per thread, that grows to the longest
+ * sequence seen and is reused for every later sequence. Trainers call
+ * {@link Workspace#forwardBackward} directly, which adds the expectations of a
+ * <tt>CRF.Factors</tt> without allocating anything: transition marginals are summed
+ * per weight before being added to the sparse weight vectors once per position.
+ * Constructing a <tt>SumLatticeDense</tt> instead copies the results out of the
+ * workspace, so that the usual <tt>SumLattice</tt> accessors keep working.
+ * <p>
+ * Only plain <tt>CRF.State</tt>s are supported (see {@link CRFTopology#supports});
+ * the {@link Factory} falls back to <tt>SumLatticeDefault</tt> for other transducers.
+ */
+public class SumLatticeDense implements SumLattice
+{
+	private static final ThreadLocal<Workspace> workspaces = new ThreadLocal<Workspace> () {
+		protected Workspace initialValue () { return new Workspace (); }
+	};
+
+	/** Returns the calling thread's workspace. */
+	public static Workspace getWorkspace () { return workspaces.get(); }
+
+	// "ip" == "input position", "i" == "state index"
+	CRF crf;
+	Sequence input;
+	int latticeLength;
+	int numStates;
+	double totalWeight;
+	double[] alphas;             // indexed by ip*numStates+i
+	double[] betas;              // indexed by ip*numStates+i
+	double[][] gammas;           // indexed by ip,i
+	double[][][] xis;            // indexed by ip,i,j; saved only if saveXis is true
+	LabelVector labelings[];     // indexed by op, created only if "outputAlphabet" is non-null in constructor
+
+	public SumLatticeDense (CRF crf, Sequence input)
+	{
+		this (crf, input, null, (Transducer.Incrementor)null, false, null);
+	}
+
+	public SumLatticeDense (CRF crf, Sequence input, Sequence output, Transducer.Incrementor incrementor)
+	{
+		this (crf, input, output, incrementor, false, null);
+	}
+
+	// You may pass null for output, meaning that the lattice
+	// is not constrained to match the output
+	public SumLatticeDense (CRF crf, Sequence input, Sequence output, Transducer.Incrementor incrementor, boolean saveXis, LabelAlphabet outputAlphabet)
+	{
+		assert (output == null || input.size() == output.size());
+		this.crf = crf;
+		this.input = input;
+		latticeLength = input.size()+1;
+		numStates = crf.numStates();
+
+		gammas = new double[latticeLength][numStates];
+		for (int ip = 0; ip < latticeLength; ip++)
+			Arrays.fill (gammas[ip], Transducer.IMPOSSIBLE_WEIGHT);
+		if (saveXis) {
+			xis = new double[latticeLength][numStates][numStates];
+			for (int ip = 0; ip < latticeLength; ip++)
+				for (int i = 0; i < numStates; i++)
+					Arrays.fill (xis[ip][i], Transducer.IMPOSSIBLE_WEIGHT);
+		}
+		double outputCounts[][] = null;
+		if (outputAlphabet != null)
+			outputCounts = new double[latticeLength][outputAlphabet.size()];
+
+		Workspace workspace = workspaces.get();
+		totalWeight = workspace.forward (crf, (FeatureVectorSequence) input, output);
+		alphas = Arrays.copyOf (workspace.alphas, latticeLength * numStates);
+		betas = new double[latticeLength * numStates];
+		Arrays.fill (betas, Transducer.IMPOSSIBLE_WEIGHT);
+
+		// As in SumLatticeDefault, a sequence with -infinite weight gets no expectations
+		if (totalWeight == Transducer.IMPOSSIBLE_WEIGHT)
+			return;
+
+		workspace.backward ();
+		System.arraycopy (workspace.betas, 0, betas, 0, betas.length);
+		workspace.collect (null, 1.0, incrementor, xis, outputCounts, outputAlphabet);
+
+		for (int ip = 0; ip < latticeLength; ip++)
+			for (int i = 0; i < numStates; i++)
+				gammas[ip][i] = alphas[ip*numStates+i] + betas[ip*numStates+i] - totalWeight;
+
+		if (outputAlphabet != null) {
+			labelings = new LabelVector[latticeLength];
+			for (int ip = latticeLength-2; ip >= 0; ip--) {
+				assert (Math.abs(1.0-MatrixOps.sum (outputCounts[ip])) < 0.000001);
+				labelings[ip] = new LabelVector (outputAlphabet, outputCounts[ip]);
+			}
+		}
+	}
+
+	public double[][][] getXis () { return xis; }
+
+	public double[][] getGammas () { return gammas; }
+
+	public double getTotalWeight () {
+		assert (!Double.isNaN(totalWeight));
+		return totalWeight; }
+
+	public double getGammaWeight (int inputPosition, State s) {
+		return gammas[inputPosition][s.getIndex()]; }
+
+	public double getGammaProbability (int inputPosition, State s) {
+		return Math.exp (gammas[inputPosition][s.getIndex()]); }
+
+	public double getXiProbability (int ip, State s1, State s2) {
+		return Math.exp (getXiWeight (ip, s1, s2));
+	}
+
+	public double getXiWeight (int ip, State s1, State s2) {
+		if (xis == null)
+			throw new IllegalStateException ("xis were not saved.");
+		return xis[ip][s1.getIndex()][s2.getIndex()];
+	}
+
+	public int length () { return latticeLength; }
+
+	public Sequence getInput () { return input; }
+
+	public double getAlpha (int ip, State s) { return alphas[ip*numStates + s.getIndex()]; }
+
+	public double getBeta (int ip, State s) { return betas[ip*numStates + s.getIndex()]; }
+
+	public LabelVector getLabelingAtPosition (int outputPosition) {
+		if (labelings != null)
+			return labelings[outputPosition];
+		return null;
+	}
+
+	public Transducer getTransducer () { return crf; }
+
+
+	/**
+	 * Scratch arrays for forward-backward, sized for the longest sequence and the
+	 * largest CRF seen so far. A workspace must only be used by one thread at a time.
+	 */
+	public static class Workspace
+	{
+		CRF crf;
+		CRFTopology topology;
+		FeatureVectorSequence input;
+		int length;                   // number of input positions
+
+		int[] outputLabels = new int[0];      // indexed by ip; -1 if unconstrained, -2 if not a label
+		double[] emissions = new double[0];   // indexed by ip*numWeights+weight
+		double[] scores = new double[0];      // indexed by ip*numTransitions+transition
+		double[] alphas = new double[0];      // indexed by ip*numStates+i
+		double[] betas = new double[0];       // indexed by ip*numStates+i
+		double[] weightMarginals = new double[0];  // indexed by weight
+		double[] finalWeights = new double[0];     // as read by forward, indexed by state
+		double totalWeight;
+
+		LatticeTransition transition = new LatticeTransition ();
+
+		public Workspace () { }
+
+		/**
+		 * Runs forward-backward and, if <tt>expectations</tt> is non-null, adds
+		 * <tt>instanceWeight</tt> times the expected counts of every initial state,
+		 * final state and weight to it. Frozen weights are skipped, as in
+		 * <tt>CRF.Factors.Incrementor</tt>.
+		 *
+		 * @param output If non-null, only paths that produce this label sequence are summed
+		 * @return The log of the total weight of all (matching) paths
+		 */
+		public double forwardBackward (CRF crf, FeatureVectorSequence input, Sequence output,
+				CRF.Factors expectations, double instanceWeight)
+		{
+			double weight = forward (crf, input, output);
+			if (expectations != null && weight != Transducer.IMPOSSIBLE_WEIGHT) {
+				backward ();
+				collect (expectations, instanceWeight, null, null, null, null);
+			}
+			return weight;
+		}
+
+		/**
+		 * Runs forward-backward and, if <tt>incrementor</tt> is non-null, hands it the
+		 * expected counts. The incrementors of <tt>CRF.Factors</tt> and {@link SparseFactors}
+		 * are added to directly, as above; any other sees every transition.
+		 *
+		 * @param output If non-null, only paths that produce this label sequence are summed
+		 * @return The log of the total weight of all (matching) paths
+		 */
+		public double forwardBackward (CRF crf, FeatureVectorSequence input, Sequence output,
+				Transducer.Incrementor incrementor)
+		{
+			double weight = forward (crf, input, output);
+			if (incrementor != null && weight != Transducer.IMPOSSIBLE_WEIGHT) {
+				backward ();
+				collect (null, 1.0, incrementor, null, null, null);
+			}
+			return weight;
+		}
+
+		private void ensureCapacity ()
+		{
+			int numStates = topology.numStates;
+			if (outputLabels.length < length)
+				outputLabels = new int[length];
+			if (emissions.length < length * topology.numWeights)
+				emissions = new double[length * topology.numWeights];
+			if (scores.length < length * topology.numTransitions)
+				scores = new double[length * topology.numTransitions];
+			if (alphas.length < (length+1) * numStates) {
+				alphas = new double[(length+1) * numStates];
+				betas = new double[(length+1) * numStates];
+			}
+			if (weightMarginals.length < topology.numWeights)
+				weightMarginals = new double[topology.numWeights];
+			if (finalWeights.length < numStates)
+				finalWeights = new double[numStates];
+		}
+
+		// The weights needed at this position
+		private int[] weightsAt (int ip)
+		{
+			int label = outputLabels[ip];
+			if (label == -1) return topology.usedWeights;
+			if (label < 0) return EMPTY;
+			return topology.labelWeights[label];
+		}
+
+		private static final int[] EMPTY = new int[0];
+
+		/** Scores the transitions and runs the forward pass, returning the total weight. */
+		double forward (CRF crf, FeatureVectorSequence input, Sequence output)
+		{
+			this.crf = crf;
+			this.topology = CRFTopology.get (crf);
+			this.input = input;
+			this.length = input.size();
+			ensureCapacity ();
+
+			int numStates = topology.numStates;
+			int numTransitions = topology.numTransitions;
+			int numWeights = topology.numWeights;
+			CRF.Factors parameters = crf.parameters;
+
+			for (int ip = 0; ip < length; ip++) {
+				if (output == null)
+					outputLabels[ip] = -1;
+				else {
+					int label = crf.getOutputAlphabet().lookupIndex (output.get(ip), false);
+					outputLabels[ip] = label < 0 ? -2 : label;
+				}
+			}
+
+			// The dot product of each weight with each input position, computed once
+			for (int ip = 0; ip < length; ip++) {
+				FeatureVector fv = input.get(ip);
+				int offset = ip * numWeights;
+				for (int w : weightsAt (ip))
+					emissions[offset + w] = parameters.weights[w].dotProduct (fv) + parameters.defaultWeights[w];
+			}
+
+			for (int ip = 0; ip < length; ip++) {
+				int label = outputLabels[ip];
+				int offset = ip * numWeights;
+				int scoreOffset = ip * numTransitions;
+				for (int t = 0; t < numTransitions; t++) {
+					if (label != -1 && topology.transitionLabel[t] != label) {
+						scores[scoreOffset + t] = Transducer.IMPOSSIBLE_WEIGHT;
+						continue;
+					}
+					double score = 0;
+					for (int w : topology.transitionWeights[t])
+						score += emissions[offset + w];
+					assert (!Double.isNaN(score));
+					assert (score != Double.POSITIVE_INFINITY);
+					scores[scoreOffset + t] = score;
+				}
+			}
+
+			// Forward pass
+			double[] initialWeights = parameters.initialWeights;
+			for (int i = 0; i < numStates; i++)
+				alphas[i] = initialWeights[i] > Transducer.IMPOSSIBLE_WEIGHT ? initialWeights[i] : Transducer.IMPOSSIBLE_WEIGHT;
+
+			int[] incomingStart = topology.incomingStart;
+			int[] incoming = topology.incoming;
+			int[] source = topology.transitionSource;
+			for (int ip = 0; ip < length; ip++) {
+				int from = ip * numStates;
+				int to = from + numStates;
+				int scoreOffset = ip * numTransitions;
+				for (int j = 0; j < numStates; j++) {
+					// log-sum-exp over the transitions into j, scaled by the largest term
+					double max = Transducer.IMPOSSIBLE_WEIGHT;
+					for (int k = incomingStart[j]; k < incomingStart[j+1]; k++) {
+						int t = incoming[k];
+						double weight = alphas[from + source[t]] + scores[scoreOffset + t];
+						if (weight > max) max = weight;
+					}
+					if (max == Transducer.IMPOSSIBLE_WEIGHT) {
+						alphas[to + j] = Transducer.IMPOSSIBLE_WEIGHT;
+						continue;
+					}
+					double sum = 0;
+					for (int k = incomingStart[j]; k < incomingStart[j+1]; k++) {
+						int t = incoming[k];
+						sum += Math.exp (alphas[from + source[t]] + scores[scoreOffset + t] - max);
+					}
+					alphas[to + j] = max + Math.log (sum);
+				}
+			}
+
+			// Calculate total weight of Lattice.  This is the normalizer.
+			// The parameters are read only here and above, so the lattice is consistent
+			// even if another thread changes them before backward and collect.
+			System.arraycopy (parameters.finalWeights, 0, finalWeights, 0, numStates);
+			int last = length * numStates;
+			double max = Transducer.IMPOSSIBLE_WEIGHT;
+			for (int i = 0; i < numStates; i++)
+				if (alphas[last + i] + finalWeights[i] > max) max = alphas[last + i] + finalWeights[i];
+			if (max == Transducer.IMPOSSIBLE_WEIGHT)
+				totalWeight = Transducer.IMPOSSIBLE_WEIGHT;
+			else {
+				double sum = 0;
+				for (int i = 0; i < numStates; i++)
+					sum += Math.exp (alphas[last + i] + finalWeights[i] - max);
+				totalWeight = max + Math.log (sum);
+			}
+			return totalWeight;
+		}
+
+		/** Runs the backward pass. Must follow <tt>forward</tt>. */
+		void backward ()
+		{
+			int numStates = topology.numStates;
+			int numTransitions = topology.numTransitions;
+			int[] outgoingStart = topology.outgoingStart;
+			int[] destination = topology.transitionDestination;
+
+			System.arraycopy (finalWeights, 0, betas, length * numStates, numStates);
+			for (int ip = length-1; ip >= 0; ip--) {
+				int from = ip * numStates;
+				int to = from + numStates;
+				int scoreOffset = ip * numTransitions;
+				for (int i = 0; i < numStates; i++) {
+					// As in SumLatticeDefault, states that can't be reached get no beta
+					if (alphas[from + i] == Transducer.IMPOSSIBLE_WEIGHT) {
+						betas[from + i] = Transducer.IMPOSSIBLE_WEIGHT;
+						continue;
+					}
+					double max = Transducer.IMPOSSIBLE_WEIGHT;
+					for (int t = outgoingStart[i]; t < outgoingStart[i+1]; t++) {
+						double weight = betas[to + destination[t]] + scores[scoreOffset + t];
+						if (weight > max) max = weight;
+					}
+					if (max == Transducer.IMPOSSIBLE_WEIGHT) {
+						betas[from + i] = Transducer.IMPOSSIBLE_WEIGHT;
+						continue;
+					}
+					double sum = 0;
+					for (int t = outgoingStart[i]; t < outgoingStart[i+1]; t++)
+						sum += Math.exp (betas[to + destination[t]] + scores[scoreOffset + t] - max);
+					betas[from + i] = max + Math.log (sum);
+				}
+			}
+		}
+
+		/**
+		 * Hands the marginal probability of every state and transition to whichever of
+		 * the arguments are non-null. Must follow <tt>backward</tt>. A plain or weighted
+		 * <tt>CRF.Factors</tt> incrementor is replaced by adding straight into its factors,
+		 * and a <tt>SparseFactors</tt> is added to in the same way.
+		 */
+		void collect (CRF.Factors factors, double instanceWeight, Transducer.Incrementor incrementor,
+				double[][][] xis, double[][] outputCounts, LabelAlphabet outputAlphabet)
+		{
+			if (incrementor != null && incrementor.getClass() == CRF.Factors.Incrementor.class) {
+				factors = ((CRF.Factors.Incrementor) incrementor).getFactors();
+				instanceWeight = 1.0;
+				incrementor = null;
+			}
+			else if (incrementor != null && incrementor.getClass() == CRF.Factors.WeightedIncrementor.class) {
+				factors = ((CRF.Factors.WeightedIncrementor) incrementor).getFactors();
+				instanceWeight = ((CRF.Factors.WeightedIncrementor) incrementor).instanceWeight;
+				incrementor = null;
+			}
+			SparseFactors sparse = null;
+			if (incrementor instanceof SparseFactors) {
+				sparse = (SparseFactors) incrementor;
+				instanceWeight = sparse.instanceWeight;
+				incrementor = null;
+			}
+			boolean sumWeights = factors != null || sparse != null;
+
+			int numStates = topology.numStates;
+			int numTransitions = topology.numTransitions;
+			int numWeights = topology.numWeights;
+			int[] source = topology.transitionSource;
+			int[] destination = topology.transitionDestination;
+
+			int last = length * numStates;
+			for (int i = 0; i < numStates; i++) {
+				if (alphas[last + i] == Transducer.IMPOSSIBLE_WEIGHT) continue;
+				double p = Math.exp (alphas[last + i] + finalWeights[i] - totalWeight);
+				assert (p >= 0.0 && p <= 1.0+1e-6) : "p="+p;
+				if (factors != null) factors.finalWeights[i] += p * instanceWeight;
+				if (sparse != null) sparse.incrementFinal (i, p * instanceWeight);
+				if (incrementor != null) incrementor.incrementFinalState (crf.getState(i), p);
+			}
+
+			for (int ip = 0; ip < length; ip++) {
+				int from = ip * numStates;
+				int to = from + numStates;
+				int scoreOffset = ip * numTransitions;
+				FeatureVector fv = input.get(ip);
+				for (int t = 0; t < numTransitions; t++) {
+					double score = scores[scoreOffset + t];
+					double alpha = alphas[from + source[t]];
+					if (score == Transducer.IMPOSSIBLE_WEIGHT || alpha == Transducer.IMPOSSIBLE_WEIGHT) continue;
+					double xi = alpha + score + betas[to + destination[t]] - totalWeight;
+					if (xis != null) xis[ip][source[t]][destination[t]] = xi;
+					double p = Math.exp (xi);
+					assert (p >= 0.0 && p <= 1.0+1e-6) : "p="+p+", xis["+ip+"]["+source[t]+"]["+destination[t]+"]="+xi;
+					if (sumWeights)
+						for (int w : topology.transitionWeights[t])
+							weightMarginals[w] += p;
+					if (incrementor != null) {
+						transition.set ((CRF.State) crf.getState (source[t]), t - topology.outgoingStart[source[t]], fv, score);
+						incrementor.incrementTransition (transition, p);
+					}
+					if (outputCounts != null) {
+						int outputIndex = outputAlphabet.lookupIndex (crf.getOutputAlphabet().lookupObject (topology.transitionLabel[t]), false);
+						assert (outputIndex >= 0);
+						outputCounts[ip][outputIndex] += p;
+					}
+				}
+
+				// One sparse addition per weight, rather than one per transition;
+				// SparseFactors take all the weights of the position in one pass over its features
+				if (sparse != null)
+					sparse.incrementPosition (fv, weightMarginals, weightsAt (ip), instanceWeight);
+				if (sumWeights)
+					for (int w : weightsAt (ip)) {
+						double count = weightMarginals[w];
+						if (count == 0) continue;
+						weightMarginals[w] = 0;
+						if (sparse != null) continue;
+						if (factors.weightsFrozen[w]) continue;
+						plusEqualsSparse (factors.weights[w], fv, count * instanceWeight);
+						factors.defaultWeights[w] += count * instanceWeight;
+					}
+			}
+
+			for (int i = 0; i < numStates; i++) {
+				if (alphas[i] == Transducer.IMPOSSIBLE_WEIGHT) continue;
+				double p = Math.exp (alphas[i] + betas[i] - totalWeight);
+				assert (p >= 0.0 && p <= 1.0+1e-6) : "p="+p;
+				if (factors != null) factors.initialWeights[i] += p * instanceWeight;
+				if (sparse != null) sparse.incrementInitial (i, p * instanceWeight);
+				if (incrementor != null) incrementor.incrementInitialState (crf.getState(i), p);
+			}
+		}
+	}
+
+	/**
+	 * Adds <tt>factor</tt> times <tt>fv</tt> to <tt>weights</tt>, ignoring features that
+	 * <tt>weights</tt> doesn't have. <tt>SparseVector.plusEqualsSparse</tt> walks both
+	 * vectors, which is slow when a weight vector has many more features than an input
+	 * position, so in that case each input feature is looked up instead.
+	 */
+	static void plusEqualsSparse (SparseVector weights, FeatureVector fv, double factor)
+	{
+		int numLocations = fv.numLocations();
+		int size = weights.numLocations();
+		if (size < 8 * numLocations) {
+			weights.plusEqualsSparse (fv, factor);
+			return;
+		}
+		for (int loc = 0; loc < numLocations; loc++) {
+			int weightsLoc = weights.location (fv.indexAtLocation (loc));
+			if (weightsLoc >= 0 && weightsLoc < size)
+				weights.setValueAtLocation (weightsLoc, weights.valueAtLocation (weightsLoc) + fv.valueAtLocation (loc) * factor);
+		}
+	}
+
+	/** One transition of the lattice, handed to incrementors that expect a <tt>TransitionIterator</tt>. */
+	private static class LatticeTransition extends Transducer.TransitionIterator
+	{
+		CRF.State source;
+		int index;
+		FeatureVector input;
+		double weight;
+
+		void set (CRF.State source, int index, FeatureVector input, double weight) {
+			this.source = source;
+			this.index = index;
+			this.input = input;
+			this.weight = weight;
+		}
+
+		// A single transition, already current, so there is never a next one
+		public boolean hasNext () { return false; }
+		public State next () { throw new NoSuchElementException (); }
+		@Deprecated
+		public State nextState () { return next (); }
+		public int getIndex () { return index; }
+		public Object getInput () { return input; }
+		public Object getOutput () { return source.labels[index]; }
+		public double getWeight () { return weight; }
+		public State getSourceState () { return source; }
+		public State getDestinationState () { return source.getDestinationState (index); }
+
+		private static final long serialVersionUID = 1;
+	}
+
+	/** Creates a <tt>SumLatticeDense</tt> for plain CRFs, and a <tt>SumLatticeDefault</tt> for anything else. */
+	public static class Factory extends SumLatticeFactory implements Serializable
+	{
+		public SumLattice newSumLattice (Transducer trans, Sequence input, Sequence output,
+				Transducer.Incrementor incrementor, boolean saveXis, LabelAlphabet outputAlphabet)
+		{
+			if (CRFTopology.supports (trans))
+				return new SumLatticeDense ((CRF) trans, input, output, incrementor, saveXis, outputAlphabet);
+			return new SumLatticeDefault (trans, input, output, incrementor, saveXis, outputAlphabet);
+		}
+
+		private static final long serialVersionUID = 1;
+		private static final int CURRENT_SERIAL_VERSION = 1;
+
+		private void writeObject(ObjectOutputStream out) throws IOException {
+			out.writeInt(CURRENT_SERIAL_VERSION);
+		}
+		private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+			int version = in.readInt();
+		}
+	}
+
+}
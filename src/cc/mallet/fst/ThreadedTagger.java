@@ -0,0 +1,163 @@
+/* Copyright (C) 2002 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.fst;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import cc.mallet.types.FeatureVectorSequence;
+import cc.mallet.types.Instance;
+import cc.mallet.types.Sequence;
+
+/**
+ * Tags many sequences with the best output of a transducer, on several threads.
+ * <p>
+ * Sequences are handed to the threads in batches, and their outputs are returned, or
+ * passed to a {@link Listener}, in the order of the input. A stream of instances is
+ * read on the calling thread (which runs the pipe, if the iterator is a pipe's), with
+ * a bounded number of batches being tagged at once, so a stream of any length takes
+ * a bounded amount of memory.
+ * <p>
+ * Plain CRFs are decoded by {@link MaxLatticeDense.Workspace}, one per thread; other
+ * transducers by their <tt>MaxLatticeFactory</tt>. The transducer must not be changed
+ * while it is tagging.
+ */
+public class ThreadedTagger
+{
+	/** Receives the outputs of a stream of instances, in order, on the thread that reads the stream. */
+	public interface Listener
+	{
+		/** @param output The best output for the instance's data, or null if it has no path of finite weight */
+		public void tagged (Instance instance, Sequence output);
+	}
+
+	static final int DEFAULT_BATCH_SIZE = 64;
+
+	final Transducer model;
+	final int numThreads;
+	final boolean dense;
+	int batchSize = DEFAULT_BATCH_SIZE;
+	private final WorkerPool pool;
+
+	public ThreadedTagger (Transducer model, int numThreads)
+	{
+		if (numThreads < 1)
+			throw new IllegalArgumentException ("Number of threads must be at least 1: " + numThreads);
+		this.model = model;
+		this.numThreads = numThreads;
+		this.pool = new WorkerPool (numThreads, "ThreadedTagger");
+		this.dense = CRFTopology.supports (model);
+	}
+
+	/** Sets the number of sequences a thread tags at a time. */
+	public void setBatchSize (int batchSize) {
+		if (batchSize < 1)
+			throw new IllegalArgumentException ("Batch size must be at least 1: " + batchSize);
+		this.batchSize = batchSize;
+	}
+	public int getBatchSize () { return batchSize; }
+
+	public Transducer getTransducer () { return model; }
+
+	/** Returns the best output for <tt>input</tt>, decoded on the calling thread, or null if it has no path of finite weight. */
+	public Sequence tag (Sequence input)
+	{
+		if (dense && input instanceof FeatureVectorSequence)
+			return MaxLatticeDense.getWorkspace().bestOutputSequence ((CRF) model, (FeatureVectorSequence) input);
+		MaxLattice lattice = model.getMaxLatticeFactory().newMaxLattice (model, input);
+		List<Sequence<Object>> outputs = lattice.bestOutputSequences (1);
+		return outputs.isEmpty() ? null : outputs.get(0);
+	}
+
+	/** Returns the best output of each of the inputs, in order; an output is null if its input has no path of finite weight. */
+	public Sequence[] tag (List<? extends Sequence> inputs)
+	{
+		Sequence[] outputs = new Sequence[inputs.size()];
+		List<Callable<Sequence[]>> tasks = new ArrayList<Callable<Sequence[]>> ();
+		for (int start = 0; start < inputs.size(); start += batchSize)
+			tasks.add (new Batch (inputs.subList (start, Math.min (inputs.size(), start + batchSize))));
+		int i = 0;
+		for (Sequence[] batch : pool.invokeAll (tasks, "tagging"))
+			for (Sequence output : batch)
+				outputs[i++] = output;
+		return outputs;
+	}
+
+	/**
+	 * Tags the data of each instance from <tt>instances</tt>, passing the instance and
+	 * its output to <tt>listener</tt> in the order they were read.
+	 */
+	public void tag (Iterator<Instance> instances, Listener listener)
+	{
+		ExecutorService executor = pool.getExecutor ();
+		ArrayDeque<List<Instance>> batches = new ArrayDeque<List<Instance>> ();
+		ArrayDeque<Future<Sequence[]>> futures = new ArrayDeque<Future<Sequence[]>> ();
+		try {
+			while (instances.hasNext()) {
+				List<Instance> batch = new ArrayList<Instance> (batchSize);
+				while (batch.size() < batchSize && instances.hasNext())
+					batch.add (instances.next());
+				List<Sequence> inputs = new ArrayList<Sequence> (batch.size());
+				for (Instance instance : batch)
+					inputs.add ((Sequence) instance.getData());
+				if (executor == null) {
+					report (batch, new Batch (inputs).call(), listener);
+					continue;
+				}
+				// Keep every thread busy while the oldest batch is reported
+				if (futures.size() == 2 * numThreads)
+					report (batches.poll(), futures.poll().get(), listener);
+				batches.add (batch);
+				futures.add (executor.submit (new Batch (inputs)));
+			}
+			while (!futures.isEmpty())
+				report (batches.poll(), futures.poll().get(), listener);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException ("Interrupted while tagging", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException (e.getCause());
+		} finally {
+			for (Future<Sequence[]> future : futures)
+				future.cancel (true);
+		}
+	}
+
+	private void report (List<Instance> batch, Sequence[] outputs, Listener listener)
+	{
+		for (int i = 0; i < outputs.length; i++)
+			listener.tagged (batch.get(i), outputs[i]);
+	}
+
+	private class Batch implements Callable<Sequence[]>
+	{
+		final List<? extends Sequence> inputs;
+
+		Batch (List<? extends Sequence> inputs) { this.inputs = inputs; }
+
+		public Sequence[] call ()
+		{
+			Sequence[] outputs = new Sequence[inputs.size()];
+			for (int i = 0; i < outputs.length; i++)
+				outputs[i] = tag (inputs.get(i));
+			return outputs;
+		}
+	}
+
+	/** Stops the threads. They are started again by the next call to <tt>tag</tt>. */
+	public void shutdown ()
+	{
+		pool.shutdown ();
+	}
+}
@@ -0,0 +1,95 @@
+/* Copyright (C) 2002 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.fst;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The threads of a multi-threaded trainer or tagger, started when first needed.
+ * <p>
+ * The threads are daemon threads, so an idle owner doesn't keep the JVM alive.
+ * With one thread none are started, and tasks run on the calling thread.
+ */
+class WorkerPool implements Serializable
+{
+	private final int numThreads;
+	private final String name;
+	private transient ExecutorService executor;
+
+	/** @param name The name of the threads */
+	WorkerPool (int numThreads, String name)
+	{
+		this.numThreads = numThreads;
+		this.name = name;
+	}
+
+	/** Returns the executor, starting the threads if needed, or null if there is only one thread. */
+	synchronized ExecutorService getExecutor ()
+	{
+		if (numThreads > 1 && executor == null) {
+			executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+				public Thread newThread (Runnable runnable) {
+					Thread thread = new Thread (runnable, name);
+					thread.setDaemon (true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * Runs the tasks on the threads, or on this thread if there is only one, and
+	 * returns their results in the order of the tasks.
+	 *
+	 * @param activity What the tasks are doing, for the message if the wait is interrupted
+	 */
+	<T> List<T> invokeAll (List<Callable<T>> tasks, String activity)
+	{
+		List<T> results = new ArrayList<T> (tasks.size());
+		try {
+			ExecutorService executor = getExecutor ();
+			if (executor == null) {
+				for (Callable<T> task : tasks)
+					results.add (task.call());
+				return results;
+			}
+			for (Future<T> future : executor.invokeAll (tasks))
+				results.add (future.get());
+			return results;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException ("Interrupted while " + activity, e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException (e.getCause());
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalStateException (e);
+		}
+	}
+
+	/** Stops the threads. They are started again when next needed. */
+	synchronized void shutdown ()
+	{
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	private static final long serialVersionUID = 1;
+}
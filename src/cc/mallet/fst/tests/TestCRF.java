@@ -22,6 +22,8 @@ import java.io.Serializable;
 import java.io.StringReader;
 import java.io.StringWriter;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 import java.util.regex.Pattern;
 
@@ -30,6 +32,7 @@ import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
 import cc.mallet.types.Alphabet;
+import cc.mallet.types.ArraySequence;
 import cc.mallet.types.FeatureSequence;
 import cc.mallet.types.FeatureVector;
 import cc.mallet.types.FeatureVectorSequence;
@@ -58,13 +61,21 @@ import cc.mallet.pipe.tsf.OffsetConjunctions;
 import cc.mallet.pipe.tsf.TokenText;
 
 import cc.mallet.fst.CRF;
+import cc.mallet.fst.CRFOptimizableByLabelLikelihood;
+import cc.mallet.fst.CRFOptimizableByThreadedLabelLikelihood;
 import cc.mallet.fst.CRFTrainerByLabelLikelihood;
 import cc.mallet.fst.CRFTrainerByStochasticGradient;
+import cc.mallet.fst.CRFTrainerByThreadedLabelLikelihood;
+import cc.mallet.fst.CRFTrainerByThreadedStochasticGradient;
+import cc.mallet.fst.CompiledCRF;
 import cc.mallet.fst.MaxLattice;
 import cc.mallet.fst.MaxLatticeDefault;
+import cc.mallet.fst.MaxLatticeDense;
 import cc.mallet.fst.SumLattice;
 import cc.mallet.fst.SumLatticeDefault;
+import cc.mallet.fst.SumLatticeDense;
 import cc.mallet.fst.SumLatticeScaling;
+import cc.mallet.fst.ThreadedTagger;
 import cc.mallet.fst.TokenAccuracyEvaluator;
 import cc.mallet.fst.Transducer;
 
@@ -1033,6 +1044,258 @@ public class TestCRF extends TestCase {
 		}
 	}
 
+	public void testSumLatticeDense() {
+		Pipe p = makeSpacePredictionPipe();
+
+		InstanceList instances = new InstanceList(p);
+		instances.addThruPipe(new ArrayIterator(data));
+
+		CRF crf = new CRF(p, null);
+		crf.addFullyConnectedStatesForLabels();
+		CRFTrainerByLabelLikelihood crft = new CRFTrainerByLabelLikelihood(crf);
+		crft.train(instances, 10); // Let's get some parameters
+
+		CRF.Factors defaultExpectations = new CRF.Factors(crf.getParameters());
+		CRF.Factors denseExpectations = new CRF.Factors(crf.getParameters());
+		SumLatticeDense.Workspace workspace = SumLatticeDense.getWorkspace();
+		for (Instance inst : instances) {
+			Sequence input = (Sequence) inst.getData();
+			Sequence output = (Sequence) inst.getTarget();
+			for (Sequence constraint : new Sequence[] { null, output }) {
+				SumLattice defaultLattice = new SumLatticeDefault(crf, input,
+						constraint, defaultExpectations.new WeightedIncrementor(0.5), true);
+				SumLattice denseLattice = new SumLatticeDense(crf, input,
+						constraint, null, true, null);
+				assertEquals(defaultLattice.getTotalWeight(),
+						denseLattice.getTotalWeight(), 1e-9);
+				double[][] g1 = defaultLattice.getGammas(), g2 = denseLattice.getGammas();
+				double[][][] x1 = defaultLattice.getXis(), x2 = denseLattice.getXis();
+				for (int ip = 0; ip < g1.length; ip++) {
+					for (int i = 0; i < g1[ip].length; i++) {
+						assertEquals(Math.exp(g1[ip][i]), Math.exp(g2[ip][i]), 1e-9);
+						for (int j = 0; j < x1[ip][i].length; j++)
+							assertEquals(Math.exp(x1[ip][i][j]), Math.exp(x2[ip][i][j]), 1e-9);
+					}
+				}
+				double weight = workspace.forwardBackward(crf,
+						(FeatureVectorSequence) input, constraint, denseExpectations, 0.5);
+				assertEquals(defaultLattice.getTotalWeight(), weight, 1e-9);
+			}
+		}
+
+		double[] defaultValues = new double[crf.getParameters().getNumFactors()];
+		double[] denseValues = new double[defaultValues.length];
+		defaultExpectations.getParameters(defaultValues);
+		denseExpectations.getParameters(denseValues);
+		for (int i = 0; i < defaultValues.length; i++)
+			assertEquals(defaultValues[i], denseValues[i], 1e-7);
+	}
+
+	public void testThreadedLabelLikelihood() {
+		Pipe p = makeSpacePredictionPipe();
+
+		InstanceList instances = new InstanceList(p);
+		instances.addThruPipe(new ArrayIterator(data));
+
+		CRF crf = new CRF(p, null);
+		crf.addFullyConnectedStatesForLabels();
+		CRFTrainerByLabelLikelihood crft = new CRFTrainerByLabelLikelihood(crf);
+		crft.train(instances, 10); // Let's get some parameters
+		crf.freezeWeights(0);
+
+		CRFOptimizableByLabelLikelihood single = new CRFOptimizableByLabelLikelihood(crf, instances);
+		double[] expected = new double[single.getNumParameters()];
+		single.getValueGradient(expected);
+
+		for (int numThreads = 1; numThreads <= 3; numThreads++) {
+			CRFOptimizableByThreadedLabelLikelihood threaded =
+				new CRFOptimizableByThreadedLabelLikelihood(crf, instances, numThreads);
+			assertEquals(single.getValue(), threaded.getValue(), 1e-8);
+			double[] gradient = new double[threaded.getNumParameters()];
+			threaded.getValueGradient(gradient);
+			for (int i = 0; i < expected.length; i++)
+				assertEquals(expected[i], gradient[i], 1e-8);
+			threaded.shutdown();
+		}
+
+		// Training in the sparse mode gets the same result as training with one thread
+		CRF crf1 = new CRF(p, null);
+		crf1.addFullyConnectedStatesForLabels();
+		CRF crf2 = new CRF(p, null);
+		crf2.addFullyConnectedStatesForLabels();
+		new CRFTrainerByLabelLikelihood(crf1).train(instances, 5);
+		CRFTrainerByThreadedLabelLikelihood threadedTrainer = new CRFTrainerByThreadedLabelLikelihood(crf2, 2);
+		threadedTrainer.setUseSparseExpectations(true);
+		threadedTrainer.train(instances, 5);
+		threadedTrainer.shutdown();
+		double[] parameters1 = new double[crf1.getParameters().getNumFactors()];
+		double[] parameters2 = new double[crf2.getParameters().getNumFactors()];
+		crf1.getParameters().getParameters(parameters1);
+		crf2.getParameters().getParameters(parameters2);
+		for (int i = 0; i < parameters1.length; i++)
+			assertEquals(parameters1[i], parameters2[i], 1e-5);
+	}
+
+	public void testThreadedStochasticGradient() {
+		Pipe p = makeSpacePredictionPipe();
+
+		InstanceList instances = new InstanceList(p);
+		instances.addThruPipe(new ArrayIterator(data));
+
+		CRF crf1 = new CRF(p, null);
+		crf1.addFullyConnectedStatesForLabels();
+		new CRFTrainerByLabelLikelihood(crf1).train(instances, 100);
+		double expected = crf1.averageTokenAccuracy(instances);
+
+		for (boolean useAdaGrad : new boolean[] { false, true }) {
+			CRF crf2 = new CRF(p, null);
+			crf2.addFullyConnectedStatesForLabels();
+			CRFTrainerByThreadedStochasticGradient crft = new CRFTrainerByThreadedStochasticGradient(crf2, 2);
+			crft.setUseAdaGrad(useAdaGrad);
+			crft.setBatchSize(2);
+			if (!useAdaGrad)
+				crft.setLearningRateByLikelihood(instances);
+			crft.train(instances, 50);
+			crft.shutdown();
+			double accuracy = crf2.averageTokenAccuracy(instances);
+			System.out.println("Accuracy by label likelihood = " + expected
+					+ ", by threaded stochastic gradient" + (useAdaGrad ? " with AdaGrad = " : " = ") + accuracy);
+			assertTrue(accuracy > expected - 0.06);
+		}
+	}
+
+	private static int numWeightLocations(CRF crf) {
+		int numLocations = 0;
+		for (SparseVector weights : crf.getWeights())
+			numLocations += weights.numLocations();
+		return numLocations;
+	}
+
+	// Choosing the learning rate on a sample must not restrict the weights to the sample's features
+	public void testThreadedStochasticGradientSample() {
+		Pipe p = makeSpacePredictionPipe();
+
+		InstanceList instances = new InstanceList(p);
+		instances.addThruPipe(new ArrayIterator(data));
+		InstanceList sample = instances.subList(0, 1);
+
+		CRF crf1 = new CRF(p, null);
+		crf1.addFullyConnectedStatesForLabels();
+		CRFTrainerByThreadedStochasticGradient crft1 = new CRFTrainerByThreadedStochasticGradient(crf1, 1);
+		crft1.train(instances, 1);
+
+		CRF crf2 = new CRF(p, null);
+		crf2.addFullyConnectedStatesForLabels();
+		CRFTrainerByThreadedStochasticGradient crft2 = new CRFTrainerByThreadedStochasticGradient(crf2, 1);
+		crft2.setLearningRateByLikelihood(sample);
+		assertTrue(numWeightLocations(crf2) < numWeightLocations(crf1));
+		crft2.train(instances, 1);
+		assertEquals(numWeightLocations(crf1), numWeightLocations(crf2));
+	}
+
+	public void testMaxLatticeDense() {
+		Pipe p = makeSpacePredictionPipe();
+
+		InstanceList instances = new InstanceList(p);
+		instances.addThruPipe(new ArrayIterator(data));
+
+		CRF crf = new CRF(p, null);
+		crf.addFullyConnectedStatesForLabels();
+		CRFTrainerByLabelLikelihood crft = new CRFTrainerByLabelLikelihood(crf);
+		crft.train(instances, 10); // Let's get some parameters
+
+		List<Sequence> inputs = new ArrayList<Sequence>();
+		List<Sequence> expected = new ArrayList<Sequence>();
+		for (Instance inst : instances) {
+			Sequence input = (Sequence) inst.getData();
+			MaxLatticeDefault defaultLattice = new MaxLatticeDefault(crf, input);
+			MaxLatticeDense denseLattice = new MaxLatticeDense(crf, input);
+			double bestWeight = Transducer.IMPOSSIBLE_WEIGHT;
+			for (int ip = 0; ip <= input.size(); ip++)
+				for (int i = 0; i < crf.numStates(); i++) {
+					assertEquals(defaultLattice.getDelta(ip, i), denseLattice.getDelta(ip, i), 1e-9);
+					if (ip == input.size())
+						bestWeight = Math.max(bestWeight, defaultLattice.getDelta(ip, i));
+				}
+			assertEquals(bestWeight, denseLattice.bestWeight(), 1e-9);
+			Sequence output = defaultLattice.bestOutputSequence();
+			assertEquals(output.toString(), denseLattice.bestOutputSequence().toString());
+			assertEquals(defaultLattice.bestStateSequence().toString(),
+					denseLattice.bestStateSequence().toString());
+			inputs.add(input);
+			expected.add(output);
+		}
+
+		// Batches of two on three threads, in order
+		ThreadedTagger tagger = new ThreadedTagger(crf, 3);
+		tagger.setBatchSize(2);
+		Sequence[] outputs = tagger.tag(inputs);
+		final List<Sequence> streamed = new ArrayList<Sequence>();
+		tagger.tag(instances.iterator(), new ThreadedTagger.Listener() {
+			public void tagged(Instance instance, Sequence output) {
+				streamed.add(output);
+			}
+		});
+		tagger.shutdown();
+		assertEquals(expected.size(), outputs.length);
+		assertEquals(expected.size(), streamed.size());
+		for (int i = 0; i < outputs.length; i++) {
+			assertEquals(expected.get(i).toString(), outputs[i].toString());
+			assertEquals(expected.get(i).toString(), streamed.get(i).toString());
+		}
+	}
+
+	public void testCompiledCRF() throws IOException {
+		Pipe p = makeSpacePredictionPipe();
+
+		InstanceList instances = new InstanceList(p);
+		instances.addThruPipe(new ArrayIterator(data));
+
+		CRF crf = new CRF(p, null);
+		crf.addFullyConnectedStatesForLabels();
+		CRFTrainerByLabelLikelihood crft = new CRFTrainerByLabelLikelihood(crf);
+		crft.train(instances, 10);
+
+		File file = File.createTempFile("mallet", ".crf");
+		File floatFile = File.createTempFile("mallet", ".crf");
+		try {
+			CompiledCRF.write(crf, file, false);
+			CompiledCRF.write(crf, floatFile, true);
+			CompiledCRF compiled = CompiledCRF.load(file);
+			CompiledCRF compiledFloats = CompiledCRF.load(floatFile);
+			assertEquals(crf.numStates(), compiled.numStates());
+			assertTrue(compiledFloats.isSinglePrecision());
+			assertTrue(floatFile.length() < file.length());
+			assertEquals(-1, compiled.featureIndex("no such feature"));
+
+			int agreed = 0, total = 0;
+			for (Instance inst : instances) {
+				FeatureVectorSequence input = (FeatureVectorSequence) inst.getData();
+				String expected = new MaxLatticeDense(crf, input).bestOutputSequence().toString();
+				String[][] names = new String[input.size()][];
+				for (int ip = 0; ip < input.size(); ip++) {
+					FeatureVector fv = input.get(ip);
+					names[ip] = new String[fv.numLocations()];
+					for (int loc = 0; loc < fv.numLocations(); loc++) {
+						assertEquals(1.0, fv.valueAtLocation(loc), 0.0);
+						names[ip][loc] = fv.getAlphabet().lookupObject(fv.indexAtLocation(loc)).toString();
+						assertEquals(fv.indexAtLocation(loc), compiled.featureIndex(names[ip][loc]));
+					}
+				}
+				assertEquals(expected, new ArraySequence<String>(compiled.tag(input)).toString());
+				assertEquals(expected, new ArraySequence<String>(compiled.tag(names)).toString());
+				String[] floats = compiledFloats.tag(input);
+				for (int ip = 0; ip < floats.length; ip++, total++)
+					if (floats[ip].equals(compiled.tag(input)[ip]))
+						agreed++;
+			}
+			assertTrue(agreed > 0.99 * total);
+		} finally {
+			file.delete();
+			floatFile.delete();
+		}
+	}
+
 	public static Test suite() {
 		return new TestSuite(TestCRF.class);
 	}
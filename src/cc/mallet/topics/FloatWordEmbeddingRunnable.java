@@ -0,0 +1,172 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import cc.mallet.types.*;
+
+/**
+ * Trains {@link FloatWordEmbeddings} on one thread's share of the documents,
+ * one pass per call to <code>run</code>.
+ * <p>
+ * Random numbers come from a SplitMix64 generator (the algorithm of
+ * <code>java.util.SplittableRandom</code>) held in a field of this thread, rather
+ * than from a <code>java.util.Random</code>, which updates its seed atomically.
+ */
+
+public class FloatWordEmbeddingRunnable extends WordEmbeddingRunnable {
+
+	FloatWordEmbeddings floatModel;
+
+	long randomState;
+
+	int[] tokenBuffer = new int[1000];
+
+	public FloatWordEmbeddingRunnable(FloatWordEmbeddings model, InstanceList instances, int numSamples,
+									  int numThreads, int threadID, long seed) {
+		super(model, instances, numSamples, numThreads, threadID);
+		this.floatModel = model;
+		this.randomState = seed;
+	}
+
+	final long nextLong() {
+		long z = (randomState += 0x9E3779B97F4A7C15L);
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/** A float in [0, 1). */
+	final float nextFloat() {
+		return (nextLong() >>> 40) * 0x1.0p-24f;
+	}
+
+	/** An int in [0, bound), by scaling 32 random bits. */
+	final int nextInt(int bound) {
+		return (int) (((nextLong() >>> 32) * bound) >>> 32);
+	}
+
+	public void run() {
+		int numDocuments = instances.size();
+
+		FloatWordEmbeddings.Weights weights = floatModel.floatWeights;
+		float[] sigmoidCache = floatModel.floatSigmoidCache;
+		float[] keepProbabilities = floatModel.keepProbabilities;
+		int[] samplingTable = model.samplingTable;
+		int samplingTableSize = model.samplingTableSize;
+		int windowSize = model.windowSize;
+
+		float minExpValue = (float) model.minExpValue;
+		float maxExpValue = (float) model.maxExpValue;
+		float cacheScale = (float) (model.sigmoidCacheSize / (model.maxExpValue - model.minExpValue));
+
+		float sampleNormalizer = 1.0f / numSamples;
+
+		float[] gradient = new float[numColumns];
+
+		int outputOffset = numColumns;
+
+		// One pass through this thread's share of the documents
+		int startDoc = (int) ((long) numDocuments * threadID / numThreads);
+		int endDoc = (int) ((long) numDocuments * (threadID + 1) / numThreads);
+
+		for (docID = startDoc; docID < endDoc && shouldRun; docID++) {
+			Instance instance = instances.get( docID );
+
+			float learningRate = (float) Math.max(0.0001, 0.025 * (1.0 - (double) numThreads * wordsSoFar / model.totalWords));
+
+			FeatureSequence tokens = (FeatureSequence) instance.getData();
+			int originalLength = tokens.getLength();
+			if (originalLength > tokenBuffer.length) {
+				tokenBuffer = new int[2 * originalLength];
+			}
+
+			// Subsample frequent words
+			int length = 0;
+			for (int inputPosition = 0; inputPosition < originalLength; inputPosition++) {
+				int inputType = tokens.getIndexAtPosition(inputPosition);
+				if (nextFloat() < keepProbabilities[inputType]) {
+					tokenBuffer[length] = inputType;
+					length++;
+				}
+			}
+			wordsSoFar += originalLength;
+
+			// Skip short documents
+			if (length < model.getMinDocumentLength()) { continue; }
+
+			for (int inputPosition = 0; inputPosition < length; inputPosition++) {
+				int inputType = tokenBuffer[inputPosition];
+				int inputTypeOffset = inputType * stride;
+
+				int start = Math.max(0, inputPosition - windowSize);
+				int end = Math.min(length - 1, inputPosition + windowSize);
+				for (int outputPosition = start; outputPosition <= end; outputPosition++) {
+					if (inputPosition == outputPosition) { continue; }
+					int outputType = tokenBuffer[outputPosition];
+					if (inputType == outputType) { continue; }
+
+					int outputTypeOffset = outputType * stride + outputOffset;
+
+					// Column 0 is a bias on each side, the rest are the vectors
+					float innerProduct = weights.get(inputTypeOffset) + weights.get(outputTypeOffset);
+					for (int col = 1; col < numColumns; col++) {
+						innerProduct += weights.get(inputTypeOffset + col) * weights.get(outputTypeOffset + col);
+					}
+
+					float prediction;
+					if (innerProduct < minExpValue) { prediction = 0.0f; }
+					else if (innerProduct > maxExpValue) { prediction = 1.0f; }
+					else { prediction = sigmoidCache[ (int) ((innerProduct - minExpValue) * cacheScale) ]; }
+
+					float error = 1.0f - prediction;
+					gradient[0] = error;
+					weights.put(outputTypeOffset, weights.get(outputTypeOffset) + learningRate * error);
+					for (int col = 1; col < numColumns; col++) {
+						float outputWeight = weights.get(outputTypeOffset + col);
+						gradient[col] = error * outputWeight;
+						weights.put(outputTypeOffset + col, outputWeight + learningRate * error * weights.get(inputTypeOffset + col));
+					}
+
+					float meanNegativePrediction = 0.0f;
+					for (int sample = 0; sample < numSamples; sample++) {
+						int sampledType = samplingTable[ nextInt(samplingTableSize) ];
+						int sampledTypeOffset = sampledType * stride + outputOffset;
+
+						innerProduct = weights.get(inputTypeOffset) + weights.get(sampledTypeOffset);
+						for (int col = 1; col < numColumns; col++) {
+							innerProduct += weights.get(inputTypeOffset + col) * weights.get(sampledTypeOffset + col);
+						}
+
+						float negativePrediction;
+						if (innerProduct < minExpValue) { negativePrediction = 0.0f; }
+						else if (innerProduct > maxExpValue) { negativePrediction = 1.0f; }
+						else { negativePrediction = sigmoidCache[ (int) ((innerProduct - minExpValue) * cacheScale) ]; }
+
+						meanNegativePrediction += negativePrediction;
+
+						float negativeError = -sampleNormalizer * negativePrediction;
+						gradient[0] += negativeError;
+						weights.put(sampledTypeOffset, weights.get(sampledTypeOffset) + learningRate * negativeError);
+						for (int col = 1; col < numColumns; col++) {
+							float sampledWeight = weights.get(sampledTypeOffset + col);
+							gradient[col] += negativeError * sampledWeight;
+							weights.put(sampledTypeOffset + col, sampledWeight + learningRate * negativeError * weights.get(inputTypeOffset + col));
+						}
+					}
+
+					residual += prediction - meanNegativePrediction * sampleNormalizer;
+					numUpdates++;
+
+					for (int col = 0; col < numColumns; col++) {
+						weights.put(inputTypeOffset + col, weights.get(inputTypeOffset + col) + learningRate * gradient[col]);
+					}
+				}
+			}
+		}
+	}
+}
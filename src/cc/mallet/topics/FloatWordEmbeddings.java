@@ -0,0 +1,125 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import cc.mallet.types.*;
+
+/**
+ * Skip-gram word embeddings with negative sampling, like {@link WordEmbeddings},
+ * but trained with single-precision weights, which halves the memory for the
+ * weights and the memory traffic of every update.
+ * <p>
+ * The weights can be kept in a direct buffer outside the Java heap, so that a large
+ * matrix does not need to be scanned or moved by the garbage collector. As in
+ * <code>WordEmbeddings</code>, threads update the shared weights without locking.
+ * Each thread has its own random number generator, and the sampling probability of
+ * every word and the sigmoid function are looked up in precomputed tables, so
+ * the training loop does not allocate or synchronize.
+ */
+
+public class FloatWordEmbeddings extends WordEmbeddings {
+
+	// Input and output vectors for each word, laid out as in WordEmbeddings.weights
+	Weights floatWeights;
+
+	float[] floatSigmoidCache;
+
+	// The probability of keeping each word when subsampling frequent words
+	float[] keepProbabilities;
+
+	public FloatWordEmbeddings(Alphabet a, int numColumns, int windowSize) {
+		this(a, numColumns, windowSize, false);
+	}
+
+	/**
+	 *  @param offHeap If true, store the weights in a direct buffer rather than a float
+	 *   array. Training is somewhat slower, since each access goes through the buffer.
+	 */
+	public FloatWordEmbeddings(Alphabet a, int numColumns, int windowSize, boolean offHeap) {
+		super(a, numColumns, windowSize, false);
+
+		if ((long) numWords * stride * 4 > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Too many weights for one buffer: " + numWords + " words with " +
+											   numColumns + " dimensions");
+		}
+
+		if (offHeap) {
+			floatWeights = new BufferWeights(numWords * stride);
+		}
+		else {
+			floatWeights = new ArrayWeights(numWords * stride);
+		}
+
+		for (int word = 0; word < numWords; word++) {
+			for (int col = 0; col < 2 * numColumns; col++) {
+				floatWeights.put(word * stride + col, (float) ((random.nextDouble() - 0.5f) / numColumns));
+			}
+		}
+
+		floatSigmoidCache = new float[sigmoidCacheSize + 1];
+		for (int i = 0; i <= sigmoidCacheSize; i++) {
+			double value = ((double) i / sigmoidCacheSize) * (maxExpValue - minExpValue) + minExpValue;
+			floatSigmoidCache[i] = (float) (1.0 / (1.0 + Math.exp(-value)));
+		}
+	}
+
+	public void countWords(InstanceList instances) {
+		super.countWords(instances);
+
+		keepProbabilities = new float[numWords];
+		for (int word = 0; word < numWords; word++) {
+			double frequencyScore = (double) wordCounts[word] / (0.0001 * totalWords);
+			keepProbabilities[word] = (float) ((Math.sqrt(frequencyScore) + 1) / frequencyScore);
+		}
+	}
+
+	protected WordEmbeddingRunnable newRunnable(InstanceList instances, int numSamples, int numThreads, int thread) {
+		return new FloatWordEmbeddingRunnable(this, instances, numSamples, numThreads, thread, random.nextLong());
+	}
+
+	public double getWeight(int word, int col) {
+		return floatWeights.get(word * stride + col);
+	}
+
+	/**
+	 *  Storage for the weights. A process normally only uses one of the two
+	 *   implementations, so the JIT can inline these calls in the training loop.
+	 *   (A <code>FloatBuffer</code> wrapping an array is noticeably slower.)
+	 */
+	static abstract class Weights {
+		abstract float get(int index);
+		abstract void put(int index, float value);
+	}
+
+	static final class ArrayWeights extends Weights {
+		final float[] weights;
+
+		ArrayWeights(int size) {
+			weights = new float[size];
+		}
+
+		float get(int index) { return weights[index]; }
+		void put(int index, float value) { weights[index] = value; }
+	}
+
+	static final class BufferWeights extends Weights {
+		final FloatBuffer weights;
+
+		BufferWeights(int size) {
+			weights = ByteBuffer.allocateDirect(size * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+		}
+
+		float get(int index) { return weights.get(index); }
+		void put(int index, float value) { weights.put(index, value); }
+	}
+
+}
@@ -2,6 +2,8 @@ package cc.mallet.topics;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
 import java.io.*;
 
 import cc.mallet.types.*;
@@ -30,6 +32,17 @@ public class HierarchicalLDA {
 
 	int totalNodes = 0;
 
+	// logEtaSums[n] = log Gamma(eta + n) - log Gamma(eta) = sum_{i<n} log(eta + i),
+	//  for n up to the largest count of any type
+	double[] logEtaSums;
+	double logGammaEtaSum;
+
+	// Below this many nodes per thread, scoring paths in parallel isn't worth the overhead
+	static final int MIN_NODES_PER_THREAD = 16;
+
+	int numThreads = 1;
+	ExecutorService executor = null;
+
 	String stateFile = "hlda.state";
 
     Randoms random;
@@ -61,6 +74,14 @@ public class HierarchicalLDA {
 		this.stateFile = stateFile;
 	}
 
+	/**
+	 *  Score the candidate paths for each document on this many threads.
+	 *   Sampling itself stays sequential, so the result does not depend on it.
+	 */
+	public void setNumThreads(int threads) {
+		this.numThreads = threads;
+	}
+
 	public void setTopicDisplay(int interval, int words) {
 		displayTopicsInterval = interval;
 		numWordsToDisplay = words;
@@ -89,6 +110,22 @@ public class HierarchicalLDA {
 		numTypes = instances.getDataAlphabet().size();
 	
 		etaSum = eta * numTypes;
+		logGammaEtaSum = Dirichlet.logGamma(etaSum);
+
+		int[] typeTotals = new int[numTypes];
+		int maxTypeTotal = 0;
+		for (Instance instance: instances) {
+			FeatureSequence fs = (FeatureSequence) instance.getData();
+			for (int token = 0; token < fs.getLength(); token++) {
+				int type = fs.getIndexAtPosition(token);
+				typeTotals[type]++;
+				maxTypeTotal = Math.max(maxTypeTotal, typeTotals[type]);
+			}
+		}
+		logEtaSums = new double[maxTypeTotal + 1];
+		for (int count = 1; count <= maxTypeTotal; count++) {
+			logEtaSums[count] = logEtaSums[count - 1] + Math.log(eta + count - 1);
+		}
 
 		// Initialize a single path
 
@@ -125,26 +162,39 @@ public class HierarchicalLDA {
 				node.typeCounts[type]++;
 			}
 		}
+
+		rootNode.updateLogGammaTotals();
 	}
 
 	public void estimate(int numIterations) {
-		for (int iteration = 1; iteration <= numIterations; iteration++) {
-			for (int doc=0; doc < numDocuments; doc++) {
-				samplePath(doc, iteration);
-			}
-			for (int doc=0; doc < numDocuments; doc++) {
-				sampleTopics(doc);
-			}
+		if (numThreads > 1) {
+			executor = Executors.newFixedThreadPool(numThreads);
+		}
+
+		try {
+			for (int iteration = 1; iteration <= numIterations; iteration++) {
+				for (int doc=0; doc < numDocuments; doc++) {
+					samplePath(doc, iteration);
+				}
+				for (int doc=0; doc < numDocuments; doc++) {
+					sampleTopics(doc);
+				}
 			
-			if (showProgress) {
-				System.out.print(".");
-				if (iteration % 50 == 0) {
-					System.out.println(" " + iteration);
+				if (showProgress) {
+					System.out.print(".");
+					if (iteration % 50 == 0) {
+						System.out.println(" " + iteration);
+					}
 				}
-			}
 
-			if (iteration % displayTopicsInterval == 0) {
-				printNodes();
+				if (iteration % displayTopicsInterval == 0) {
+					printNodes();
+				}
+			}
+		} finally {
+			if (executor != null) {
+				executor.shutdownNow();
+				executor = null;
 			}
 		}
     }
@@ -152,8 +202,7 @@ public class HierarchicalLDA {
     public void samplePath(int doc, int iteration) {
 		NCRPNode[] path = new NCRPNode[numLevels];
 		NCRPNode node;
-		int level, token, type, topicCount;
-		double weight;
+		int level, token, type;
 
 		node = documentLeaves[doc];
 		for (level = numLevels - 1; level >= 0; level--) {
@@ -163,14 +212,6 @@ public class HierarchicalLDA {
 
 		documentLeaves[doc].dropPath();
 
-		TObjectDoubleHashMap<NCRPNode> nodeWeights = 
-			new TObjectDoubleHashMap<NCRPNode>();
-	
-		// Calculate p(c_m | c_{-m})
-		calculateNCRP(nodeWeights, rootNode, 0.0);
-
-		// Add weights for p(w_m | c, w_{-m}, z)
-	
 		// The path may have no further customers and therefore
 		//  be unavailable, but it should still exist since we haven't
 		//  reset documentLeaves[doc] yet...
@@ -186,8 +227,7 @@ public class HierarchicalLDA {
 		docLevels = levels[doc];
 		FeatureSequence fs = (FeatureSequence) instances.get(doc).getData();
 	    
-		// Save the counts of every word at each level, and remove
-		//  counts from the current path
+		// Save the counts of every word at each level
 
 		for (token = 0; token < docLevels.length; token++) {
 			level = docLevels[token];
@@ -199,34 +239,43 @@ public class HierarchicalLDA {
 			else {
 				typeCounts[level].increment(type);
 			}
-
-			path[level].typeCounts[type]--;
-			assert(path[level].typeCounts[type] >= 0);
-	    
-			path[level].totalTokens--;	    
-			assert(path[level].totalTokens >= 0);
 		}
 
-		// Calculate the weight for a new path at a given level.
-		double[] newTopicWeights = new double[numLevels];
-		for (level = 1; level < numLevels; level++) {  // Skip the root...
-			int[] types = typeCounts[level].keys();
-			int totalTokens = 0;
-
-			for (int t: types) {
-				for (int i=0; i<typeCounts[level].get(t); i++) {
-					newTopicWeights[level] += 
-						Math.log((eta + i) / (etaSum + totalTokens));
-					totalTokens++;
-				}
+		// Copy them into sparse arrays of types and counts, which
+		//  the scoring threads can read, and remove them from the current path
+		int[][] levelTypes = new int[numLevels][];
+		int[][] levelTypeCounts = new int[numLevels][];
+		int[] levelTokens = new int[numLevels];
+
+		for (level = 0; level < numLevels; level++) {
+			levelTypes[level] = typeCounts[level].keys();
+			levelTypeCounts[level] = new int[ levelTypes[level].length ];
+			for (int i = 0; i < levelTypes[level].length; i++) {
+				levelTypeCounts[level][i] = typeCounts[level].get(levelTypes[level][i]);
+				levelTokens[level] += levelTypeCounts[level][i];
 			}
 
-			//if (iteration > 1) { System.out.println(newTopicWeights[level]); }
+			path[level].removeCounts(levelTypes[level], levelTypeCounts[level], levelTokens[level]);
 		}
-	
-		calculateWordLikelihood(nodeWeights, rootNode, 0.0, typeCounts, newTopicWeights, 0, iteration);
 
-		NCRPNode[] nodes = nodeWeights.keys(new NCRPNode[] {});
+		// Calculate the weight for a new path below a given level.
+		double[] newTopicWeights = new double[numLevels];
+		for (level = numLevels - 2; level >= 0; level--) {
+			newTopicWeights[level] = newTopicWeights[level + 1] +
+				levelLogLikelihood(null, levelTypes[level + 1], levelTypeCounts[level + 1], levelTokens[level + 1]);
+		}
+
+		// Calculate p(c_m | c_{-m}) for every node
+		ArrayList<NCRPNode> nodeList = new ArrayList<NCRPNode>();
+		TDoubleArrayList ncrpWeights = new TDoubleArrayList();
+		calculateNCRP(nodeList, ncrpWeights, rootNode, 0.0);
+
+		// Add weights for p(w_m | c, w_{-m}, z). The tree is not
+		//  modified until a path is chosen, so nodes can be scored in parallel.
+		NCRPNode[] nodes = nodeList.toArray(new NCRPNode[nodeList.size()]);
+		double[] wordWeights = new double[nodes.length];
+		scoreNodes(nodes, wordWeights, levelTypes, levelTypeCounts, levelTokens);
+
 		double[] weights = new double[nodes.length];
 		double sum = 0.0;
 		double max = Double.NEGATIVE_INFINITY;
@@ -234,29 +283,17 @@ public class HierarchicalLDA {
 		// To avoid underflow, we're using log weights and normalizing the node weights so that 
 		//  the largest weight is always 1.
 		for (int i=0; i<nodes.length; i++) {
-			if (nodeWeights.get(nodes[i]) > max) {
-				max = nodeWeights.get(nodes[i]);
+			weights[i] = ncrpWeights.get(i) + wordWeights[i] + newTopicWeights[ nodes[i].level ];
+			if (weights[i] > max) {
+				max = weights[i];
 			}
 		}
 
 		for (int i=0; i<nodes.length; i++) {
-			weights[i] = Math.exp(nodeWeights.get(nodes[i]) - max);
-
-			/*
-			  if (iteration > 1) {
-			  if (nodes[i] == documentLeaves[doc]) {
-			  System.out.print("* ");
-			  }
-			  System.out.println(((NCRPNode) nodes[i]).level + "\t" + weights[i] + 
-			  "\t" + nodeWeights.get(nodes[i]));
-			  }
-			*/
-
+			weights[i] = Math.exp(weights[i] - max);
 			sum += weights[i];
 		}
 
-		//if (iteration > 1) {System.out.println();}
-
 		node = nodes[ random.nextDiscrete(weights, sum) ];
 
 		// If we have picked an internal node, we need to 
@@ -269,79 +306,98 @@ public class HierarchicalLDA {
 		documentLeaves[doc] = node;
 
 		for (level = numLevels - 1; level >= 0; level--) {
-			int[] types = typeCounts[level].keys();
-
-			for (int t: types) {
-				node.typeCounts[t] += typeCounts[level].get(t);
-				node.totalTokens += typeCounts[level].get(t);
-			}
-
+			node.addCounts(levelTypes[level], levelTypeCounts[level], levelTokens[level]);
 			node = node.parent;
 		}
     }
 
-    public void calculateNCRP(TObjectDoubleHashMap<NCRPNode> nodeWeights, 
-							  NCRPNode node, double weight) {
+	/**
+	 *  List every node below <code>node</code>, with the log probability
+	 *   under the NCRP of stopping at it.
+	 */
+	void calculateNCRP(ArrayList<NCRPNode> nodes, TDoubleArrayList nodeWeights,
+					   NCRPNode node, double weight) {
+		nodes.add(node);
+		nodeWeights.add(weight + Math.log(gamma / (node.customers + gamma)));
+
 		for (NCRPNode child: node.children) {
-			calculateNCRP(nodeWeights, child,
+			calculateNCRP(nodes, nodeWeights, child,
 						  weight + Math.log((double) child.customers / (node.customers + gamma)));
 		}
+	}
 
-		nodeWeights.put(node, weight + Math.log(gamma / (node.customers + gamma)));
-    }
-
-    public void calculateWordLikelihood(TObjectDoubleHashMap<NCRPNode> nodeWeights,
-										NCRPNode node, double weight, 
-										TIntIntHashMap[] typeCounts, double[] newTopicWeights,
-										int level, int iteration) {
-	
-		// First calculate the likelihood of the words at this level, given
-		//  this topic.
-		double nodeWeight = 0.0;
-		int[] types = typeCounts[level].keys();
-		int totalTokens = 0;
-	
-		//if (iteration > 1) { System.out.println(level + " " + nodeWeight); }
-
-		for (int type: types) {
-			for (int i=0; i<typeCounts[level].get(type); i++) {
-				nodeWeight +=
-					Math.log((eta + node.typeCounts[type] + i) /
-							 (etaSum + node.totalTokens + totalTokens));
-				totalTokens++;
-
-				/*
-				  if (iteration > 1) {
-				  System.out.println("(" +eta + " + " + node.typeCounts[type] + " + " + i + ") /" + 
-				  "(" + etaSum + " + " + node.totalTokens + " + " + totalTokens + ")" + 
-				  " : " + nodeWeight);
-				  }
-				*/
-
+	/**
+	 *  Fill <code>wordWeights</code> with the log likelihood of the document's
+	 *   words at each node's level, split across threads if there are several.
+	 */
+	void scoreNodes(final NCRPNode[] nodes, final double[] wordWeights,
+					final int[][] levelTypes, final int[][] levelTypeCounts, final int[] levelTokens) {
+		
+		int numTasks = Math.min(numThreads, nodes.length / MIN_NODES_PER_THREAD);
+		if (executor == null || numTasks < 2) {
+			for (int i = 0; i < nodes.length; i++) {
+				int level = nodes[i].level;
+				wordWeights[i] = levelLogLikelihood(nodes[i], levelTypes[level], levelTypeCounts[level], levelTokens[level]);
 			}
+			return;
 		}
 
-		//if (iteration > 1) { System.out.println(level + " " + nodeWeight); }
-
-		// Propagate that weight to the child nodes
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (int task = 0; task < numTasks; task++) {
+			final int start = nodes.length * task / numTasks;
+			final int end = nodes.length * (task + 1) / numTasks;
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					for (int i = start; i < end; i++) {
+						int level = nodes[i].level;
+						wordWeights[i] = levelLogLikelihood(nodes[i], levelTypes[level], levelTypeCounts[level], levelTokens[level]);
+					}
+					return null;
+				}
+			});
+		}
 
-		for (NCRPNode child: node.children) {
-            calculateWordLikelihood(nodeWeights, child, weight + nodeWeight,
-									typeCounts, newTopicWeights, level + 1, iteration);
-        }
+		ParallelTasks.invokeAll(executor, tasks, "sampling");
+	}
 
-		// Finally, if this is an internal node, add the weight of
-		//  a new path
+	/**
+	 *  The log probability of a document's words at one level given the
+	 *   words already at <code>node</code>, or at a new node if it is null:
+	 *   the sum over tokens of log((eta + n_type + i) / (etaSum + n + j)).
+	 *   The type terms come from a table of partial sums, and the total
+	 *   from the node's cached log gamma of its token count.
+	 */
+	double levelLogLikelihood(NCRPNode node, int[] types, int[] counts, int numTokens) {
+		if (numTokens == 0) {
+			return 0.0;
+		}
 
-		level++;
-		while (level < numLevels) {
-			nodeWeight += newTopicWeights[level];
-			level++;
+		double result = 0.0;
+		if (node == null) {
+			for (int i = 0; i < types.length; i++) {
+				result += logEtaSums[ counts[i] ];
+			}
+			return result - logGammaRatio(etaSum, logGammaEtaSum, numTokens);
 		}
 
-		nodeWeights.adjustValue(node, nodeWeight);
+		int[] nodeTypeCounts = node.typeCounts;
+		for (int i = 0; i < types.length; i++) {
+			int count = nodeTypeCounts[ types[i] ];
+			result += logEtaSums[ count + counts[i] ] - logEtaSums[count];
+		}
+		return result - logGammaRatio(etaSum + node.totalTokens, node.logGammaTotal, numTokens);
+	}
 
-    }
+	/**
+	 *  log Gamma(z + n) - log Gamma(z), given log Gamma(z). Stirling's approximation
+	 *   loses accuracy for small arguments, so those are summed directly.
+	 */
+	static double logGammaRatio(double z, double logGammaZ, int n) {
+		if (z < 10.0) {
+			return Dirichlet.logGammaDifference(z, n);
+		}
+		return Dirichlet.logGamma(z + n) - logGammaZ;
+	}
 
     /** Propagate a topic weight to a node and all its children.
 		weight is assumed to be a log.
@@ -416,6 +472,10 @@ public class HierarchicalLDA {
 			node.typeCounts[type]++;
 			node.totalTokens++;
 		}
+
+		for (level = 0; level < numLevels; level++) {
+			path[level].updateLogGammaTotal();
+		}
     }
 
 	/**
@@ -585,6 +645,9 @@ public class HierarchicalLDA {
 		int totalTokens;
 		int[] typeCounts;
 
+		// log Gamma(etaSum + totalTokens), updated when tokens are added or removed
+		double logGammaTotal;
+
 		public int nodeID;
 
 		public NCRPNode(NCRPNode parent, int dimensions, int level) {
@@ -597,6 +660,7 @@ public class HierarchicalLDA {
 	    
 			totalTokens = 0;
 			typeCounts = new int[dimensions];
+			logGammaTotal = logGammaEtaSum;
 
 			nodeID = totalNodes;
 			totalNodes++;
@@ -639,6 +703,38 @@ public class HierarchicalLDA {
 			}
 		}
 
+		/** Add <code>counts[i]</code> tokens of each <code>types[i]</code>, <code>numTokens</code> in all. */
+		public void addCounts(int[] types, int[] counts, int numTokens) {
+			for (int i = 0; i < types.length; i++) {
+				typeCounts[ types[i] ] += counts[i];
+			}
+			totalTokens += numTokens;
+			updateLogGammaTotal();
+		}
+
+		/** Remove <code>counts[i]</code> tokens of each <code>types[i]</code>, <code>numTokens</code> in all. */
+		public void removeCounts(int[] types, int[] counts, int numTokens) {
+			for (int i = 0; i < types.length; i++) {
+				typeCounts[ types[i] ] -= counts[i];
+				assert(typeCounts[ types[i] ] >= 0);
+			}
+			totalTokens -= numTokens;
+			assert(totalTokens >= 0);
+			updateLogGammaTotal();
+		}
+
+		public void updateLogGammaTotal() {
+			logGammaTotal = Dirichlet.logGamma(etaSum + totalTokens);
+		}
+
+		/** Update the cached log gamma terms of this node and every node below it. */
+		public void updateLogGammaTotals() {
+			updateLogGammaTotal();
+			for (NCRPNode child: children) {
+				child.updateLogGammaTotals();
+			}
+		}
+
 		public void remove(NCRPNode node) {
 			children.remove(node);
 		}
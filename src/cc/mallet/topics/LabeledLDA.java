@@ -1,6 +1,7 @@
 package cc.mallet.topics;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.*;
 import java.util.zip.*;
 
@@ -129,6 +130,10 @@ public class LabeledLDA implements Serializable {
 		new CommandOption.Integer(LabeledLDA.class, "num-iterations", "INTEGER", true, 1000,
 		 "The number of iterations of Gibbs sampling.", null);
 
+	static CommandOption.Integer numThreadsOption =
+		new CommandOption.Integer(LabeledLDA.class, "num-threads", "INTEGER", true, 1,
+		 "The number of threads for parallel training.", null);
+
 	static CommandOption.Boolean noInference =
 		new CommandOption.Boolean(LabeledLDA.class, "no-inference", "true|false", false, false,
 		 "Do not perform inference, just load a saved model and create a report. Equivalent to --num-iterations 0.", null);
@@ -188,6 +193,8 @@ public class LabeledLDA implements Serializable {
 	
 	protected Randoms random;
 	protected boolean printLogLikelihood = false;
+
+	protected int numThreads = 1;
 	
 	public LabeledLDA (double alpha, double beta) {
 		this.data = new ArrayList<TopicAssignment>();
@@ -216,6 +223,15 @@ public class LabeledLDA implements Serializable {
 		this.numIterations = numIterations;
 	}
 
+	/**
+	 *  Sample on this many threads. Each thread samples a contiguous block
+	 *   of documents against its own copy of the counts, and the changes
+	 *   made by every thread are merged after each iteration.
+	 */
+	public void setNumThreads (int threads) {
+		this.numThreads = threads;
+	}
+
 	public int[][] getTypeTopicCounts() { return typeTopicCounts; }
 	public int[] getTopicTotals() { return tokensPerTopic; }
 
@@ -308,19 +324,51 @@ public class LabeledLDA implements Serializable {
 
 	public void estimate() throws IOException {
 
+		Worker[] workers = null;
+		ExecutorService executor = null;
+
+		if (numThreads > 1) {
+			workers = new Worker[numThreads];
+			int docsPerThread = data.size() / numThreads;
+			int offset = 0;
+			for (int thread = 0; thread < numThreads; thread++) {
+				int[][] counts = new int[numTypes][];
+				for (int type = 0; type < numTypes; type++) {
+					counts[type] = typeTopicCounts[type].clone();
+				}
+
+				// some docs may be missing at the end due to integer division
+				int numDocs = (thread == numThreads - 1) ? data.size() - offset : docsPerThread;
+				workers[thread] = new Worker(counts, tokensPerTopic.clone(),
+											 new Randoms(random.nextInt()), offset, numDocs);
+				offset += docsPerThread;
+			}
+			executor = Executors.newFixedThreadPool(numThreads);
+		}
+
 		for (int iteration = 1; iteration <= numIterations; iteration++) {
 
 			long iterationStart = System.currentTimeMillis();
 
-			// Loop over every document in the corpus
-			for (int doc = 0; doc < data.size(); doc++) {
-				FeatureSequence tokenSequence =
-					(FeatureSequence) data.get(doc).instance.getData();
-				FeatureVector labels = (FeatureVector) data.get(doc).instance.getTarget();
-				LabelSequence topicSequence =
-					(LabelSequence) data.get(doc).topicSequence;
-
-				sampleTopicsForOneDoc (tokenSequence, labels, topicSequence);
+			if (workers != null) {
+				List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+				for (Worker worker : workers) {
+					tasks.add(Executors.callable(worker));
+				}
+				ParallelTasks.invokeAll(executor, tasks, "sampling");
+				mergeMoves(workers, executor);
+			}
+			else {
+				// Loop over every document in the corpus
+				for (int doc = 0; doc < data.size(); doc++) {
+					FeatureSequence tokenSequence =
+						(FeatureSequence) data.get(doc).instance.getData();
+					FeatureVector labels = (FeatureVector) data.get(doc).instance.getTarget();
+					LabelSequence topicSequence =
+						(LabelSequence) data.get(doc).topicSequence;
+
+					sampleTopicsForOneDoc (tokenSequence, labels, topicSequence);
+				}
 			}
 		
             long elapsedMillis = System.currentTimeMillis() - iterationStart;
@@ -333,11 +381,29 @@ public class LabeledLDA implements Serializable {
 			}
 
 		}
+
+		if (executor != null) {
+			executor.shutdownNow();
+		}
 	}
 	
 	protected void sampleTopicsForOneDoc (FeatureSequence tokenSequence,
 										  FeatureVector labels,
 										  FeatureSequence topicSequence) {
+		sampleTopicsForOneDoc (tokenSequence, labels, topicSequence,
+							   typeTopicCounts, tokensPerTopic, random, null);
+	}
+
+	/**
+	 *  Sample against the given counts and random number generator, which are
+	 *   a worker's own when sampling on several threads. If <code>worker</code>
+	 *   is not null, every change of topic is logged to it.
+	 */
+	protected void sampleTopicsForOneDoc (FeatureSequence tokenSequence,
+										  FeatureVector labels,
+										  FeatureSequence topicSequence,
+										  int[][] typeTopicCounts, int[] tokensPerTopic,
+										  Randoms random, Worker worker) {
 
 		int[] possibleTopics = labels.getIndices();
 		int numLabels = labels.numLocations();
@@ -407,12 +473,119 @@ public class LabeledLDA implements Serializable {
 
 			// Put that new topic into the counts
 			oneDocTopics[position] = newTopic;
+			if (worker != null && newTopic != oldTopic) {
+				worker.logMove(type, oldTopic, newTopic);
+			}
 			localTopicCounts[newTopic]++;
 			tokensPerTopic[newTopic]++;
 			currentTypeTopicCounts[newTopic]++;
 		}
 	}
 	
+	/**
+	 *  Apply every worker's moves to the global counts, and the moves of the
+	 *   other workers to each worker's copy. Dense counts make each move a
+	 *   constant-time update, so replaying moves is cheaper than copying rows.
+	 */
+	protected void mergeMoves (final Worker[] workers, ExecutorService executor) {
+
+		// Each worker started from the global totals and changed
+		//  them only by its own moves.
+		int[] previousTotals = tokensPerTopic.clone();
+		for (Worker worker : workers) {
+			for (int topic = 0; topic < numTopics; topic++) {
+				tokensPerTopic[topic] += worker.tokensPerTopic[topic] - previousTotals[topic];
+			}
+		}
+
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		tasks.add(new Callable<Object>() {
+			public Object call() {
+				for (Worker source : workers) {
+					applyMoves(typeTopicCounts, source.moves, source.numMoves);
+				}
+				return null;
+			}
+		});
+		for (final Worker worker : workers) {
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					for (Worker source : workers) {
+						if (source != worker) {
+							applyMoves(worker.typeTopicCounts, source.moves, source.numMoves);
+						}
+					}
+					return null;
+				}
+			});
+		}
+		ParallelTasks.invokeAll(executor, tasks, "merging moves");
+
+		for (Worker worker : workers) {
+			System.arraycopy(tokensPerTopic, 0, worker.tokensPerTopic, 0, numTopics);
+			worker.numMoves = 0;
+		}
+	}
+
+	static void applyMoves (int[][] typeTopicCounts, int[] moves, int numMoves) {
+		int end = numMoves * 3;
+		for (int index = 0; index < end; index += 3) {
+			int[] currentTypeTopicCounts = typeTopicCounts[ moves[index] ];
+			currentTypeTopicCounts[ moves[index + 1] ]--;
+			currentTypeTopicCounts[ moves[index + 2] ]++;
+		}
+	}
+
+	/**
+	 *  Samples a contiguous block of documents against its own copy of the
+	 *   counts, and logs every change of topic as a (type, old topic, new topic)
+	 *   triple for merging.
+	 */
+	protected class Worker implements Runnable {
+
+		int[][] typeTopicCounts;
+		int[] tokensPerTopic;
+		Randoms random;
+		int startDoc, numDocs;
+
+		int[] moves = new int[3 * 1024];
+		int numMoves = 0;
+
+		public Worker (int[][] typeTopicCounts, int[] tokensPerTopic, Randoms random,
+					   int startDoc, int numDocs) {
+			this.typeTopicCounts = typeTopicCounts;
+			this.tokensPerTopic = tokensPerTopic;
+			this.random = random;
+			this.startDoc = startDoc;
+			this.numDocs = numDocs;
+		}
+
+		public void run() {
+			// Loop over every document in the block
+			for (int doc = startDoc; doc < startDoc + numDocs; doc++) {
+				FeatureSequence tokenSequence =
+					(FeatureSequence) data.get(doc).instance.getData();
+				FeatureVector labels = (FeatureVector) data.get(doc).instance.getTarget();
+				LabelSequence topicSequence =
+					(LabelSequence) data.get(doc).topicSequence;
+
+				sampleTopicsForOneDoc (tokenSequence, labels, topicSequence,
+									   typeTopicCounts, tokensPerTopic, random, this);
+			}
+		}
+
+		void logMove (int type, int oldTopic, int newTopic) {
+			int index = numMoves * 3;
+			if (index + 3 > moves.length) {
+				moves = Arrays.copyOf(moves, moves.length * 2);
+			}
+			moves[index] = type;
+			moves[index + 1] = oldTopic;
+			moves[index + 2] = newTopic;
+			numMoves++;
+		}
+	}
+	
 	public double modelLogLikelihood() {
 		double logLikelihood = 0.0;
 		int nonZeroTopics;
@@ -684,6 +857,7 @@ public class LabeledLDA implements Serializable {
 		labeledLDA.setTopicDisplay(showTopicsIntervalOption.value, numTopWords.value);
 
 		labeledLDA.setNumIterations(numIterationsOption.value);
+		labeledLDA.setNumThreads(numThreadsOption.value);
 		
 		if (! noInference.value()) {
 			labeledLDA.estimate();
@@ -722,7 +896,7 @@ public class LabeledLDA implements Serializable {
 		
 		if (diagnosticsFile.value != null) {
 			PrintWriter out = new PrintWriter(diagnosticsFile.value);
-			TopicModelDiagnostics diagnostics = new TopicModelDiagnostics(topicModel, numTopWords.value);
+			TopicModelDiagnostics diagnostics = new TopicModelDiagnostics(topicModel, numTopWords.value, numThreadsOption.value);
 			out.println(diagnostics.toXML());
 			out.close();
 		}
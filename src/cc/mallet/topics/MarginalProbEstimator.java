@@ -9,6 +9,9 @@ package cc.mallet.topics;
 
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.*;
 
 import java.util.zip.*;
 
@@ -48,6 +51,9 @@ public class MarginalProbEstimator implements Serializable {
 	protected Randoms random;
 	
 	protected boolean printWordProbabilities = false;
+
+	protected int numThreads = 1;
+	protected int particleSplitLength = 100;
 	
 	public MarginalProbEstimator (int numTopics,
 								  double[] alpha, double alphaSum,
@@ -116,50 +122,214 @@ public class MarginalProbEstimator implements Serializable {
 		this.printWordProbabilities = shouldPrint;
 	}
 
+	/**
+	 *  Evaluate documents on this many threads. With more than one thread,
+	 *   each particle of each document draws from its own random number
+	 *   generator, seeded from this estimator's generator and the
+	 *   document and particle numbers, so the result does not depend on
+	 *   the number of threads (but differs from the single-threaded result).
+	 */
+	public void setNumThreads(int threads) {
+		this.numThreads = threads;
+	}
+
+	/**
+	 *  When evaluating on several threads, sample the particles of documents
+	 *   with at least this many tokens as separate tasks, so that one long
+	 *   document does not hold up the others.
+	 */
+	public void setParticleSplitLength(int length) {
+		this.particleSplitLength = length;
+	}
+
+	/**
+	 *  Estimate the log probability of each testing document by the left-to-right
+	 *   method, writing one log probability per document, in order, to
+	 *   <code>docProbabilityStream</code> (if not null) as soon as it is known.
+	 *
+	 *  @return The total log probability of the testing documents
+	 */
 	public double evaluateLeftToRight (InstanceList testing, int numParticles, boolean usingResampling,
 									   PrintStream docProbabilityStream) {
 
-		double logNumParticles = Math.log(numParticles);
+		if (numThreads > 1) {
+			return evaluateLeftToRightParallel(testing, numParticles, usingResampling,
+											   docProbabilityStream);
+		}
+
 		double totalLogLikelihood = 0;
 		for (Instance instance : testing) {
 			
 			FeatureSequence tokenSequence = (FeatureSequence) instance.getData();
 
-			double docLogLikelihood = 0;
-
 			double[][] particleProbabilities = new double[ numParticles ][];
 			for (int particle = 0; particle < numParticles; particle++) {
 				particleProbabilities[particle] =
 					leftToRight(tokenSequence, usingResampling);
 			}
 
-			for (int position = 0; position < particleProbabilities[0].length; position++) {
-				double sum = 0;
-				for (int particle = 0; particle < numParticles; particle++) {
-					sum += particleProbabilities[particle][position];
+			double docLogLikelihood = documentLogLikelihood(instance, particleProbabilities);
+
+			if (docProbabilityStream != null) {
+				docProbabilityStream.println(docLogLikelihood);
+			}
+			totalLogLikelihood += docLogLikelihood;
+		}
+
+		return totalLogLikelihood;
+	}
+
+	/** Average the per-token probabilities of all particles and sum their logs. */
+	protected double documentLogLikelihood (Instance instance, double[][] particleProbabilities) {
+		FeatureSequence tokenSequence = (FeatureSequence) instance.getData();
+		int numParticles = particleProbabilities.length;
+		double logNumParticles = Math.log(numParticles);
+
+		double docLogLikelihood = 0;
+
+		for (int position = 0; position < particleProbabilities[0].length; position++) {
+			double sum = 0;
+			for (int particle = 0; particle < numParticles; particle++) {
+				sum += particleProbabilities[particle][position];
+			}
+
+			if (sum > 0.0) {
+				double logProb = Math.log(sum) - logNumParticles;
+				docLogLikelihood += logProb;
+				
+                if (printWordProbabilities) {
+					Object word = instance.getDataAlphabet().lookupObject(tokenSequence.getIndexAtPosition(position));
+                	System.out.printf("%s\t%f\n", word, logProb);
+                }
+			}
+		}
+
+		return docLogLikelihood;
+	}
+
+	/** The particles of one document that are sampled by one task. */
+	protected class ParticleTask implements Callable<double[][]> {
+		FeatureSequence tokenSequence;
+		boolean usingResampling;
+		long seed;
+		int firstParticle, numParticles;
+		ThreadLocal<Randoms> randoms;
+		ThreadLocal<double[]> coefficients;
+
+		public double[][] call() {
+			Randoms random = randoms.get();
+			double[][] particleProbabilities = new double[numParticles][];
+			for (int particle = 0; particle < numParticles; particle++) {
+				random.setSeed(seed + 0x9E3779B97F4A7C15L * (firstParticle + particle));
+				particleProbabilities[particle] =
+					leftToRight(tokenSequence, usingResampling, random, coefficients.get());
+			}
+			return particleProbabilities;
+		}
+	}
+
+	protected double evaluateLeftToRightParallel (InstanceList testing, int numParticles,
+												  boolean usingResampling,
+												  PrintStream docProbabilityStream) {
+
+		long seed = random.nextLong();
+
+		// Each thread needs its own generator and coefficients
+		final ThreadLocal<Randoms> randoms = new ThreadLocal<Randoms>() {
+			protected Randoms initialValue() { return new Randoms(); }
+		};
+		final double[] smoothingCoefficients = cachedCoefficients.clone();
+		final ThreadLocal<double[]> coefficients = new ThreadLocal<double[]>() {
+			protected double[] initialValue() { return smoothingCoefficients.clone(); }
+		};
+
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+
+		// Documents whose tasks have been submitted but not reported, in order.
+		//  Limiting their number bounds the memory used by finished particles.
+		LinkedList<Instance> pendingInstances = new LinkedList<Instance>();
+		LinkedList<List<Future<double[][]>>> pendingTasks = new LinkedList<List<Future<double[][]>>>();
+		int maxPending = 4 * numThreads;
+
+		double totalLogLikelihood = 0;
+		try {
+			for (int doc = 0; doc < testing.size(); doc++) {
+				Instance instance = testing.get(doc);
+				FeatureSequence tokenSequence = (FeatureSequence) instance.getData();
+				long docSeed = seed + 0xC2B2AE3D27D4EB4FL * doc;
+
+				int particlesPerTask = numParticles;
+				if (tokenSequence.getLength() >= particleSplitLength) {
+					particlesPerTask = Math.max(1, numParticles / numThreads);
 				}
 
-				if (sum > 0.0) {
-					double logProb = Math.log(sum) - logNumParticles;
-					docLogLikelihood += logProb;
-					
-	                if (printWordProbabilities) {
-						Object word = instance.getDataAlphabet().lookupObject(tokenSequence.getIndexAtPosition(position));
-                    	System.out.printf("%s\t%f\n", word, logProb);
-	                }
+				List<Future<double[][]>> futures = new ArrayList<Future<double[][]>>();
+				for (int first = 0; first < numParticles; first += particlesPerTask) {
+					ParticleTask task = new ParticleTask();
+					task.tokenSequence = tokenSequence;
+					task.usingResampling = usingResampling;
+					task.seed = docSeed;
+					task.firstParticle = first;
+					task.numParticles = Math.min(particlesPerTask, numParticles - first);
+					task.randoms = randoms;
+					task.coefficients = coefficients;
+					futures.add(executor.submit(task));
+				}
+				pendingInstances.add(instance);
+				pendingTasks.add(futures);
+
+				if (pendingTasks.size() > maxPending) {
+					totalLogLikelihood += reportDocument(pendingInstances.removeFirst(), pendingTasks.removeFirst(),
+														 numParticles, docProbabilityStream);
 				}
 			}
 
-			if (docProbabilityStream != null) {
-				docProbabilityStream.println(docLogLikelihood);
+			while (! pendingTasks.isEmpty()) {
+				totalLogLikelihood += reportDocument(pendingInstances.removeFirst(), pendingTasks.removeFirst(),
+													 numParticles, docProbabilityStream);
 			}
-			totalLogLikelihood += docLogLikelihood;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted during left-to-right evaluation", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			executor.shutdownNow();
 		}
 
 		return totalLogLikelihood;
 	}
-	
+
+	private double reportDocument (Instance instance, List<Future<double[][]>> futures, int numParticles,
+								   PrintStream docProbabilityStream)
+		throws InterruptedException, ExecutionException {
+
+		double[][] particleProbabilities = new double[numParticles][];
+		int particle = 0;
+		for (Future<double[][]> future : futures) {
+			for (double[] probabilities : future.get()) {
+				particleProbabilities[particle++] = probabilities;
+			}
+		}
+
+		double docLogLikelihood = documentLogLikelihood(instance, particleProbabilities);
+		if (docProbabilityStream != null) {
+			docProbabilityStream.println(docLogLikelihood);
+		}
+		return docLogLikelihood;
+	}
+
 	protected double[] leftToRight (FeatureSequence tokenSequence, boolean usingResampling) {
+		return leftToRight(tokenSequence, usingResampling, random, cachedCoefficients);
+	}
+	
+	/**
+	 *  Sample one particle for one document, using the given generator and
+	 *   coefficients. The coefficients must hold only smoothing values on
+	 *   entry, and are restored to that state on return.
+	 */
+	protected double[] leftToRight (FeatureSequence tokenSequence, boolean usingResampling,
+									Randoms random, double[] cachedCoefficients) {
 
 		int[] oneDocTopics = new int[tokenSequence.getLength()];
 		double[] wordProbabilities = new double[tokenSequence.getLength()];
@@ -0,0 +1,754 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntIntHashMap;
+
+import cc.mallet.types.*;
+import cc.mallet.util.*;
+
+/**
+ * LDA trained by online variational Bayes (Hoffman, Blei and Bach, "Online Learning
+ * for Latent Dirichlet Allocation", NIPS 2010), for corpora that are read once as
+ * a stream and never held in memory.
+ * <p>
+ * Documents arrive in mini-batches. For each batch, the topic proportions of every
+ * document are fit against the current topic-word parameters (the E-step, split across
+ * threads), and the parameters move toward the estimate from that batch with weight
+ * <code>rho = (tau0 + t)^-kappa</code> for the t-th batch. The model holds only the
+ * variational topic-word parameters, so memory depends on the vocabulary and the
+ * number of topics, not on the number of documents.
+ * <p>
+ * The parameters are stored as <code>lambda[type][topic] = scale * typeTopicWeights[type][topic] + offset</code>.
+ * Decaying every parameter is then a change to <code>scale</code> and <code>offset</code>,
+ * so an update only touches the rows of the words in the batch, and the rows of words
+ * that have not been seen yet are not stored at all. The alphabet may keep growing
+ * while the model is trained.
+ * <p>
+ * A trained model can be exported with {@link #getInferencer()} as a
+ * {@link TopicInferencer}, with the expected topic-word counts rounded to integers.
+ */
+
+public class OnlineLDA implements Serializable {
+
+	public static Logger logger = MalletLogger.getLogger(OnlineLDA.class.getName());
+
+	// Stop rescaling the weights before the scale underflows
+	static final double MIN_SCALE = 1e-100;
+
+	Alphabet alphabet;
+	int numTopics;
+
+	double alpha;	// Symmetric Dirichlet prior on document-topic distributions
+	double eta;		// Symmetric Dirichlet prior on topic-word distributions
+
+	double tau0 = 1024.0;
+	double kappa = 0.7;
+	double corpusSize;
+	int batchSize = 256;
+
+	int maxIterations = 100;
+	double convergenceThreshold = 0.001;
+
+	int showTopicsInterval = 0;
+	int numTopWords = 10;
+
+	// Null rows are words that have not been seen, whose lambda is offset for every topic
+	double[][] typeTopicWeights = new double[0][];
+	// The sum of each column of typeTopicWeights
+	double[] topicWeightSums;
+	double scale = 1.0;
+	double offset = 1.0;
+	// The product of (1 - rho) over every update; unlike scale, never folded into the weights
+	double decay = 1.0;
+
+	int numUpdates = 0;
+	long numDocumentsSeen = 0;
+
+	Randoms random;
+
+	int numThreads = 1;
+	transient ExecutorService executor = null;
+
+	/**
+	 *  @param alpha	  The Dirichlet parameter for each topic in a document
+	 *  @param eta		The Dirichlet parameter for each word in a topic
+	 *  @param corpusSize The number of documents in the corpus, or for an unbounded
+	 *   stream, the number of documents the model should treat as its corpus.
+	 *   Each batch is weighted as if the corpus consisted of copies of it.
+	 */
+	public OnlineLDA (Alphabet alphabet, int numTopics, double alpha, double eta, double corpusSize) {
+		this.alphabet = alphabet;
+		this.numTopics = numTopics;
+		this.alpha = alpha;
+		this.eta = eta;
+		this.corpusSize = corpusSize;
+
+		topicWeightSums = new double[numTopics];
+		random = new Randoms();
+	}
+
+	public void setRandomSeed (int seed) {
+		random = new Randoms(seed);
+	}
+
+	/** The number of documents in each batch read by {@link #train(Iterator)}. */
+	public void setBatchSize (int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 *  Set the learning rate schedule. Batch t is given weight <code>(tau0 + t)^-kappa</code>.
+	 *
+	 *  @param tau0  Down-weights early batches. Must be at least 1.
+	 *  @param kappa The rate at which old batches are forgotten, in (0.5, 1]
+	 */
+	public void setLearningRate (double tau0, double kappa) {
+		if (tau0 < 1.0) {
+			throw new IllegalArgumentException("tau0 must be at least 1, not " + tau0);
+		}
+		this.tau0 = tau0;
+		this.kappa = kappa;
+	}
+
+	public void setCorpusSize (double corpusSize) {
+		this.corpusSize = corpusSize;
+	}
+
+	/**
+	 *  Set the limits on fitting the topic proportions of one document.
+	 *
+	 *  @param threshold Stop when the mean change in a document's topic parameters is below this
+	 */
+	public void setDocumentIterations (int maxIterations, double threshold) {
+		this.maxIterations = maxIterations;
+		this.convergenceThreshold = threshold;
+	}
+
+	public void setTopicDisplay (int interval, int n) {
+		this.showTopicsInterval = interval;
+		this.numTopWords = n;
+	}
+
+	/** The number of threads used for the E-step of each batch. */
+	public synchronized void setNumThreads (int threads) {
+		if (threads != numThreads) {
+			shutdown();
+		}
+		this.numThreads = threads;
+	}
+
+	public int getNumTopics () { return numTopics; }
+	public Alphabet getAlphabet () { return alphabet; }
+	public int getNumUpdates () { return numUpdates; }
+	public long getNumDocumentsSeen () { return numDocumentsSeen; }
+
+	/**
+	 *  Train on every instance from the iterator, in batches of
+	 *   <code>batchSize</code>. Only one batch is held in memory at a time.
+	 */
+	public void train (Iterator<Instance> instances) {
+		List<Instance> batch = new ArrayList<Instance>(batchSize);
+		while (instances.hasNext()) {
+			batch.add(instances.next());
+			if (batch.size() == batchSize) {
+				update(batch);
+				batch.clear();
+			}
+		}
+		if (batch.size() > 0) {
+			update(batch);
+		}
+	}
+
+	/** Update the model with one batch of instances, which should contain FeatureSequences. */
+	public synchronized void update (final List<Instance> batch) {
+		long startTime = System.currentTimeMillis();
+
+		// Give each word in the batch a local index
+		TIntIntHashMap localIndices = new TIntIntHashMap();
+		TIntArrayList batchTypes = new TIntArrayList();
+		final int[][] documentTypes = new int[batch.size()][];
+		final int[][] documentCounts = new int[batch.size()][];
+		for (int doc = 0; doc < batch.size(); doc++) {
+			countTypes((FeatureSequence) batch.get(doc).getData(), localIndices, batchTypes,
+					   doc, documentTypes, documentCounts);
+		}
+
+		int numBatchTypes = batchTypes.size();
+		for (int i = 0; i < numBatchTypes; i++) {
+			ensureRow(batchTypes.get(i));
+		}
+
+		final double[][] expElogBeta = getExpElogBeta(batchTypes.toNativeArray());
+		final long batchSeed = random.nextInt();
+
+		// The E-step: fit each document and collect expected topic-word counts
+		final double[][] sufficientStatistics = new double[numBatchTypes][numTopics];
+
+		ExecutorService executor = getExecutor();
+		if (executor == null || batch.size() < 2) {
+			inferDocuments(0, batch.size(), documentTypes, documentCounts, expElogBeta,
+						   batchSeed, sufficientStatistics);
+		}
+		else {
+			int numTasks = Math.min(numThreads, batch.size());
+			List<Callable<double[][]>> tasks = new ArrayList<Callable<double[][]>>();
+			for (int task = 0; task < numTasks; task++) {
+				final int start = (int) ((long) batch.size() * task / numTasks);
+				final int end = (int) ((long) batch.size() * (task + 1) / numTasks);
+				tasks.add(new Callable<double[][]>() {
+					public double[][] call() {
+						double[][] statistics = new double[expElogBeta.length][numTopics];
+						inferDocuments(start, end, documentTypes, documentCounts, expElogBeta,
+									   batchSeed, statistics);
+						return statistics;
+					}
+				});
+			}
+
+			try {
+				// Merge in task order, so the result doesn't depend on thread timing
+				for (Future<double[][]> future : executor.invokeAll(tasks)) {
+					double[][] statistics = future.get();
+					for (int i = 0; i < numBatchTypes; i++) {
+						for (int topic = 0; topic < numTopics; topic++) {
+							sufficientStatistics[i][topic] += statistics[i][topic];
+						}
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while fitting a batch", e);
+			} catch (ExecutionException e) {
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+
+		// The M-step: lambda <- (1 - rho) lambda + rho (eta + (D / S) sstats)
+		double rho = Math.pow(tau0 + numUpdates, -kappa);
+
+		double newScale = scale * (1.0 - rho);
+		if (newScale < MIN_SCALE) {
+			// Fold the scale into the weights before it underflows
+			rescaleWeights(newScale);
+			newScale = 1.0;
+		}
+		scale = newScale;
+		offset = (1.0 - rho) * offset + rho * eta;
+		decay *= 1.0 - rho;
+
+		double weight = rho * corpusSize / batch.size() / scale;
+		for (int i = 0; i < numBatchTypes; i++) {
+			double[] weights = typeTopicWeights[batchTypes.get(i)];
+			double[] statistics = sufficientStatistics[i];
+			for (int topic = 0; topic < numTopics; topic++) {
+				double delta = weight * statistics[topic];
+				weights[topic] += delta;
+				topicWeightSums[topic] += delta;
+			}
+		}
+
+		numUpdates++;
+		numDocumentsSeen += batch.size();
+
+		logger.fine("batch " + numUpdates + ": " + batch.size() + " documents, " + numBatchTypes +
+					" types, rho = " + rho + ", " + (System.currentTimeMillis() - startTime) + "ms");
+
+		if (showTopicsInterval != 0 && numUpdates % showTopicsInterval == 0) {
+			logger.info("<" + numUpdates + " batches, " + numDocumentsSeen + " documents>\n" +
+						topWords(numTopWords));
+		}
+	}
+
+	/**
+	 *  Add the distinct types of one document and their counts to the batch, as local indices.
+	 *   Types outside the alphabet are skipped.
+	 */
+	void countTypes (FeatureSequence tokens, TIntIntHashMap localIndices, TIntArrayList batchTypes,
+					 int doc, int[][] documentTypes, int[][] documentCounts) {
+		TIntIntHashMap counts = new TIntIntHashMap();
+		for (int position = 0; position < tokens.getLength(); position++) {
+			int type = tokens.getIndexAtPosition(position);
+			if (type < 0 || type >= alphabet.size()) { continue; }
+
+			if (! localIndices.containsKey(type)) {
+				localIndices.put(type, batchTypes.size());
+				batchTypes.add(type);
+			}
+			counts.adjustOrPutValue(localIndices.get(type), 1, 1);
+		}
+
+		documentTypes[doc] = counts.keys();
+		documentCounts[doc] = new int[documentTypes[doc].length];
+		for (int i = 0; i < documentTypes[doc].length; i++) {
+			documentCounts[doc][i] = counts.get(documentTypes[doc][i]);
+		}
+	}
+
+	/** Make sure the word has a row of weights, initialized with random noise. */
+	void ensureRow (int type) {
+		if (type >= typeTopicWeights.length) {
+			int capacity = Math.max(type + 1, Math.max(alphabet.size(), 2 * typeTopicWeights.length));
+			typeTopicWeights = Arrays.copyOf(typeTopicWeights, capacity);
+		}
+		if (typeTopicWeights[type] != null) { return; }
+
+		// Initial lambda is Gamma(100, 1/100) noise around 1, decayed as if the word had
+		//  been there from the start: offset + decay * (g - 1) = decay * g + (1 - decay) * eta,
+		//  which stays positive
+		double[] weights = new double[numTopics];
+		for (int topic = 0; topic < numTopics; topic++) {
+			weights[topic] = decay * (random.nextGamma(100.0, 0.01) - 1.0) / scale;
+			topicWeightSums[topic] += weights[topic];
+		}
+		typeTopicWeights[type] = weights;
+	}
+
+	/** Multiply every weight by <code>factor</code> and recompute the column sums. */
+	void rescaleWeights (double factor) {
+		Arrays.fill(topicWeightSums, 0.0);
+		for (double[] weights : typeTopicWeights) {
+			if (weights == null) { continue; }
+			for (int topic = 0; topic < numTopics; topic++) {
+				weights[topic] *= factor;
+				topicWeightSums[topic] += weights[topic];
+			}
+		}
+	}
+
+	/** lambda for one word, written into <code>result</code>. */
+	void getLambda (int type, double[] result) {
+		double[] weights = type < typeTopicWeights.length ? typeTopicWeights[type] : null;
+		for (int topic = 0; topic < numTopics; topic++) {
+			result[topic] = weights == null ? offset : scale * weights[topic] + offset;
+		}
+	}
+
+	/** <code>exp(E[log beta])</code> for each of the given words, indexed by position in <code>types</code>. */
+	double[][] getExpElogBeta (int[] types) {
+		double[] digammaTopicSums = new double[numTopics];
+		int numTypes = Math.max(alphabet.size(), typeTopicWeights.length);
+		for (int topic = 0; topic < numTopics; topic++) {
+			digammaTopicSums[topic] = Dirichlet.digamma(scale * topicWeightSums[topic] + offset * numTypes);
+		}
+
+		double[][] expElogBeta = new double[types.length][numTopics];
+		for (int i = 0; i < types.length; i++) {
+			getLambda(types[i], expElogBeta[i]);
+			for (int topic = 0; topic < numTopics; topic++) {
+				expElogBeta[i][topic] = Math.exp(Dirichlet.digamma(expElogBeta[i][topic]) - digammaTopicSums[topic]);
+			}
+		}
+		return expElogBeta;
+	}
+
+	/** Fit documents [start, end) of a batch and add their expected counts to <code>statistics</code>. */
+	void inferDocuments (int start, int end, int[][] documentTypes, int[][] documentCounts,
+						 double[][] expElogBeta, long batchSeed, double[][] statistics) {
+		double[] gamma = new double[numTopics];
+		double[] expElogTheta = new double[numTopics];
+		double[] scratch = new double[numTopics];
+		double[] phiNorms = new double[0];
+
+		for (int doc = start; doc < end; doc++) {
+			int[] types = documentTypes[doc];
+			if (types.length > phiNorms.length) {
+				phiNorms = new double[2 * types.length];
+			}
+			// Seed from the position in the batch, so the result doesn't depend on the number of threads
+			Randoms documentRandom = new Randoms((int) (batchSeed + doc));
+			inferDocument(types, documentCounts[doc], expElogBeta, documentRandom,
+						  gamma, expElogTheta, scratch, phiNorms, statistics);
+		}
+	}
+
+	/**
+	 *  Fit the variational topic parameters <code>gamma</code> of one document,
+	 *   given <code>exp(E[log beta])</code> for its words. If <code>statistics</code> is
+	 *   not null, add the document's expected topic-word counts to it.
+	 *
+	 *  @param types  Indices of the document's distinct words into <code>expElogBeta</code>
+	 *  @param counts The number of times each word occurs
+	 */
+	void inferDocument (int[] types, int[] counts, double[][] expElogBeta, Randoms random,
+						double[] gamma, double[] expElogTheta, double[] scratch, double[] phiNorms,
+						double[][] statistics) {
+		for (int topic = 0; topic < numTopics; topic++) {
+			gamma[topic] = random.nextGamma(100.0, 0.01);
+		}
+		getExpElogTheta(gamma, expElogTheta);
+
+		for (int iteration = 0; iteration < maxIterations; iteration++) {
+			// scratch[topic] = sum over words of count * expElogBeta / phiNorm
+			Arrays.fill(scratch, 0.0);
+			for (int i = 0; i < types.length; i++) {
+				double[] wordExpElogBeta = expElogBeta[types[i]];
+				double phiNorm = 1e-100;
+				for (int topic = 0; topic < numTopics; topic++) {
+					phiNorm += expElogTheta[topic] * wordExpElogBeta[topic];
+				}
+				double ratio = counts[i] / phiNorm;
+				for (int topic = 0; topic < numTopics; topic++) {
+					scratch[topic] += ratio * wordExpElogBeta[topic];
+				}
+			}
+
+			double meanChange = 0.0;
+			for (int topic = 0; topic < numTopics; topic++) {
+				double newGamma = alpha + expElogTheta[topic] * scratch[topic];
+				meanChange += Math.abs(newGamma - gamma[topic]);
+				gamma[topic] = newGamma;
+			}
+			meanChange /= numTopics;
+			getExpElogTheta(gamma, expElogTheta);
+
+			if (meanChange < convergenceThreshold) { break; }
+		}
+
+		if (statistics == null) { return; }
+
+		for (int i = 0; i < types.length; i++) {
+			double[] wordExpElogBeta = expElogBeta[types[i]];
+			double phiNorm = 1e-100;
+			for (int topic = 0; topic < numTopics; topic++) {
+				phiNorm += expElogTheta[topic] * wordExpElogBeta[topic];
+			}
+			phiNorms[i] = phiNorm;
+		}
+		for (int i = 0; i < types.length; i++) {
+			double[] wordExpElogBeta = expElogBeta[types[i]];
+			double[] wordStatistics = statistics[types[i]];
+			double ratio = counts[i] / phiNorms[i];
+			for (int topic = 0; topic < numTopics; topic++) {
+				wordStatistics[topic] += ratio * expElogTheta[topic] * wordExpElogBeta[topic];
+			}
+		}
+	}
+
+	void getExpElogTheta (double[] gamma, double[] expElogTheta) {
+		double sum = 0.0;
+		for (int topic = 0; topic < numTopics; topic++) {
+			sum += gamma[topic];
+		}
+		double digammaSum = Dirichlet.digamma(sum);
+		for (int topic = 0; topic < numTopics; topic++) {
+			expElogTheta[topic] = Math.exp(Dirichlet.digamma(gamma[topic]) - digammaSum);
+		}
+	}
+
+	/**
+	 *  The expected topic proportions of an instance under the current model.
+	 *   The model is not changed.
+	 */
+	public synchronized double[] getTopicProportions (Instance instance) {
+		int[][] documentTypes = new int[1][];
+		int[][] documentCounts = new int[1][];
+		TIntArrayList types = new TIntArrayList();
+		countTypes((FeatureSequence) instance.getData(), new TIntIntHashMap(), types,
+				   0, documentTypes, documentCounts);
+
+		double[] gamma = new double[numTopics];
+		inferDocument(documentTypes[0], documentCounts[0], getExpElogBeta(types.toNativeArray()), random,
+					  gamma, new double[numTopics], new double[numTopics], null, null);
+
+		double sum = 0.0;
+		for (int topic = 0; topic < numTopics; topic++) {
+			sum += gamma[topic];
+		}
+		for (int topic = 0; topic < numTopics; topic++) {
+			gamma[topic] /= sum;
+		}
+		return gamma;
+	}
+
+	/** The expected probability of each word in each topic, indexed by [topic][type]. */
+	public synchronized double[][] getTopicWords () {
+		int numTypes = alphabet.size();
+		double[][] topicWords = new double[numTopics][numTypes];
+		double[] lambda = new double[numTopics];
+		double[] topicSums = new double[numTopics];
+		for (int type = 0; type < numTypes; type++) {
+			getLambda(type, lambda);
+			for (int topic = 0; topic < numTopics; topic++) {
+				topicWords[topic][type] = lambda[topic];
+				topicSums[topic] += lambda[topic];
+			}
+		}
+		for (int topic = 0; topic < numTopics; topic++) {
+			for (int type = 0; type < numTypes; type++) {
+				topicWords[topic][type] /= topicSums[topic];
+			}
+		}
+		return topicWords;
+	}
+
+	/** One line per topic with its <code>n</code> most probable words. */
+	public synchronized String topWords (int n) {
+		StringBuilder out = new StringBuilder();
+		double[][] topicWords = getTopicWords();
+		for (int topic = 0; topic < numTopics; topic++) {
+			out.append(topic);
+			for (int word : topWordTypes(topicWords[topic], n)) {
+				out.append(" " + alphabet.lookupObject(word));
+			}
+			out.append("\n");
+		}
+		return out.toString();
+	}
+
+	static int[] topWordTypes (double[] weights, int n) {
+		// A min-heap of the best words so far
+		PriorityQueue<IDSorter> best = new PriorityQueue<IDSorter>(n + 1, Collections.reverseOrder());
+		for (int type = 0; type < weights.length; type++) {
+			if (best.size() < n) {
+				best.add(new IDSorter(type, weights[type]));
+			}
+			else if (weights[type] > best.peek().getWeight()) {
+				IDSorter worst = best.poll();
+				worst.set(type, weights[type]);
+				best.add(worst);
+			}
+		}
+		IDSorter[] sorted = best.toArray(new IDSorter[best.size()]);
+		Arrays.sort(sorted);
+
+		int[] types = new int[sorted.length];
+		for (int i = 0; i < sorted.length; i++) {
+			types[i] = sorted[i].getID();
+		}
+		return types;
+	}
+
+	/**
+	 *  The expected topic-word counts <code>lambda - offset</code>, rounded, in the packed
+	 *   format of {@link ParallelTopicModel#typeTopicCounts}: for each word, counts
+	 *   shifted left by the topic bits plus the topic, in descending order.
+	 */
+	public synchronized int[][] getTypeTopicCounts () {
+		int topicBits = getTopicBits();
+		int maxCount = Integer.MAX_VALUE >> topicBits;
+
+		int numTypes = alphabet.size();
+		int[][] typeTopicCounts = new int[numTypes][];
+		int[] packed = new int[numTopics];
+		for (int type = 0; type < numTypes; type++) {
+			double[] weights = type < typeTopicWeights.length ? typeTopicWeights[type] : null;
+			int nonZero = 0;
+			if (weights != null) {
+				for (int topic = 0; topic < numTopics; topic++) {
+					long count = Math.round(scale * weights[topic]);
+					if (count <= 0) { continue; }
+					packed[nonZero] = ((int) Math.min(count, maxCount) << topicBits) + topic;
+					nonZero++;
+				}
+			}
+
+			Arrays.sort(packed, 0, nonZero);
+			typeTopicCounts[type] = new int[nonZero];
+			for (int i = 0; i < nonZero; i++) {
+				typeTopicCounts[type][i] = packed[nonZero - 1 - i];
+			}
+		}
+		return typeTopicCounts;
+	}
+
+	/** The number of low bits that hold the topic in a packed count, as in ParallelTopicModel. */
+	int getTopicBits () {
+		if (Integer.bitCount(numTopics) == 1) {
+			return Integer.bitCount(numTopics - 1);
+		}
+		return Integer.bitCount(Integer.highestOneBit(numTopics) * 2 - 1);
+	}
+
+	/**
+	 *  An inferencer for the current model. The topic-word counts are
+	 *   {@link #getTypeTopicCounts()}, and the smoothing is the part of lambda
+	 *   shared by every word, which approaches eta as training goes on.
+	 */
+	public synchronized TopicInferencer getInferencer () {
+		int[][] typeTopicCounts = getTypeTopicCounts();
+
+		int topicBits = getTopicBits();
+		int topicMask = (1 << topicBits) - 1;
+		int[] tokensPerTopic = new int[numTopics];
+		for (int[] counts : typeTopicCounts) {
+			for (int packed : counts) {
+				tokensPerTopic[packed & topicMask] += packed >> topicBits;
+			}
+		}
+
+		double[] alphas = new double[numTopics];
+		Arrays.fill(alphas, alpha);
+		int numTypes = alphabet.size();
+		return new TopicInferencer(typeTopicCounts, tokensPerTopic, alphabet, alphas,
+								   offset, offset * numTypes);
+	}
+
+	synchronized ExecutorService getExecutor () {
+		if (numThreads > 1 && executor == null) {
+			executor = ParallelTasks.newDaemonPool(numThreads, "OnlineLDA");
+		}
+		return executor;
+	}
+
+	/** Stop the threads used for the E-step. The next batch starts new ones. */
+	public synchronized void shutdown () {
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	// Serialization
+
+	private static final long serialVersionUID = 1;
+
+	public void write (File f) {
+		try {
+			ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(f));
+			oos.writeObject(this);
+			oos.close();
+		}
+		catch (IOException e) {
+			logger.warning("Exception writing online LDA model to file " + f + ": " + e);
+		}
+	}
+
+	public static OnlineLDA read (File f) throws Exception {
+		ObjectInputStream ois = new ObjectInputStream(new FileInputStream(f));
+		OnlineLDA model = (OnlineLDA) ois.readObject();
+		ois.close();
+		return model;
+	}
+
+	static CommandOption.String inputFile = new CommandOption.String
+		(OnlineLDA.class, "input", "FILENAME", true, null,
+		 "The filename from which to read the list of training instances.", null);
+
+	static CommandOption.String inputModelFile = new CommandOption.String
+		(OnlineLDA.class, "input-model", "FILENAME", true, null,
+		 "A model written by --output-model, to continue training.", null);
+
+	static CommandOption.String outputModelFile = new CommandOption.String
+		(OnlineLDA.class, "output-model", "FILENAME", true, null,
+		 "The filename in which to write the model after training.", null);
+
+	static CommandOption.String inferencerFile = new CommandOption.String
+		(OnlineLDA.class, "inferencer-filename", "FILENAME", true, null,
+		 "A topic inferencer applies a previously trained topic model to new documents.", null);
+
+	static CommandOption.String topicKeysFile = new CommandOption.String
+		(OnlineLDA.class, "output-topic-keys", "FILENAME", true, null,
+		 "The filename in which to write the top words for each topic.", null);
+
+	static CommandOption.Integer numTopicsOption = new CommandOption.Integer
+		(OnlineLDA.class, "num-topics", "INTEGER", true, 10,
+		 "The number of topics to fit.", null);
+
+	static CommandOption.Double alphaOption = new CommandOption.Double
+		(OnlineLDA.class, "alpha", "DECIMAL", true, 0.1,
+		 "The Dirichlet parameter for each topic in a document.", null);
+
+	static CommandOption.Double etaOption = new CommandOption.Double
+		(OnlineLDA.class, "eta", "DECIMAL", true, 0.01,
+		 "The Dirichlet parameter for each word in a topic.", null);
+
+	static CommandOption.Double corpusSizeOption = new CommandOption.Double
+		(OnlineLDA.class, "corpus-size", "DECIMAL", true, 0,
+		 "The number of documents the model treats as its corpus. Defaults to the number of instances in the input.", null);
+
+	static CommandOption.Integer batchSizeOption = new CommandOption.Integer
+		(OnlineLDA.class, "batch-size", "INTEGER", true, 256,
+		 "The number of documents in each update.", null);
+
+	static CommandOption.Double tau0Option = new CommandOption.Double
+		(OnlineLDA.class, "tau0", "DECIMAL", true, 1024,
+		 "Down-weights early batches: batch t has weight (tau0 + t)^-kappa.", null);
+
+	static CommandOption.Double kappaOption = new CommandOption.Double
+		(OnlineLDA.class, "kappa", "DECIMAL", true, 0.7,
+		 "The rate at which old batches are forgotten, between 0.5 and 1.", null);
+
+	static CommandOption.Integer numPassesOption = new CommandOption.Integer
+		(OnlineLDA.class, "num-passes", "INTEGER", true, 1,
+		 "The number of passes through the input.", null);
+
+	static CommandOption.Integer numThreadsOption = new CommandOption.Integer
+		(OnlineLDA.class, "num-threads", "INTEGER", true, 1,
+		 "The number of threads for fitting the documents of a batch.", null);
+
+	static CommandOption.Integer numTopWordsOption = new CommandOption.Integer
+		(OnlineLDA.class, "num-top-words", "INTEGER", true, 20,
+		 "The number of most probable words to print for each topic.", null);
+
+	static CommandOption.Integer showTopicsIntervalOption = new CommandOption.Integer
+		(OnlineLDA.class, "show-topics-interval", "INTEGER", true, 0,
+		 "The number of batches between printing topics, or 0 for never.", null);
+
+	static CommandOption.Integer randomSeedOption = new CommandOption.Integer
+		(OnlineLDA.class, "random-seed", "INTEGER", true, 0,
+		 "The random seed. Default of 0 will use the clock.", null);
+
+	public static void main (String[] args) throws Exception {
+		CommandOption.setSummary (OnlineLDA.class,
+								  "Train LDA by online variational Bayes, one batch of documents at a time.");
+		CommandOption.process (OnlineLDA.class, args);
+
+		InstanceList instances = InstanceList.load (new File(inputFile.value));
+		double corpusSize = corpusSizeOption.value > 0 ? corpusSizeOption.value : instances.size();
+
+		OnlineLDA model;
+		if (inputModelFile.value != null) {
+			model = OnlineLDA.read(new File(inputModelFile.value));
+			model.setCorpusSize(corpusSize);
+		}
+		else {
+			model = new OnlineLDA(instances.getDataAlphabet(), numTopicsOption.value,
+								  alphaOption.value, etaOption.value, corpusSize);
+			model.setLearningRate(tau0Option.value, kappaOption.value);
+			if (randomSeedOption.value != 0) {
+				model.setRandomSeed(randomSeedOption.value);
+			}
+		}
+		model.setBatchSize(batchSizeOption.value);
+		model.setNumThreads(numThreadsOption.value);
+		model.setTopicDisplay(showTopicsIntervalOption.value, numTopWordsOption.value);
+
+		for (int pass = 0; pass < numPassesOption.value; pass++) {
+			model.train(instances.iterator());
+		}
+		model.shutdown();
+
+		if (topicKeysFile.value != null) {
+			PrintStream out = new PrintStream(new File(topicKeysFile.value));
+			out.print(model.topWords(numTopWordsOption.value));
+			out.close();
+		}
+		else {
+			System.out.print(model.topWords(numTopWordsOption.value));
+		}
+
+		if (inferencerFile.value != null) {
+			ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(inferencerFile.value));
+			oos.writeObject(model.getInferencer());
+			oos.close();
+		}
+
+		if (outputModelFile.value != null) {
+			model.write(new File(outputModelFile.value));
+		}
+	}
+
+}
@@ -0,0 +1,56 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/** Runs a step of work split across threads, for the topic models and tools that use several. */
+class ParallelTasks {
+
+	private ParallelTasks () { }
+
+	/**
+	 *  A fixed pool of daemon threads, for models and services that keep their
+	 *   threads between calls: an idle owner doesn't keep the JVM alive.
+	 *
+	 *  @param name The name of the threads
+	 */
+	static ExecutorService newDaemonPool (int numThreads, final String name) {
+		return Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 *  Run every task on the executor and wait for all of them, rethrowing the first failure.
+	 *
+	 *  @param activity What the tasks are doing, for the message if the wait is interrupted
+	 */
+	static void invokeAll (ExecutorService executor, List<Callable<Object>> tasks, String activity) {
+		try {
+			for (Future<Object> future : executor.invokeAll(tasks)) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while " + activity, e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+}
@@ -0,0 +1,273 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+import cc.mallet.pipe.Pipe;
+import cc.mallet.types.*;
+import cc.mallet.util.*;
+
+/**
+ * Infers topic distributions for a stream of instances on several threads and
+ * writes them in the format of {@link TopicInferencer#writeInferredDistributions}.
+ * <p>
+ * The calling thread pulls instances from an iterator (optionally through a pipe),
+ * worker threads sample them, each with its own {@link TopicInferencer.Sampler},
+ * and a writer thread formats and writes the results. At most
+ * <code>queueSize</code> documents are in progress at any time, including results
+ * held back to keep the output in input order, so memory does not depend on the
+ * size of the input.
+ * <p>
+ * With a random seed, each document is sampled with a generator seeded from the
+ * seed and the document's index, so the output is the same for any number of threads.
+ */
+
+public class ParallelTopicInferencer {
+
+	TopicInferencer inferencer;
+	int numThreads;
+	int queueSize;
+	boolean ordered = true;
+	int randomSeed = 0;
+
+	public ParallelTopicInferencer (TopicInferencer inferencer, int numThreads) {
+		this.inferencer = inferencer;
+		this.numThreads = numThreads;
+		this.queueSize = 256 * numThreads;
+	}
+
+	/** Write documents in input order (the default), or as soon as they are done. */
+	public void setOrdered (boolean ordered) {
+		this.ordered = ordered;
+	}
+
+	/** The maximum number of documents read but not yet written. */
+	public void setQueueSize (int size) {
+		this.queueSize = Math.max(size, numThreads);
+	}
+
+	/** Seed each document's sampler from this seed. Zero (the default) uses the clock. */
+	public void setRandomSeed (int seed) {
+		this.randomSeed = seed;
+	}
+
+	/** One document, read but not yet written. A null instance ends a worker. */
+	static class Document {
+		int index;
+		Instance instance;
+		String line;
+
+		Document (int index, Instance instance) {
+			this.index = index;
+			this.instance = instance;
+		}
+	}
+
+	/**
+	 *  Infer topics for the instances produced by <code>pipe</code> from the
+	 *   raw instances in <code>source</code>. Piping is done on the calling thread.
+	 *   The pipe's alphabets stop growing, so unknown words and labels are dropped
+	 *   rather than held in memory for the rest of the stream.
+	 */
+	public int writeInferredDistributions (Iterator<Instance> source, Pipe pipe,
+										   File distributionsFile,
+										   int numIterations, int thinning, int burnIn,
+										   double threshold, int max) throws IOException {
+		if (pipe.getDataAlphabet() != null) {
+			pipe.getDataAlphabet().stopGrowth();
+		}
+		if (pipe.getTargetAlphabet() != null) {
+			pipe.getTargetAlphabet().stopGrowth();
+		}
+		return writeInferredDistributions(pipe.newIteratorFrom(source), distributionsFile,
+										  numIterations, thinning, burnIn, threshold, max);
+	}
+
+	/**
+	 *  Infer topics for the provided instances and
+	 *   write distributions to the provided file.
+	 *
+	 *  @return The number of documents written
+	 *  @see TopicInferencer#writeInferredDistributions
+	 */
+	public int writeInferredDistributions (Iterator<Instance> instances,
+										   File distributionsFile,
+										   int numIterations, int thinning, int burnIn,
+										   double threshold, int max) throws IOException {
+		Writer out = new BufferedWriter(new FileWriter(distributionsFile), 1 << 16);
+		try {
+			return writeInferredDistributions(instances, out, numIterations, thinning, burnIn,
+											  threshold, max);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 *  Infer topics for the provided instances and write distributions
+	 *   to <code>out</code>, which is flushed but not closed.
+	 *
+	 *  @return The number of documents written
+	 */
+	public int writeInferredDistributions (Iterator<Instance> instances,
+										   final Writer out,
+										   final int numIterations, final int thinning, final int burnIn,
+										   final double threshold, int max) throws IOException {
+
+		final int numTopics = inferencer.numTopics;
+		final int maxTopics = (max < 0 || max > numTopics) ? numTopics : max;
+
+		out.write("#doc name topic proportion ...\n");
+
+		// Room for every document in progress plus one end marker per worker
+		final BlockingQueue<Document> input = new ArrayBlockingQueue<Document>(queueSize + numThreads);
+		final BlockingQueue<Document> output = new ArrayBlockingQueue<Document>(queueSize + numThreads);
+		// Permits for documents read but not yet written
+		final Semaphore inProgress = new Semaphore(queueSize);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads + 1);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+
+		for (int thread = 0; thread < numThreads; thread++) {
+			final TopicInferencer.Sampler sampler =
+				inferencer.getSampler(randomSeed == 0 ? new Randoms() : new Randoms(randomSeed + thread));
+
+			futures.add(executor.submit(new Callable<Object>() {
+				public Object call() throws InterruptedException {
+					IDSorter[] sortedTopics = new IDSorter[numTopics];
+					for (int topic = 0; topic < numTopics; topic++) {
+						sortedTopics[topic] = new IDSorter(topic, topic);
+					}
+					StringBuilder builder = new StringBuilder();
+
+					while (true) {
+						Document document = input.take();
+						if (document.instance == null) {
+							output.put(document);
+							return null;
+						}
+
+						// Every document gets a result, even after a failure,
+						//  so that the writer never waits for a missing one.
+						if (failure.get() == null) {
+							try {
+								if (randomSeed != 0) {
+									sampler.getRandom().setSeed(randomSeed + (long) document.index);
+								}
+								double[] distribution =
+									sampler.getSampledDistribution(document.instance, numIterations,
+																   thinning, burnIn);
+								builder.setLength(0);
+								inferencer.appendDistribution(builder, document.index, document.instance,
+															  distribution, threshold, maxTopics, sortedTopics);
+								document.line = builder.toString();
+							} catch (RuntimeException e) {
+								failure.compareAndSet(null, e);
+							}
+						}
+						document.instance = null;
+						output.put(document);
+					}
+				}
+			}));
+		}
+
+		final int[] written = new int[1];
+		futures.add(executor.submit(new Callable<Object>() {
+			public Object call() throws InterruptedException {
+				// Results that arrived before an earlier document, by index
+				Map<Integer, Document> pending = new HashMap<Integer, Document>();
+				int nextIndex = 0;
+				int finishedWorkers = 0;
+
+				while (finishedWorkers < numThreads) {
+					Document document = output.take();
+					if (document.index < 0) {
+						finishedWorkers++;
+						continue;
+					}
+
+					if (! ordered) {
+						write(document);
+						continue;
+					}
+
+					pending.put(document.index, document);
+					while ((document = pending.remove(nextIndex)) != null) {
+						write(document);
+						nextIndex++;
+					}
+				}
+				return null;
+			}
+
+			void write(Document document) {
+				if (document.line != null && failure.get() == null) {
+					try {
+						out.write(document.line);
+						out.write('\n');
+						written[0]++;
+					} catch (IOException e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+				inProgress.release();
+			}
+		}));
+
+		int doc = 0;
+		try {
+			while (failure.get() == null && instances.hasNext()) {
+				Instance instance = instances.next();
+				inProgress.acquire();
+				input.put(new Document(doc, instance));
+				doc++;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failure.compareAndSet(null, e);
+		} catch (RuntimeException e) {
+			failure.compareAndSet(null, e);
+		} finally {
+			// End every worker, even if reading failed
+			for (int thread = 0; thread < numThreads; thread++) {
+				input.add(new Document(-1, null));
+			}
+		}
+
+		try {
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failure.compareAndSet(null, e);
+		} catch (ExecutionException e) {
+			failure.compareAndSet(null, e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+
+		Throwable cause = failure.get();
+		if (cause instanceof IOException) {
+			throw (IOException) cause;
+		}
+		if (cause != null) {
+			throw new IllegalStateException(cause);
+		}
+
+		out.flush();
+		return written[0];
+	}
+
+}
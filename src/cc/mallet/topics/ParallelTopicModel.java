@@ -97,6 +97,7 @@ public class ParallelTopicModel implements Serializable {
 	int maxTypeCount; 
 	
 	int numThreads = 1;
+	boolean sharedCounts = false;
 	
 	public ParallelTopicModel (int numberOfTopics) {
 		this (numberOfTopics, numberOfTopics, DEFAULT_BETA);
@@ -200,6 +201,21 @@ public class ParallelTopicModel implements Serializable {
 		this.numThreads = threads;
 	}
 
+	/**
+	 *  With more than one thread, share one set of type/topic counts among
+	 *   all workers instead of giving each worker its own copy, so memory
+	 *   does not grow with the number of threads. The vocabulary is split
+	 *   into one block per thread, balanced by token count, and each
+	 *   iteration is split into one sub-iteration per block. In each
+	 *   sub-iteration every worker samples the tokens of one block in its
+	 *   own documents, with no two workers on the same block, so each
+	 *   type's counts have a single writer. Only the topic totals are
+	 *   copied per thread and merged after each sub-iteration.
+	 */
+	public void setSharedCounts(boolean shared) {
+		this.sharedCounts = shared;
+	}
+
 	/** Define how often and where to save a text representation of the current state.
 	 *  Files are GZipped.
 	 *
@@ -522,6 +538,110 @@ public class ParallelTopicModel implements Serializable {
 	}
 	
 
+	/**
+	 *  Merge the moves logged by every worker in the last sweep into the
+	 *   global counts, one vocabulary partition per task, then copy the
+	 *   types that changed back into each worker's local counts, one
+	 *   worker per task. No two tasks in a phase write the same array.
+	 */
+	public void mergeMoves (final WorkerRunnable[] runnables, ExecutorService executor) {
+
+		sumTokensPerTopic(runnables);
+
+		int numPartitions = runnables[0].getMoves().length;
+		final boolean[] typeChanged = new boolean[numTypes]; // partitions own disjoint ranges of this
+		final int[][] changedTypes = new int[numPartitions][];
+		final int[] numChangedTypes = new int[numPartitions];
+
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (int partition = 0; partition < numPartitions; partition++) {
+			final int mergePartition = partition;
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					int[] types = new int[64];
+					int numChanged = 0;
+					for (WorkerRunnable runnable : runnables) {
+						int[] moves = runnable.getMoves()[mergePartition];
+						int numMoves = runnable.getNumMoves()[mergePartition];
+						WorkerRunnable.applyMoves(typeTopicCounts, moves, numMoves, topicMask, topicBits);
+
+						for (int index = 0; index < numMoves * 3; index += 3) {
+							int type = moves[index];
+							if (! typeChanged[type]) {
+								typeChanged[type] = true;
+								if (numChanged == types.length) {
+									types = Arrays.copyOf(types, types.length * 2);
+								}
+								types[numChanged++] = type;
+							}
+						}
+					}
+					changedTypes[mergePartition] = types;
+					numChangedTypes[mergePartition] = numChanged;
+					return null;
+				}
+			});
+		}
+		ParallelTasks.invokeAll(executor, tasks, "merging counts");
+
+		tasks.clear();
+		for (int thread = 0; thread < runnables.length; thread++) {
+			final WorkerRunnable runnable = runnables[thread];
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					for (int partition = 0; partition < changedTypes.length; partition++) {
+						runnable.copyTypeTopicCounts(typeTopicCounts, changedTypes[partition],
+													 numChangedTypes[partition], tokensPerTopic);
+					}
+					return null;
+				}
+			});
+		}
+		ParallelTasks.invokeAll(executor, tasks, "merging counts");
+	}
+
+	/**
+	 *  Add each worker's changes to the topic totals into the global totals.
+	 *   Every worker starts a sweep from the global totals and changes them
+	 *   only by its own tokens.
+	 */
+	void sumTokensPerTopic (WorkerRunnable[] runnables) {
+		int[] previousTotals = tokensPerTopic.clone();
+		for (int thread = 0; thread < runnables.length; thread++) {
+			int[] sourceTotals = runnables[thread].getTokensPerTopic();
+			for (int topic = 0; topic < numTopics; topic++) {
+				tokensPerTopic[topic] += sourceTotals[topic] - previousTotals[topic];
+			}
+		}
+	}
+
+	/**
+	 *  Assign every type to one of <code>numBlocks</code> vocabulary blocks
+	 *   with roughly equal numbers of tokens, by dealing the types out in
+	 *   order of decreasing frequency, reversing direction on each pass.
+	 */
+	int[] getTypeBlocks (int numBlocks) {
+		long[] sortedTypes = new long[numTypes];
+		for (int type = 0; type < numTypes; type++) {
+			long total = 0;
+			int[] counts = typeTopicCounts[type];
+			for (int index = 0; index < counts.length && counts[index] > 0; index++) {
+				total += counts[index] >> topicBits;
+			}
+			sortedTypes[type] = (total << 32) | type;
+		}
+		Arrays.sort(sortedTypes);
+
+		int[] typeBlocks = new int[numTypes];
+		for (int rank = 0; rank < numTypes; rank++) {
+			int type = (int) (sortedTypes[numTypes - 1 - rank] & 0xffffffffL);
+			int pass = rank / numBlocks;
+			int block = rank % numBlocks;
+			typeBlocks[type] = (pass % 2 == 0) ? block : numBlocks - 1 - block;
+		}
+		return typeBlocks;
+	}
+
 	/** 
 	 *  Gather statistics on the size of documents 
 	 *  and create histograms for use in Dirichlet hyperparameter
@@ -722,11 +842,14 @@ public class ParallelTopicModel implements Serializable {
 				int[] runnableTotals = new int[numTopics];
 				System.arraycopy(tokensPerTopic, 0, runnableTotals, 0, numTopics);
 				
-				int[][] runnableCounts = new int[numTypes][];
-				for (int type = 0; type < numTypes; type++) {
-					int[] counts = new int[typeTopicCounts[type].length];
-					System.arraycopy(typeTopicCounts[type], 0, counts, 0, counts.length);
-					runnableCounts[type] = counts;
+				int[][] runnableCounts = typeTopicCounts;
+				if (! sharedCounts) {
+					runnableCounts = new int[numTypes][];
+					for (int type = 0; type < numTypes; type++) {
+						int[] counts = new int[typeTopicCounts[type].length];
+						System.arraycopy(typeTopicCounts[type], 0, counts, 0, counts.length);
+						runnableCounts[type] = counts;
+					}
 				}
 				
 				// some docs may be missing at the end due to integer division
@@ -749,10 +872,22 @@ public class ParallelTopicModel implements Serializable {
 													   offset, docsPerThread);
 				
 				runnables[thread].initializeAlphaStatistics(docLengthCounts.length);
+
+				if (! sharedCounts) {
+					// Ship back only the tokens that changed topic, not full count arrays
+					runnables[thread].logMoves(numThreads);
+				}
 				
 				offset += docsPerThread;
 			
 			}
+
+			if (sharedCounts) {
+				int[] typeBlocks = getTypeBlocks(numThreads);
+				for (int thread = 0; thread < numThreads; thread++) {
+					runnables[thread].sampleByBlocks(typeBlocks, numThreads);
+				}
+			}
 		}
 		else {
 			
@@ -800,10 +935,34 @@ public class ParallelTopicModel implements Serializable {
 				this.write(new File(modelFilename + '.' + iteration));
 			}
 
-			if (numThreads > 1) {
-			
-				// Submit runnables to thread pool
+			if (numThreads > 1 && sharedCounts) {
 				
+				// Worker t samples block (t + step) in step <step>, so no two
+				//  workers touch the same types at the same time.
+				for (int step = 0; step < numThreads; step++) {
+					List<Callable<Object>> sampleTasks = new ArrayList<Callable<Object>>();
+					for (int thread = 0; thread < numThreads; thread++) {
+						// Histograms are collected on each document's last visit
+						if (step == numThreads - 1 &&
+							iteration > burninPeriod && optimizeInterval != 0 &&
+							iteration % saveSampleInterval == 0) {
+							runnables[thread].collectAlphaStatistics();
+						}
+						runnables[thread].setBlock((thread + step) % numThreads);
+						sampleTasks.add(Executors.callable(runnables[thread]));
+					}
+					ParallelTasks.invokeAll(executor, sampleTasks, "sampling");
+					
+					sumTokensPerTopic(runnables);
+					for (int thread = 0; thread < numThreads; thread++) {
+						System.arraycopy(tokensPerTopic, 0, runnables[thread].getTokensPerTopic(), 0, numTopics);
+					}
+				}
+			}
+			else if (numThreads > 1) {
+			
+				// Sample every worker's documents, and wait for all of them
+				List<Callable<Object>> sampleTasks = new ArrayList<Callable<Object>>();
 				for (int thread = 0; thread < numThreads; thread++) {
 					if (iteration > burninPeriod && optimizeInterval != 0 &&
 						iteration % saveSampleInterval == 0) {
@@ -811,72 +970,13 @@ public class ParallelTopicModel implements Serializable {
 					}
 					
 					logger.fine("submitting thread " + thread);
-					executor.submit(runnables[thread]);
-					//runnables[thread].run();
+					sampleTasks.add(Executors.callable(runnables[thread]));
 				}
-				
-				// I'm getting some problems that look like 
-				//  a thread hasn't started yet when it is first
-				//  polled, so it appears to be finished. 
-				// This only occurs in very short corpora.
-				try {
-					Thread.sleep(20);
-				} catch (InterruptedException e) {
-					
-				}
-				
-				boolean finished = false;
-				while (! finished) {
-					
-					try {
-						Thread.sleep(10);
-					} catch (InterruptedException e) {
-						
-					}
-					
-					finished = true;
-					
-					// Are all the threads done?
-					for (int thread = 0; thread < numThreads; thread++) {
-						//logger.info("thread " + thread + " done? " + runnables[thread].isFinished);
-						finished = finished && runnables[thread].isFinished;
-					}
-					
-				}
-				
-				//System.out.print("[" + (System.currentTimeMillis() - iterationStart) + "] ");
-				
-				sumTypeTopicCounts(runnables);
+				ParallelTasks.invokeAll(executor, sampleTasks, "sampling");
 				
 				//System.out.print("[" + (System.currentTimeMillis() - iterationStart) + "] ");
 				
-				for (int thread = 0; thread < numThreads; thread++) {
-					int[] runnableTotals = runnables[thread].getTokensPerTopic();
-					System.arraycopy(tokensPerTopic, 0, runnableTotals, 0, numTopics);
-					
-					int[][] runnableCounts = runnables[thread].getTypeTopicCounts();
-					for (int type = 0; type < numTypes; type++) {
-						int[] targetCounts = runnableCounts[type];
-						int[] sourceCounts = typeTopicCounts[type];
-						
-						int index = 0;
-						while (index < sourceCounts.length) {
-							
-							if (sourceCounts[index] != 0) {
-								targetCounts[index] = sourceCounts[index];
-							}
-							else if (targetCounts[index] != 0) {
-								targetCounts[index] = 0;
-							}
-							else {
-								break;
-							}
-							
-							index++;
-						}
-						//System.arraycopy(typeTopicCounts[type], 0, counts, 0, counts.length);
-					}
-				}
+				mergeMoves(runnables, executor);
 			}
 			else {
 				if (iteration > burninPeriod && optimizeInterval != 0 &&
@@ -8,6 +8,7 @@
 package cc.mallet.topics;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.zip.*;
 
 import java.io.*;
@@ -116,6 +117,10 @@ public class PolylingualTopicModel implements Serializable {
 		(PolylingualTopicModel.class, "optimize-burn-in", "INTEGER", true, 200,
 		 "The number of iterations to run before first estimating dirichlet hyperparameters.", null);
 
+	static CommandOption.Integer numThreadsOption = new CommandOption.Integer
+		(PolylingualTopicModel.class, "num-threads", "INTEGER", true, 1,
+		 "The number of threads for parallel training.", null);
+
 	static CommandOption.Double alphaOption = new CommandOption.Double
 		(PolylingualTopicModel.class, "alpha", "DECIMAL", true, 50.0,
 		 "Alpha parameter: smoothing over topic distribution.",null);
@@ -198,6 +203,8 @@ public class PolylingualTopicModel implements Serializable {
 	protected Randoms random;
 	protected NumberFormat formatter;
 	protected boolean printLogLikelihood = false;
+
+	protected int numThreads = 1;
 	
 	public PolylingualTopicModel (int numberOfTopics) {
 		this (numberOfTopics, numberOfTopics);
@@ -280,6 +287,15 @@ public class PolylingualTopicModel implements Serializable {
 		random = new Randoms(seed);
 	}
 
+	/**
+	 *  Sample on this many threads. Each thread samples a contiguous block
+	 *   of documents against its own copy of every language's counts, and
+	 *   the changes made by every thread are merged after each iteration.
+	 */
+	public void setNumThreads(int threads) {
+		this.numThreads = threads;
+	}
+
 	public void setOptimizeInterval(int interval) {
 		this.optimizeInterval = interval;
 	}
@@ -518,6 +534,15 @@ public class PolylingualTopicModel implements Serializable {
 	}
 
 	private void cacheValues() {
+		cacheValues(languageTokensPerTopic, languageSmoothingOnlyMasses, languageCachedCoefficients);
+	}
+
+	/**
+	 *  Recompute the smoothing-only masses and coefficients from the given totals,
+	 *   which are a worker's own when sampling on several threads.
+	 */
+	private void cacheValues(int[][] languageTokensPerTopic,
+							 double[] languageSmoothingOnlyMasses, double[][] languageCachedCoefficients) {
 
 		for (int language = 0; language < numLanguages; language++) {
 			languageSmoothingOnlyMasses[language] = 0.0;
@@ -535,6 +560,10 @@ public class PolylingualTopicModel implements Serializable {
 	}
 	
 	private void clearHistograms() {
+		clearHistograms(topicDocCounts, docLengthCounts);
+	}
+
+	private static void clearHistograms(int[][] topicDocCounts, int[] docLengthCounts) {
 		Arrays.fill(docLengthCounts, 0);
 		for (int topic = 0; topic < topicDocCounts.length; topic++)
 			Arrays.fill(topicDocCounts[topic], 0);
@@ -550,6 +579,22 @@ public class PolylingualTopicModel implements Serializable {
 		int maxIteration = iterationsSoFar + iterationsThisRound;
 
 		long totalTime = 0;
+
+		Worker[] workers = null;
+		ExecutorService executor = null;
+
+		if (numThreads > 1) {
+			workers = new Worker[numThreads];
+			int docsPerThread = data.size() / numThreads;
+			int offset = 0;
+			for (int thread = 0; thread < numThreads; thread++) {
+				// some docs may be missing at the end due to integer division
+				int numDocs = (thread == numThreads - 1) ? data.size() - offset : docsPerThread;
+				workers[thread] = new Worker(new Randoms(random.nextInt()), offset, numDocs);
+				offset += docsPerThread;
+			}
+			executor = Executors.newFixedThreadPool(numThreads);
+		}
 	
 		for ( ; iterationsSoFar <= maxIteration; iterationsSoFar++) {
 			long iterationStart = System.currentTimeMillis();
@@ -575,20 +620,42 @@ public class PolylingualTopicModel implements Serializable {
 			if (iterationsSoFar > burninPeriod && optimizeInterval != 0 &&
 				iterationsSoFar % optimizeInterval == 0) {
 
+				if (workers != null) {
+					sumHistograms(workers);
+				}
+
 				alphaSum = Dirichlet.learnParameters(alpha, topicDocCounts, docLengthCounts);
 				optimizeBetas();
 				clearHistograms();
 				cacheValues();
+
+				if (workers != null) {
+					for (Worker worker : workers) {
+						worker.cacheValues();
+					}
+				}
 			}
 
 			// Loop over every document in the corpus
 			topicTermCount = betaTopicCount = smoothingOnlyCount = 0;
 
-			for (int doc = 0; doc < data.size(); doc++) {
+			if (workers != null) {
+				List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+				for (Worker worker : workers) {
+					worker.shouldSaveState = (iterationsSoFar >= burninPeriod &&
+											  iterationsSoFar % saveSampleInterval == 0);
+					tasks.add(Executors.callable(worker));
+				}
+				ParallelTasks.invokeAll(executor, tasks, "sampling");
+				mergeMoves(workers, executor);
+			}
+			else {
+				for (int doc = 0; doc < data.size(); doc++) {
 
-				sampleTopicsForOneDoc (data.get(doc),
-									   (iterationsSoFar >= burninPeriod &&
-										iterationsSoFar % saveSampleInterval == 0));
+					sampleTopicsForOneDoc (data.get(doc),
+										   (iterationsSoFar >= burninPeriod &&
+											iterationsSoFar % saveSampleInterval == 0));
+				}
 			}
 		
             long elapsedMillis = System.currentTimeMillis() - iterationStart;
@@ -605,6 +672,15 @@ public class PolylingualTopicModel implements Serializable {
 			}
 		}
 
+		if (workers != null) {
+			executor.shutdownNow();
+
+			// Keep samples collected since the last optimization, and bring
+			//  the global caches in line with the merged counts.
+			sumHistograms(workers);
+			cacheValues();
+		}
+
 		/*
 		long seconds = Math.round((System.currentTimeMillis() - startTime)/1000.0);
 		long minutes = seconds / 60;	seconds %= 60;
@@ -670,6 +746,24 @@ public class PolylingualTopicModel implements Serializable {
 
 	protected void sampleTopicsForOneDoc (TopicAssignment topicAssignment, 
 										  boolean shouldSaveState) {
+		sampleTopicsForOneDoc (topicAssignment, shouldSaveState,
+							   languageTypeTopicCounts, languageTokensPerTopic,
+							   languageSmoothingOnlyMasses, languageCachedCoefficients,
+							   topicDocCounts, docLengthCounts, random, null);
+	}
+
+	/**
+	 *  Sample against the given counts, caches, histograms and random number
+	 *   generator, which are a worker's own when sampling on several threads.
+	 *   If <code>worker</code> is not null, every change of topic is logged to it.
+	 */
+	protected void sampleTopicsForOneDoc (TopicAssignment topicAssignment, 
+										  boolean shouldSaveState,
+										  int[][][] languageTypeTopicCounts, int[][] languageTokensPerTopic,
+										  double[] languageSmoothingOnlyMasses,
+										  double[][] languageCachedCoefficients,
+										  int[][] topicDocCounts, int[] docLengthCounts,
+										  Randoms random, Worker worker) {
 
 		int[] currentTypeTopicCounts;
 		int type, oldTopic, newTopic;
@@ -997,6 +1091,9 @@ public class PolylingualTopicModel implements Serializable {
 				
 				//			Put that new topic into the counts
 				oneDocTopics[position] = newTopic;
+				if (worker != null && newTopic != oldTopic) {
+					worker.logMove(language, type, oldTopic, newTopic);
+				}
 				
 				smoothingOnlyMass -= alpha[newTopic] * beta / 
 					(tokensPerTopic[newTopic] + betaSum);
@@ -1066,6 +1163,175 @@ public class PolylingualTopicModel implements Serializable {
 
 	}
 
+	/**
+	 *  Add every worker's document/topic histograms into the model's
+	 *   histograms, and clear the workers' histograms.
+	 */
+	protected void sumHistograms (Worker[] workers) {
+		for (Worker worker : workers) {
+			for (int length = 0; length < docLengthCounts.length; length++) {
+				docLengthCounts[length] += worker.docLengthCounts[length];
+			}
+			for (int topic = 0; topic < numTopics; topic++) {
+				int[] counts = worker.topicDocCounts[topic];
+				for (int n = 0; n < counts.length; n++) {
+					topicDocCounts[topic][n] += counts[n];
+				}
+			}
+			clearHistograms(worker.topicDocCounts, worker.docLengthCounts);
+		}
+	}
+
+	/**
+	 *  Apply every worker's moves to the model's counts, then copy the
+	 *   changed rows and the merged totals back to every worker.
+	 *   Languages are merged in parallel, since their tables are disjoint.
+	 */
+	protected void mergeMoves (final Worker[] workers, ExecutorService executor) {
+
+		final int[][] changedTypes = new int[numLanguages][];
+		final int[] numChangedTypes = new int[numLanguages];
+
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (int language = 0; language < numLanguages; language++) {
+			final int lang = language;
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					// Each worker started from the global totals and changed
+					//  them only by its own moves.
+					int[] tokensPerTopic = languageTokensPerTopic[lang];
+					int[] previousTotals = tokensPerTopic.clone();
+					for (Worker worker : workers) {
+						int[] workerTotals = worker.languageTokensPerTopic[lang];
+						for (int topic = 0; topic < numTopics; topic++) {
+							tokensPerTopic[topic] += workerTotals[topic] - previousTotals[topic];
+						}
+					}
+
+					boolean[] changed = new boolean[vocabularySizes[lang]];
+					int[] types = new int[16];
+					int numTypes = 0;
+					for (Worker worker : workers) {
+						int[] moves = worker.moves[lang];
+						int numMoves = worker.numMoves[lang];
+						WorkerRunnable.applyMoves(languageTypeTopicCounts[lang], moves, numMoves,
+												  topicMask, topicBits);
+						for (int index = 0; index < numMoves * 3; index += 3) {
+							int type = moves[index];
+							if (! changed[type]) {
+								changed[type] = true;
+								if (numTypes == types.length) {
+									types = Arrays.copyOf(types, 2 * types.length);
+								}
+								types[numTypes++] = type;
+							}
+						}
+					}
+					changedTypes[lang] = types;
+					numChangedTypes[lang] = numTypes;
+					return null;
+				}
+			});
+		}
+		ParallelTasks.invokeAll(executor, tasks, "merging moves");
+
+		tasks.clear();
+		for (final Worker worker : workers) {
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					for (int language = 0; language < numLanguages; language++) {
+						int[][] source = languageTypeTopicCounts[language];
+						int[][] target = worker.languageTypeTopicCounts[language];
+						int[] types = changedTypes[language];
+						for (int i = 0; i < numChangedTypes[language]; i++) {
+							int type = types[i];
+							System.arraycopy(source[type], 0, target[type], 0, target[type].length);
+						}
+						System.arraycopy(languageTokensPerTopic[language], 0,
+										 worker.languageTokensPerTopic[language], 0, numTopics);
+						worker.numMoves[language] = 0;
+					}
+					worker.cacheValues();
+					return null;
+				}
+			});
+		}
+		ParallelTasks.invokeAll(executor, tasks, "merging moves");
+	}
+
+	/**
+	 *  Samples a contiguous block of documents against its own copy of every
+	 *   language's counts, with its own caches and histograms, and logs every
+	 *   change of topic, per language, for merging.
+	 */
+	protected class Worker implements Runnable {
+
+		int[][][] languageTypeTopicCounts;
+		int[][] languageTokensPerTopic;
+		double[] languageSmoothingOnlyMasses;
+		double[][] languageCachedCoefficients;
+		int[][] topicDocCounts;
+		int[] docLengthCounts;
+		Randoms random;
+		int startDoc, numDocs;
+		boolean shouldSaveState = false;
+
+		// (type, old topic, new topic) triples, indexed by <language, move * 3>
+		int[][] moves;
+		int[] numMoves;
+
+		public Worker (Randoms random, int startDoc, int numDocs) {
+			languageTypeTopicCounts = new int[numLanguages][][];
+			languageTokensPerTopic = new int[numLanguages][];
+			for (int language = 0; language < numLanguages; language++) {
+				languageTypeTopicCounts[language] = new int[vocabularySizes[language]][];
+				for (int type = 0; type < vocabularySizes[language]; type++) {
+					languageTypeTopicCounts[language][type] =
+						PolylingualTopicModel.this.languageTypeTopicCounts[language][type].clone();
+				}
+				languageTokensPerTopic[language] =
+					PolylingualTopicModel.this.languageTokensPerTopic[language].clone();
+			}
+			languageSmoothingOnlyMasses = new double[numLanguages];
+			languageCachedCoefficients = new double[numLanguages][numTopics];
+			topicDocCounts = new int[numTopics][PolylingualTopicModel.this.docLengthCounts.length];
+			docLengthCounts = new int[PolylingualTopicModel.this.docLengthCounts.length];
+
+			this.random = random;
+			this.startDoc = startDoc;
+			this.numDocs = numDocs;
+
+			moves = new int[numLanguages][3 * 1024];
+			numMoves = new int[numLanguages];
+			cacheValues();
+		}
+
+		void logMove(int language, int type, int oldTopic, int newTopic) {
+			int index = numMoves[language] * 3;
+			if (index + 3 > moves[language].length) {
+				moves[language] = Arrays.copyOf(moves[language], 2 * moves[language].length);
+			}
+			moves[language][index] = type;
+			moves[language][index + 1] = oldTopic;
+			moves[language][index + 2] = newTopic;
+			numMoves[language]++;
+		}
+
+		void cacheValues() {
+			PolylingualTopicModel.this.cacheValues(languageTokensPerTopic,
+												   languageSmoothingOnlyMasses, languageCachedCoefficients);
+		}
+
+		public void run() {
+			for (int doc = startDoc; doc < startDoc + numDocs; doc++) {
+				sampleTopicsForOneDoc (data.get(doc), shouldSaveState,
+									   languageTypeTopicCounts, languageTokensPerTopic,
+									   languageSmoothingOnlyMasses, languageCachedCoefficients,
+									   topicDocCounts, docLengthCounts, random, this);
+			}
+		}
+	}
+
 	public void printTopWords (File file, int numWords, boolean useNewLines) throws IOException {
 		PrintStream out = new PrintStream (file);
 		printTopWords(out, numWords, useNewLines);
@@ -1541,6 +1807,7 @@ public class PolylingualTopicModel implements Serializable {
 		topicModel.setTopicDisplay(showTopicsIntervalOption.value, topWordsOption.value);
 
 		topicModel.setNumIterations(numIterationsOption.value);
+		topicModel.setNumThreads(numThreadsOption.value);
 		topicModel.setOptimizeInterval(optimizeIntervalOption.value);
 		topicModel.setBurninPeriod(optimizeBurnInOption.value);
 
@@ -0,0 +1,165 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import cc.mallet.types.*;
+
+/**
+ * The immutable, model-independent view of a subreddit corpus used by {@link RedditLDA}:
+ * the mapping from subreddit names to indices, the subreddit and length of every document,
+ * and per-subreddit document indices and length histograms.
+ * <p>
+ * The tokens themselves are compiled into one contiguous array of feature indices,
+ * with the documents concatenated in order and an offset array marking where each
+ * document starts, so samplers can walk the corpus without going through the
+ * instances and their FeatureSequences.
+ * <p>
+ * A corpus can be shared by any number of models, including models trained concurrently,
+ * since none of them modify it.
+ *
+ * @author Joe Runde
+ */
+
+public class RedditCorpus {
+
+	InstanceList ilist;	// the data field of the instances is expected to hold a FeatureSequence
+	int numDocs;
+	int numTypes;
+	int numTokens;
+	int maxDocLength;
+
+	public int numSubreddits; //number of subreddits
+	public HashMap<String, Integer> subredditMap; // the top subreddit is always 0
+	String[] subredditNames; // indexed by <subreddit index>
+
+	int[] docSubreddit; //subreddit each document is from
+	int[] tokensPerDoc; // number of tokens in each document
+	int[] tokens; // feature index of every token, documents concatenated in order
+	int[] docStarts; // offset of each document in tokens, with numDocs + 1 entries
+	int[] docsPerSub;
+	int[][] docsBySub; // documents in each subreddit, indexed by <subreddit index, i>
+	int[][] subDocLengths; // distinct document lengths in each subreddit, ascending
+	int[][] subDocLengthCounts; // number of documents of each length in subDocLengths
+
+	public RedditCorpus (InstanceList documents, String topSub) {
+		this.ilist = documents;
+
+		//get number of subreddits, map them to integers
+		HashSet<String> targetset = new HashSet<String>();
+		for(Instance inst : documents) {
+			targetset.add(inst.getTarget().toString());
+		}
+		this.numSubreddits = targetset.size();
+		System.out.print("Number of subreddits: ");
+		System.out.println(this.numSubreddits);
+		this.subredditMap = new HashMap<String, Integer>();
+		this.subredditMap.put(topSub, 0);
+		int num = 1;
+		for(String sub: targetset) {
+			if(!this.subredditMap.containsKey(sub)){
+				this.subredditMap.put(sub, num);
+				num++;
+			}
+		}
+		subredditNames = new String[numSubreddits];
+		for (String sub : subredditMap.keySet()) {
+			subredditNames[subredditMap.get(sub)] = sub;
+		}
+
+		numTypes = ilist.getDataAlphabet().size();
+		numDocs = ilist.size();
+		docsPerSub = new int[numSubreddits];
+		docSubreddit = new int[numDocs];
+		tokensPerDoc = new int[numDocs];
+
+		FeatureSequence fs;
+		for (int di = 0; di < numDocs; di++) {
+			try {
+				fs = (FeatureSequence) ilist.get(di).getData();
+			} catch (ClassCastException e) {
+				System.err.println ("LDA and other topic models expect FeatureSequence data, not FeatureVector data.	"
+								+"With text2vectors, you can obtain such data with --keep-sequence or --keep-bisequence.");
+				throw e;
+			}
+			int sub = subredditMap.get(ilist.get(di).getTarget().toString());
+			docSubreddit[di] = sub;
+			docsPerSub[sub]++;
+			tokensPerDoc[di] = fs.getLength();
+			numTokens += fs.getLength();
+			maxDocLength = Math.max(maxDocLength, fs.getLength());
+		}
+
+		// Compile the token stream
+		docStarts = new int[numDocs + 1];
+		for (int di = 0; di < numDocs; di++) {
+			docStarts[di + 1] = docStarts[di] + tokensPerDoc[di];
+		}
+		tokens = new int[numTokens];
+		for (int di = 0; di < numDocs; di++) {
+			fs = (FeatureSequence) ilist.get(di).getData();
+			System.arraycopy(fs.getFeatures(), 0, tokens, docStarts[di], tokensPerDoc[di]);
+		}
+
+		docsBySub = new int[numSubreddits][];
+		for (int c = 0; c < numSubreddits; c++) {
+			docsBySub[c] = new int[docsPerSub[c]];
+		}
+		int[] filled = new int[numSubreddits];
+		for (int d = 0; d < numDocs; d++) {
+			int c = docSubreddit[d];
+			docsBySub[c][filled[c]++] = d;
+		}
+
+		subDocLengths = new int[numSubreddits][];
+		subDocLengthCounts = new int[numSubreddits][];
+		for (int c = 0; c < numSubreddits; c++) {
+			int[] lengths = new int[docsBySub[c].length];
+			for (int i = 0; i < lengths.length; i++) {
+				lengths[i] = tokensPerDoc[docsBySub[c][i]];
+			}
+			Arrays.sort(lengths);
+
+			int distinct = 0;
+			for (int i = 0; i < lengths.length; i++) {
+				if (i == 0 || lengths[i] != lengths[i - 1]) {
+					distinct++;
+				}
+			}
+			subDocLengths[c] = new int[distinct];
+			subDocLengthCounts[c] = new int[distinct];
+			int index = -1;
+			for (int i = 0; i < lengths.length; i++) {
+				if (i == 0 || lengths[i] != lengths[i - 1]) {
+					index++;
+					subDocLengths[c][index] = lengths[i];
+				}
+				subDocLengthCounts[c][index]++;
+			}
+		}
+	}
+
+	public InstanceList getInstanceList() { return ilist; }
+	public int getNumDocs() { return numDocs; }
+	public int getNumTypes() { return numTypes; }
+	public int getNumTokens() { return numTokens; }
+	public int getNumSubreddits() { return numSubreddits; }
+
+	/** The name of the subreddit with the given index. */
+	public String getSubredditName(int sub) { return subredditNames[sub]; }
+
+	public int getDocSubreddit(int doc) { return docSubreddit[doc]; }
+
+	/** The feature index of every token, with document <code>d</code> at <code>[getDocStarts()[d], getDocStarts()[d + 1])</code>. */
+	public int[] getTokens() { return tokens; }
+	public int[] getDocStarts() { return docStarts; }
+
+}
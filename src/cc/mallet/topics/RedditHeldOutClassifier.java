@@ -0,0 +1,340 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import cc.mallet.util.Randoms;
+
+import org.apache.commons.math3.special.Gamma;
+
+/**
+ * Classifies held-out documents of a {@link RedditLDA} model by subreddit, as
+ * <code>RedditLDA.classifyDoc</code> does, but against a frozen snapshot of the model
+ * so that documents can be scored concurrently.
+ * <p>
+ * For every candidate subreddit the document's topics are resampled with that
+ * subreddit's alphas, and the averaged topic distribution is scored under a Dirichlet
+ * whose parameters are the subreddit's topic distribution scaled to sum to
+ * {@link #DIRICHLET_PRECISION}. Log normalizers for these Dirichlets are computed once.
+ * <p>
+ * The snapshot counts are never modified. While a document is resampled, the changes
+ * to its own type/topic counts are kept as deltas in per-thread scratch space. Each
+ * candidate subreddit starts from the document's assignments in the snapshot, and each
+ * document uses its own random stream, so predictions do not depend on the number of
+ * threads or the order of candidates.
+ *
+ * @author Joe Runde
+ */
+
+public class RedditHeldOutClassifier {
+
+	public static final double DIRICHLET_PRECISION = 50;
+
+	int numTopics;
+	int numTypes;
+	int numSubreddits;
+	double beta;
+	double vBeta;
+
+	// Frozen model state
+	double[][] alpha; // indexed by <subreddit, topic>
+	int[][] typeTopicCounts; // indexed by <feature index, topic index>
+	int[] tokensPerTopic;
+	int[] topics; // initial assignments, parallel to tokens
+	int[] docSubreddit;
+	int[] tokens; // the corpus token stream, see RedditCorpus
+	int[] docStarts;
+
+	// Dirichlet scoring of document distributions, per candidate subreddit
+	double[][] dirichletParameters; // indexed by <subreddit, topic>
+	double[] dirichletLogNormalizers; // logGamma(sum of parameters) - sum of logGamma(parameter)
+
+	int samples;
+	int numThreads;
+	int seed;
+
+	double fMacro;
+
+	/**
+	 *  @param subDists topic distributions keyed by subreddit name, as returned by
+	 *   <code>RedditLDA.getSubredditTopicDistributions</code>
+	 *  @param samples number of Gibbs sweeps per document and candidate subreddit
+	 *  @param r used only to draw the seed of the per-document random streams
+	 */
+	public RedditHeldOutClassifier (RedditLDA model, Map<String, double[]> subDists,
+									int samples, int numThreads, Randoms r) {
+		this.numTopics = model.numTopics;
+		this.numTypes = model.numTypes;
+		this.numSubreddits = model.numSubreddits;
+		this.beta = model.beta;
+		this.vBeta = model.vBeta;
+		this.samples = samples;
+		this.numThreads = numThreads;
+		this.seed = r.nextInt();
+
+		alpha = new double[numSubreddits][];
+		for (int sub = 0; sub < numSubreddits; sub++) {
+			alpha[sub] = model.alpha[sub].clone();
+		}
+		typeTopicCounts = new int[numTypes][];
+		for (int type = 0; type < numTypes; type++) {
+			typeTopicCounts[type] = model.typeTopicCounts[type].clone();
+		}
+		tokensPerTopic = model.tokensPerTopic.clone();
+		topics = model.topics.clone();
+		docSubreddit = model.docSubreddit.clone();
+		tokens = model.tokens;
+		docStarts = model.docStarts;
+
+		dirichletParameters = new double[numSubreddits][numTopics];
+		dirichletLogNormalizers = new double[numSubreddits];
+		for (Map.Entry<String, Integer> entry : model.subredditMap.entrySet()) {
+			int sub = entry.getValue();
+			double[] subDist = subDists.get(entry.getKey());
+
+			double sum = 0;
+			for (int topic = 0; topic < numTopics; topic++) {
+				sum += subDist[topic];
+			}
+
+			double[] parameters = dirichletParameters[sub];
+			double logNormalizer = Gamma.logGamma(DIRICHLET_PRECISION);
+			for (int topic = 0; topic < numTopics; topic++) {
+				parameters[topic] = DIRICHLET_PRECISION * subDist[topic] / sum;
+				logNormalizer -= Gamma.logGamma(parameters[topic]);
+			}
+			dirichletLogNormalizers[sub] = logNormalizer;
+		}
+	}
+
+	public double getFMacro() { return fMacro; }
+
+	/**
+	 *  Classify the documents in <code>[start, end)</code> that have at least one token,
+	 *   adding each prediction to <code>confusion[label][prediction]</code>. Sets the
+	 *   macro-averaged F score, and returns the accuracy.
+	 */
+	public double classifyDocuments (int start, int end, int[][] confusion) {
+		final List<Integer> docs = new ArrayList<Integer>();
+		for (int doc = start; doc < end; doc++) {
+			if (docStarts[doc + 1] > docStarts[doc]) {
+				docs.add(doc);
+			}
+		}
+
+		final int[] predictions = new int[docs.size()];
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		int docsPerThread = (docs.size() + numThreads - 1) / numThreads;
+		for (int thread = 0; thread < numThreads; thread++) {
+			final int first = thread * docsPerThread;
+			final int last = Math.min(docs.size(), first + docsPerThread);
+			tasks.add(Executors.callable(new Runnable() {
+				public void run() {
+					Scratch scratch = new Scratch();
+					for (int i = first; i < last; i++) {
+						predictions[i] = classifyDoc(docs.get(i), scratch);
+					}
+				}
+			}));
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			ParallelTasks.invokeAll(executor, tasks, "classifying");
+		} finally {
+			executor.shutdownNow();
+		}
+
+		int correct = 0;
+		int[] subTotals = new int[numSubreddits];
+		for (int i = 0; i < predictions.length; i++) {
+			int label = docSubreddit[docs.get(i)];
+			subTotals[label]++;
+			if (predictions[i] == -1) {
+				// every candidate scored NaN
+				continue;
+			}
+			confusion[label][predictions[i]]++;
+			if (predictions[i] == label) {
+				correct++;
+			}
+		}
+
+		//calculate f-macro score
+		double f = 0;
+		for(int label = 0; label < numSubreddits; label++) {
+			int truePos = confusion[label][label];
+			int actualPos = subTotals[label];
+			int totalPreds = 0;
+			for(int sub = 0; sub < numSubreddits; sub++) {
+				totalPreds += confusion[sub][label];
+			}
+
+			double pres = (double) truePos / (double) totalPreds;
+			double recall = (double) truePos / (double) actualPos;
+			f += 2 * (pres * recall) / (pres + recall);
+		}
+		fMacro = f / numSubreddits;
+
+		return (double) correct / predictions.length;
+	}
+
+	/** Return the most probable subreddit for a document, or -1 if no subreddit has a finite score. */
+	public int classifyDoc (int doc, Scratch scratch) {
+		int docStart = docStarts[doc];
+		int docLength = docStarts[doc + 1] - docStart;
+		Randoms random = new Randoms(seed + doc);
+
+		scratch.prepare(docStart, docLength);
+
+		double maxLogProb = Double.NEGATIVE_INFINITY;
+		int maxsub = -1;
+
+		for (int sub = 0; sub < numSubreddits; sub++) {
+			double[] subAlpha = alpha[sub];
+			double alphaSum = 0;
+			for (int topic = 0; topic < numTopics; topic++) {
+				alphaSum += subAlpha[topic];
+			}
+
+			scratch.reset(docStart);
+			Arrays.fill(scratch.docDist, 0.0);
+
+			for (int c = 0; c < samples; c++) {
+				sampleTopicsForOneDoc(docStart, subAlpha, scratch, random);
+				for (int topic = 0; topic < numTopics; topic++) {
+					scratch.docDist[topic] += (scratch.docTopicCounts[topic] + subAlpha[topic]) / (docLength + alphaSum);
+				}
+			}
+
+			// log density of the normalized distribution under this subreddit's Dirichlet
+			double[] parameters = dirichletParameters[sub];
+			double logProb = dirichletLogNormalizers[sub];
+			for (int topic = 0; topic < numTopics; topic++) {
+				logProb += (parameters[topic] - 1) * Math.log(scratch.docDist[topic] / samples);
+			}
+
+			if (logProb > maxLogProb) {
+				maxLogProb = logProb;
+				maxsub = sub;
+			}
+		}
+
+		scratch.clear(docStart);
+		return maxsub;
+	}
+
+	private void sampleTopicsForOneDoc (int docStart, double[] subAlpha,
+										Scratch scratch, Randoms random) {
+		int[] docTopics = scratch.docTopics;
+		int[] docTopicCounts = scratch.docTopicCounts;
+		int[] topicDeltas = scratch.topicDeltas;
+		double[] topicWeights = scratch.topicWeights;
+
+		for (int si = 0; si < scratch.docLength; si++) {
+			int[] currentTypeTopicCounts = typeTopicCounts[ tokens[docStart + si] ];
+			int[] currentDeltas = scratch.typeTopicDeltas[ scratch.localTypes[si] ];
+			int oldTopic = docTopics[si];
+
+			docTopicCounts[oldTopic]--;
+			currentDeltas[oldTopic]--;
+			topicDeltas[oldTopic]--;
+
+			double topicWeightsSum = 0;
+			for (int ti = 0; ti < numTopics; ti++) {
+				double tw = ((currentTypeTopicCounts[ti] + currentDeltas[ti] + beta) /
+							 (tokensPerTopic[ti] + topicDeltas[ti] + vBeta))
+					* (docTopicCounts[ti] + subAlpha[ti]);
+				topicWeightsSum += tw;
+				topicWeights[ti] = tw;
+			}
+			int newTopic = random.nextDiscrete (topicWeights, topicWeightsSum);
+
+			docTopics[si] = newTopic;
+			docTopicCounts[newTopic]++;
+			currentDeltas[newTopic]++;
+			topicDeltas[newTopic]++;
+		}
+	}
+
+	/**
+	 *  Per-thread working state for one document: its current topics and
+	 *   topic counts, and the changes made to the snapshot's type/topic
+	 *   counts and topic totals by resampling it.
+	 */
+	public class Scratch {
+		int docLength;
+		int[] docTopics = new int[0];
+		int[] docTopicCounts = new int[numTopics];
+		double[] docDist = new double[numTopics];
+		double[] topicWeights = new double[numTopics];
+
+		int[] localTypeIndex; // feature index -> row of typeTopicDeltas, or -1
+		int[] localTypes = new int[0]; // row of typeTopicDeltas for each position
+		int numLocalTypes;
+		int[][] typeTopicDeltas = new int[0][];
+		int[] topicDeltas = new int[numTopics];
+
+		public Scratch () {
+			localTypeIndex = new int[numTypes];
+			Arrays.fill(localTypeIndex, -1);
+		}
+
+		/** Assign a delta row to each distinct type in the document. */
+		void prepare (int docStart, int docLength) {
+			this.docLength = docLength;
+			if (docTopics.length < docLength) {
+				docTopics = new int[docLength];
+				localTypes = new int[docLength];
+			}
+
+			numLocalTypes = 0;
+			for (int si = 0; si < docLength; si++) {
+				int type = tokens[docStart + si];
+				if (localTypeIndex[type] == -1) {
+					localTypeIndex[type] = numLocalTypes++;
+				}
+				localTypes[si] = localTypeIndex[type];
+			}
+
+			if (typeTopicDeltas.length < numLocalTypes) {
+				int oldLength = typeTopicDeltas.length;
+				typeTopicDeltas = Arrays.copyOf(typeTopicDeltas, Math.max(numLocalTypes, 2 * oldLength));
+				for (int row = oldLength; row < typeTopicDeltas.length; row++) {
+					typeTopicDeltas[row] = new int[numTopics];
+				}
+			}
+		}
+
+		/** Start again from the snapshot assignments for the document. */
+		void reset (int docStart) {
+			System.arraycopy(topics, docStart, docTopics, 0, docLength);
+			Arrays.fill(docTopicCounts, 0);
+			for (int si = 0; si < docLength; si++) {
+				docTopicCounts[ docTopics[si] ]++;
+			}
+			for (int row = 0; row < numLocalTypes; row++) {
+				Arrays.fill(typeTopicDeltas[row], 0);
+			}
+			Arrays.fill(topicDeltas, 0);
+		}
+
+		void clear (int docStart) {
+			for (int si = 0; si < docLength; si++) {
+				localTypeIndex[ tokens[docStart + si] ] = -1;
+			}
+			numLocalTypes = 0;
+		}
+	}
+
+}
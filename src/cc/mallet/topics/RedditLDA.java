@@ -7,10 +7,12 @@
 
 package cc.mallet.topics;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.*;
 import java.io.*;
 
 import cc.mallet.types.*;
@@ -42,8 +44,11 @@ public class RedditLDA {
 	double gamma;	// Bernoulli prior for each alpha to be (alphaScalar) rather than (alphaScalar * eta)
 	double eta;		// "dropout" multiplier for each alpha
 	
+	RedditCorpus corpus;
 	InstanceList ilist;	// the data field of the instances is expected to hold a FeatureSequence
-	int[][] topics; // indexed by <document index, sequence index>
+	int[] tokens; // feature index of every token, from the corpus
+	int[] docStarts; // offset of each document in tokens and topics, with numDocs + 1 entries
+	int[] topics; // topic of every token, parallel to tokens
 	int numDocs;
 	int numTypes;
 	int numTokens;
@@ -52,98 +57,204 @@ public class RedditLDA {
 	int[] docSubreddit; //subreddit each document is from
 	int[][] docTopicCounts; // indexed by <document index, topic index>
 	int[][] typeTopicCounts; // indexed by <feature index, topic index>
-	int[][][] subTypeTopicCounts; // indexed by <subreddit index, feature index, topic index>
+	SubredditTypeTopicCounts subTypeTopicCounts; // indexed by <subreddit index, feature index, topic index>
 	
 	int[] tokensPerTopic; // indexed by <topic index>
 	int[] tokensPerDoc; // number of tokens in each document
 	int[][] tokensPerSubPerTopic; //indexed by <subreddit index, topic index>
 	
+	// for alpha sampling
+	int[][] docsBySub; // documents in each subreddit, indexed by <subreddit index, i>
+	int[][] subDocLengths; // distinct document lengths in each subreddit, ascending
+	int[][] subDocLengthCounts; // number of documents of each length in subDocLengths
+	int[][] topicDocCounts; // scratch histogram of document/topic counts for one subreddit, indexed by <topic index, count>
+	int[] maxTopicDocCount; // largest count in each row of topicDocCounts
+	double[] logGammaLowAlpha; // logGamma(alphaScalar * eta + n), indexed by count
+	double[] logGammaHighAlpha; // logGamma(alphaScalar + n), indexed by count
+	
 	public HashMap<String, Integer> subredditMap;
 	public double FMacro;
 	
+	int numThreads = 1;
+	boolean sparseSampling = false;
+	int logLikelihoodInterval = 0;
+	RedditLogLikelihood logLikelihoodEvaluator; // built when first needed
+	ExecutorService logLikelihoodExecutor; // started when first needed, null with one thread
+	
+	int checkpointInterval = 0;
+	File checkpointFile;
+	RedditLDACheckpoint resumeState; // progress of the interrupted estimate, if this model was resumed
+	
 
 	public RedditLDA (InstanceList documents, String topSub, int numberOfTopics, double alpha, double beta, double gamma, double eta)
+	{
+		this(documents, topSub, numberOfTopics, alpha, beta, gamma, eta, new Randoms());
+	}
+	
+	/* Use the given random stream for the initial topic assignments, so that seeded runs are reproducible. */
+	public RedditLDA (InstanceList documents, String topSub, int numberOfTopics, double alpha, double beta, double gamma, double eta, Randoms r)
+	{
+		this(new RedditCorpus(documents, topSub), numberOfTopics, alpha, beta, gamma, eta, r);
+	}
+	
+	/* Build a model over a corpus that may be shared with other models. */
+	public RedditLDA (RedditCorpus corpus, int numberOfTopics, double alpha, double beta, double gamma, double eta, Randoms r)
+	{
+		this(corpus, numberOfTopics, alpha, beta, gamma, eta);
+		
+		// Initialize with random assignments of tokens to topics
+		topics = new int[numTokens];
+		for (int position = 0; position < numTokens; position++) {
+			topics[position] = r.nextInt(numTopics);
+		}
+		
+		initializeCounts();
+	}
+	
+	/* Set the hyperparameters and allocate the counts, but leave the topic assignments to the caller. */
+	RedditLDA (RedditCorpus corpus, int numberOfTopics, double alpha, double beta, double gamma, double eta)
 	{
 		this.numTopics = numberOfTopics;
 		this.alphaScalar = alpha;
 		this.beta = beta;
-		this.ilist = documents;
 		this.gamma = gamma;
 		this.eta = eta;
 		
-		
-		//get number of subreddits, map them to integers
-		HashSet<String> targetset = new HashSet<String>();
-		for(Instance inst : documents) {
-			targetset.add(inst.getTarget().toString());
-		}
-		this.numSubreddits = targetset.size();
-		System.out.print("Number of subreddits: ");
-		System.out.println(this.numSubreddits);
-		this.subredditMap = new HashMap<String, Integer>();
-		this.subredditMap.put(topSub, 0);
-		int num = 1;
-		for(String sub: targetset) {
-			if(!this.subredditMap.containsKey(sub)){
-				this.subredditMap.put(sub, num);
-				num++;
-			}
-		}
+		// Shared, read-only corpus structure
+		this.corpus = corpus;
+		this.ilist = corpus.ilist;
+		this.numSubreddits = corpus.numSubreddits;
+		this.subredditMap = corpus.subredditMap;
+		this.numTypes = corpus.numTypes;
+		this.numDocs = corpus.numDocs;
+		this.numTokens = corpus.numTokens;
+		this.docsPerSub = corpus.docsPerSub;
+		this.docSubreddit = corpus.docSubreddit;
+		this.tokensPerDoc = corpus.tokensPerDoc;
+		this.tokens = corpus.tokens;
+		this.docStarts = corpus.docStarts;
+		this.docsBySub = corpus.docsBySub;
+		this.subDocLengths = corpus.subDocLengths;
+		this.subDocLengthCounts = corpus.subDocLengthCounts;
 		
 		//initialize alpha matrix
 		this.alpha = new double[numSubreddits][numTopics];
 		for(int c = 0; c < numSubreddits; c++)
 			for(int i = 0; i < numTopics; i++)
 				this.alpha[c][i] = alphaScalar;
-				
-				
-		//initialize topic assignments randomly
-		numTypes = ilist.getDataAlphabet().size();
-		numDocs = ilist.size();
-		topics = new int[numDocs][];
-		docsPerSub = new int[numSubreddits];
-		docSubreddit = new int[numDocs];
-		tokensPerDoc = new int[numDocs];
+		
+		vBeta = beta * numTypes;
+		initializeAlphaStatistics();
+	}
+	
+	/* Build every count from the current topic assignments. */
+	void initializeCounts ()
+	{
 		docTopicCounts = new int[numDocs][numTopics];
 		typeTopicCounts = new int[numTypes][numTopics];
 		tokensPerTopic = new int[numTopics];
-		subTypeTopicCounts = new int[numSubreddits][numTypes][numTopics];
+		subTypeTopicCounts = new SubredditTypeTopicCounts(numSubreddits, numTopics);
 		tokensPerSubPerTopic = new int[numSubreddits][numTopics];
-		vBeta = beta * numTypes;
-
-		// Initialize with random assignments of tokens to topics
-		// and finish allocating this.topics and this.tokens
-		int topic, seqLen;
-		FeatureSequence fs;
-		Randoms r = new Randoms();
+		
 		for (int di = 0; di < numDocs; di++) {
-			try {
-				fs = (FeatureSequence) ilist.get(di).getData();
-			} catch (ClassCastException e) {
-				System.err.println ("LDA and other topic models expect FeatureSequence data, not FeatureVector data.	"
-								+"With text2vectors, you can obtain such data with --keep-sequence or --keep-bisequence.");
-				throw e;
-			}
-			int sub = subredditMap.get(ilist.get(di).getTarget().toString());
-			docSubreddit[di] = sub;
-			docsPerSub[sub]++;
-			seqLen = fs.getLength();
-			numTokens += seqLen;
-			tokensPerDoc[di] = seqLen;
-			topics[di] = new int[seqLen];
-			// Randomly assign tokens to topics
-			for (int si = 0; si < seqLen; si++) {
-				topic = r.nextInt(numTopics);
-				topics[di][si] = topic;
+			int sub = docSubreddit[di];
+			for (int position = docStarts[di]; position < docStarts[di + 1]; position++) {
+				int topic = topics[position];
+				int type = tokens[position];
 				docTopicCounts[di][topic]++;
-				typeTopicCounts[fs.getIndexAtPosition(si)][topic]++;
-				subTypeTopicCounts[sub][fs.getIndexAtPosition(si)][topic]++;
+				typeTopicCounts[type][topic]++;
+				subTypeTopicCounts.increment(sub, type, topic);
 				tokensPerTopic[topic]++;
 				tokensPerSubPerTopic[sub][topic]++;
 			}
 		}
+		
+		System.out.println("Subreddit type/topic counts: " + subTypeTopicCounts.size() + " (subreddit, type) pairs, about " +
+				(subTypeTopicCounts.estimateFootprint() >> 20) + " MB (dense: " +
+				(4L * numSubreddits * numTypes * numTopics >> 20) + " MB)");
+	}
+	
+	/**
+	 * A rough upper bound, in bytes, on the heap a model over this corpus allocates
+	 * beyond the shared corpus itself: dense topic counts, assignments, per-subreddit
+	 * counts (at most one packed entry per token) and the per-thread count copies.
+	 */
+	public static long estimateMemory (RedditCorpus corpus, int numTopics, int numThreads)
+	{
+		long typeTopicBytes = 4L * corpus.numTypes * numTopics + 16L * corpus.numTypes;
+		long bytes = typeTopicBytes;
+		bytes += 4L * corpus.numDocs * numTopics + 32L * corpus.numDocs; // docTopicCounts
+		bytes += 4L * corpus.numTokens + 16L * corpus.numDocs; // topics
+		bytes += 8L * corpus.numTokens; // subTypeTopicCounts
+		bytes += 4L * numTopics * (corpus.maxDocLength + 1); // alpha sampling histograms
+		if (numThreads > 1) {
+			bytes += numThreads * typeTopicBytes;
+		}
+		return bytes;
 	}
 
+	/**
+	 * Sample with this many threads. Documents are split into contiguous blocks,
+	 * one per thread, and counts are merged after every sweep. For a fixed seed
+	 * and thread count the results are reproducible.
+	 */
+	public void setNumThreads(int threads) {
+		if (threads != numThreads) {
+			shutdown();
+		}
+		this.numThreads = threads;
+	}
+
+	/** Stops the threads kept for evaluating the log likelihood. They are started again when next needed. */
+	public synchronized void shutdown() {
+		if (logLikelihoodExecutor != null) {
+			logLikelihoodExecutor.shutdown();
+			logLikelihoodExecutor = null;
+		}
+	}
+
+	/**
+	 * Sample with the SparseLDA bucket decomposition (see {@link RedditSparseWorkerRunnable})
+	 * instead of filling a dense weight vector over all topics for every token.
+	 */
+	public void setSparseSampling(boolean sparse) {
+		this.sparseSampling = sparse;
+	}
+
+	/** Print the model log likelihood per token every <code>interval</code> iterations of <code>estimate</code>, or never if 0. */
+	public void setLogLikelihoodInterval(int interval) {
+		this.logLikelihoodInterval = interval;
+	}
+
+	/**
+	 * Every <code>interval</code> iterations of <code>estimate</code>, save the topic
+	 * assignments, alphas and random number generator state to <code>file</code>.
+	 * A run that stops early can be continued with {@link #resume} and {@link #resumeEstimate}.
+	 */
+	public void setCheckpoint(int interval, File file) {
+		this.checkpointInterval = interval;
+		this.checkpointFile = file;
+	}
+	
+	/**
+	 * Rebuild a model from a checkpoint written by <code>estimate</code>, without the random
+	 * initialization. The corpus must be the one the checkpointed model was built on.
+	 */
+	public static RedditLDA resume(RedditCorpus corpus, File file) throws IOException {
+		return RedditLDACheckpoint.read(corpus, file);
+	}
+	
+	/* Finish the call to estimate that was running when the checkpoint this model was resumed from was written. */
+	public void resumeEstimate(int showTopicsInterval) {
+		if (resumeState == null) {
+			throw new IllegalStateException("This model was not resumed from a checkpoint");
+		}
+		RedditLDACheckpoint state = resumeState;
+		resumeState = null;
+		estimate(state.docIndexStart, state.docIndexLength, state.completedIterations,
+				state.numIterations, showTopicsInterval, state.random);
+	}
+	
 	public void estimate (int numIterations, int showTopicsInterval,
 						Randoms r)
 	{
@@ -153,18 +264,64 @@ public class RedditLDA {
 	/* Perform several rounds of Gibbs sampling on the documents in the given range. */ 
 	public void estimate (int docIndexStart, int docIndexLength,
 							int numIterations, int showTopicsInterval, Randoms r)
+	{
+		estimate(docIndexStart, docIndexLength, 0, numIterations, showTopicsInterval, r);
+	}
+	
+	private void estimate (int docIndexStart, int docIndexLength, int firstIteration,
+							int numIterations, int showTopicsInterval, Randoms r)
 	{
 		long startTime = System.currentTimeMillis();
-		for (int iterations = 0; iterations < numIterations; iterations++) {
-			if (iterations % 10 == 0) System.out.print (iterations);	else System.out.print (".");
-			System.out.flush();
-			if (showTopicsInterval != 0 && iterations % showTopicsInterval == 0 && iterations > 0) {
-				System.out.println ();
-				printTopWords (50, false);
-			}
 		
-			sampleTopicsForDocs(docIndexStart, docIndexLength, r);
-			sampleAlphas(r);
+		RedditWorkerRunnable[] runnables = null;
+		ExecutorService executor = null;
+		boolean useWorkers = numThreads > 1 || sparseSampling;
+		if (useWorkers) {
+			runnables = createWorkers(docIndexStart, docIndexLength);
+			executor = Executors.newFixedThreadPool(numThreads);
+		}
+		
+		// Stop the sampling threads even if a sweep fails
+		try {
+			for (int iterations = firstIteration; iterations < numIterations; iterations++) {
+				if (iterations % 10 == 0) System.out.print (iterations);	else System.out.print (".");
+				System.out.flush();
+				if (showTopicsInterval != 0 && iterations % showTopicsInterval == 0 && iterations > 0) {
+					System.out.println ();
+					printTopWords (50, false);
+				}
+		
+				if (useWorkers) {
+					sampleTopicsInParallel(runnables, executor, r);
+				} else {
+					sampleTopicsForDocs(docIndexStart, docIndexLength, r);
+				}
+				sampleAlphas(r);
+			
+				if (logLikelihoodInterval != 0 && (iterations + 1) % logLikelihoodInterval == 0) {
+					System.out.println ("\n<" + (iterations + 1) + "> LL/token: " + getLogLikelihood() / numTokens);
+				}
+			
+				if (checkpointInterval != 0 && (iterations + 1) % checkpointInterval == 0 && iterations + 1 < numIterations) {
+					try {
+						RedditLDACheckpoint.write(this, checkpointFile, docIndexStart, docIndexLength,
+								iterations + 1, numIterations, r);
+					} catch (IOException e) {
+						// Losing a checkpoint shouldn't lose the run
+						System.err.println("Couldn't write checkpoint " + checkpointFile + ": " + e);
+					}
+				
+					// A resumed run rebuilds its workers from the global counts, so do the
+					//  same here; otherwise the order of tied sparse counts could differ.
+					if (useWorkers) {
+						runnables = createWorkers(docIndexStart, docIndexLength);
+					}
+				}
+			}
+		} finally {
+			if (executor != null) {
+				executor.shutdownNow();
+			}
 		}
 
 		long seconds = Math.round((System.currentTimeMillis() - startTime)/1000.0);
@@ -192,11 +349,105 @@ public class RedditLDA {
 		// Loop over every word in the corpus
 		for (int di = start; di < start+length; di++) {
 			int sub = this.docSubreddit[di];//subredditMap.get(ilist.get(di).getTarget().toString());
-			sampleTopicsForOneDoc ((FeatureSequence)ilist.get(di).getData(),
-									 topics[di], docTopicCounts[di], topicWeights, sub, r);
+			sampleTopicsForOneDoc (docStarts[di], docStarts[di + 1],
+									 docTopicCounts[di], topicWeights, sub, r);
+		}
+	}
+	
+	/* Split the documents in the given range into one block per thread, balanced by token count. */
+	private RedditWorkerRunnable[] createWorkers (int start, int length)
+	{
+		RedditWorkerRunnable[] runnables = new RedditWorkerRunnable[numThreads];
+		
+		long tokensInRange = 0;
+		for (int di = start; di < start+length; di++) {
+			tokensInRange += tokensPerDoc[di];
 		}
+		
+		int offset = start;
+		long tokensSoFar = 0;
+		for (int thread = 0; thread < numThreads; thread++) {
+			int end = offset;
+			if (thread == numThreads - 1) {
+				end = start + length;
+			} else {
+				long target = tokensInRange * (thread + 1) / numThreads;
+				while (end < start + length && tokensSoFar < target) {
+					tokensSoFar += tokensPerDoc[end];
+					end++;
+				}
+			}
+			
+			int[] runnableTotals = new int[numTopics];
+			System.arraycopy(tokensPerTopic, 0, runnableTotals, 0, numTopics);
+			
+			if (sparseSampling) {
+				// The sparse worker builds its own packed copy of the counts
+				runnables[thread] = new RedditSparseWorkerRunnable(numTopics, alpha, beta,
+						tokens, docStarts, topics, docTopicCounts, docSubreddit,
+						typeTopicCounts, runnableTotals,
+						offset, end - offset);
+			} else {
+				int[][] runnableCounts = new int[numTypes][];
+				for (int type = 0; type < numTypes; type++) {
+					runnableCounts[type] = typeTopicCounts[type].clone();
+				}
+				
+				runnables[thread] = new RedditWorkerRunnable(numTopics, alpha, beta,
+						tokens, docStarts, topics, docTopicCounts, docSubreddit,
+						runnableCounts, runnableTotals,
+						offset, end - offset);
+			}
+			offset = end;
+		}
+		
+		return runnables;
 	}
 	
+	/* One parallel sweep: each worker samples its own documents against local counts,
+	 * then every worker's move log is replayed onto the global counts and onto the
+	 * other workers' local copies. */
+	private void sampleTopicsInParallel (final RedditWorkerRunnable[] runnables, ExecutorService executor, Randoms r)
+	{
+		// Reseed from the model's stream so that a fixed seed and thread count reproduce a run
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (int thread = 0; thread < numThreads; thread++) {
+			runnables[thread].setRandom(new Randoms(r.nextInt()));
+			tasks.add(Executors.callable(runnables[thread]));
+		}
+		ParallelTasks.invokeAll(executor, tasks, "sampling");
+		
+		for (RedditWorkerRunnable runnable : runnables) {
+			int[] moves = runnable.getMoves();
+			int end = runnable.getNumMoves() * 3;
+			for (int index = 0; index < end; index += 3) {
+				int type = moves[index];
+				int sub = moves[index + 1];
+				int oldTopic = moves[index + 2] >> runnable.topicBits;
+				int newTopic = moves[index + 2] & runnable.topicMask;
+				
+				typeTopicCounts[type][oldTopic]--;
+				typeTopicCounts[type][newTopic]++;
+				subTypeTopicCounts.decrement(sub, type, oldTopic);
+				subTypeTopicCounts.increment(sub, type, newTopic);
+				tokensPerTopic[oldTopic]--;
+				tokensPerTopic[newTopic]++;
+				tokensPerSubPerTopic[sub][oldTopic]--;
+				tokensPerSubPerTopic[sub][newTopic]++;
+			}
+		}
+		
+		tasks.clear();
+		for (final RedditWorkerRunnable runnable : runnables) {
+			tasks.add(Executors.callable(new Runnable() {
+				public void run() {
+					runnable.applyMoves(runnables, tokensPerTopic);
+				}
+			}));
+		}
+		ParallelTasks.invokeAll(executor, tasks, "merging moves");
+	}
+		
 	private double logsum(double x, double y) {
 		if(x >= y) {
 			return x + Math.exp(y - x);
@@ -205,12 +456,30 @@ public class RedditLDA {
 		}
 	}
 	
-	private double logAlphaNumerator(double x, double alphasMinusTopic, int doc, int topic) {
-		return Gamma.logGamma(x + alphasMinusTopic) + Gamma.logGamma(x + this.docTopicCounts[doc][topic]);
+	/* Allocate the scratch histograms, and cache logGamma of the two possible alphas plus every possible count. */
+	private void initializeAlphaStatistics() {
+		int maxDocLength = corpus.maxDocLength;
+		topicDocCounts = new int[numTopics][maxDocLength + 1];
+		maxTopicDocCount = new int[numTopics];
+		logGammaLowAlpha = new double[maxDocLength + 1];
+		logGammaHighAlpha = new double[maxDocLength + 1];
+		for (int n = 0; n <= maxDocLength; n++) {
+			logGammaLowAlpha[n] = Gamma.logGamma(alphaScalar * eta + n);
+			logGammaHighAlpha[n] = Gamma.logGamma(alphaScalar + n);
+		}
 	}
 	
-	private double logAlphaDenominator(double x, double alphasMinusTopic, int doc) {
-		return Gamma.logGamma(x) + Gamma.logGamma(x + this.tokensPerDoc[doc] + alphasMinusTopic);
+	/* The part of the log probability of a subreddit's documents under alpha[c][i] = x
+	 * that does not depend on the document/topic counts:
+	 * sum over documents of logGamma(x + alphasMinusTopic) - logGamma(x) - logGamma(x + tokensPerDoc + alphasMinusTopic). */
+	private double logAlphaConstantTerms(int c, double x, double alphasMinusTopic) {
+		double value = docsPerSub[c] * (Gamma.logGamma(x + alphasMinusTopic) - Gamma.logGamma(x));
+		int[] lengths = subDocLengths[c];
+		int[] lengthCounts = subDocLengthCounts[c];
+		for (int index = 0; index < lengths.length; index++) {
+			value -= lengthCounts[index] * Gamma.logGamma(x + lengths[index] + alphasMinusTopic);
+		}
+		return value;
 	}
 	
 	private void sampleAlphas(Randoms r) {
@@ -222,51 +491,13 @@ public class RedditLDA {
 		
 		//don't resample for top subreddit
 		for(int c = 1; c < numSubreddits; c++){
-			double alphaSubSum = 0;
-			int tokensInSub = 0;
-			for(int i = 0; i < numTopics; i++){
-				alphaSubSum += alpha[c][i];
-				tokensInSub += tokensPerSubPerTopic[c][i];
-			}
-			
+			// Every weight uses the alphas from before this subreddit's draws
+			double[][] weights = getAlphaLogWeights(c);
 			
 			for(int i = 0; i < numTopics; i++){
-				double alphaSumMinusTopic = alphaSubSum - alpha[c][i];
-				//System.out.println(alphaSumMinusTopic);
-			
-				double low = Math.log(1 - this.gamma) * this.docsPerSub[c];
-				double high = Math.log(this.gamma) * this.docsPerSub[c];
-				
-				for(int d = 0; d < numDocs; d++) {
-					if(this.docSubreddit[d] != c) {
-						continue;
-					}
-					
-					low += logAlphaNumerator(alphaScalar * eta, alphaSumMinusTopic, d, i);
-					low -= logAlphaDenominator(alphaScalar * eta, alphaSumMinusTopic, d);
-					high += logAlphaNumerator(alphaScalar, alphaSumMinusTopic, d, i);
-					high -= logAlphaDenominator(alphaScalar, alphaSumMinusTopic, d);
-				}
-				
-				/* Old calculations: aggregate counts in subreddit instead of product over documents
-				double x = alphaScalar * eta;
-				double top = Gamma.logGamma(x + alphaSumMinusTopic) + Gamma.logGamma(tokensPerSubPerTopic[c][i] + x);
-				double bot = Gamma.logGamma(x) + Gamma.logGamma(x + alphaSumMinusTopic + (tokensInSub));
-				double low = Math.log(1 - gamma) + top - bot;
-				
-				x = alphaScalar;
-				top = Gamma.logGamma(x + alphaSumMinusTopic) + Gamma.logGamma(tokensPerSubPerTopic[c][i] + x);
-				bot = Gamma.logGamma(x) + Gamma.logGamma(x + alphaSumMinusTopic + (tokensInSub));
-				double high = Math.log(gamma) + top - bot; */
-
-				//System.out.println("Low:  " + low);
-				//System.out.println("High: " + high);
-				
-				
+				double low = weights[i][0];
+				double high = weights[i][1];
 				double p = Math.exp(low - logsum(low, high));
-
-				//System.out.println(p);
-				//System.out.println();
 				
 				double a = r.nextFloat();
 				if(a < p) {
@@ -274,29 +505,105 @@ public class RedditLDA {
 				} else {
 					alpha[c][i] = alphaScalar;
 				}
-				
-				
 			}
 		}
 	}
+	
+	/**
+	 * Unnormalized log probabilities of each alpha of subreddit c being low (alphaScalar * eta)
+	 * or high (alphaScalar), given the document/topic counts and the subreddit's other alphas.
+	 * Indexed by <topic index, 0 for low or 1 for high>.
+	 */
+	public double[][] getAlphaLogWeights(int c) {
+		double[][] weights = new double[numTopics][2];
+		
+		double alphaSubSum = 0;
+		for(int i = 0; i < numTopics; i++){
+			alphaSubSum += alpha[c][i];
+		}
+		
+		// Histogram of this subreddit's document/topic counts
+		int[] docs = docsBySub[c];
+		Arrays.fill(maxTopicDocCount, 0);
+		for(int d = 0; d < docs.length; d++) {
+			int[] counts = docTopicCounts[docs[d]];
+			for(int i = 0; i < numTopics; i++){
+				topicDocCounts[i][counts[i]]++;
+				if(counts[i] > maxTopicDocCount[i]) {
+					maxTopicDocCount[i] = counts[i];
+				}
+			}
+		}
+		
+		// The remaining terms depend on the topic only through alphaSumMinusTopic,
+		// which takes at most two values in a subreddit, so remember both.
+		double[] cachedSumMinusTopic = { Double.NaN, Double.NaN };
+		double[][] cachedConstantTerms = new double[2][];
+		
+		for(int i = 0; i < numTopics; i++){
+			double alphaSumMinusTopic = alphaSubSum - alpha[c][i];
+			
+			int slot = 0;
+			while(slot < 2 && cachedConstantTerms[slot] != null && cachedSumMinusTopic[slot] != alphaSumMinusTopic) {
+				slot++;
+			}
+			if(slot == 2) {
+				slot = 1;
+				cachedConstantTerms[slot] = null;
+			}
+			if(cachedConstantTerms[slot] == null) {
+				cachedSumMinusTopic[slot] = alphaSumMinusTopic;
+				cachedConstantTerms[slot] = new double[] {
+						logAlphaConstantTerms(c, alphaScalar * eta, alphaSumMinusTopic),
+						logAlphaConstantTerms(c, alphaScalar, alphaSumMinusTopic) };
+			}
+		
+			double low = Math.log(1 - this.gamma) * this.docsPerSub[c] + cachedConstantTerms[slot][0];
+			double high = Math.log(this.gamma) * this.docsPerSub[c] + cachedConstantTerms[slot][1];
+			
+			// sum over documents of logGamma(x + docTopicCounts[d][i])
+			int[] histogram = topicDocCounts[i];
+			for(int n = 0; n <= maxTopicDocCount[i]; n++) {
+				if(histogram[n] != 0) {
+					low += histogram[n] * logGammaLowAlpha[n];
+					high += histogram[n] * logGammaHighAlpha[n];
+					histogram[n] = 0;
+				}
+			}
+			
+			/* Old calculations: aggregate counts in subreddit instead of product over documents
+			double x = alphaScalar * eta;
+			double top = Gamma.logGamma(x + alphaSumMinusTopic) + Gamma.logGamma(tokensPerSubPerTopic[c][i] + x);
+			double bot = Gamma.logGamma(x) + Gamma.logGamma(x + alphaSumMinusTopic + (tokensInSub));
+			double low = Math.log(1 - gamma) + top - bot;
+			
+			x = alphaScalar;
+			top = Gamma.logGamma(x + alphaSumMinusTopic) + Gamma.logGamma(tokensPerSubPerTopic[c][i] + x);
+			bot = Gamma.logGamma(x) + Gamma.logGamma(x + alphaSumMinusTopic + (tokensInSub));
+			double high = Math.log(gamma) + top - bot; */
+			
+			weights[i][0] = low;
+			weights[i][1] = high;
+		}
+		return weights;
+	}
 
-	private void sampleTopicsForOneDoc (FeatureSequence oneDocTokens, int[] oneDocTopics, // indexed by seq position
+	private void sampleTopicsForOneDoc (int docStart, int docEnd, // positions in the token stream
 										int[] oneDocTopicCounts, // indexed by topic index
 										double[] topicWeights, int sub, Randoms r)
 	{
 		int[] currentTypeTopicCounts;
 		int type, oldTopic, newTopic;
 		double topicWeightsSum;
-		int docLen = oneDocTokens.getLength();
 		double tw;
 		// Iterate over the positions (words) in the document
-		for (int si = 0; si < docLen; si++) {
-			type = oneDocTokens.getIndexAtPosition(si);
-			oldTopic = oneDocTopics[si];
+		for (int position = docStart; position < docEnd; position++) {
+			type = tokens[position];
+			oldTopic = topics[position];
 			// Remove this token from all counts
 			oneDocTopicCounts[oldTopic]--;
 			typeTopicCounts[type][oldTopic]--;
-			subTypeTopicCounts[sub][type][oldTopic]--;
+			subTypeTopicCounts.decrement(sub, type, oldTopic);
 			tokensPerTopic[oldTopic]--;
 			tokensPerSubPerTopic[sub][oldTopic]--;
 			// Build a distribution over topics for this token
@@ -313,10 +620,10 @@ public class RedditLDA {
 			newTopic = r.nextDiscrete (topicWeights, topicWeightsSum);
 
 			// Put that new topic into the counts
-			oneDocTopics[si] = newTopic;
+			topics[position] = newTopic;
 			oneDocTopicCounts[newTopic]++;
 			typeTopicCounts[type][newTopic]++;
-			subTypeTopicCounts[sub][type][newTopic]++;
+			subTypeTopicCounts.increment(sub, type, newTopic);
 			tokensPerTopic[newTopic]++;
 			tokensPerSubPerTopic[sub][newTopic]++;
 		}
@@ -349,44 +656,18 @@ public class RedditLDA {
 	}
 	
 	public double logLikeTopicDen(int top) {
-		double logden = Gamma.logGamma(this.tokensPerTopic[top] + this.vBeta);
-		for(int tok = 0; tok < this.numTypes; tok++) {
-			logden += Gamma.logGamma(this.beta);
-		}
-		return logden;
+		return Gamma.logGamma(this.tokensPerTopic[top] + this.vBeta) + this.numTypes * Gamma.logGamma(this.beta);
 	}
 	
-	public double getLogLikelihood() {
-		
-		double logLike = 0;
-		
-		//first loop over subs / docs
-		for(int sub = 0; sub < this.numSubreddits; sub++) {
-			
-			double alphaSubSum = 0;
-			int tokensInSub = 0;
-			for(int i = 0; i < numTopics; i++){
-				alphaSubSum += alpha[sub][i];
-				tokensInSub += tokensPerSubPerTopic[sub][i];
-			}
-			
-			for(int doc = 0; doc < this.numDocs; doc++) {
-				if(sub != this.docSubreddit[doc])
-					continue;
-				
-				logLike += logLikeDocNum(alphaSubSum, doc);
-				logLike -= logLikeDocDen(alphaSubSum, doc);
-			}
+	/* Joint log likelihood of the current topic assignments, evaluated with numThreads threads. */
+	public synchronized double getLogLikelihood() {
+		if (logLikelihoodEvaluator == null) {
+			logLikelihoodEvaluator = new RedditLogLikelihood(this);
 		}
-		
-		//then loop over topics
-		for(int top = 0; top < this.numTopics; top++) {
-			logLike += logLikeTopicNum(top);
-			logLike -= logLikeTopicDen(top);
+		if (numThreads > 1 && logLikelihoodExecutor == null) {
+			logLikelihoodExecutor = ParallelTasks.newDaemonPool(numThreads, "RedditLDA log likelihood");
 		}
-		
-		return logLike;
-		
+		return logLikelihoodEvaluator.evaluate(logLikelihoodExecutor);
 	}
 	
 	public Set<String> getSubredditSet() {
@@ -404,45 +685,63 @@ public class RedditLDA {
 	}
 	
 	public HashMap<String, double[]> getSubredditTopicDistributions(boolean smoothed, int end) {
-		
+		double[][] subTopics = getSubredditTopicMatrix(smoothed, end);
 		HashMap<String, double[]> targetTopics = new HashMap<String, double[]>();
-        HashMap<String, Integer> targetTotals = new HashMap<String, Integer>();
-        Set<String> targetset = this.subredditMap.keySet();
-        for (String target : targetset) {
-        	targetTopics.put(target, new double[numTopics]);
-        	targetTotals.put(target,  0);
-        }
-        
-        for(int c = 0; c < end; c++) {
-        	
-        	if(this.tokensPerDoc[c] == 0) {
-    			continue;
-    		}
-        	
-        	double[] topicDist = this.getTopicProbabilities(c, smoothed);
-        	String target = this.ilist.get(c).getTarget().toString();
-        	double[] totalDist = targetTopics.get(target);
-        	for(int i = 0; i < numTopics; i++){
-        		totalDist[i] += topicDist[i];
-        	}
-        	targetTopics.put(target, totalDist);
-        	targetTotals.put(target, targetTotals.get(target) + 1);
-        }
-        
-        for(String target: targetset) {
-        	double[] dist = targetTopics.get(target);      	
-        	for(int c = 0; c < numTopics; c++) {
-        		if(targetTotals.get(target) == 0) {
-        			System.out.println("Shit is zero for this sub yo: " + target);
-        		}
-        		dist[c] = dist[c] / targetTotals.get(target);
-        	}
-        	targetTopics.put(target, dist);
-        }
-        
-        return targetTopics;
+		for (int sub = 0; sub < numSubreddits; sub++) {
+			targetTopics.put(corpus.getSubredditName(sub), subTopics[sub]);
+		}
+		return targetTopics;
 	}
 	
+	/**
+	 * The mean topic proportions of the non-empty documents before <code>end</code> in each
+	 * subreddit, indexed by <subreddit index, topic index>, computed in one pass over the documents.
+	 */
+	public double[][] getSubredditTopicMatrix(boolean smoothed, int end) {
+		double[] alphaSums = new double[numSubreddits];
+		for (int sub = 0; sub < numSubreddits; sub++) {
+			for (int i = 0; i < numTopics; i++) {
+				alphaSums[sub] += alpha[sub][i];
+			}
+		}
+		
+		double[][] subTopics = new double[numSubreddits][numTopics];
+		int[] subDocs = new int[numSubreddits];
+		for (int doc = 0; doc < end; doc++) {
+			if (tokensPerDoc[doc] == 0) {
+				continue;
+			}
+			
+			// The topic counts of a document always sum to its length
+			int sub = docSubreddit[doc];
+			int[] topicCounts = docTopicCounts[doc];
+			double[] total = subTopics[sub];
+			if (smoothed) {
+				double[] a = alpha[sub];
+				double norm = tokensPerDoc[doc] + alphaSums[sub];
+				for (int i = 0; i < numTopics; i++) {
+					total[i] += (topicCounts[i] + a[i]) / norm;
+				}
+			}
+			else {
+				double norm = tokensPerDoc[doc];
+				for (int i = 0; i < numTopics; i++) {
+					total[i] += topicCounts[i] / norm;
+				}
+			}
+			subDocs[sub]++;
+		}
+		
+		for (int sub = 0; sub < numSubreddits; sub++) {
+			if (subDocs[sub] == 0) {
+				System.out.println("No documents for subreddit: " + corpus.getSubredditName(sub));
+			}
+			for (int i = 0; i < numTopics; i++) {
+				subTopics[sub][i] /= subDocs[sub];
+			}
+		}
+		return subTopics;
+	}
 	
 	public double[] getTopicProbabilities(int instanceID, boolean smoothed) {
 		//get subreddit ID
@@ -510,8 +809,8 @@ public class RedditLDA {
 			
 			for(int c = 0; c < samples; c++) {
 				double[] topicWeights = new double[this.numTopics];
-				this.sampleTopicsForOneDoc((FeatureSequence)ilist.get(doc).getData(),
-						 topics[doc], docTopicCounts[doc], topicWeights, sub, r);
+				this.sampleTopicsForOneDoc(docStarts[doc], docStarts[doc + 1],
+						 docTopicCounts[doc], topicWeights, sub, r);
 				docDist = this.dubsum(docDist, this.getTopicProbabilities(doc, true));
 			}
 			
@@ -549,40 +848,19 @@ public class RedditLDA {
 	
 	//classify the subreddit of the last fifth of the documents
 	public double classifyDocuments(int samples, int[][] confusion) {
-		double accuracy = 0;
-		int total = 0;
-		int[] subTotals = new int[this.numSubreddits];
+		return classifyDocuments(samples, confusion, new Randoms());
+	}
+	
+	/* Classify the last fifth of the documents on numThreads threads, against a snapshot of the model. */
+	public double classifyDocuments(int samples, int[][] confusion, Randoms r) {
 		int start = (int) Math.ceil(this.numDocs * 0.8);
 		
 		HashMap<String, double[]> subDists = this.getSubredditTopicDistributions(true, (int) Math.floor(this.numDocs * 0.8));
+		RedditHeldOutClassifier classifier = new RedditHeldOutClassifier(this, subDists, samples, numThreads, r);
+		double accuracy = classifier.classifyDocuments(start, this.numDocs, confusion);
 		
-		for(int c = start; c < this.numDocs; c++) {
-			
-			if(this.tokensPerDoc[c] == 0) {
-				continue;
-			}
-			subTotals[this.docSubreddit[c]] ++;
-			accuracy += classifyDoc(c, samples, subDists, confusion);
-			total ++;
-		}
-		
-		//calculate f-macro score
-		double f = 0;
-		for(int label = 0; label < this.numSubreddits; label++) {
-			int truePos = confusion[label][label];
-			int actualPos = subTotals[label];
-			int totalPreds = 0;
-			for(int sub = 0; sub < this.numSubreddits; sub++) {
-				totalPreds += confusion[sub][label];
-			}
-			
-			double pres = (double) truePos / (double) totalPreds;
-			double recall = (double) truePos / (double) actualPos;
-			f += 2 * (pres * recall) / (pres + recall);
-		}
-		
-		this.FMacro =  f / this.numSubreddits;
-		return accuracy / total;
+		this.FMacro = classifier.getFMacro();
+		return accuracy;
 	}
 	
 	public int[][] getDocTopicCounts(){
@@ -593,10 +871,23 @@ public class RedditLDA {
 		return typeTopicCounts;
 	}
 
+	public SubredditTypeTopicCounts getSubTypeTopicCounts(){
+		return subTypeTopicCounts;
+	}
+
 	public int[] getTokensPerTopic(){
 		return tokensPerTopic;
 	}
 
+	public int[][] getTokensPerSubPerTopic(){
+		return tokensPerSubPerTopic;
+	}
+
+	/* The topic of every token, documents concatenated in order. */
+	public int[] getTopics(){
+		return topics;
+	}
+
 	public void printTopWords (int numWords, boolean useNewLines)
 	{
 		class WordProb implements Comparable {
@@ -696,8 +987,8 @@ public class RedditLDA {
 	{
 	pw.println ("#doc source topic proportion ...");
 	int docLen;
-	double topicDist[] = new double[topics.length];
-	for (int di = 0; di < topics.length; di++) {
+	double topicDist[] = new double[numTopics];
+	for (int di = 0; di < numDocs; di++) {
 		pw.print (di); pw.print (' ');
 			if (ilist.get(di).getSource() != null){
 				pw.print (ilist.get(di).getSource().toString()); 
@@ -706,7 +997,7 @@ public class RedditLDA {
 				pw.print("null-source");
 			}
 			pw.print (' ');
-		docLen = topics[di].length;
+		docLen = tokensPerDoc[di];
 		for (int ti = 0; ti < numTopics; ti++)
 		topicDist[ti] = (((float)docTopicCounts[di][ti])/docLen);
 		if (max < 0) max = numTopics;
@@ -741,21 +1032,25 @@ public class RedditLDA {
 	{
 		Alphabet a = ilist.getDataAlphabet();
 		pw.println ("#doc pos typeindex type topic");
-		for (int di = 0; di < topics.length; di++) {
-			FeatureSequence fs = (FeatureSequence) ilist.get(di).getData();
-			for (int si = 0; si < topics[di].length; si++) {
-				int type = fs.getIndexAtPosition(si);
+		for (int di = 0; di < numDocs; di++) {
+			for (int si = 0; si < tokensPerDoc[di]; si++) {
+				int type = tokens[docStarts[di] + si];
 				pw.print(di); pw.print(' ');
 				pw.print(si); pw.print(' ');
 				pw.print(type); pw.print(' ');
 				pw.print(a.lookupObject(type)); pw.print(' ');
-				pw.print(topics[di][si]); pw.println();
+				pw.print(topics[docStarts[di] + si]); pw.println();
 			}
 		}
 	}
 
 
 
+	public RedditCorpus getCorpus ()
+	{
+		return corpus;
+	}
+
 	public InstanceList getInstanceList ()
 	{
 		return ilist;
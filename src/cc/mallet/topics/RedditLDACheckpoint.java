@@ -0,0 +1,237 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import cc.mallet.util.Randoms;
+
+/**
+ * A binary snapshot of a {@link RedditLDA} run in progress: the hyperparameters,
+ * the alphas, the topic of every token, the state of the random number generator
+ * and how far through <code>estimate</code> the run was.
+ * <p>
+ * Counts are not saved, since they can be rebuilt from the topic assignments. Topics
+ * are stored in one, two or four bytes each, depending on the number of topics, and
+ * the file is written through a buffered channel rather than Java serialization.
+ * A checkpoint is written to a temporary file and then renamed over the old one,
+ * so a crash while writing leaves the previous checkpoint intact.
+ *
+ * @author Joe Runde
+ */
+
+public class RedditLDACheckpoint {
+
+	static final int MAGIC = 0x524c4441; // "RLDA"
+	static final int VERSION = 1;
+
+	static final int BUFFER_SIZE = 1 << 20;
+
+	// Progress of the interrupted call to estimate
+	int docIndexStart;
+	int docIndexLength;
+	int completedIterations;
+	int numIterations;
+	Randoms random;
+
+	public int getCompletedIterations() { return completedIterations; }
+	public int getNumIterations() { return numIterations; }
+
+	static int bytesPerTopic (int numTopics) {
+		if (numTopics <= 1 << 8) { return 1; }
+		if (numTopics <= 1 << 16) { return 2; }
+		return 4;
+	}
+
+	public static void write (RedditLDA model, File file, int docIndexStart, int docIndexLength,
+							  int completedIterations, int numIterations, Randoms random) throws IOException {
+		ByteArrayOutputStream randomBytes = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(randomBytes);
+		oos.writeObject(random);
+		oos.close();
+
+		File temp = new File(file.getPath() + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+			buffer.putInt(MAGIC);
+			buffer.putInt(VERSION);
+			buffer.putInt(model.numDocs);
+			buffer.putInt(model.numTypes);
+			buffer.putInt(model.numTokens);
+			buffer.putInt(model.numSubreddits);
+			buffer.putInt(model.numTopics);
+			buffer.putDouble(model.alphaScalar);
+			buffer.putDouble(model.beta);
+			buffer.putDouble(model.gamma);
+			buffer.putDouble(model.eta);
+
+			buffer.putInt(model.numThreads);
+			buffer.put((byte) (model.sparseSampling ? 1 : 0));
+			buffer.putInt(model.logLikelihoodInterval);
+			buffer.putInt(model.checkpointInterval);
+
+			buffer.putInt(docIndexStart);
+			buffer.putInt(docIndexLength);
+			buffer.putInt(completedIterations);
+			buffer.putInt(numIterations);
+
+			byte[] randomState = randomBytes.toByteArray();
+			buffer.putInt(randomState.length);
+			for (int offset = 0; offset < randomState.length; ) {
+				int length = Math.min(buffer.remaining(), randomState.length - offset);
+				buffer.put(randomState, offset, length);
+				offset += length;
+				if (! buffer.hasRemaining()) { flush(channel, buffer); }
+			}
+
+			for (int sub = 0; sub < model.numSubreddits; sub++) {
+				for (int topic = 0; topic < model.numTopics; topic++) {
+					if (buffer.remaining() < 8) { flush(channel, buffer); }
+					buffer.putDouble(model.alpha[sub][topic]);
+				}
+			}
+
+			int bytesPerTopic = bytesPerTopic(model.numTopics);
+			int[] topics = model.topics;
+			for (int position = 0; position < topics.length; position++) {
+				if (buffer.remaining() < 4) { flush(channel, buffer); }
+				if (bytesPerTopic == 1) { buffer.put((byte) topics[position]); }
+				else if (bytesPerTopic == 2) { buffer.putShort((short) topics[position]); }
+				else { buffer.putInt(topics[position]); }
+			}
+			flush(channel, buffer);
+			channel.force(true);
+		} finally {
+			raf.close();
+		}
+
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void flush (FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/* Make sure at least <code>needed</code> bytes are available to read, refilling the buffer from the channel. */
+	private static void fill (FileChannel channel, ByteBuffer buffer, int needed, File file) throws IOException {
+		if (buffer.remaining() >= needed) { return; }
+		buffer.compact();
+		while (buffer.position() < needed) {
+			if (channel.read(buffer) < 0) {
+				throw new EOFException("Checkpoint " + file + " is truncated");
+			}
+		}
+		buffer.flip();
+	}
+
+	/**
+	 *  Read a checkpoint and rebuild the model it was written from. The returned
+	 *   model keeps the progress of the interrupted run for <code>RedditLDA.resumeEstimate</code>,
+	 *   and writes further checkpoints to the same file at the same interval.
+	 */
+	public static RedditLDA read (RedditCorpus corpus, File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			buffer.flip();
+
+			fill(channel, buffer, 4 * 7 + 8 * 4 + 4 + 1 + 4 * 6 + 4, file);
+			if (buffer.getInt() != MAGIC) {
+				throw new IOException(file + " is not a RedditLDA checkpoint");
+			}
+			int version = buffer.getInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported checkpoint version " + version + " in " + file);
+			}
+
+			int numDocs = buffer.getInt();
+			int numTypes = buffer.getInt();
+			int numTokens = buffer.getInt();
+			int numSubreddits = buffer.getInt();
+			if (numDocs != corpus.numDocs || numTypes != corpus.numTypes ||
+				numTokens != corpus.numTokens || numSubreddits != corpus.numSubreddits) {
+				throw new IOException("Checkpoint " + file + " was written for a different corpus");
+			}
+
+			int numTopics = buffer.getInt();
+			double alphaScalar = buffer.getDouble();
+			double beta = buffer.getDouble();
+			double gamma = buffer.getDouble();
+			double eta = buffer.getDouble();
+			RedditLDA model = new RedditLDA(corpus, numTopics, alphaScalar, beta, gamma, eta);
+
+			model.numThreads = buffer.getInt();
+			model.sparseSampling = buffer.get() != 0;
+			model.logLikelihoodInterval = buffer.getInt();
+			model.checkpointInterval = buffer.getInt();
+			model.checkpointFile = file;
+
+			RedditLDACheckpoint state = new RedditLDACheckpoint();
+			state.docIndexStart = buffer.getInt();
+			state.docIndexLength = buffer.getInt();
+			state.completedIterations = buffer.getInt();
+			state.numIterations = buffer.getInt();
+
+			byte[] randomState = new byte[buffer.getInt()];
+			for (int offset = 0; offset < randomState.length; ) {
+				fill(channel, buffer, 1, file);
+				int length = Math.min(buffer.remaining(), randomState.length - offset);
+				buffer.get(randomState, offset, length);
+				offset += length;
+			}
+			ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(randomState));
+			try {
+				state.random = (Randoms) ois.readObject();
+			} catch (ClassNotFoundException e) {
+				throw new IOException("Couldn't restore the random number generator from " + file, e);
+			}
+			model.resumeState = state;
+
+			for (int sub = 0; sub < numSubreddits; sub++) {
+				for (int topic = 0; topic < numTopics; topic++) {
+					fill(channel, buffer, 8, file);
+					model.alpha[sub][topic] = buffer.getDouble();
+				}
+			}
+
+			int bytesPerTopic = bytesPerTopic(numTopics);
+			int[] topics = new int[numTokens];
+			for (int position = 0; position < numTokens; position++) {
+				fill(channel, buffer, bytesPerTopic, file);
+				int topic;
+				if (bytesPerTopic == 1) { topic = buffer.get() & 0xff; }
+				else if (bytesPerTopic == 2) { topic = buffer.getShort() & 0xffff; }
+				else { topic = buffer.getInt(); }
+				if (topic < 0 || topic >= numTopics) {
+					throw new IOException("Bad topic " + topic + " at token " + position + " in " + file);
+				}
+				topics[position] = topic;
+			}
+			model.topics = topics;
+
+			model.initializeCounts();
+			return model;
+		} finally {
+			raf.close();
+		}
+	}
+
+}
@@ -0,0 +1,212 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.math3.special.Gamma;
+
+/**
+ * Evaluates the joint log likelihood of the topic assignments of a {@link RedditLDA} model,
+ * the same quantity as the per-document and per-topic sums in <code>RedditLDA.getLogLikelihood</code>.
+ * <p>
+ * Terms that only depend on the hyperparameters are computed once, per subreddit or per
+ * model, and zero counts are skipped since their numerator and denominator terms cancel.
+ * Documents are visited once, grouped by subreddit, and the document and vocabulary
+ * terms are split into tasks that can run on several threads. Partial sums are always
+ * added in the same order, so the result does not depend on the number of threads.
+ *
+ * @author Joe Runde
+ */
+
+public class RedditLogLikelihood {
+
+	// Keep a table of logGamma(beta + n) for counts below this
+	static final int MAX_CACHED_TYPE_COUNT = 1 << 16;
+
+	// Task sizes are fixed rather than derived from the thread count,
+	//  so that partial sums are the same for any number of threads.
+	static final int DOCS_PER_TASK = 2048;
+	static final int TYPES_PER_TASK = 4096;
+
+	RedditLDA model;
+
+	double[] logGammaBeta; // logGamma(beta + n), indexed by count
+
+	public RedditLogLikelihood (RedditLDA model) {
+		this.model = model;
+
+		// No type/topic count can be larger than the number of tokens
+		logGammaBeta = new double[Math.min(model.numTokens, MAX_CACHED_TYPE_COUNT) + 1];
+		for (int n = 0; n < logGammaBeta.length; n++) {
+			logGammaBeta[n] = Gamma.logGamma(model.beta + n);
+		}
+	}
+
+	/**
+	 *  Evaluate the log likelihood of the model's current counts.
+	 *
+	 *  @param executor The threads to run the document and type tasks on, or null to run them on this thread
+	 */
+	public double evaluate (ExecutorService executor) {
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		final double[] partialSums = new double[countTasks()];
+
+		// Document terms, in chunks of documents from one subreddit
+		int chunkSize = DOCS_PER_TASK;
+		for (int sub = 0; sub < model.numSubreddits; sub++) {
+			int[] docs = model.docsBySub[sub];
+			for (int start = 0; start < docs.length; start += chunkSize) {
+				final int task = tasks.size();
+				final int chunkSub = sub;
+				final int chunkStart = start;
+				final int chunkEnd = Math.min(docs.length, start + chunkSize);
+				tasks.add(new Runnable() {
+					public void run() {
+						partialSums[task] = documentTerms(chunkSub, chunkStart, chunkEnd);
+					}
+				});
+			}
+		}
+
+		// Type/topic terms, in ranges of the vocabulary
+		int typesPerTask = TYPES_PER_TASK;
+		for (int start = 0; start < model.numTypes; start += typesPerTask) {
+			final int task = tasks.size();
+			final int rangeStart = start;
+			final int rangeEnd = Math.min(model.numTypes, start + typesPerTask);
+			tasks.add(new Runnable() {
+				public void run() {
+					partialSums[task] = typeTerms(rangeStart, rangeEnd);
+				}
+			});
+		}
+
+		if (executor != null) {
+			List<Callable<Object>> callables = new ArrayList<Callable<Object>>(tasks.size());
+			for (Runnable task : tasks) {
+				callables.add(Executors.callable(task));
+			}
+			ParallelTasks.invokeAll(executor, callables, "evaluating log likelihood");
+		}
+		else {
+			for (Runnable task : tasks) {
+				task.run();
+			}
+		}
+
+		double logLikelihood = 0.0;
+		for (int sub = 0; sub < model.numSubreddits; sub++) {
+			logLikelihood += subredditTerms(sub);
+		}
+		for (int topic = 0; topic < model.numTopics; topic++) {
+			logLikelihood += Gamma.logGamma(model.vBeta) -
+				Gamma.logGamma(model.tokensPerTopic[topic] + model.vBeta);
+		}
+		for (double partialSum : partialSums) {
+			logLikelihood += partialSum;
+		}
+		return logLikelihood;
+	}
+
+	/** The number of tasks {@link #evaluate} splits the documents and vocabulary into. */
+	int countTasks () {
+		int count = 0;
+		for (int sub = 0; sub < model.numSubreddits; sub++) {
+			count += (model.docsBySub[sub].length + DOCS_PER_TASK - 1) / DOCS_PER_TASK;
+		}
+		return count + (model.numTypes + TYPES_PER_TASK - 1) / TYPES_PER_TASK;
+	}
+
+	/**
+	 *  The terms for a subreddit that do not depend on topic counts:
+	 *   for each document, logGamma(alphaSum) - logGamma(alphaSum + tokensPerDoc).
+	 *   The logGamma(alpha) denominators cancel with zero counts in
+	 *   {@link #documentTerms}.
+	 */
+	double subredditTerms (int sub) {
+		double alphaSum = 0;
+		for (int topic = 0; topic < model.numTopics; topic++) {
+			alphaSum += model.alpha[sub][topic];
+		}
+
+		double value = model.docsPerSub[sub] * Gamma.logGamma(alphaSum);
+		int[] lengths = model.subDocLengths[sub];
+		int[] lengthCounts = model.subDocLengthCounts[sub];
+		for (int index = 0; index < lengths.length; index++) {
+			value -= lengthCounts[index] * Gamma.logGamma(alphaSum + lengths[index]);
+		}
+		return value;
+	}
+
+	/** For the given documents, the sum over topics of logGamma(n + alpha) - logGamma(alpha), with n > 0. */
+	double documentTerms (int sub, int start, int end) {
+		double[] subAlpha = model.alpha[sub];
+		double lowAlpha = model.alphaScalar * model.eta;
+		double highAlpha = model.alphaScalar;
+
+		// Alphas are almost always one of the two values with cached tables
+		double[] topicOffsets = new double[model.numTopics];
+		double[][] topicTables = new double[model.numTopics][];
+		for (int topic = 0; topic < model.numTopics; topic++) {
+			topicOffsets[topic] = Gamma.logGamma(subAlpha[topic]);
+			if (subAlpha[topic] == highAlpha) {
+				topicTables[topic] = model.logGammaHighAlpha;
+			}
+			else if (subAlpha[topic] == lowAlpha) {
+				topicTables[topic] = model.logGammaLowAlpha;
+			}
+		}
+
+		double value = 0.0;
+		int[] docs = model.docsBySub[sub];
+		for (int i = start; i < end; i++) {
+			int[] counts = model.docTopicCounts[docs[i]];
+			for (int topic = 0; topic < model.numTopics; topic++) {
+				int n = counts[topic];
+				if (n == 0) { continue; }
+
+				if (topicTables[topic] != null) {
+					value += topicTables[topic][n];
+				}
+				else {
+					value += Gamma.logGamma(n + subAlpha[topic]);
+				}
+				value -= topicOffsets[topic];
+			}
+		}
+		return value;
+	}
+
+	/** For the given types, the sum over topics of logGamma(n + beta) - logGamma(beta), with n > 0. */
+	double typeTerms (int start, int end) {
+		double logGammaBetaZero = logGammaBeta[0];
+		double value = 0.0;
+		for (int type = start; type < end; type++) {
+			int[] counts = model.typeTopicCounts[type];
+			for (int topic = 0; topic < model.numTopics; topic++) {
+				int n = counts[topic];
+				if (n == 0) { continue; }
+
+				if (n < logGammaBeta.length) {
+					value += logGammaBeta[n];
+				}
+				else {
+					value += Gamma.logGamma(n + model.beta);
+				}
+				value -= logGammaBetaZero;
+			}
+		}
+		return value;
+	}
+
+}
@@ -0,0 +1,187 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.io.*;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the per-subreddit results of a {@link RedditLDA} model: mean topic proportions,
+ * alphas and classification confusion counts.
+ * <p>
+ * The subreddit topic proportions are computed once, in a single pass over the documents,
+ * and reused by every output. Results are streamed one subreddit at a time, either as a
+ * JSON object keyed by subreddit name or as a columnar binary file (see {@link #writeBinary}).
+ * Any output can be gzipped.
+ *
+ * @author Joe Runde
+ */
+
+public class RedditResultsExporter {
+
+	public static final int BINARY_MAGIC = 0x524c4452; // "RLDR"
+	public static final int BINARY_VERSION = 1;
+
+	RedditLDA model;
+	boolean smoothed = false;
+	boolean gzip = false;
+
+	double[][] subredditTopics; // computed on first use, indexed by <subreddit index, topic index>
+
+	public RedditResultsExporter (RedditLDA model) {
+		this.model = model;
+	}
+
+	/* Include the alphas in the subreddit topic proportions. */
+	public void setSmoothed (boolean smoothed) {
+		if (smoothed != this.smoothed) {
+			subredditTopics = null;
+		}
+		this.smoothed = smoothed;
+	}
+
+	/* Gzip every file this exporter writes. */
+	public void setGzip (boolean gzip) {
+		this.gzip = gzip;
+	}
+
+	public double[][] getSubredditTopics () {
+		if (subredditTopics == null) {
+			subredditTopics = model.getSubredditTopicMatrix(smoothed, model.numDocs);
+		}
+		return subredditTopics;
+	}
+
+	OutputStream openStream (File file) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		if (gzip) {
+			out = new GZIPOutputStream(out, 1 << 16);
+		}
+		return new BufferedOutputStream(out, 1 << 16);
+	}
+
+	Writer openWriter (File file) throws IOException {
+		return new OutputStreamWriter(openStream(file), "UTF-8");
+	}
+
+	/* Write {"subreddit":[p_0, ..., p_K-1], ...} with subreddits in index order. */
+	public void writeSubredditTopics (File file) throws IOException {
+		Writer out = openWriter(file);
+		try {
+			writeJSON(out, getSubredditTopics());
+		} finally {
+			out.close();
+		}
+	}
+
+	/* Write {"subreddit":[alpha_0, ..., alpha_K-1], ...} with subreddits in index order. */
+	public void writeAlphas (File file) throws IOException {
+		Writer out = openWriter(file);
+		try {
+			writeJSON(out, model.alpha);
+		} finally {
+			out.close();
+		}
+	}
+
+	/* Write {"true subreddit":[count predicted as subreddit 0, ...], ...} with subreddits in index order. */
+	public void writeConfusions (int[][] confusion, File file) throws IOException {
+		Writer out = openWriter(file);
+		try {
+			out.write('{');
+			for (int sub = 0; sub < model.numSubreddits; sub++) {
+				if (sub > 0) { out.write(','); }
+				writeKey(out, model.corpus.getSubredditName(sub));
+				out.write('[');
+				int[] row = confusion[sub];
+				for (int i = 0; i < row.length; i++) {
+					if (i > 0) { out.write(','); }
+					out.write(Integer.toString(row[i]));
+				}
+				out.write(']');
+			}
+			out.write('}');
+		} finally {
+			out.close();
+		}
+	}
+
+	void writeJSON (Writer out, double[][] rows) throws IOException {
+		out.write('{');
+		for (int sub = 0; sub < model.numSubreddits; sub++) {
+			if (sub > 0) { out.write(','); }
+			writeKey(out, model.corpus.getSubredditName(sub));
+			out.write('[');
+			double[] row = rows[sub];
+			for (int i = 0; i < row.length; i++) {
+				if (i > 0) { out.write(','); }
+				// JSON has no NaN or infinities
+				out.write(Double.isNaN(row[i]) || Double.isInfinite(row[i]) ? "null" : Double.toString(row[i]));
+			}
+			out.write(']');
+		}
+		out.write('}');
+	}
+
+	static void writeKey (Writer out, String key) throws IOException {
+		out.write('"');
+		for (int i = 0; i < key.length(); i++) {
+			char c = key.charAt(i);
+			if (c == '"' || c == '\\') {
+				out.write('\\');
+				out.write(c);
+			}
+			else if (c < 0x20) {
+				out.write(String.format("\\u%04x", (int) c));
+			}
+			else {
+				out.write(c);
+			}
+		}
+		out.write("\":");
+	}
+
+	/**
+	 *  Write the subreddit names, topic proportions and alphas in a columnar binary
+	 *   format, big-endian as written by {@link DataOutputStream}:
+	 *  <pre>
+	 *   int magic, int version, int numSubreddits, int numTopics
+	 *   numSubreddits x UTF subreddit name, in index order
+	 *   numTopics columns of numSubreddits doubles: topic proportions
+	 *   numTopics columns of numSubreddits doubles: alphas
+	 *  </pre>
+	 *  Each column holds one topic's values for every subreddit, so a reader can
+	 *   seek straight to the topics it needs.
+	 */
+	public void writeBinary (File file) throws IOException {
+		double[][] topics = getSubredditTopics();
+		DataOutputStream out = new DataOutputStream(openStream(file));
+		try {
+			out.writeInt(BINARY_MAGIC);
+			out.writeInt(BINARY_VERSION);
+			out.writeInt(model.numSubreddits);
+			out.writeInt(model.numTopics);
+			for (int sub = 0; sub < model.numSubreddits; sub++) {
+				out.writeUTF(model.corpus.getSubredditName(sub));
+			}
+			writeColumns(out, topics);
+			writeColumns(out, model.alpha);
+		} finally {
+			out.close();
+		}
+	}
+
+	void writeColumns (DataOutputStream out, double[][] rows) throws IOException {
+		for (int topic = 0; topic < model.numTopics; topic++) {
+			for (int sub = 0; sub < model.numSubreddits; sub++) {
+				out.writeDouble(rows[sub][topic]);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,431 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.util.Arrays;
+
+/**
+ * A {@link RedditWorkerRunnable} that samples with the SparseLDA decomposition used by
+ * {@link WorkerRunnable}. The sampling mass for each token is split into a smoothing-only
+ * bucket, a document/topic bucket and a topic/word bucket, so the per-token cost is
+ * proportional to the number of non-zero topics for the document and word rather than
+ * to the total number of topics.
+ * <p>
+ * Local type/topic counts are stored in the packed format of
+ * {@link ParallelTopicModel#typeTopicCounts}: the topic in the low bits and the count in
+ * the high bits, sorted by descending count.
+ * <p>
+ * Since alpha depends on the subreddit, the smoothing bucket and cached coefficients
+ * belong to one subreddit at a time. Documents are visited grouped by subreddit so these
+ * are rebuilt once per subreddit per sweep, picking up any alphas changed by the model
+ * since the last sweep.
+ *
+ * @author Joe Runde
+ */
+
+public class RedditSparseWorkerRunnable extends RedditWorkerRunnable {
+
+	protected double smoothingOnlyMass = 0.0;
+	protected double[] cachedCoefficients;
+	protected int currentSub = -1;
+
+	protected int[] docOrder; // this worker's documents, grouped by subreddit
+
+	protected int[] localTopicIndex;
+	protected double[] topicTermScores;
+
+	/**
+	 *  @param denseTypeTopicCounts the model's <type, topic> counts, from which
+	 *   this worker builds its packed local copy.
+	 */
+	public RedditSparseWorkerRunnable (int numTopics, double[][] alpha, double beta,
+									   int[] tokens, int[] docStarts, int[] topics, int[][] docTopicCounts, int[] docSubreddit,
+									   int[][] denseTypeTopicCounts, int[] tokensPerTopic,
+									   int startDoc, int numDocs) {
+		super(numTopics, alpha, beta, tokens, docStarts, topics, docTopicCounts, docSubreddit,
+			  new int[denseTypeTopicCounts.length][], tokensPerTopic, startDoc, numDocs);
+
+		for (int type = 0; type < numTypes; type++) {
+			int[] denseCounts = denseTypeTopicCounts[type];
+			int total = 0;
+			int nonZero = 0;
+			for (int topic = 0; topic < numTopics; topic++) {
+				total += denseCounts[topic];
+				if (denseCounts[topic] > 0) { nonZero++; }
+			}
+
+			// A type can never have more non-zero topics than tokens
+			int[] packedCounts = new int[Math.min(numTopics, total)];
+			int index = 0;
+			for (int topic = 0; topic < numTopics; topic++) {
+				if (denseCounts[topic] > 0) {
+					packedCounts[index++] = (denseCounts[topic] << topicBits) + topic;
+				}
+			}
+
+			// Sort the non-zero entries by descending value
+			Arrays.sort(packedCounts, 0, nonZero);
+			for (int left = 0, right = nonZero - 1; left < right; left++, right--) {
+				int temp = packedCounts[left];
+				packedCounts[left] = packedCounts[right];
+				packedCounts[right] = temp;
+			}
+			typeTopicCounts[type] = packedCounts;
+		}
+
+		// Counting sort of the documents by subreddit, keeping corpus order within a subreddit
+		int numSubreddits = alpha.length;
+		int[] subStarts = new int[numSubreddits + 1];
+		for (int doc = startDoc; doc < startDoc + numDocs; doc++) {
+			subStarts[ docSubreddit[doc] + 1 ]++;
+		}
+		for (int sub = 0; sub < numSubreddits; sub++) {
+			subStarts[sub + 1] += subStarts[sub];
+		}
+		docOrder = new int[numDocs];
+		for (int doc = startDoc; doc < startDoc + numDocs; doc++) {
+			docOrder[ subStarts[ docSubreddit[doc] ]++ ] = doc;
+		}
+
+		cachedCoefficients = new double[numTopics];
+		localTopicIndex = new int[numTopics];
+		topicTermScores = new double[numTopics];
+	}
+
+	public void run () {
+		numMoves = 0;
+		currentSub = -1;
+
+		for (int i = 0; i < docOrder.length; i++) {
+			int doc = docOrder[i];
+			int sub = docSubreddit[doc];
+			if (sub != currentSub) {
+				initializeSmoothing(sub);
+			}
+			sampleTopicsForOneDoc (docStarts[doc], docStarts[doc + 1],
+								   docTopicCounts[doc], null, sub);
+		}
+	}
+
+	/** Rebuild the smoothing-only bucket and the cached coefficients for a subreddit's alphas. */
+	protected void initializeSmoothing (int sub) {
+		double[] subAlpha = alpha[sub];
+
+		smoothingOnlyMass = 0.0;
+		for (int topic = 0; topic < numTopics; topic++) {
+			smoothingOnlyMass += subAlpha[topic] * beta / (tokensPerTopic[topic] + vBeta);
+			cachedCoefficients[topic] = subAlpha[topic] / (tokensPerTopic[topic] + vBeta);
+		}
+		currentSub = sub;
+	}
+
+	protected void sampleTopicsForOneDoc (int docStart, int docEnd,
+										  int[] localTopicCounts, double[] topicWeights, int sub) {
+
+		double[] subAlpha = alpha[sub];
+		int[] currentTypeTopicCounts;
+		int type, oldTopic, newTopic;
+
+		// Build an array that densely lists the topics that
+		//  have non-zero counts.
+		int denseIndex = 0;
+		for (int topic = 0; topic < numTopics; topic++) {
+			if (localTopicCounts[topic] != 0) {
+				localTopicIndex[denseIndex] = topic;
+				denseIndex++;
+			}
+		}
+		int nonZeroTopics = denseIndex;
+
+		// Initialize the topic count/beta sampling bucket and
+		//  the cached coefficients for the non-zero topics.
+		double topicBetaMass = 0.0;
+		for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
+			int topic = localTopicIndex[denseIndex];
+			int n = localTopicCounts[topic];
+
+			topicBetaMass += beta * n / (tokensPerTopic[topic] + vBeta);
+			cachedCoefficients[topic] = (subAlpha[topic] + n) / (tokensPerTopic[topic] + vBeta);
+		}
+
+		double topicTermMass;
+		double score;
+		int i;
+
+		for (int position = docStart; position < docEnd; position++) {
+			type = tokens[position];
+			oldTopic = topics[position];
+
+			currentTypeTopicCounts = typeTopicCounts[type];
+
+			// Remove this topic's contribution to the
+			//  normalizing constants
+			smoothingOnlyMass -= subAlpha[oldTopic] * beta /
+				(tokensPerTopic[oldTopic] + vBeta);
+			topicBetaMass -= beta * localTopicCounts[oldTopic] /
+				(tokensPerTopic[oldTopic] + vBeta);
+
+			localTopicCounts[oldTopic]--;
+
+			// Maintain the dense index, if we are deleting
+			//  the old topic
+			if (localTopicCounts[oldTopic] == 0) {
+				denseIndex = 0;
+				while (localTopicIndex[denseIndex] != oldTopic) {
+					denseIndex++;
+				}
+				while (denseIndex < nonZeroTopics - 1) {
+					localTopicIndex[denseIndex] = localTopicIndex[denseIndex + 1];
+					denseIndex++;
+				}
+				nonZeroTopics--;
+			}
+
+			tokensPerTopic[oldTopic]--;
+
+			// Add the old topic's contribution back into the
+			//  normalizing constants.
+			smoothingOnlyMass += subAlpha[oldTopic] * beta /
+				(tokensPerTopic[oldTopic] + vBeta);
+			topicBetaMass += beta * localTopicCounts[oldTopic] /
+				(tokensPerTopic[oldTopic] + vBeta);
+
+			cachedCoefficients[oldTopic] =
+				(subAlpha[oldTopic] + localTopicCounts[oldTopic]) /
+				(tokensPerTopic[oldTopic] + vBeta);
+
+			// Now go over the type/topic counts, decrementing
+			//  the old topic and calculating the score for
+			//  each topic at the same time.
+
+			int index = 0;
+			int currentTopic, currentValue;
+			boolean alreadyDecremented = false;
+
+			topicTermMass = 0.0;
+
+			while (index < currentTypeTopicCounts.length &&
+				   currentTypeTopicCounts[index] > 0) {
+				currentTopic = currentTypeTopicCounts[index] & topicMask;
+				currentValue = currentTypeTopicCounts[index] >> topicBits;
+
+				if (! alreadyDecremented && currentTopic == oldTopic) {
+
+					// Decrementing may require us to reorder the
+					//  topics, so look at this cell again afterwards.
+					currentValue--;
+					if (currentValue == 0) {
+						currentTypeTopicCounts[index] = 0;
+					}
+					else {
+						currentTypeTopicCounts[index] = (currentValue << topicBits) + oldTopic;
+					}
+
+					int subIndex = index;
+					while (subIndex < currentTypeTopicCounts.length - 1 &&
+						   currentTypeTopicCounts[subIndex] < currentTypeTopicCounts[subIndex + 1]) {
+						int temp = currentTypeTopicCounts[subIndex];
+						currentTypeTopicCounts[subIndex] = currentTypeTopicCounts[subIndex + 1];
+						currentTypeTopicCounts[subIndex + 1] = temp;
+						subIndex++;
+					}
+
+					alreadyDecremented = true;
+				}
+				else {
+					score = cachedCoefficients[currentTopic] * currentValue;
+					topicTermMass += score;
+					topicTermScores[index] = score;
+					index++;
+				}
+			}
+
+			double sample = random.nextUniform() * (smoothingOnlyMass + topicBetaMass + topicTermMass);
+			double origSample = sample;
+
+			newTopic = -1;
+
+			if (sample < topicTermMass) {
+				i = -1;
+				while (sample > 0) {
+					i++;
+					sample -= topicTermScores[i];
+				}
+
+				newTopic = currentTypeTopicCounts[i] & topicMask;
+				currentValue = currentTypeTopicCounts[i] >> topicBits;
+				currentTypeTopicCounts[i] = ((currentValue + 1) << topicBits) + newTopic;
+
+				// Bubble the new value up, if necessary
+				while (i > 0 &&
+					   currentTypeTopicCounts[i] > currentTypeTopicCounts[i - 1]) {
+					int temp = currentTypeTopicCounts[i];
+					currentTypeTopicCounts[i] = currentTypeTopicCounts[i - 1];
+					currentTypeTopicCounts[i - 1] = temp;
+					i--;
+				}
+			}
+			else {
+				sample -= topicTermMass;
+
+				if (sample < topicBetaMass) {
+					sample /= beta;
+
+					for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
+						int topic = localTopicIndex[denseIndex];
+
+						sample -= localTopicCounts[topic] /
+							(tokensPerTopic[topic] + vBeta);
+
+						if (sample <= 0.0) {
+							newTopic = topic;
+							break;
+						}
+					}
+				}
+				else {
+					sample -= topicBetaMass;
+					sample /= beta;
+
+					newTopic = 0;
+					sample -= subAlpha[newTopic] /
+						(tokensPerTopic[newTopic] + vBeta);
+
+					while (sample > 0.0 && newTopic < numTopics - 1) {
+						newTopic++;
+						sample -= subAlpha[newTopic] /
+							(tokensPerTopic[newTopic] + vBeta);
+					}
+				}
+
+				if (newTopic == -1) {
+					System.err.println("RedditSparseWorkerRunnable sampling error: "+ origSample + " " + sample + " " +
+									   smoothingOnlyMass + " " + topicBetaMass + " " + topicTermMass);
+					newTopic = numTopics - 1;
+				}
+
+				incrementPacked(currentTypeTopicCounts, newTopic);
+			}
+
+			// Put that new topic into the counts
+			topics[position] = newTopic;
+
+			smoothingOnlyMass -= subAlpha[newTopic] * beta /
+				(tokensPerTopic[newTopic] + vBeta);
+			topicBetaMass -= beta * localTopicCounts[newTopic] /
+				(tokensPerTopic[newTopic] + vBeta);
+
+			localTopicCounts[newTopic]++;
+
+			// If this is a new topic for this document,
+			//  add the topic to the dense index.
+			if (localTopicCounts[newTopic] == 1) {
+				denseIndex = nonZeroTopics;
+				while (denseIndex > 0 &&
+					   localTopicIndex[denseIndex - 1] > newTopic) {
+					localTopicIndex[denseIndex] = localTopicIndex[denseIndex - 1];
+					denseIndex--;
+				}
+				localTopicIndex[denseIndex] = newTopic;
+				nonZeroTopics++;
+			}
+
+			tokensPerTopic[newTopic]++;
+
+			cachedCoefficients[newTopic] =
+				(subAlpha[newTopic] + localTopicCounts[newTopic]) /
+				(tokensPerTopic[newTopic] + vBeta);
+
+			smoothingOnlyMass += subAlpha[newTopic] * beta /
+				(tokensPerTopic[newTopic] + vBeta);
+			topicBetaMass += beta * localTopicCounts[newTopic] /
+				(tokensPerTopic[newTopic] + vBeta);
+
+			if (newTopic != oldTopic) {
+				logMove(type, sub, oldTopic, newTopic);
+			}
+		}
+
+		// Reset the coefficients to values with only smoothing.
+		//  The next doc will update its own non-zero topics.
+		for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
+			int topic = localTopicIndex[denseIndex];
+			cachedCoefficients[topic] = subAlpha[topic] / (tokensPerTopic[topic] + vBeta);
+		}
+	}
+
+	/** Add one to a topic's count in a packed, descending-sorted count array. */
+	protected void incrementPacked (int[] currentTypeTopicCounts, int topic) {
+		int index = 0;
+		while (currentTypeTopicCounts[index] > 0 &&
+			   (currentTypeTopicCounts[index] & topicMask) != topic) {
+			index++;
+		}
+
+		if (currentTypeTopicCounts[index] == 0) {
+			// inserting a new topic, guaranteed to be in
+			//  order w.r.t. count, if not topic.
+			currentTypeTopicCounts[index] = (1 << topicBits) + topic;
+		}
+		else {
+			int currentValue = currentTypeTopicCounts[index] >> topicBits;
+			currentTypeTopicCounts[index] = ((currentValue + 1) << topicBits) + topic;
+
+			// Bubble the increased value left, if necessary
+			while (index > 0 &&
+				   currentTypeTopicCounts[index] > currentTypeTopicCounts[index - 1]) {
+				int temp = currentTypeTopicCounts[index];
+				currentTypeTopicCounts[index] = currentTypeTopicCounts[index - 1];
+				currentTypeTopicCounts[index - 1] = temp;
+				index--;
+			}
+		}
+	}
+
+	/** Subtract one from a topic's count in a packed, descending-sorted count array. */
+	protected void decrementPacked (int[] currentTypeTopicCounts, int topic) {
+		int index = 0;
+		while ((currentTypeTopicCounts[index] & topicMask) != topic ||
+			   currentTypeTopicCounts[index] == 0) {
+			index++;
+		}
+
+		int currentValue = (currentTypeTopicCounts[index] >> topicBits) - 1;
+		if (currentValue == 0) {
+			currentTypeTopicCounts[index] = 0;
+		}
+		else {
+			currentTypeTopicCounts[index] = (currentValue << topicBits) + topic;
+		}
+
+		// Shift the reduced value to the right, if necessary.
+		while (index < currentTypeTopicCounts.length - 1 &&
+			   currentTypeTopicCounts[index] < currentTypeTopicCounts[index + 1]) {
+			int temp = currentTypeTopicCounts[index];
+			currentTypeTopicCounts[index] = currentTypeTopicCounts[index + 1];
+			currentTypeTopicCounts[index + 1] = temp;
+			index++;
+		}
+	}
+
+	public void applyMoves(RedditWorkerRunnable[] runnables, int[] globalTokensPerTopic) {
+		for (RedditWorkerRunnable other : runnables) {
+			if (other == this) { continue; }
+
+			int[] otherMoves = other.moves;
+			int end = other.numMoves * 3;
+			for (int index = 0; index < end; index += 3) {
+				int[] currentTypeTopicCounts = typeTopicCounts[ otherMoves[index] ];
+				decrementPacked(currentTypeTopicCounts, otherMoves[index + 2] >> topicBits);
+				incrementPacked(currentTypeTopicCounts, otherMoves[index + 2] & topicMask);
+			}
+		}
+		System.arraycopy(globalTokensPerTopic, 0, tokensPerTopic, 0, numTopics);
+	}
+
+}
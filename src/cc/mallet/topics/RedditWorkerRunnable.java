@@ -0,0 +1,187 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.util.Arrays;
+
+import cc.mallet.util.Randoms;
+
+/**
+ * A parallel Gibbs sampling task for a contiguous block of documents in a {@link RedditLDA} model.
+ * <p>
+ * Each worker samples against its own copy of the type/topic counts and topic totals.
+ * Rather than shipping full count arrays back to the model, the worker records every
+ * token whose topic changed in a move log. After a sweep the model replays all logs onto
+ * the global (and per-subreddit) counts, and each worker replays the other workers'
+ * logs onto its local copy.
+ *
+ * @author Joe Runde
+ */
+
+public class RedditWorkerRunnable implements Runnable {
+
+	protected int[] tokens; // the corpus token stream, see RedditCorpus
+	protected int[] docStarts;
+	int startDoc, numDocs;
+
+	protected int numTopics;
+	protected int numTypes;
+
+	// Used to pack an (old topic, new topic) pair into a single int in the move log
+	protected int topicMask;
+	protected int topicBits;
+
+	protected double[][] alpha; // shared with the model, indexed by <subreddit, topic>
+	protected double beta;
+	protected double vBeta;
+
+	protected int[] topics; // shared with the model, parallel to tokens; this worker only touches its own documents
+	protected int[][] docTopicCounts; // shared with the model, as above
+	protected int[] docSubreddit;
+
+	protected int[][] typeTopicCounts; // local copy, indexed by <feature index, topic index>
+	protected int[] tokensPerTopic; // local copy, indexed by <topic index>
+
+	// Move log: triples of <type, subreddit, (oldTopic << topicBits) + newTopic>
+	protected int[] moves;
+	protected int numMoves;
+
+	protected Randoms random;
+
+	public RedditWorkerRunnable (int numTopics, double[][] alpha, double beta,
+								 int[] tokens, int[] docStarts, int[] topics, int[][] docTopicCounts, int[] docSubreddit,
+								 int[][] typeTopicCounts, int[] tokensPerTopic,
+								 int startDoc, int numDocs) {
+
+		this.tokens = tokens;
+		this.docStarts = docStarts;
+
+		this.numTopics = numTopics;
+		this.numTypes = typeTopicCounts.length;
+
+		if (Integer.bitCount(numTopics) == 1) {
+			// exact power of 2
+			topicMask = numTopics - 1;
+			topicBits = Integer.bitCount(topicMask);
+		}
+		else {
+			// otherwise add an extra bit
+			topicMask = Integer.highestOneBit(numTopics) * 2 - 1;
+			topicBits = Integer.bitCount(topicMask);
+		}
+
+		this.alpha = alpha;
+		this.beta = beta;
+		this.vBeta = beta * numTypes;
+
+		this.topics = topics;
+		this.docTopicCounts = docTopicCounts;
+		this.docSubreddit = docSubreddit;
+
+		this.typeTopicCounts = typeTopicCounts;
+		this.tokensPerTopic = tokensPerTopic;
+
+		this.startDoc = startDoc;
+		this.numDocs = numDocs;
+
+		moves = new int[3 * 1024];
+	}
+
+	public int[] getTokensPerTopic() { return tokensPerTopic; }
+	public int[][] getTypeTopicCounts() { return typeTopicCounts; }
+
+	public int getNumMoves() { return numMoves; }
+	public int[] getMoves() { return moves; }
+
+	/** Set the random stream for the next sweep. The model reseeds every worker before each sweep. */
+	public void setRandom(Randoms random) {
+		this.random = random;
+	}
+
+	public void run () {
+		numMoves = 0;
+
+		double[] topicWeights = new double[numTopics];
+		for (int doc = startDoc; doc < startDoc + numDocs; doc++) {
+			sampleTopicsForOneDoc (docStarts[doc], docStarts[doc + 1],
+								   docTopicCounts[doc], topicWeights, docSubreddit[doc]);
+		}
+	}
+
+	/* Sample the tokens at positions [docStart, docEnd) of the token stream. */
+	protected void sampleTopicsForOneDoc (int docStart, int docEnd,
+										  int[] oneDocTopicCounts, double[] topicWeights, int sub) {
+		int[] currentTypeTopicCounts;
+		int type, oldTopic, newTopic;
+		double topicWeightsSum;
+		double[] subAlpha = alpha[sub];
+		double tw;
+
+		for (int position = docStart; position < docEnd; position++) {
+			type = tokens[position];
+			oldTopic = topics[position];
+			currentTypeTopicCounts = typeTopicCounts[type];
+
+			// Remove this token from all local counts
+			oneDocTopicCounts[oldTopic]--;
+			currentTypeTopicCounts[oldTopic]--;
+			tokensPerTopic[oldTopic]--;
+
+			// Build a distribution over topics for this token
+			topicWeightsSum = 0;
+			for (int ti = 0; ti < numTopics; ti++) {
+				tw = ((currentTypeTopicCounts[ti] + beta) / (tokensPerTopic[ti] + vBeta))
+					* (oneDocTopicCounts[ti] + subAlpha[ti]);
+				topicWeightsSum += tw;
+				topicWeights[ti] = tw;
+			}
+			newTopic = random.nextDiscrete (topicWeights, topicWeightsSum);
+
+			topics[position] = newTopic;
+			oneDocTopicCounts[newTopic]++;
+			currentTypeTopicCounts[newTopic]++;
+			tokensPerTopic[newTopic]++;
+
+			if (newTopic != oldTopic) {
+				logMove(type, sub, oldTopic, newTopic);
+			}
+		}
+	}
+
+	protected void logMove(int type, int sub, int oldTopic, int newTopic) {
+		if (numMoves * 3 + 3 > moves.length) {
+			moves = Arrays.copyOf(moves, moves.length * 2);
+		}
+		int index = numMoves * 3;
+		moves[index] = type;
+		moves[index + 1] = sub;
+		moves[index + 2] = (oldTopic << topicBits) + newTopic;
+		numMoves++;
+	}
+
+	/**
+	 *  Apply the moves made by other workers during the last sweep to
+	 *   this worker's local type/topic counts, and copy in the merged
+	 *   topic totals.
+	 */
+	public void applyMoves(RedditWorkerRunnable[] runnables, int[] globalTokensPerTopic) {
+		for (RedditWorkerRunnable other : runnables) {
+			if (other == this) { continue; }
+
+			int[] otherMoves = other.moves;
+			int end = other.numMoves * 3;
+			for (int index = 0; index < end; index += 3) {
+				int[] currentTypeTopicCounts = typeTopicCounts[ otherMoves[index] ];
+				currentTypeTopicCounts[ otherMoves[index + 2] >> topicBits ]--;
+				currentTypeTopicCounts[ otherMoves[index + 2] & topicMask ]++;
+			}
+		}
+		System.arraycopy(globalTokensPerTopic, 0, tokensPerTopic, 0, numTopics);
+	}
+
+}
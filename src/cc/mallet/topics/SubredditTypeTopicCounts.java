@@ -0,0 +1,194 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.util.Arrays;
+
+import gnu.trove.TIntObjectHashMap;
+import gnu.trove.TIntObjectIterator;
+
+/**
+ * Sparse storage for type/topic counts broken down by subreddit, indexed by
+ * <subreddit, feature index, topic index>.
+ * <p>
+ * Most words never occur in most subreddits, so instead of a dense
+ * <code>int[numSubreddits][numTypes][numTopics]</code> tensor each subreddit holds a
+ * hash from type to a packed count array. As in {@link ParallelTopicModel#typeTopicCounts},
+ * each entry stores the topic in the low bits and the count in the high bits, and entries
+ * are kept sorted by descending count. Arrays start small and grow up to
+ * <code>numTopics</code> entries; a (subreddit, type) pair that never occurs has no entry.
+ *
+ * @author Joe Runde
+ */
+
+public class SubredditTypeTopicCounts {
+
+	int numSubreddits;
+	int numTopics;
+
+	int topicMask;
+	int topicBits;
+
+	TIntObjectHashMap<int[]>[] countsBySub; // indexed by <subreddit index>, keyed by feature index
+
+	@SuppressWarnings("unchecked")
+	public SubredditTypeTopicCounts (int numSubreddits, int numTopics) {
+		this.numSubreddits = numSubreddits;
+		this.numTopics = numTopics;
+
+		if (Integer.bitCount(numTopics) == 1) {
+			// exact power of 2
+			topicMask = numTopics - 1;
+			topicBits = Integer.bitCount(topicMask);
+		}
+		else {
+			// otherwise add an extra bit
+			topicMask = Integer.highestOneBit(numTopics) * 2 - 1;
+			topicBits = Integer.bitCount(topicMask);
+		}
+
+		countsBySub = new TIntObjectHashMap[numSubreddits];
+		for (int sub = 0; sub < numSubreddits; sub++) {
+			countsBySub[sub] = new TIntObjectHashMap<int[]>();
+		}
+	}
+
+	public int getNumSubreddits() { return numSubreddits; }
+	public int getNumTopics() { return numTopics; }
+	public int getTopicMask() { return topicMask; }
+	public int getTopicBits() { return topicBits; }
+
+	/**
+	 *  Return the packed count/topic array for a subreddit and type, or null if
+	 *   the type has never occurred in the subreddit. Entries after the first
+	 *   zero are unused.
+	 */
+	public int[] getPackedCounts (int sub, int type) {
+		return countsBySub[sub].get(type);
+	}
+
+	public int get (int sub, int type, int topic) {
+		int[] counts = countsBySub[sub].get(type);
+		if (counts == null) { return 0; }
+
+		for (int index = 0; index < counts.length && counts[index] > 0; index++) {
+			if ((counts[index] & topicMask) == topic) {
+				return counts[index] >> topicBits;
+			}
+		}
+		return 0;
+	}
+
+	public void increment (int sub, int type, int topic) {
+		TIntObjectHashMap<int[]> typeCounts = countsBySub[sub];
+		int[] counts = typeCounts.get(type);
+		if (counts == null) {
+			counts = new int[1];
+			typeCounts.put(type, counts);
+		}
+
+		int index = 0;
+		while (index < counts.length && counts[index] > 0 &&
+			   (counts[index] & topicMask) != topic) {
+			index++;
+		}
+
+		if (index == counts.length) {
+			// Full, and this topic is new for the type: grow the array
+			counts = Arrays.copyOf(counts, Math.min(numTopics, counts.length * 2));
+			typeCounts.put(type, counts);
+		}
+
+		if (counts[index] == 0) {
+			// inserting a new topic, guaranteed to be in
+			//  order w.r.t. count, if not topic.
+			counts[index] = (1 << topicBits) + topic;
+		}
+		else {
+			int currentValue = counts[index] >> topicBits;
+			counts[index] = ((currentValue + 1) << topicBits) + topic;
+
+			// Bubble the increased value left, if necessary
+			while (index > 0 && counts[index] > counts[index - 1]) {
+				int temp = counts[index];
+				counts[index] = counts[index - 1];
+				counts[index - 1] = temp;
+				index--;
+			}
+		}
+	}
+
+	public void decrement (int sub, int type, int topic) {
+		TIntObjectHashMap<int[]> typeCounts = countsBySub[sub];
+		int[] counts = typeCounts.get(type);
+		if (counts == null) {
+			throw new IllegalStateException("No counts for type " + type + " in subreddit " + sub);
+		}
+
+		int index = 0;
+		while (index < counts.length && counts[index] > 0 &&
+			   (counts[index] & topicMask) != topic) {
+			index++;
+		}
+		if (index == counts.length || counts[index] == 0) {
+			throw new IllegalStateException("No count for topic " + topic + " of type " + type + " in subreddit " + sub);
+		}
+
+		int currentValue = (counts[index] >> topicBits) - 1;
+		if (currentValue == 0) {
+			counts[index] = 0;
+		}
+		else {
+			counts[index] = (currentValue << topicBits) + topic;
+		}
+
+		// Shift the reduced value to the right, if necessary.
+		while (index < counts.length - 1 && counts[index] < counts[index + 1]) {
+			int temp = counts[index];
+			counts[index] = counts[index + 1];
+			counts[index + 1] = temp;
+			index++;
+		}
+
+		// Empty arrays are kept: every token stays in its subreddit, so a
+		//  decrement is always followed by an increment for the same pair.
+	}
+
+	/** Number of (subreddit, type) pairs that occur in the corpus. */
+	public long size () {
+		long size = 0;
+		for (int sub = 0; sub < numSubreddits; sub++) {
+			size += countsBySub[sub].size();
+		}
+		return size;
+	}
+
+	/**
+	 *  An estimate of the heap used by these counts, in bytes, assuming
+	 *   compressed object references: the hash tables (at their default
+	 *   load factor) plus one array object per (subreddit, type) pair.
+	 */
+	public long estimateFootprint () {
+		long bytes = 0;
+		for (int sub = 0; sub < numSubreddits; sub++) {
+			TIntObjectHashMap<int[]> typeCounts = countsBySub[sub];
+
+			// key, value reference and state byte per slot
+			bytes += 9L * Math.max(typeCounts.size() * 2, 1);
+
+			TIntObjectIterator<int[]> iterator = typeCounts.iterator();
+			while (iterator.hasNext()) {
+				iterator.advance();
+				// array header plus data, padded to 8 bytes
+				bytes += (16 + 4L * iterator.value().length + 7) & ~7L;
+			}
+		}
+		return bytes;
+	}
+
+}
@@ -0,0 +1,216 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import cc.mallet.types.*;
+import cc.mallet.util.*;
+
+/**
+ * A thread-safe front end to a {@link TopicInferencer} for serving topic
+ * distributions from a long-lived process.
+ * <p>
+ * Each calling thread gets its own {@link TopicInferencer.Sampler}, created on
+ * first use and kept for the life of the thread, so repeated calls from the same
+ * thread reuse its scratch space and, with {@link #infer(Instance, double[])},
+ * allocate nothing. The inferencer's decoded type/topic count cache is built once,
+ * when the service is created.
+ * <p>
+ * The latency of every call is recorded in a histogram with power-of-two
+ * microsecond buckets, readable with {@link #getLatencyHistogram} and
+ * {@link #getLatencyPercentile}.
+ */
+
+public class TopicInferenceService {
+
+	public static final int NUM_LATENCY_BUCKETS = 32;
+
+	TopicInferencer inferencer;
+	int numTopics;
+	int numIterations;
+	int thinning;
+	int burnIn;
+
+	int randomSeed;
+	AtomicInteger numSamplers = new AtomicInteger();
+	ThreadLocal<TopicInferencer.Sampler> samplers;
+
+	// Number of calls that took [2^(i-1), 2^i) microseconds, with bucket 0 for under 1us
+	AtomicLongArray latencyCounts = new AtomicLongArray(NUM_LATENCY_BUCKETS);
+
+	int numThreads = 1;
+	ExecutorService executor = null;
+
+	/**
+	 *  @param numIterations The total number of iterations of sampling per document
+	 *  @param thinning	  The number of iterations between saved samples
+	 *  @param burnIn		The number of iterations before the first saved sample
+	 */
+	public TopicInferenceService (TopicInferencer inferencer, int numIterations, int thinning, int burnIn) {
+		this.inferencer = inferencer;
+		this.numTopics = inferencer.numTopics;
+		this.numIterations = numIterations;
+		this.thinning = thinning;
+		this.burnIn = burnIn;
+
+		inferencer.buildCache();
+
+		samplers = new ThreadLocal<TopicInferencer.Sampler>() {
+			protected TopicInferencer.Sampler initialValue() {
+				int sampler = numSamplers.getAndIncrement();
+				return TopicInferenceService.this.inferencer.getSampler
+					(randomSeed == 0 ? new Randoms() : new Randoms(randomSeed + sampler));
+			}
+		};
+	}
+
+	/**
+	 *  Seed the sampler of the n-th thread to call this service with
+	 *   <code>seed + n</code>. Only affects threads that have not called it yet.
+	 */
+	public void setRandomSeed (int seed) {
+		this.randomSeed = seed;
+	}
+
+	/** The number of threads used by {@link #infer(List)}. */
+	public synchronized void setNumThreads (int threads) {
+		if (threads != numThreads) {
+			shutdown();
+		}
+		this.numThreads = threads;
+	}
+
+	public int getNumTopics () { return numTopics; }
+
+	/** Infer the topic distribution of one instance into <code>result</code>, which must hold numTopics values. */
+	public void infer (Instance instance, double[] result) {
+		long start = System.nanoTime();
+		samplers.get().getSampledDistribution(instance, numIterations, thinning, burnIn, result);
+		recordLatency(System.nanoTime() - start);
+	}
+
+	/** Infer the topic distribution of one instance. */
+	public double[] infer (Instance instance) {
+		double[] result = new double[numTopics];
+		infer(instance, result);
+		return result;
+	}
+
+	/**
+	 *  Infer the topic distributions of a batch of instances, in order,
+	 *   split across the service's threads. Each instance's latency is
+	 *   recorded separately.
+	 */
+	public double[][] infer (final List<Instance> instances) {
+		final double[][] results = new double[instances.size()][numTopics];
+
+		ExecutorService executor = getExecutor();
+		if (executor == null || instances.size() < 2) {
+			for (int i = 0; i < instances.size(); i++) {
+				infer(instances.get(i), results[i]);
+			}
+			return results;
+		}
+
+		int numTasks = Math.min(numThreads, instances.size());
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (int task = 0; task < numTasks; task++) {
+			final int start = (int) ((long) instances.size() * task / numTasks);
+			final int end = (int) ((long) instances.size() * (task + 1) / numTasks);
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					for (int i = start; i < end; i++) {
+						infer(instances.get(i), results[i]);
+					}
+					return null;
+				}
+			});
+		}
+
+		ParallelTasks.invokeAll(executor, tasks, "inferring a batch");
+		return results;
+	}
+
+	synchronized ExecutorService getExecutor () {
+		if (numThreads > 1 && executor == null) {
+			executor = ParallelTasks.newDaemonPool(numThreads, "TopicInferenceService");
+		}
+		return executor;
+	}
+
+	/** Stop the threads used for batches. A later batch starts new ones. */
+	public synchronized void shutdown () {
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	void recordLatency (long nanos) {
+		long micros = nanos / 1000;
+		int bucket = 64 - Long.numberOfLeadingZeros(micros);
+		latencyCounts.incrementAndGet(Math.min(bucket, NUM_LATENCY_BUCKETS - 1));
+	}
+
+	/**
+	 *  The number of calls in each latency bucket. Bucket 0 counts calls under
+	 *   one microsecond, and bucket i counts calls of at least 2^(i-1) and
+	 *   under 2^i microseconds. The last bucket also counts anything longer.
+	 */
+	public long[] getLatencyHistogram () {
+		long[] counts = new long[NUM_LATENCY_BUCKETS];
+		for (int bucket = 0; bucket < NUM_LATENCY_BUCKETS; bucket++) {
+			counts[bucket] = latencyCounts.get(bucket);
+		}
+		return counts;
+	}
+
+	/**
+	 *  An upper bound in microseconds on the latency of the given fraction
+	 *   of calls, for example 0.99, to within a factor of two.
+	 */
+	public long getLatencyPercentile (double fraction) {
+		long[] counts = getLatencyHistogram();
+		long total = 0;
+		for (long count : counts) { total += count; }
+		if (total == 0) { return 0; }
+
+		long needed = (long) Math.ceil(fraction * total);
+		long seen = 0;
+		for (int bucket = 0; bucket < NUM_LATENCY_BUCKETS; bucket++) {
+			seen += counts[bucket];
+			if (seen >= needed) {
+				return 1L << bucket;
+			}
+		}
+		return 1L << (NUM_LATENCY_BUCKETS - 1);
+	}
+
+	public void resetLatencyHistogram () {
+		for (int bucket = 0; bucket < NUM_LATENCY_BUCKETS; bucket++) {
+			latencyCounts.set(bucket, 0);
+		}
+	}
+
+	/** Print the non-empty latency buckets, one per line. */
+	public void printLatencyHistogram (PrintStream out) {
+		long[] counts = getLatencyHistogram();
+		for (int bucket = 0; bucket < NUM_LATENCY_BUCKETS; bucket++) {
+			if (counts[bucket] == 0) { continue; }
+			long low = bucket == 0 ? 0 : 1L << (bucket - 1);
+			out.println("< " + (1L << bucket) + "us (from " + low + "us)\t" + counts[bucket]);
+		}
+		out.println("p50 < " + getLatencyPercentile(0.5) + "us\tp99 < " + getLatencyPercentile(0.99) + "us");
+	}
+
+}
@@ -30,6 +30,14 @@ public class TopicInferencer implements Serializable {
 	
 	double smoothingOnlyMass = 0.0;
 	double[] cachedCoefficients;
+
+	transient Sampler defaultSampler = null;
+
+	// Decoded type/topic counts and smoothing-only bucket weights,
+	//  only present after buildCache()
+	transient int[][] cachedTypeTopics;
+	transient int[][] cachedTypeCounts;
+	transient double[] smoothingCoefficients;
 	
 	public TopicInferencer (int[][] typeTopicCounts, int[] tokensPerTopic, Alphabet alphabet,
 							double[] alpha, double beta, double betaSum) {
@@ -69,6 +77,7 @@ public class TopicInferencer implements Serializable {
 
 	public void setRandomSeed(int seed) {
 		random = new Randoms(seed);
+		defaultSampler = null;
 	}
 
 	/** 
@@ -77,16 +86,40 @@ public class TopicInferencer implements Serializable {
 	 *   for each token. Using zero iterations returns exactly this
 	 *   initial topic distribution.<p/>
 	 *  This code does not adjust type-topic counts: P(w|t) is clamped.
+	 *  Not safe to call from more than one thread at a time; use
+	 *   a separate {@link Sampler} for each thread instead.
 	 */
 	public double[] getSampledDistribution(Instance instance, int numIterations,
 										   int thinning, int burnIn) {
+		if (defaultSampler == null) {
+			defaultSampler = new Sampler(random, cachedCoefficients);
+		}
+		return defaultSampler.getSampledDistribution(instance, numIterations, thinning, burnIn);
+	}
+
+	/**
+	 *  Sample a topic distribution into <code>result</code>, which must hold
+	 *   numTopics values, using the random number generator, coefficients
+	 *   and scratch space of <code>sampler</code>.
+	 */
+	protected void getSampledDistribution(Instance instance, int numIterations,
+										  int thinning, int burnIn, double[] result,
+										  Sampler sampler) {
 
 		FeatureSequence tokens = (FeatureSequence) instance.getData();
 		int docLength = tokens.size();
-		int[] topics = new int[docLength];
 
-		int[] localTopicCounts = new int[numTopics];
-		int[] localTopicIndex = new int[numTopics];
+		Randoms random = sampler.random;
+		double[] cachedCoefficients = sampler.cachedCoefficients;
+		int[][] typeTopics = sampler.typeTopics;
+		int[][] typeCounts = sampler.typeCounts;
+		double[] smoothingCoefficients = sampler.smoothingCoefficients;
+
+		int[] topics = sampler.getTopics(docLength);
+		int[] localTopicCounts = sampler.localTopicCounts;
+		int[] localTopicIndex = sampler.localTopicIndex;
+		double[] topicTermScores = sampler.topicTermScores;
+		Arrays.fill(localTopicCounts, 0);
 		
 		int type;
 		int[] currentTypeTopicCounts;
@@ -146,7 +179,6 @@ public class TopicInferencer implements Serializable {
 		}
 
 		double topicTermMass = 0.0;
-		double[] topicTermScores = new double[numTopics];
 		int[] topicTermIndices;
 		int[] topicTermValues;
 		int i;
@@ -154,7 +186,7 @@ public class TopicInferencer implements Serializable {
 
 		int oldTopic, newTopic;
 
-		double[] result = new double[numTopics];
+		Arrays.fill(result, 0.0);
 		double sum = 0.0;
 
 		for (int iteration = 1; iteration <= numIterations; iteration++) {
@@ -227,17 +259,29 @@ public class TopicInferencer implements Serializable {
 
 				topicTermMass = 0.0;
 
-				while (index < currentTypeTopicCounts.length &&
-					   currentTypeTopicCounts[index] > 0) {
-					currentTopic = currentTypeTopicCounts[index] & topicMask;
-					currentValue = currentTypeTopicCounts[index] >> topicBits;
+				if (typeTopics != null) {
+					int[] currentTypeTopics = typeTopics[type];
+					int[] currentTypeCounts = typeCounts[type];
+					for (index = 0; index < currentTypeTopics.length; index++) {
+						score =
+							cachedCoefficients[currentTypeTopics[index]] * currentTypeCounts[index];
+						topicTermMass += score;
+						topicTermScores[index] = score;
+					}
+				}
+				else {
+					while (index < currentTypeTopicCounts.length &&
+						   currentTypeTopicCounts[index] > 0) {
+						currentTopic = currentTypeTopicCounts[index] & topicMask;
+						currentValue = currentTypeTopicCounts[index] >> topicBits;
 					
-					score =
-						cachedCoefficients[currentTopic] * currentValue;
-					topicTermMass += score;
-					topicTermScores[index] = score;
+						score =
+							cachedCoefficients[currentTopic] * currentValue;
+						topicTermMass += score;
+						topicTermScores[index] = score;
 					
-					index++;
+						index++;
+					}
 				}
 
 				double sample = random.nextUniform() * (smoothingOnlyMass + topicBetaMass + topicTermMass);
@@ -255,7 +299,8 @@ public class TopicInferencer implements Serializable {
 						sample -= topicTermScores[i];
 					}
 
-					newTopic = currentTypeTopicCounts[i] & topicMask;
+					newTopic = typeTopics != null ? typeTopics[type][i] :
+						currentTypeTopicCounts[i] & topicMask;
 				}
 				else {
 					sample -= topicTermMass;
@@ -284,8 +329,8 @@ public class TopicInferencer implements Serializable {
 						sample /= beta;
 
 						newTopic = 0;
-						sample -= alpha[newTopic] /
-							(tokensPerTopic[newTopic] + betaSum);
+						sample -= smoothingCoefficients != null ? smoothingCoefficients[newTopic] :
+							alpha[newTopic] / (tokensPerTopic[newTopic] + betaSum);
 						
 						while (sample > 0.0) {
 							newTopic++;
@@ -304,8 +349,8 @@ public class TopicInferencer implements Serializable {
 								}
 							}
 
-							sample -= alpha[newTopic] /
-								(tokensPerTopic[newTopic] + betaSum);
+							sample -= smoothingCoefficients != null ? smoothingCoefficients[newTopic] :
+								alpha[newTopic] / (tokensPerTopic[newTopic] + betaSum);
 						}
 						
 					}
@@ -385,8 +430,113 @@ public class TopicInferencer implements Serializable {
 		for (int topic=0; topic < numTopics; topic++) {
 			result[topic] /= sum;
 		}
-		
-		return result;
+	}
+
+	/**
+	 *  Create a sampler with its own random number generator and scratch
+	 *   space. Samplers share the (read-only) model, so one sampler per
+	 *   thread can infer distributions concurrently.
+	 */
+	public Sampler getSampler(Randoms random) {
+		return new Sampler(random, cachedCoefficients.clone());
+	}
+
+	/**
+	 *  Unpack the type/topic counts into separate topic and count arrays
+	 *   and precompute the smoothing-only weight of each topic, so that
+	 *   samplers created afterwards skip that work on every token.
+	 *   Uses about as much memory again as the type/topic counts.
+	 *   Sampled distributions are the same with or without the cache.
+	 */
+	public synchronized void buildCache() {
+		if (cachedTypeTopics != null) { return; }
+
+		int[][] typeTopics = new int[numTypes][];
+		int[][] typeCounts = new int[numTypes][];
+		for (int type = 0; type < numTypes; type++) {
+			int[] currentTypeTopicCounts = typeTopicCounts[type];
+			int length = 0;
+			while (length < currentTypeTopicCounts.length &&
+				   currentTypeTopicCounts[length] > 0) {
+				length++;
+			}
+			typeTopics[type] = new int[length];
+			typeCounts[type] = new int[length];
+			for (int index = 0; index < length; index++) {
+				typeTopics[type][index] = currentTypeTopicCounts[index] & topicMask;
+				typeCounts[type][index] = currentTypeTopicCounts[index] >> topicBits;
+			}
+		}
+
+		double[] coefficients = new double[numTopics];
+		for (int topic = 0; topic < numTopics; topic++) {
+			coefficients[topic] = alpha[topic] / (tokensPerTopic[topic] + betaSum);
+		}
+
+		cachedTypeCounts = typeCounts;
+		smoothingCoefficients = coefficients;
+		cachedTypeTopics = typeTopics;
+		defaultSampler = null;
+	}
+
+	/**
+	 *  The per-document state of the Gibbs sampler, reused from one
+	 *   document to the next.
+	 */
+	public class Sampler {
+
+		Randoms random;
+		double[] cachedCoefficients;
+
+		int[] topics = new int[64];
+		int[] localTopicCounts = new int[numTopics];
+		int[] localTopicIndex = new int[numTopics];
+		double[] topicTermScores = new double[numTopics];
+
+		// From buildCache(), or null
+		int[][] typeTopics;
+		int[][] typeCounts;
+		double[] smoothingCoefficients;
+
+		Sampler(Randoms random, double[] cachedCoefficients) {
+			this.random = random;
+			this.cachedCoefficients = cachedCoefficients;
+
+			synchronized (TopicInferencer.this) {
+				typeTopics = cachedTypeTopics;
+				typeCounts = cachedTypeCounts;
+				smoothingCoefficients = TopicInferencer.this.smoothingCoefficients;
+			}
+		}
+
+		public Randoms getRandom() { return random; }
+
+		/** See {@link TopicInferencer#getSampledDistribution}. */
+		public double[] getSampledDistribution(Instance instance, int numIterations,
+											   int thinning, int burnIn) {
+			double[] result = new double[numTopics];
+			getSampledDistribution(instance, numIterations, thinning, burnIn, result);
+			return result;
+		}
+
+		/**
+		 *  Like {@link #getSampledDistribution(Instance, int, int, int)}, but write the
+		 *   distribution into <code>result</code>, which must hold numTopics values.
+		 *   Allocates nothing unless the document is the longest seen so far.
+		 */
+		public void getSampledDistribution(Instance instance, int numIterations,
+										   int thinning, int burnIn, double[] result) {
+			TopicInferencer.this.getSampledDistribution(instance, numIterations, thinning, burnIn,
+														result, this);
+		}
+
+		/** The topic of each position, with room for at least <code>docLength</code> tokens. */
+		int[] getTopics(int docLength) {
+			if (topics.length < docLength) {
+				topics = new int[Math.max(docLength, 2 * topics.length)];
+			}
+			return topics;
+		}
 	}
 
 	/**
@@ -429,39 +579,52 @@ public class TopicInferencer implements Serializable {
 			double[] topicDistribution =
 				getSampledDistribution(instance, numIterations,
 									   thinning, burnIn);
-			builder.append(doc);
-			builder.append("\t");
+			appendDistribution(builder, doc, instance, topicDistribution,
+							   threshold, max, sortedTopics);
+			out.println(builder);
+			doc++;
+		}
 
-			if (instance.getName() != null) {
-				builder.append(instance.getName()); 
-			}
-			else {
-				builder.append("no-name");
-			}
+		out.close();
+	}
 
-			if (threshold > 0.0) {
-				for (int topic = 0; topic < numTopics; topic++) {
-					sortedTopics[topic].set(topic, topicDistribution[topic]);
-				}
-				Arrays.sort(sortedTopics);
+	/**
+	 *  Append one line of <code>writeInferredDistributions</code> output,
+	 *   without the line separator.
+	 *
+	 *  @param sortedTopics Scratch space of numTopics sorters, only used with a positive threshold
+	 */
+	void appendDistribution(StringBuilder builder, int doc, Instance instance,
+							double[] topicDistribution, double threshold, int max,
+							IDSorter[] sortedTopics) {
+		builder.append(doc);
+		builder.append("\t");
+
+		if (instance.getName() != null) {
+			builder.append(instance.getName()); 
+		}
+		else {
+			builder.append("no-name");
+		}
+
+		if (threshold > 0.0) {
+			for (int topic = 0; topic < numTopics; topic++) {
+				sortedTopics[topic].set(topic, topicDistribution[topic]);
+			}
+			Arrays.sort(sortedTopics);
+			
+			for (int i = 0; i < max; i++) {
+				if (sortedTopics[i].getWeight() < threshold) { break; }
 				
-				for (int i = 0; i < max; i++) {
-					if (sortedTopics[i].getWeight() < threshold) { break; }
-					
-					builder.append("\t" + sortedTopics[i].getID() +
-								   "\t" + sortedTopics[i].getWeight());
-				}
+				builder.append("\t" + sortedTopics[i].getID() +
+							   "\t" + sortedTopics[i].getWeight());
 			}
-			else {
-				for (int topic = 0; topic < numTopics; topic++) {
-					builder.append("\t" + topicDistribution[topic]);
-				}
+		}
+		else {
+			for (int topic = 0; topic < numTopics; topic++) {
+				builder.append("\t" + topicDistribution[topic]);
 			}
-			out.println(builder);
-			doc++;
 		}
-
-		out.close();
 	}
 
 	// Serialization
@@ -3,6 +3,7 @@ package cc.mallet.topics;
 import java.io.*;
 import java.util.*;
 import java.text.*;
+import java.util.concurrent.*;
 
 import cc.mallet.types.*;
 import cc.mallet.util.*;
@@ -18,12 +19,21 @@ public class TopicModelDiagnostics {
 	public static final int FIFTY_PERCENT_INDEX = 6;
 	public static final double[] DEFAULT_DOC_PROPORTIONS = { 0.01, 0.02, 0.05, 0.1, 0.2, 0.3, 0.5 };
 
+	// Positions of the scores returned by getSortedWordScores()
+	static final int UNIFORM_DIST_INDEX = 0;
+	static final int CORPUS_DIST_INDEX = 1;
+	static final int EFF_NUM_WORDS_INDEX = 2;
+	static final int EXCLUSIVITY_INDEX = 3;
+
 	/**  All words in sorted order, with counts */
 	ArrayList<TreeSet<IDSorter>> topicSortedWords;
 	
 	/** The top N words in each topic in an array for easy access */
 	String[][] topicTopWords;
 
+	/** The feature indices of the top words, with -1 after the last word of a short topic */
+	int[][] topicTopWordTypes;
+
 	ArrayList<TopicScores> diagnostics; 
 
 	ParallelTopicModel model;
@@ -41,9 +51,20 @@ public class TopicModelDiagnostics {
 	int[] wordTypeCounts;
 	int numTokens = 0;
 
+	int numThreads;
+	ExecutorService executor = null;
+
 	public TopicModelDiagnostics (ParallelTopicModel model, int numTopWords) {
+		this(model, numTopWords, model.numThreads);
+	}
+
+	/**
+	 *  @param numThreads The number of threads used to collect document statistics and score topics
+	 */
+	public TopicModelDiagnostics (ParallelTopicModel model, int numTopWords, int numThreads) {
 		numTopics = model.getNumTopics();
 		this.numTopWords = numTopWords;
+		this.numThreads = Math.max(numThreads, 1);
 
 		this.model = model;
 
@@ -51,6 +72,7 @@ public class TopicModelDiagnostics {
 		topicSortedWords = model.getSortedWords();
 
 		topicTopWords = new String[numTopics][numTopWords];
+		topicTopWordTypes = new int[numTopics][numTopWords];
 
 		numRank1Documents = new int[numTopics];
 		numNonZeroDocuments = new int[numTopics];
@@ -69,142 +91,268 @@ public class TopicModelDiagnostics {
 			int limit = numTopWords;
 			if (sortedWords.size() < numTopWords) { limit = sortedWords.size(); }
 
+			Arrays.fill(topicTopWordTypes[topic], -1);
 			Iterator<IDSorter> iterator = sortedWords.iterator();
 			for (int i=0; i < limit; i++) {
 				IDSorter info = iterator.next();
 				topicTopWords[topic][i] = (String) alphabet.lookupObject(info.getID());
+				topicTopWordTypes[topic][i] = info.getID();
 			}
 
 		}
 
-		collectDocumentStatistics();
+		if (this.numThreads > 1) {
+			executor = Executors.newFixedThreadPool(this.numThreads);
+		}
+
+		try {
+			collectDocumentStatistics();
+			TopicScores[] sortedWordScores = getSortedWordScores();
 		
-		diagnostics.add(getTokensPerTopic(model.tokensPerTopic));
-		diagnostics.add(getDocumentEntropy(model.tokensPerTopic));
-		diagnostics.add(getWordLengthScores());
-		diagnostics.add(getCoherence());
-		diagnostics.add(getDistanceFromUniform());
-		diagnostics.add(getDistanceFromCorpus());
-		diagnostics.add(getEffectiveNumberOfWords());
-		diagnostics.add(getTokenDocumentDiscrepancies());
-		diagnostics.add(getRank1Percent());
-		diagnostics.add(getDocumentPercentRatio(FIFTY_PERCENT_INDEX, TWO_PERCENT_INDEX));
-		diagnostics.add(getDocumentPercent(5));
-		diagnostics.add(getExclusivity());
+			diagnostics.add(getTokensPerTopic(model.tokensPerTopic));
+			diagnostics.add(getDocumentEntropy(model.tokensPerTopic));
+			diagnostics.add(getWordLengthScores());
+			diagnostics.add(getCoherence());
+			diagnostics.add(sortedWordScores[UNIFORM_DIST_INDEX]);
+			diagnostics.add(sortedWordScores[CORPUS_DIST_INDEX]);
+			diagnostics.add(sortedWordScores[EFF_NUM_WORDS_INDEX]);
+			diagnostics.add(getTokenDocumentDiscrepancies());
+			diagnostics.add(getRank1Percent());
+			diagnostics.add(getDocumentPercentRatio(FIFTY_PERCENT_INDEX, TWO_PERCENT_INDEX));
+			diagnostics.add(getDocumentPercent(5));
+			diagnostics.add(sortedWordScores[EXCLUSIVITY_INDEX]);
+		} finally {
+			if (executor != null) {
+				executor.shutdownNow();
+				executor = null;
+			}
+		}
 	}
 
-	public void collectDocumentStatistics () {
+	/** Work on a range of topics or documents, one of several run in parallel. */
+	interface RangeTask {
+		public void run(int start, int end);
+	}
 
-		topicCodocumentMatrices = new int[numTopics][numTopWords][numTopWords];
-		wordTypeCounts = new int[alphabet.size()];
-		numTokens = 0;
+	/** Split <code>[0, size)</code> into one range per thread and wait for all of them. */
+	void runRanges(int size, final RangeTask task) {
+		int numTasks = Math.min(numThreads, size);
+		if (executor == null || numTasks < 2) {
+			task.run(0, size);
+			return;
+		}
 
-		// This is an array of hash sets containing the words-of-interest for each topic,
-		//  used for checking if the word at some position is one of those words.
-		TIntHashSet[] topicTopWordIndices = new TIntHashSet[numTopics];
-		
-		// The same as the topic top words, but with int indices instead of strings,
-		//  used for iterating over positions.
-		int[][] topicWordIndicesInOrder = new int[numTopics][numTopWords];
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (int i = 0; i < numTasks; i++) {
+			final int start = (int) ((long) size * i / numTasks);
+			final int end = (int) ((long) size * (i + 1) / numTasks);
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					task.run(start, end);
+					return null;
+				}
+			});
+		}
 
-		// This is an array of hash sets that will hold the words-of-interest present in a document,
-		//  which will be cleared after every document.
-		TIntHashSet[] docTopicWordIndices = new TIntHashSet[numTopics];
-		
-		int numDocs = model.getData().size();
+		ParallelTasks.invokeAll(executor, tasks, "collecting diagnostics");
+	}
+
+	/**
+	 *  Collect every per-document statistic in one pass over the topic assignments.
+	 *   Documents are split across threads, each counting into its own
+	 *   {@link DocumentStatistics}, and the counts are added up at the end.
+	 */
+	public void collectDocumentStatistics () {
 
-		// The count of each topic, again cleared after every document.
-		int[] topicCounts = new int[numTopics];
+		// For each word type, the topics it is a top word in and its position
+		//  in each of them, so each token needs one lookup rather than a hash
+		//  set test per topic. Most types are not top words, and have none.
+		final int[][] typeTopWordTopics = new int[alphabet.size()][];
+		final int[][] typeTopWordPositions = new int[alphabet.size()][];
 
+		int[] numTopWordTopics = new int[alphabet.size()];
 		for (int topic = 0; topic < numTopics; topic++) {
-			TIntHashSet wordIndices = new TIntHashSet();
+			for (int i = 0; i < numTopWords && topicTopWordTypes[topic][i] != -1; i++) {
+				numTopWordTopics[ topicTopWordTypes[topic][i] ]++;
+			}
+		}
 
-			for (int i = 0; i < numTopWords; i++) {
-				if (topicTopWords[topic][i] != null) {
-					int type = alphabet.lookupIndex(topicTopWords[topic][i]);
-					topicWordIndicesInOrder[topic][i] = type;
-					wordIndices.add(type);
+		for (int topic = 0; topic < numTopics; topic++) {
+			for (int i = 0; i < numTopWords && topicTopWordTypes[topic][i] != -1; i++) {
+				int type = topicTopWordTypes[topic][i];
+				if (typeTopWordTopics[type] == null) {
+					typeTopWordTopics[type] = new int[ numTopWordTopics[type] ];
+					typeTopWordPositions[type] = new int[ numTopWordTopics[type] ];
+					numTopWordTopics[type] = 0;
 				}
+				typeTopWordTopics[type][ numTopWordTopics[type] ] = topic;
+				typeTopWordPositions[type][ numTopWordTopics[type] ] = i;
+				numTopWordTopics[type]++;
 			}
-			
-			topicTopWordIndices[topic] = wordIndices;
-			docTopicWordIndices[topic] = new TIntHashSet();
 		}
 
-		int doc = 0;
+		final ArrayList<TopicAssignment> data = model.getData();
+		// Partial counts by the first document of their range, added up in
+		//  document order so the result doesn't depend on which thread finishes first
+		final TreeMap<Integer, DocumentStatistics> partials = new TreeMap<Integer, DocumentStatistics>();
+
+		runRanges(data.size(), new RangeTask() {
+			public void run(int start, int end) {
+				DocumentStatistics statistics = new DocumentStatistics();
+				statistics.collect(data, start, end, typeTopWordTopics, typeTopWordPositions);
+				synchronized (partials) {
+					partials.put(start, statistics);
+				}
+			}
+		});
+
+		Iterator<DocumentStatistics> iterator = partials.values().iterator();
+		DocumentStatistics total = iterator.next();
+		while (iterator.hasNext()) {
+			total.add(iterator.next());
+		}
+
+		topicCodocumentMatrices = total.topicCodocumentMatrices;
+		numRank1Documents = total.numRank1Documents;
+		numNonZeroDocuments = total.numNonZeroDocuments;
+		numDocumentsAtProportions = total.numDocumentsAtProportions;
+		sumCountTimesLogCount = total.sumCountTimesLogCount;
+		wordTypeCounts = total.wordTypeCounts;
+		numTokens = total.numTokens;
+	}
+
+	/** Document statistics for a range of documents. */
+	class DocumentStatistics {
+		int[][][] topicCodocumentMatrices = new int[numTopics][numTopWords][numTopWords];
+		int[] numRank1Documents = new int[numTopics];
+		int[] numNonZeroDocuments = new int[numTopics];
+		int[][] numDocumentsAtProportions = new int[numTopics][ DEFAULT_DOC_PROPORTIONS.length ];
+		double[] sumCountTimesLogCount = new double[numTopics];
+		int[] wordTypeCounts = new int[alphabet.size()];
+		int numTokens = 0;
+
+		void collect (ArrayList<TopicAssignment> data, int start, int end,
+					  int[][] typeTopWordTopics, int[][] typeTopWordPositions) {
+
+			// One bit per top word of each topic, set if that word
+			//  is assigned to the topic in the current document.
+			int masksPerTopic = (numTopWords + 63) / 64;
+			long[] topicWordMasks = new long[numTopics * masksPerTopic];
+
+			// The count of each topic, and the topics present, cleared after every document.
+			int[] topicCounts = new int[numTopics];
+			int[] docTopics = new int[numTopics];
 
-		for (TopicAssignment document: model.getData()) {
+			int[] supportedWords = new int[numTopWords];
 
-			FeatureSequence tokens = (FeatureSequence) document.instance.getData();
-			FeatureSequence topics =  (FeatureSequence) document.topicSequence;
+			for (int doc = start; doc < end; doc++) {
+				TopicAssignment document = data.get(doc);
+
+				FeatureSequence tokens = (FeatureSequence) document.instance.getData();
+				FeatureSequence topics =  (FeatureSequence) document.topicSequence;
+				int numDocTopics = 0;
 			
-			for (int position = 0; position < tokens.size(); position++) {
-				int type = tokens.getIndexAtPosition(position);
-				int topic = topics.getIndexAtPosition(position);
+				for (int position = 0; position < tokens.size(); position++) {
+					int type = tokens.getIndexAtPosition(position);
+					int topic = topics.getIndexAtPosition(position);
 
-				numTokens++;
-				wordTypeCounts[type]++;
+					numTokens++;
+					wordTypeCounts[type]++;
 
-				topicCounts[topic]++;
-				
-				if (topicTopWordIndices[topic].contains(type)) {
-					docTopicWordIndices[topic].add(type);
+					if (topicCounts[topic] == 0) {
+						docTopics[numDocTopics++] = topic;
+					}
+					topicCounts[topic]++;
+
+					int[] topWordTopics = typeTopWordTopics[type];
+					if (topWordTopics != null) {
+						for (int i = 0; i < topWordTopics.length; i++) {
+							if (topWordTopics[i] == topic) {
+								int word = typeTopWordPositions[type][i];
+								topicWordMasks[topic * masksPerTopic + (word >> 6)] |= 1L << word;
+								break;
+							}
+						}
+					}
 				}
-			}
 
-			int docLength = tokens.size();
+				int docLength = tokens.size();
 
-			if (docLength > 0) {
 				int maxTopic = -1;
 				int maxCount = -1;
 
-				for (int topic = 0; topic < numTopics; topic++) {
-					
-					if (topicCounts[topic] > 0) {
-						numNonZeroDocuments[topic]++;
-						
-						if (topicCounts[topic] > maxCount) { 
-							maxTopic = topic;
-							maxCount = topicCounts[topic];
-						}
+				for (int i = 0; i < numDocTopics; i++) {
+					int topic = docTopics[i];
+					int count = topicCounts[topic];
 
-						sumCountTimesLogCount[topic] += topicCounts[topic] * Math.log(topicCounts[topic]);
+					numNonZeroDocuments[topic]++;
+
+					// Break ties in favor of the lowest topic
+					if (count > maxCount || (count == maxCount && topic < maxTopic)) {
+						maxTopic = topic;
+						maxCount = count;
+					}
+
+					sumCountTimesLogCount[topic] += count * Math.log(count);
 						
-						double proportion = (model.alpha[topic] + topicCounts[topic]) / (model.alphaSum + docLength);
-						for (int i = 0; i < DEFAULT_DOC_PROPORTIONS.length; i++) {
-							if (proportion < DEFAULT_DOC_PROPORTIONS[i]) { break; }
-							numDocumentsAtProportions[topic][i]++;
+					double proportion = (model.alpha[topic] + count) / (model.alphaSum + docLength);
+					for (int p = 0; p < DEFAULT_DOC_PROPORTIONS.length; p++) {
+						if (proportion < DEFAULT_DOC_PROPORTIONS[p]) { break; }
+						numDocumentsAtProportions[topic][p]++;
+					}
+
+					// List the top words present, in order
+					int numSupportedWords = 0;
+					for (int mask = 0; mask < masksPerTopic; mask++) {
+						long bits = topicWordMasks[topic * masksPerTopic + mask];
+						while (bits != 0) {
+							supportedWords[numSupportedWords++] = (mask << 6) + Long.numberOfTrailingZeros(bits);
+							bits &= bits - 1;
 						}
+						topicWordMasks[topic * masksPerTopic + mask] = 0;
+					}
 
-						TIntHashSet supportedWords = docTopicWordIndices[topic];
-						int[] indices = topicWordIndicesInOrder[topic];
-
-						for (int i = 0; i < numTopWords; i++) {
-							if (supportedWords.contains(indices[i])) {
-								for (int j = i; j < numTopWords; j++) {
-									if (i == j) {
-										// Diagonals are total number of documents with word W in topic T
-										topicCodocumentMatrices[topic][i][i]++;
-									}
-									else if (supportedWords.contains(indices[j])) {
-										topicCodocumentMatrices[topic][i][j]++;
-										topicCodocumentMatrices[topic][j][i]++;
-									}
-								}
-							}
+					int[][] matrix = topicCodocumentMatrices[topic];
+					for (int a = 0; a < numSupportedWords; a++) {
+						int row = supportedWords[a];
+						// Diagonals are total number of documents with word W in topic T
+						matrix[row][row]++;
+						for (int b = a + 1; b < numSupportedWords; b++) {
+							int col = supportedWords[b];
+							matrix[row][col]++;
+							matrix[col][row]++;
 						}
-						
-						docTopicWordIndices[topic].clear();
-						topicCounts[topic] = 0;
 					}
+						
+					topicCounts[topic] = 0;
 				}
 
 				if (maxTopic > -1) {
 					numRank1Documents[maxTopic]++;
 				}
 			}
+		}
 
-			doc++;
+		void add (DocumentStatistics other) {
+			for (int topic = 0; topic < numTopics; topic++) {
+				for (int row = 0; row < numTopWords; row++) {
+					int[] counts = topicCodocumentMatrices[topic][row];
+					int[] otherCounts = other.topicCodocumentMatrices[topic][row];
+					for (int col = 0; col < numTopWords; col++) {
+						counts[col] += otherCounts[col];
+					}
+				}
+				numRank1Documents[topic] += other.numRank1Documents[topic];
+				numNonZeroDocuments[topic] += other.numNonZeroDocuments[topic];
+				for (int p = 0; p < DEFAULT_DOC_PROPORTIONS.length; p++) {
+					numDocumentsAtProportions[topic][p] += other.numDocumentsAtProportions[topic][p];
+				}
+				sumCountTimesLogCount[topic] += other.sumCountTimesLogCount[topic];
+			}
+			for (int type = 0; type < wordTypeCounts.length; type++) {
+				wordTypeCounts[type] += other.wordTypeCounts[type];
+			}
+			numTokens += other.numTokens;
 		}
 	}
 
@@ -232,103 +380,102 @@ public class TopicModelDiagnostics {
 		return scores;
 	}
 
-	public TopicScores getDistanceFromUniform() {
-		int[] tokensPerTopic = model.tokensPerTopic;
-
-		TopicScores scores = new TopicScores("uniform_dist", numTopics, numTopWords);
-        scores.wordScoresDefined = true;
-
-		int numTypes = alphabet.size();
-
+	/**
+	 *  The scores that walk each topic's sorted words, computed together in one
+	 *   pass per topic, with topics split across threads. The array holds distance
+	 *   from uniform, distance from the corpus, effective number of words and
+	 *   exclusivity, at the positions given by the <code>*_INDEX</code> constants.
+	 */
+	public TopicScores[] getSortedWordScores() {
+		final int[] tokensPerTopic = model.tokensPerTopic;
+
+		final TopicScores uniformScores = new TopicScores("uniform_dist", numTopics, numTopWords);
+		uniformScores.wordScoresDefined = true;
+		final TopicScores corpusScores = new TopicScores("corpus_dist", numTopics, numTopWords);
+		corpusScores.wordScoresDefined = true;
+		final TopicScores effectiveScores = new TopicScores("eff_num_words", numTopics, numTopWords);
+		final TopicScores exclusivityScores = new TopicScores("exclusivity", numTopics, numTopWords);
+		exclusivityScores.wordScoresDefined = true;
+
+		final int numTypes = alphabet.size();
+
+		double defaultProbs = 0.0;
 		for (int topic = 0; topic < numTopics; topic++) {
+			defaultProbs += model.beta / (model.betaSum + tokensPerTopic[topic]);
+		}
+		final double sumDefaultProbs = defaultProbs;
 
-			double topicScore = 0.0;
-			int position = 0;
-			TreeSet<IDSorter> sortedWords = topicSortedWords.get(topic);
+		runRanges(numTopics, new RangeTask() {
+			public void run(int start, int end) {
+				for (int topic = start; topic < end; topic++) {
 
-			for (IDSorter info: sortedWords) {
-				int type = info.getID();
-				double count = info.getWeight();
+					double coefficient = (double) numTokens / tokensPerTopic[topic];
 
-				double score = (count / tokensPerTopic[topic]) *
-					Math.log( (count * numTypes) / tokensPerTopic[topic] );
+					double uniformScore = 0.0;
+					double corpusScore = 0.0;
+					double sumSquaredProbabilities = 0.0;
+					double exclusivityScore = 0.0;
 
-				if (position < numTopWords) {
-					scores.setTopicWordScore(topic, position, score);
-				}
-				
-				topicScore += score;
-				position++;
-			}
+					int position = 0;
+					TreeSet<IDSorter> sortedWords = topicSortedWords.get(topic);
 
-			scores.setTopicScore(topic, topicScore);
-		}
+					for (IDSorter info: sortedWords) {
+						int type = info.getID();
+						double count = info.getWeight();
+						double probability = count / tokensPerTopic[topic];
 
-		return scores;
-	}
-
-	public TopicScores getEffectiveNumberOfWords() {
-		int[] tokensPerTopic = model.tokensPerTopic;
+						double score = (count / tokensPerTopic[topic]) *
+							Math.log( (count * numTypes) / tokensPerTopic[topic] );
+						if (position < numTopWords) {
+							uniformScores.setTopicWordScore(topic, position, score);
+						}
+						uniformScore += score;
 
-		TopicScores scores = new TopicScores("eff_num_words", numTopics, numTopWords);
+						score = (count / tokensPerTopic[topic]) *
+							Math.log( coefficient * count / wordTypeCounts[type] );
+						if (position < numTopWords) {
+							corpusScores.setTopicWordScore(topic, position, score);
+						}
+						corpusScore += score;
 
-		int numTypes = alphabet.size();
+						sumSquaredProbabilities += probability * probability;
 
-		for (int topic = 0; topic < numTopics; topic++) {
+						if (position < numTopWords) {
+							score = getExclusivity(type, count, topic, sumDefaultProbs);
+							exclusivityScores.setTopicWordScore(topic, position, score);
+							exclusivityScore += score;
+						}
 
-			double sumSquaredProbabilities = 0.0;
-			TreeSet<IDSorter> sortedWords = topicSortedWords.get(topic);
+						position++;
+					}
 
-			for (IDSorter info: sortedWords) {
-				int type = info.getID();
-				double probability = info.getWeight() / tokensPerTopic[topic];
-				
-				sumSquaredProbabilities += probability * probability;
+					uniformScores.setTopicScore(topic, uniformScore);
+					corpusScores.setTopicScore(topic, corpusScore);
+					effectiveScores.setTopicScore(topic, 1.0 / sumSquaredProbabilities);
+					exclusivityScores.setTopicScore(topic, exclusivityScore / numTopWords);
+				}
 			}
+		});
 
-			scores.setTopicScore(topic, 1.0 / sumSquaredProbabilities);
-		}
-
+		TopicScores[] scores = new TopicScores[4];
+		scores[UNIFORM_DIST_INDEX] = uniformScores;
+		scores[CORPUS_DIST_INDEX] = corpusScores;
+		scores[EFF_NUM_WORDS_INDEX] = effectiveScores;
+		scores[EXCLUSIVITY_INDEX] = exclusivityScores;
 		return scores;
 	}
 
-	/** Low-quality topics may be very similar to the global distribution. */
-	public TopicScores getDistanceFromCorpus() {
-
-		int[] tokensPerTopic = model.tokensPerTopic;
-
-		TopicScores scores = new TopicScores("corpus_dist", numTopics, numTopWords);
-		scores.wordScoresDefined = true;
-
-		for (int topic = 0; topic < numTopics; topic++) {
-
-			double coefficient = (double) numTokens / tokensPerTopic[topic];
-
-			double topicScore = 0.0;
-			int position = 0;
-			TreeSet<IDSorter> sortedWords = topicSortedWords.get(topic);
-
-			for (IDSorter info: sortedWords) {
-				int type = info.getID();
-				double count = info.getWeight();
-
-				double score = (count / tokensPerTopic[topic]) *
-					Math.log( coefficient * count / wordTypeCounts[type] );
-
-				if (position < numTopWords) {
-					//System.out.println(alphabet.lookupObject(type) + ": " + count + " * " + numTokens + " / " + wordTypeCounts[type] + " * " + tokensPerTopic[topic] + " = " + (coefficient * count / wordTypeCounts[type]));
-					scores.setTopicWordScore(topic, position, score);
-				}
-				
-				topicScore += score;
-
-				position++;
-			}
+	public TopicScores getDistanceFromUniform() {
+		return getSortedWordScores()[UNIFORM_DIST_INDEX];
+	}
 
-			scores.setTopicScore(topic, topicScore);
-		}
+	public TopicScores getEffectiveNumberOfWords() {
+		return getSortedWordScores()[EFF_NUM_WORDS_INDEX];
+	}
 
-		return scores;
+	/** Low-quality topics may be very similar to the global distribution. */
+	public TopicScores getDistanceFromCorpus() {
+		return getSortedWordScores()[CORPUS_DIST_INDEX];
 	}
 
 	public TopicScores getTokenDocumentDiscrepancies() {
@@ -531,60 +678,36 @@ public class TopicModelDiagnostics {
 
 	/** Low-quality topics may have words that are also prominent in other topics. */
 	public TopicScores getExclusivity() {
+		return getSortedWordScores()[EXCLUSIVITY_INDEX];
+	}
 
+	/**
+	 *  The probability of a word in a topic, divided by the sum of its probabilities
+	 *   in every topic. <code>sumDefaultProbs</code> is the sum over topics of the
+	 *   smoothing probability, beta / (betaSum + tokensPerTopic[topic]).
+	 */
+	double getExclusivity(int type, double count, int topic, double sumDefaultProbs) {
 		int[] tokensPerTopic = model.tokensPerTopic;
 
-		TopicScores scores = new TopicScores("exclusivity", numTopics, numTopWords);
-		scores.wordScoresDefined = true;
-
-		double sumDefaultProbs = 0.0;
-		for (int topic = 0; topic < numTopics; topic++) {
-			sumDefaultProbs += model.beta / (model.betaSum + tokensPerTopic[topic]);
-		}
-		
-		for (int topic = 0; topic < numTopics; topic++) {
-
-			double topicScore = 0.0;
-			int position = 0;
-			TreeSet<IDSorter> sortedWords = topicSortedWords.get(topic);
-
-			for (IDSorter info: sortedWords) {
-				int type = info.getID();
-				double count = info.getWeight();
-				
-				double sumTypeProbs = sumDefaultProbs;
-				int[] topicCounts = model.typeTopicCounts[type];
-
-				int index = 0;
-				while (index < topicCounts.length &&
-					   topicCounts[index] > 0) {
-
-					int otherTopic = topicCounts[index] & model.topicMask;
-					int otherCount = topicCounts[index] >> model.topicBits;
+		double sumTypeProbs = sumDefaultProbs;
+		int[] topicCounts = model.typeTopicCounts[type];
 
-					// We've already accounted for the smoothing parameter,
-					//  now we need to add the actual count for the non-zero
-					//  topics.
-					sumTypeProbs += ((double) otherCount) / (model.betaSum + tokensPerTopic[otherTopic]);
+		int index = 0;
+		while (index < topicCounts.length &&
+			   topicCounts[index] > 0) {
 
-					index++;
-				}
-				
+			int otherTopic = topicCounts[index] & model.topicMask;
+			int otherCount = topicCounts[index] >> model.topicBits;
 
-				double score = ((model.beta + count) / (model.betaSum + tokensPerTopic[topic])) / sumTypeProbs;
-				scores.setTopicWordScore(topic, position, score);
-				topicScore += score;
+			// We've already accounted for the smoothing parameter,
+			//  now we need to add the actual count for the non-zero
+			//  topics.
+			sumTypeProbs += ((double) otherCount) / (model.betaSum + tokensPerTopic[otherTopic]);
 
-				position++;
-				if (position == numTopWords) {
-					break;
-				}
-			}
-
-			scores.setTopicScore(topic, topicScore / numTopWords);
+			index++;
 		}
 
-		return scores;
+		return ((model.beta + count) / (model.betaSum + tokensPerTopic[topic])) / sumTypeProbs;
 	}
 	
 
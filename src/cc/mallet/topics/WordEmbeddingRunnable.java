@@ -58,24 +58,16 @@ public class WordEmbeddingRunnable implements Runnable {
 
 		int outputOffset = model.numColumns;
 
-		docID = threadID * (numDocuments / numThreads);
-		int maxDocID = (threadID + 1) * (numDocuments / numThreads);
-		if (maxDocID > numDocuments) {
-			maxDocID = numDocuments;
-		}
+		// One pass through this thread's share of the documents
+		int startDoc = (int) ((long) numDocuments * threadID / numThreads);
+		int endDoc = (int) ((long) numDocuments * (threadID + 1) / numThreads);
 		
 		double cacheScale = 1.0 / (model.maxExpValue - model.minExpValue);
 		
 		int[] tokenBuffer = new int[100000];
 		
-		while (shouldRun) {
+		for (docID = startDoc; docID < endDoc && shouldRun; docID++) {
 			Instance instance = instances.get( docID );
-			docID++;
-
-			if (docID == maxDocID) { 
-				// start over at the beginning
-				docID = threadID * (numDocuments / numThreads);
-			}
 
 			double learningRate = Math.max(0.0001, 0.025 * (1.0 - (double) numThreads * wordsSoFar / model.totalWords));
 			
@@ -110,7 +102,8 @@ public class WordEmbeddingRunnable implements Runnable {
 					int outputType = tokenBuffer[outputPosition];
 					if (inputType == outputType) { continue; }
 					
-					double innerProduct = model.weights[inputType * stride + 0] + model.weights[inputType * stride + outputOffset];
+					// Column 0 is a bias on each side, the rest are the vectors
+					double innerProduct = model.weights[inputType * stride + 0] + model.weights[outputType * stride + outputOffset];
 					for (int col = 1; col < numColumns; col++) {
 						innerProduct += model.weights[inputType * stride + col] * model.weights[outputType * stride + outputOffset + col];
 					}
@@ -143,8 +136,8 @@ public class WordEmbeddingRunnable implements Runnable {
 						//System.out.format("%s %s %d\n", vocabulary.lookupObject(outputType), vocabulary.lookupObject(sampledType), 0);
 						int sampledTypeOffset = sampledType * stride;
 						
-						innerProduct = model.weights[inputType * stride + 0] + model.weights[sampledTypeOffset + outputOffset];;
-						for (int col = 0; col < numColumns; col++) {
+						innerProduct = model.weights[inputType * stride + 0] + model.weights[sampledTypeOffset + outputOffset];
+						for (int col = 1; col < numColumns; col++) {
 							innerProduct += model.weights[inputType * stride + col] * model.weights[sampledTypeOffset + outputOffset + col];
 						}
 						
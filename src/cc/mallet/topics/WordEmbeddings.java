@@ -32,6 +32,15 @@ public class WordEmbeddings {
 	static CommandOption.String exampleWord = new CommandOption.String(WordEmbeddings.class, "example-word", "STRING", true, null,
 																	   "If defined, periodically show the closest vectors to this word.", null);
 
+	static CommandOption.Integer numEpochsOption = new CommandOption.Integer(WordEmbeddings.class, "num-epochs", "INTEGER", true, 5,
+																	   "The number of passes through the training data.", null);
+
+	static CommandOption.Boolean floatWeights = new CommandOption.Boolean(WordEmbeddings.class, "float-weights", "true|false", false, false,
+																	   "Train with single-precision weights using FloatWordEmbeddings, which is faster and uses half the memory.", null);
+
+	static CommandOption.Boolean offHeap = new CommandOption.Boolean(WordEmbeddings.class, "off-heap", "true|false", false, false,
+																	   "With --float-weights, keep the weights in a direct buffer outside the Java heap. Slower, but the garbage collector never scans or moves them.", null);
+
 
 	Alphabet vocabulary;
         
@@ -54,6 +63,7 @@ public class WordEmbeddings {
 	int sigmoidCacheSize = 1000;
 
 	int windowSize = 5;
+	int numEpochs = 5;
 
 	public int getMinDocumentLength()
 	{
@@ -84,9 +94,22 @@ public class WordEmbeddings {
 
 	Randoms random = new Randoms();
 
+	/** The number of passes through the training data. */
+	public void setNumEpochs(int numEpochs) {
+		this.numEpochs = numEpochs;
+	}
+
 	public WordEmbeddings() { }
 
 	public WordEmbeddings(Alphabet a, int numColumns, int windowSize) {
+		this(a, numColumns, windowSize, true);
+	}
+
+	/**
+	 *  @param allocateWeights False for subclasses that store the weights themselves,
+	 *   in which case <code>weights</code> is left null.
+	 */
+	protected WordEmbeddings(Alphabet a, int numColumns, int windowSize, boolean allocateWeights) {
 		vocabulary = a;
                 
 		numWords = vocabulary.size();
@@ -97,12 +120,14 @@ public class WordEmbeddings {
 		
 		this.stride = 2 * numColumns;
 		
-		weights = new double[numWords * stride];
-		squaredGradientSums = new double[numWords * stride];
+		if (allocateWeights) {
+			weights = new double[numWords * stride];
+			squaredGradientSums = new double[numWords * stride];
 
-		for (int word = 0; word < numWords; word++) {
-			for (int col = 0; col < 2 * numColumns; col++) {
-				weights[word * stride + col] = (random.nextDouble() - 0.5f) / numColumns;
+			for (int word = 0; word < numWords; word++) {
+				for (int col = 0; col < 2 * numColumns; col++) {
+					weights[word * stride + col] = (random.nextDouble() - 0.5f) / numColumns;
+				}
 			}
 		}
 
@@ -114,7 +139,7 @@ public class WordEmbeddings {
 
 		sigmoidCache = new double[sigmoidCacheSize + 1];
 
-		for (int i = 0; i < sigmoidCacheSize; i++) {
+		for (int i = 0; i <= sigmoidCacheSize; i++) {
 			double value = ((double) i / sigmoidCacheSize) * (maxExpValue - minExpValue) + minExpValue;
 			sigmoidCache[i] = 1.0 / (1.0 + Math.exp(-value));
 		}
@@ -153,57 +178,74 @@ public class WordEmbeddings {
 		System.out.println("done counting");
 	}
 
+	/**
+	 *  Train for <code>numEpochs</code> passes through the data. Each thread
+	 *   works through its own share of the documents once per epoch, and
+	 *   progress is reported when every thread has finished the epoch.
+	 */
 	public void train(InstanceList instances, int numThreads, int numSamples) {
 
 		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
 
 		WordEmbeddingRunnable[] runnables = new WordEmbeddingRunnable[numThreads];
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
 		for (int thread = 0; thread < numThreads; thread++) {
-			runnables[thread] = new WordEmbeddingRunnable(this, instances, numSamples, numThreads, thread);
-			executor.submit(runnables[thread]);
+			runnables[thread] = newRunnable(instances, numSamples, numThreads, thread);
+			tasks.add(Executors.callable(runnables[thread]));
 		}
 
 		long startTime = System.currentTimeMillis();
-		double difference = 0.0;
-
-		boolean finished = false;
-		while (! finished) {
-                               
-			try {
-				Thread.sleep(5000);
-			} catch (InterruptedException e) {
-                                                
-			}
-
-			int wordsSoFar = 0;
-                                        
-			// Are all the threads done?
-			for (int thread = 0; thread < numThreads; thread++) {
-				wordsSoFar += runnables[thread].wordsSoFar;
-				System.out.format("%.3f ", runnables[thread].getMeanError());
-			}
 
-			long runningMillis = System.currentTimeMillis() - startTime;
-			System.out.format("%d\t%d\t%fk w/s %f loss %f avg\n", wordsSoFar, runningMillis, (double) wordsSoFar / runningMillis, 
-							  difference / 10000, averageAbsWeight());
-			difference = 0.0;
+		try {
+			for (int epoch = 1; epoch <= numEpochs; epoch++) {
+				ParallelTasks.invokeAll(executor, tasks, "training");
 
-			if (wordsSoFar > 5 * totalWords) {
-				finished = true;
+				long wordsSoFar = 0;
 				for (int thread = 0; thread < numThreads; thread++) {
-					runnables[thread].shouldRun = false;
+					wordsSoFar += runnables[thread].wordsSoFar;
+					System.out.format("%.3f ", runnables[thread].getMeanError());
 				}
-			}
 
-			if (queryWord != null && vocabulary.contains(queryWord)) {
-				findClosest(copy(queryWord));
+				long runningMillis = System.currentTimeMillis() - startTime;
+				System.out.format("%d\t%d\t%d\t%fk w/s %f avg\n", epoch, wordsSoFar, runningMillis,
+								  (double) wordsSoFar / runningMillis, averageAbsWeight());
+
+				if (queryWord != null && vocabulary.contains(queryWord)) {
+					findClosest(copy(queryWord));
+				}
 			}
+		} finally {
+			executor.shutdownNow();
 		}
-		executor.shutdownNow();
 	}
 
+	/** Create the worker that trains on one thread's share of the documents. */
+	protected WordEmbeddingRunnable newRunnable(InstanceList instances, int numSamples, int numThreads, int thread) {
+		return new WordEmbeddingRunnable(this, instances, numSamples, numThreads, thread);
+	}
+
+	/** The weight in column <code>col</code> of the input vector for <code>word</code>. */
+	public double getWeight(int word, int col) {
+		return weights[word * stride + col];
+	}
+
+	/** Print the ten words closest to <code>targetVector</code>. */
 	public void findClosest(double[] targetVector) {
-		IDSorter[] sortedWords = new IDSorter[numWords];
+		for (IDSorter info: findClosest(targetVector, 10)) {
+			System.out.format("%f\t%d\t%s\n", info.getWeight(), info.getID(), vocabulary.lookupObject(info.getID()));
+		}
+	}
+
+	/**
+	 *  The <code>k</code> words whose vectors have the highest cosine similarity
+	 *   to <code>targetVector</code>, most similar first. Only the best k so far
+	 *   are kept, in a heap, so a query allocates O(k) rather than O(numWords).
+	 */
+	public IDSorter[] findClosest(double[] targetVector, int k) {
+		k = Math.min(k, numWords);
+
+		// The least similar of the words kept so far is at the head
+		PriorityQueue<IDSorter> closest = new PriorityQueue<IDSorter>(Math.max(k, 1), Collections.reverseOrder());
 
 		double targetSquaredSum = 0.0;
 		for (int col = 0; col < numColumns; col++) {
@@ -211,37 +253,46 @@ public class WordEmbeddings {
 		}
 		double targetNormalizer = 1.0 / Math.sqrt(targetSquaredSum);
 
-		System.out.println(targetSquaredSum);
-
 		for (int word = 0; word < numWords; word++) {
 			
 			double innerProduct = 0.0;
 			
 			double wordSquaredSum = 0.0;
 			for (int col = 0; col < numColumns; col++) {
-				wordSquaredSum += weights[word * stride + col] * weights[word * stride + col];
+				double weight = getWeight(word, col);
+				wordSquaredSum += weight * weight;
 			}
 			double wordNormalizer = 1.0 / Math.sqrt(wordSquaredSum);
 
 			for (int col = 0; col < numColumns; col++) {
-				innerProduct += targetNormalizer * targetVector[col] * wordNormalizer * weights[word * stride + col];
+				innerProduct += targetNormalizer * targetVector[col] * wordNormalizer * getWeight(word, col);
 			}
 
-			sortedWords[word] = new IDSorter(word, innerProduct);
+			if (closest.size() < k) {
+				closest.add(new IDSorter(word, innerProduct));
+			}
+			else if (k > 0) {
+				// Same order as IDSorter: higher weights first, then higher IDs
+				IDSorter worst = closest.peek();
+				if (innerProduct > worst.getWeight() ||
+					(innerProduct == worst.getWeight() && word > worst.getID())) {
+					closest.poll();
+					worst.set(word, innerProduct);
+					closest.add(worst);
+				}
+			}
 		}
 
-		Arrays.sort(sortedWords);
-		
-		for (int i = 0; i < 10; i++) {
-			System.out.format("%f\t%d\t%s\n", sortedWords[i].getWeight(), sortedWords[i].getID(), vocabulary.lookupObject(sortedWords[i].getID()));
-		}
+		IDSorter[] result = closest.toArray(new IDSorter[closest.size()]);
+		Arrays.sort(result);
+		return result;
 	}
 	
 	public double averageAbsWeight() {
 		double sum = 0.0;
 		for (int word = 0; word < numWords; word++) {
 			for (int col = 0; col < numColumns; col++) {
-				sum += Math.abs(weights[word * stride + col]);
+				sum += Math.abs(getWeight(word, col));
 			}
 		}
 		return sum / (numWords * numColumns);
@@ -252,7 +303,7 @@ public class WordEmbeddings {
 			Formatter buffer = new Formatter(Locale.US);
 			buffer.format("%s", vocabulary.lookupObject(word));
 			for (int col = 0; col < numColumns; col++) {
-				buffer.format(" %.6f", weights[word * stride + col]);
+				buffer.format(" %.6f", getWeight(word, col));
 			}
 			out.println(buffer);
 		}
@@ -266,7 +317,7 @@ public class WordEmbeddings {
 		double[] result = new double[numColumns];
 
 		for (int col = 0; col < numColumns; col++) {
-			result[col] = weights[word * stride + col];
+			result[col] = getWeight(word, col);
 		}
 		
 		return result;
@@ -278,7 +329,7 @@ public class WordEmbeddings {
 
 	public double[] add(double[] result, int word) {
 		for (int col = 0; col < numColumns; col++) {
-			result[col] += weights[word * stride + col];
+			result[col] += getWeight(word, col);
 		}
 		
 		return result;
@@ -290,7 +341,7 @@ public class WordEmbeddings {
 
 	public double[] subtract(double[] result, int word) {
 		for (int col = 0; col < numColumns; col++) {
-			result[col] -= weights[word * stride + col];
+			result[col] -= getWeight(word, col);
 		}
 		
 		return result;
@@ -304,8 +355,15 @@ public class WordEmbeddings {
 
 		InstanceList instances = InstanceList.load(new File(inputFile.value));
 
-		WordEmbeddings matrix = new WordEmbeddings(instances.getDataAlphabet(), numDimensions.value, windowSizeOption.value);
+		WordEmbeddings matrix;
+		if (floatWeights.value) {
+			matrix = new FloatWordEmbeddings(instances.getDataAlphabet(), numDimensions.value, windowSizeOption.value, offHeap.value);
+		}
+		else {
+			matrix = new WordEmbeddings(instances.getDataAlphabet(), numDimensions.value, windowSizeOption.value);
+		}
 		matrix.queryWord = exampleWord.value;
+		matrix.setNumEpochs(numEpochsOption.value);
 		matrix.countWords(instances);
 		matrix.train(instances, numThreads.value, numSamples.value);
 		
@@ -58,6 +58,23 @@ public class WorkerRunnable implements Runnable {
 
 	boolean shouldSaveState = false;
 	boolean shouldBuildLocalCounts = true;
+
+	// For merging by deltas: rather than rebuilding local counts, record every
+	//  token whose topic changed as a <type, old topic, new topic> triple, in
+	//  one log per contiguous partition of the vocabulary.
+	boolean shouldLogMoves = false;
+	protected int typesPerPartition;
+	protected int[][] moves; // indexed by <partition, 3 * move + (0: type, 1: old topic, 2: new topic)>
+	protected int[] numMoves; // indexed by <partition>
+
+	// For the shared-count schedule: the vocabulary is split into blocks, and
+	//  in each sub-iteration this worker samples only the tokens whose type is
+	//  in its current block, so it is the only writer of those types' counts.
+	boolean sampleByBlocks = false;
+	protected int[] typeBlocks; // indexed by <feature index>
+	protected int[] blockPositions; // positions of each of this worker's documents, sorted by block
+	protected int[] docPositionStarts; // offset of each of this worker's documents in blockPositions
+	protected int currentBlock;
 	
 	protected Randoms random;
 	
@@ -114,6 +131,84 @@ public class WorkerRunnable implements Runnable {
 		shouldBuildLocalCounts = false;
 	}
 
+	/**
+	 *  Instead of rebuilding this worker's local type/topic counts after
+	 *   each sweep, log the tokens that changed topic so that the model can
+	 *   merge only the changes. The log is split into <code>numPartitions</code>
+	 *   contiguous ranges of the vocabulary, so that partitions can be merged
+	 *   into the global counts in parallel.
+	 */
+	public void logMoves(int numPartitions) {
+		shouldBuildLocalCounts = false;
+		shouldLogMoves = true;
+
+		typesPerPartition = Math.max(1, (numTypes + numPartitions - 1) / numPartitions);
+		moves = new int[numPartitions][3 * 1024];
+		numMoves = new int[numPartitions];
+	}
+
+	/**
+	 *  Sample against shared type/topic counts, one vocabulary block per
+	 *   call to <code>run</code> (see {@link #setBlock}). The type/topic counts
+	 *   passed to the constructor should be the model's own arrays; only the
+	 *   topic totals are local. This sorts the positions of each of this
+	 *   worker's documents by block, so the tokens for a block can be found
+	 *   without scanning the whole document.
+	 */
+	public void sampleByBlocks(int[] typeBlocks, int numBlocks) {
+		shouldBuildLocalCounts = false;
+		sampleByBlocks = true;
+		this.typeBlocks = typeBlocks;
+
+		int lastDoc = Math.min(data.size(), startDoc + numDocs);
+		docPositionStarts = new int[lastDoc - startDoc + 1];
+		for (int doc = startDoc; doc < lastDoc; doc++) {
+			FeatureSequence tokens = (FeatureSequence) data.get(doc).instance.getData();
+			docPositionStarts[doc - startDoc + 1] = docPositionStarts[doc - startDoc] + tokens.getLength();
+		}
+
+		// Counting sort of each document's positions by block
+		blockPositions = new int[ docPositionStarts[lastDoc - startDoc] ];
+		int[] blockStarts = new int[numBlocks + 1];
+		for (int doc = startDoc; doc < lastDoc; doc++) {
+			FeatureSequence tokens = (FeatureSequence) data.get(doc).instance.getData();
+			Arrays.fill(blockStarts, 0);
+			for (int position = 0; position < tokens.getLength(); position++) {
+				blockStarts[ typeBlocks[ tokens.getIndexAtPosition(position) ] + 1 ]++;
+			}
+			blockStarts[0] = docPositionStarts[doc - startDoc];
+			for (int block = 0; block < numBlocks; block++) {
+				blockStarts[block + 1] += blockStarts[block];
+			}
+			for (int position = 0; position < tokens.getLength(); position++) {
+				blockPositions[ blockStarts[ typeBlocks[ tokens.getIndexAtPosition(position) ] ]++ ] = position;
+			}
+		}
+	}
+
+	/** Set the vocabulary block for the next call to <code>run</code>. */
+	public void setBlock(int block) {
+		this.currentBlock = block;
+	}
+
+	/** The first index in <code>[from, to)</code> of blockPositions whose type is in <code>block</code> or later. */
+	protected int findBlockStart(FeatureSequence tokens, int from, int to, int block) {
+		while (from < to) {
+			int middle = (from + to) >>> 1;
+			if (typeBlocks[ tokens.getIndexAtPosition(blockPositions[middle]) ] < block) {
+				from = middle + 1;
+			}
+			else {
+				to = middle;
+			}
+		}
+		return from;
+	}
+
+	public int getTypesPerPartition() { return typesPerPartition; }
+	public int[][] getMoves() { return moves; }
+	public int[] getNumMoves() { return numMoves; }
+
 	public int[] getTokensPerTopic() { return tokensPerTopic; }
 	public int[][] getTypeTopicCounts() { return typeTopicCounts; }
 
@@ -244,6 +339,10 @@ public class WorkerRunnable implements Runnable {
 			if (! isFinished) { System.out.println("already running!"); return; }
 			
 			isFinished = false;
+
+			if (shouldLogMoves) {
+				Arrays.fill(numMoves, 0);
+			}
 			
 			// Initialize the smoothing-only sampling bucket
 			smoothingOnlyMass = 0;
@@ -272,8 +371,23 @@ public class WorkerRunnable implements Runnable {
 				LabelSequence topicSequence =
 					(LabelSequence) data.get(doc).topicSequence;
 				
-				sampleTopicsForOneDoc (tokenSequence, topicSequence,
-									   true);
+				if (sampleByBlocks) {
+					int docStart = docPositionStarts[doc - startDoc];
+					int docEnd = docPositionStarts[doc - startDoc + 1];
+					int from = findBlockStart(tokenSequence, docStart, docEnd, currentBlock);
+					int to = findBlockStart(tokenSequence, from, docEnd, currentBlock + 1);
+
+					// Still visit documents with nothing to sample if
+					//  we are collecting document/topic histograms
+					if (from < to || shouldSaveState) {
+						sampleTopicsForOneDoc (tokenSequence, topicSequence,
+											   blockPositions, from, to);
+					}
+				}
+				else {
+					sampleTopicsForOneDoc (tokenSequence, topicSequence,
+										   true);
+				}
 			}
 			
 			if (shouldBuildLocalCounts) {
@@ -289,9 +403,105 @@ public class WorkerRunnable implements Runnable {
 		}
 	}
 	
+	protected void logMove(int type, int oldTopic, int newTopic) {
+		int partition = type / typesPerPartition;
+		int[] partitionMoves = moves[partition];
+		int index = numMoves[partition] * 3;
+		if (index + 3 > partitionMoves.length) {
+			partitionMoves = Arrays.copyOf(partitionMoves, partitionMoves.length * 2);
+			moves[partition] = partitionMoves;
+		}
+		partitionMoves[index] = type;
+		partitionMoves[index + 1] = oldTopic;
+		partitionMoves[index + 2] = newTopic;
+		numMoves[partition]++;
+	}
+
+	/**
+	 *  Copy the merged global counts for the given types, and the merged
+	 *   topic totals, into this worker's local copies. Workers can do this
+	 *   in parallel, since each one only writes its own counts.
+	 */
+	public void copyTypeTopicCounts(int[][] globalTypeTopicCounts, int[] types, int numTypesToCopy,
+									int[] globalTokensPerTopic) {
+		for (int i = 0; i < numTypesToCopy; i++) {
+			int type = types[i];
+			System.arraycopy(globalTypeTopicCounts[type], 0, typeTopicCounts[type], 0,
+							 typeTopicCounts[type].length);
+		}
+		System.arraycopy(globalTokensPerTopic, 0, tokensPerTopic, 0, numTopics);
+	}
+
+	/**
+	 *  Apply logged moves to packed type/topic counts. The old topic is always
+	 *   removed before the new one is added, so a type never needs more
+	 *   entries than it has tokens.
+	 */
+	public static void applyMoves(int[][] typeTopicCounts, int[] moves, int numMoves,
+								  int topicMask, int topicBits) {
+		int end = numMoves * 3;
+		for (int index = 0; index < end; index += 3) {
+			int[] currentTypeTopicCounts = typeTopicCounts[ moves[index] ];
+			int oldTopic = moves[index + 1];
+			int newTopic = moves[index + 2];
+
+			if (oldTopic != ParallelTopicModel.UNASSIGNED_TOPIC) {
+				int i = 0;
+				while ((currentTypeTopicCounts[i] & topicMask) != oldTopic) {
+					i++;
+				}
+				int currentValue = (currentTypeTopicCounts[i] >> topicBits) - 1;
+				if (currentValue == 0) {
+					currentTypeTopicCounts[i] = 0;
+				}
+				else {
+					currentTypeTopicCounts[i] = (currentValue << topicBits) + oldTopic;
+				}
+
+				// Shift the reduced value to the right, if necessary.
+				while (i < currentTypeTopicCounts.length - 1 && 
+					   currentTypeTopicCounts[i] < currentTypeTopicCounts[i + 1]) {
+					int temp = currentTypeTopicCounts[i];
+					currentTypeTopicCounts[i] = currentTypeTopicCounts[i + 1];
+					currentTypeTopicCounts[i + 1] = temp;
+					i++;
+				}
+			}
+
+			int i = 0;
+			while (currentTypeTopicCounts[i] > 0 &&
+				   (currentTypeTopicCounts[i] & topicMask) != newTopic) {
+				i++;
+			}
+			int currentValue = currentTypeTopicCounts[i] >> topicBits;
+			currentTypeTopicCounts[i] = ((currentValue + 1) << topicBits) + newTopic;
+
+			// Bubble the increased value left, if necessary
+			while (i > 0 &&
+				   currentTypeTopicCounts[i] > currentTypeTopicCounts[i - 1]) {
+				int temp = currentTypeTopicCounts[i];
+				currentTypeTopicCounts[i] = currentTypeTopicCounts[i - 1];
+				currentTypeTopicCounts[i - 1] = temp;
+				i--;
+			}
+		}
+	}
+
 	protected void sampleTopicsForOneDoc (FeatureSequence tokenSequence,
 										  FeatureSequence topicSequence,
 										  boolean readjustTopicsAndStats /* currently ignored */) {
+		sampleTopicsForOneDoc(tokenSequence, topicSequence, null, 0, tokenSequence.getLength());
+	}
+
+	/**
+	 *  Sample the tokens at <code>positions[start]</code> through
+	 *   <code>positions[end - 1]</code>, or at every position from
+	 *   <code>start</code> to <code>end - 1</code> if positions is null.
+	 *   Document/topic counts always cover the whole document.
+	 */
+	protected void sampleTopicsForOneDoc (FeatureSequence tokenSequence,
+										  FeatureSequence topicSequence,
+										  int[] positions, int start, int end) {
 
 		int[] oneDocTopics = topicSequence.getFeatures();
 
@@ -348,7 +558,8 @@ public class WorkerRunnable implements Runnable {
 		double score;
 
 		//	Iterate over the positions (words) in the document 
-		for (int position = 0; position < docLength; position++) {
+		for (int sampleIndex = start; sampleIndex < end; sampleIndex++) {
+			int position = positions == null ? sampleIndex : positions[sampleIndex];
 			type = tokenSequence.getIndexAtPosition(position);
 			oldTopic = oneDocTopics[position];
 
@@ -600,6 +811,10 @@ public class WorkerRunnable implements Runnable {
 			//			Put that new topic into the counts
 			oneDocTopics[position] = newTopic;
 
+			if (shouldLogMoves && newTopic != oldTopic) {
+				logMove(type, oldTopic, newTopic);
+			}
+
 			smoothingOnlyMass -= alpha[newTopic] * beta / 
 				(tokensPerTopic[newTopic] + betaSum);
 			topicBetaMass -= beta * localTopicCounts[newTopic] /
@@ -0,0 +1,76 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import cc.mallet.topics.OnlineLDA;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.Instance;
+
+/** Tests for online LDA. */
+public class TestOnlineLDA extends TestCase {
+
+	public TestOnlineLDA(String name) {
+		super(name);
+	}
+
+	private static List<Instance> makeBatch(Alphabet alphabet, int numTypes, Random random) {
+		List<Instance> batch = new ArrayList<Instance>();
+		for (int doc = 0; doc < 4; doc++) {
+			// Each document draws its words from one of two halves of the vocabulary
+			int first = random.nextBoolean() ? 0 : numTypes / 2;
+			FeatureSequence tokens = new FeatureSequence(alphabet);
+			for (int position = 0; position < 10; position++)
+				tokens.add(first + random.nextInt(numTypes / 2));
+			batch.add(new Instance(tokens, null, null, null));
+		}
+		return batch;
+	}
+
+	// A word first seen late in training must start with positive parameters
+	public void testNewWordAfterManyBatches() {
+		int numTypes = 20;
+		Alphabet alphabet = new Alphabet();
+		for (int type = 0; type < numTypes; type++)
+			alphabet.lookupIndex("word" + type);
+
+		OnlineLDA lda = new OnlineLDA(alphabet, 10, 0.1, 0.01, 1000);
+		lda.setRandomSeed(1);
+		lda.setDocumentIterations(20, 0.001);
+		Random random = new Random(1);
+		for (int i = 0; i < 1500; i++)
+			lda.update(makeBatch(alphabet, numTypes, random));
+
+		List<Instance> batch = makeBatch(alphabet, numTypes, random);
+		FeatureSequence tokens = (FeatureSequence) batch.get(0).getData();
+		tokens.add(alphabet.lookupIndex("new word"));
+		lda.update(batch);
+
+		double[][] topicWords = lda.getTopicWords();
+		for (int topic = 0; topic < topicWords.length; topic++)
+			for (int type = 0; type < topicWords[topic].length; type++)
+				assertTrue("topic " + topic + ", type " + type + ": " + topicWords[topic][type],
+						   topicWords[topic][type] > 0);
+	}
+
+	public static Test suite() {
+		return new TestSuite(TestOnlineLDA.class);
+	}
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(suite());
+	}
+}
@@ -0,0 +1,115 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics.tests;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import cc.mallet.topics.ParallelTopicModel;
+import cc.mallet.topics.TopicAssignment;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+
+/** Tests for the multi-threaded LDA sampler. */
+public class TestParallelTopicModel extends TestCase {
+
+	static final int NUM_TOPICS = 10;
+
+	public TestParallelTopicModel(String name) {
+		super(name);
+	}
+
+	static InstanceList makeDocuments(int numDocs, int numTypes, long seed) {
+		Alphabet alphabet = new Alphabet();
+		for (int type = 0; type < numTypes; type++)
+			alphabet.lookupIndex("word" + type);
+		InstanceList documents = new InstanceList(alphabet, null);
+
+		// Each document mostly draws from one of a few regions of the vocabulary
+		Random random = new Random(seed);
+		for (int doc = 0; doc < numDocs; doc++) {
+			int region = random.nextInt(5) * numTypes / 5;
+			int[] features = new int[5 + random.nextInt(60)];
+			for (int position = 0; position < features.length; position++) {
+				int type = random.nextInt(4) == 0 ? random.nextInt(numTypes) : region + random.nextInt(numTypes / 5);
+				features[position] = type;
+			}
+			documents.add(new Instance(new FeatureSequence(alphabet, features), null, "doc" + doc, null));
+		}
+		return documents;
+	}
+
+	static ParallelTopicModel estimate(int numThreads, boolean sharedCounts) throws IOException {
+		ParallelTopicModel model = new ParallelTopicModel(NUM_TOPICS, 1.0, 0.01);
+		model.addInstances(makeDocuments(400, 200, 1));
+		model.setNumThreads(numThreads);
+		model.setSharedCounts(sharedCounts);
+		model.setRandomSeed(1);
+		model.setNumIterations(40);
+		model.setBurninPeriod(10);
+		model.setOptimizeInterval(10);
+		model.setTopicDisplay(0, 0);
+		model.printLogLikelihood = false;
+		model.estimate();
+		return model;
+	}
+
+	// The merged type/topic counts and totals must equal the counts rebuilt from the assignments,
+	//  with each type's packed counts in descending order of count
+	static void assertCountsMatchTopics(ParallelTopicModel model) {
+		int[][] typeTopicCounts = new int[model.numTypes][NUM_TOPICS];
+		int[] tokensPerTopic = new int[NUM_TOPICS];
+		for (TopicAssignment document : model.getData()) {
+			FeatureSequence tokens = (FeatureSequence) document.instance.getData();
+			for (int position = 0; position < tokens.getLength(); position++) {
+				int topic = document.topicSequence.getIndexAtPosition(position);
+				typeTopicCounts[tokens.getIndexAtPosition(position)][topic]++;
+				tokensPerTopic[topic]++;
+			}
+		}
+		assertTrue(Arrays.equals(tokensPerTopic, model.getTokensPerTopic()));
+
+		for (int type = 0; type < model.numTypes; type++) {
+			int[] packedCounts = model.getTypeTopicCounts()[type];
+			int[] counts = new int[NUM_TOPICS];
+			int previousCount = Integer.MAX_VALUE;
+			for (int index = 0; index < packedCounts.length && packedCounts[index] > 0; index++) {
+				int topic = packedCounts[index] & model.topicMask;
+				int count = packedCounts[index] >> model.topicBits;
+				assertTrue("type " + type + " is out of order", count <= previousCount);
+				assertEquals("type " + type + " lists topic " + topic + " twice", 0, counts[topic]);
+				counts[topic] = count;
+				previousCount = count;
+			}
+			assertTrue("type " + type, Arrays.equals(typeTopicCounts[type], counts));
+		}
+	}
+
+	public void testCountsAfterParallelSweeps() throws IOException {
+		assertCountsMatchTopics(estimate(3, false));
+	}
+
+	public void testCountsAfterSharedCountSweeps() throws IOException {
+		assertCountsMatchTopics(estimate(3, true));
+	}
+
+	public static Test suite() {
+		return new TestSuite(TestParallelTopicModel.class);
+	}
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(suite());
+	}
+}
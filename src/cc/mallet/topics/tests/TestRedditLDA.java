@@ -0,0 +1,384 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import cc.mallet.topics.RedditCorpus;
+import cc.mallet.topics.RedditLDA;
+import cc.mallet.topics.SubredditTypeTopicCounts;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.LabelAlphabet;
+import cc.mallet.util.Randoms;
+
+import org.apache.commons.math3.special.Gamma;
+
+/** Tests for the subreddit topic model. */
+public class TestRedditLDA extends TestCase {
+
+	static final int NUM_TOPICS = 8;
+	static final double ALPHA = 0.5, BETA = 0.01, GAMMA = 0.3, ETA = 0.05;
+
+	public TestRedditLDA(String name) {
+		super(name);
+	}
+
+	// Documents in each subreddit favour their own part of the vocabulary
+	static InstanceList makeDocuments(int numDocs, int numTypes, int numSubreddits, long seed) {
+		Alphabet alphabet = new Alphabet();
+		for (int type = 0; type < numTypes; type++)
+			alphabet.lookupIndex("word" + type);
+		LabelAlphabet subreddits = new LabelAlphabet();
+		InstanceList documents = new InstanceList(alphabet, subreddits);
+
+		Random random = new Random(seed);
+		for (int doc = 0; doc < numDocs; doc++) {
+			int sub = doc % numSubreddits;
+			int[] features = new int[5 + random.nextInt(40)];
+			for (int position = 0; position < features.length; position++) {
+				int type = random.nextBoolean() ? sub * 7 + random.nextInt(numTypes / 3) : random.nextInt(numTypes);
+				features[position] = type % numTypes;
+			}
+			documents.add(new Instance(new FeatureSequence(alphabet, features),
+									   subreddits.lookupLabel("sub" + sub), "doc" + doc, null));
+		}
+		return documents;
+	}
+
+	static RedditLDA estimate(RedditCorpus corpus, int numThreads, boolean sparse, int iterations) {
+		RedditLDA model = new RedditLDA(corpus, NUM_TOPICS, ALPHA, BETA, GAMMA, ETA, new Randoms(3));
+		model.setNumThreads(numThreads);
+		model.setSparseSampling(sparse);
+		model.estimate(iterations, 0, new Randoms(7));
+		return model;
+	}
+
+	// Every count the samplers maintain must equal the count rebuilt from the topic assignments
+	static void assertCountsMatchTopics(RedditLDA model) {
+		RedditCorpus corpus = model.getCorpus();
+		InstanceList documents = corpus.getInstanceList();
+		int[] topics = model.getTopics();
+
+		int[][] docTopicCounts = new int[documents.size()][NUM_TOPICS];
+		int[][] typeTopicCounts = new int[corpus.getNumTypes()][NUM_TOPICS];
+		int[][][] subTypeTopicCounts = new int[corpus.getNumSubreddits()][corpus.getNumTypes()][NUM_TOPICS];
+		int[] tokensPerTopic = new int[NUM_TOPICS];
+		int[][] tokensPerSubPerTopic = new int[corpus.getNumSubreddits()][NUM_TOPICS];
+
+		int position = 0;
+		for (int doc = 0; doc < documents.size(); doc++) {
+			Instance instance = documents.get(doc);
+			FeatureSequence tokens = (FeatureSequence) instance.getData();
+			int sub = corpus.subredditMap.get(instance.getTarget().toString());
+			for (int i = 0; i < tokens.getLength(); i++) {
+				int type = tokens.getIndexAtPosition(i);
+				int topic = topics[position++];
+				docTopicCounts[doc][topic]++;
+				typeTopicCounts[type][topic]++;
+				subTypeTopicCounts[sub][type][topic]++;
+				tokensPerTopic[topic]++;
+				tokensPerSubPerTopic[sub][topic]++;
+			}
+		}
+		assertEquals(topics.length, position);
+
+		assertTrue(Arrays.deepEquals(docTopicCounts, model.getDocTopicCounts()));
+		assertTrue(Arrays.deepEquals(typeTopicCounts, model.getTypeTopicCounts()));
+		assertTrue(Arrays.equals(tokensPerTopic, model.getTokensPerTopic()));
+		assertTrue(Arrays.deepEquals(tokensPerSubPerTopic, model.getTokensPerSubPerTopic()));
+
+		SubredditTypeTopicCounts modelSubCounts = model.getSubTypeTopicCounts();
+		for (int sub = 0; sub < corpus.getNumSubreddits(); sub++)
+			for (int type = 0; type < corpus.getNumTypes(); type++)
+				for (int topic = 0; topic < NUM_TOPICS; topic++)
+					assertEquals("subreddit " + sub + ", type " + type + ", topic " + topic,
+								 subTypeTopicCounts[sub][type][topic], modelSubCounts.get(sub, type, topic));
+	}
+
+	public void testCountsAfterSerialSweeps() {
+		RedditCorpus corpus = new RedditCorpus(makeDocuments(300, 150, 4, 1), "sub0");
+		assertCountsMatchTopics(estimate(corpus, 1, false, 10));
+	}
+
+	public void testCountsAfterParallelSweeps() {
+		RedditCorpus corpus = new RedditCorpus(makeDocuments(300, 150, 4, 1), "sub0");
+		assertCountsMatchTopics(estimate(corpus, 3, false, 10));
+	}
+
+	public void testCountsAfterSparseSweeps() {
+		RedditCorpus corpus = new RedditCorpus(makeDocuments(300, 150, 4, 1), "sub0");
+		assertCountsMatchTopics(estimate(corpus, 1, true, 10));
+		assertCountsMatchTopics(estimate(corpus, 3, true, 10));
+	}
+
+	// The same seeds and thread count must give the same assignments and alphas
+	public void testSameSeedSameResult() {
+		RedditCorpus corpus = new RedditCorpus(makeDocuments(300, 150, 4, 1), "sub0");
+		for (boolean sparse : new boolean[] { false, true }) {
+			RedditLDA first = estimate(corpus, 3, sparse, 10);
+			RedditLDA second = estimate(corpus, 3, sparse, 10);
+			assertTrue("sparse " + sparse, Arrays.equals(first.getTopics(), second.getTopics()));
+			assertTrue("sparse " + sparse, Arrays.deepEquals(first.alpha, second.alpha));
+		}
+	}
+
+	// The histogram form of the alpha sampling weights must match the per-document sums
+	public void testAlphaWeightsMatchPerDocumentTerms() {
+		RedditCorpus corpus = new RedditCorpus(makeDocuments(300, 150, 4, 1), "sub0");
+		RedditLDA model = estimate(corpus, 1, false, 10);
+		InstanceList documents = corpus.getInstanceList();
+		int[][] docTopicCounts = model.getDocTopicCounts();
+
+		boolean mixedAlphas = false;
+		for (int sub = 1; sub < corpus.getNumSubreddits(); sub++) {
+			double alphaSum = 0;
+			for (int topic = 0; topic < NUM_TOPICS; topic++)
+				alphaSum += model.alpha[sub][topic];
+			mixedAlphas |= alphaSum != NUM_TOPICS * ALPHA && alphaSum != NUM_TOPICS * ALPHA * ETA;
+
+			double[][] weights = model.getAlphaLogWeights(sub);
+			for (int topic = 0; topic < NUM_TOPICS; topic++) {
+				double alphaSumMinusTopic = alphaSum - model.alpha[sub][topic];
+				double[] expected = new double[2];
+				double[] x = { ALPHA * ETA, ALPHA };
+				int docsInSub = 0;
+				for (int doc = 0; doc < documents.size(); doc++) {
+					Instance instance = documents.get(doc);
+					if (corpus.subredditMap.get(instance.getTarget().toString()) != sub)
+						continue;
+					docsInSub++;
+					int length = ((FeatureSequence) instance.getData()).getLength();
+					for (int i = 0; i < 2; i++) {
+						expected[i] += Gamma.logGamma(x[i] + alphaSumMinusTopic) + Gamma.logGamma(x[i] + docTopicCounts[doc][topic]);
+						expected[i] -= Gamma.logGamma(x[i]) + Gamma.logGamma(x[i] + length + alphaSumMinusTopic);
+					}
+				}
+				expected[0] += docsInSub * Math.log(1 - GAMMA);
+				expected[1] += docsInSub * Math.log(GAMMA);
+
+				for (int i = 0; i < 2; i++)
+					assertEquals("subreddit " + sub + ", topic " + topic, expected[i], weights[topic][i],
+								 1e-9 * Math.abs(expected[i]));
+			}
+		}
+		assertTrue("no subreddit has both kinds of alpha", mixedAlphas);
+	}
+
+	// The cached, parallel log likelihood must match the per-document and per-topic sums
+	public void testLogLikelihoodMatchesPerDocumentTerms() {
+		RedditCorpus corpus = new RedditCorpus(makeDocuments(300, 150, 4, 1), "sub0");
+		RedditLDA model = estimate(corpus, 1, false, 10);
+		InstanceList documents = corpus.getInstanceList();
+
+		double expected = 0;
+		for (int doc = 0; doc < documents.size(); doc++) {
+			int sub = corpus.subredditMap.get(documents.get(doc).getTarget().toString());
+			double alphaSum = 0;
+			for (int topic = 0; topic < NUM_TOPICS; topic++)
+				alphaSum += model.alpha[sub][topic];
+			expected += model.logLikeDocNum(alphaSum, doc) - model.logLikeDocDen(alphaSum, doc);
+		}
+		for (int topic = 0; topic < NUM_TOPICS; topic++)
+			expected += model.logLikeTopicNum(topic) - model.logLikeTopicDen(topic);
+
+		double serial = model.getLogLikelihood();
+		assertEquals(expected, serial, 1e-9 * Math.abs(expected));
+
+		// Partial sums are added in the same order for any number of threads
+		model.setNumThreads(3);
+		try {
+			assertEquals(serial, model.getLogLikelihood(), 0.0);
+			assertEquals(serial, model.getLogLikelihood(), 0.0);
+		} finally {
+			model.shutdown();
+		}
+	}
+
+	// A seeded classification must not depend on the thread count, leave the model unchanged,
+	//  and report the accuracy and macro F score of its confusion matrix
+	public void testClassifierIsReproducible() {
+		RedditCorpus corpus = new RedditCorpus(makeDocuments(300, 150, 4, 1), "sub0");
+		RedditLDA model = new RedditLDA(corpus, NUM_TOPICS, ALPHA, BETA, GAMMA, ETA, new Randoms(3));
+		model.estimate(0, 240, 10, 0, new Randoms(7));
+		int numSubreddits = corpus.getNumSubreddits();
+		int[] topics = model.getTopics().clone();
+
+		int[][] serialConfusion = new int[numSubreddits][numSubreddits];
+		double serialAccuracy = model.classifyDocuments(5, serialConfusion, new Randoms(11));
+		double serialFMacro = model.FMacro;
+		assertTrue(Arrays.equals(topics, model.getTopics()));
+
+		model.setNumThreads(3);
+		int[][] parallelConfusion = new int[numSubreddits][numSubreddits];
+		double parallelAccuracy = model.classifyDocuments(5, parallelConfusion, new Randoms(11));
+		assertTrue(Arrays.deepEquals(serialConfusion, parallelConfusion));
+		assertEquals(serialAccuracy, parallelAccuracy, 0.0);
+		assertEquals(serialFMacro, model.FMacro, 0.0);
+		assertTrue(Arrays.equals(topics, model.getTopics()));
+
+		int correct = 0, total = 0;
+		double f = 0;
+		for (int label = 0; label < numSubreddits; label++) {
+			int actual = 0, predicted = 0;
+			for (int other = 0; other < numSubreddits; other++) {
+				actual += serialConfusion[label][other];
+				predicted += serialConfusion[other][label];
+			}
+			correct += serialConfusion[label][label];
+			total += actual;
+			double precision = (double) serialConfusion[label][label] / predicted;
+			double recall = (double) serialConfusion[label][label] / actual;
+			f += 2 * (precision * recall) / (precision + recall);
+		}
+		assertEquals(60, total);
+		assertEquals((double) correct / total, serialAccuracy, 1e-12);
+		assertEquals(f / numSubreddits, serialFMacro, 1e-12);
+	}
+
+	// Resuming from the last checkpoint must finish exactly as the uninterrupted run did
+	public void testResumeFromCheckpoint() throws IOException {
+		RedditCorpus corpus = new RedditCorpus(makeDocuments(300, 150, 4, 1), "sub0");
+		File checkpoint = File.createTempFile("reddit-lda", ".checkpoint");
+		try {
+			for (boolean sparse : new boolean[] { false, true }) {
+				RedditLDA model = new RedditLDA(corpus, NUM_TOPICS, ALPHA, BETA, GAMMA, ETA, new Randoms(3));
+				model.setNumThreads(sparse ? 2 : 1);
+				model.setSparseSampling(sparse);
+				model.setCheckpoint(5, checkpoint);
+				model.estimate(12, 0, new Randoms(7));
+
+				// The checkpoint records the thread count and sampling mode
+				RedditLDA resumed = RedditLDA.resume(corpus, checkpoint);
+				resumed.resumeEstimate(0);
+				assertTrue("sparse " + sparse, Arrays.equals(model.getTopics(), resumed.getTopics()));
+				assertTrue("sparse " + sparse, Arrays.deepEquals(model.alpha, resumed.alpha));
+				assertCountsMatchTopics(resumed);
+			}
+		} finally {
+			checkpoint.delete();
+		}
+	}
+
+	// With gamma >= 1 the alphas never change, and both samplers must draw from the same posterior.
+	//  For a corpus small enough to enumerate, compare how often each pair of tokens shares a topic.
+	public void testSparseSamplerMatchesDenseSampler() {
+		int[][] docs = { { 0, 0, 1 }, { 1, 2, 2 } };
+		int numTypes = 3, numTopics = 3;
+		double alpha = 0.5, beta = 0.1;
+
+		Alphabet alphabet = new Alphabet();
+		for (int type = 0; type < numTypes; type++)
+			alphabet.lookupIndex("word" + type);
+		LabelAlphabet subreddits = new LabelAlphabet();
+		InstanceList documents = new InstanceList(alphabet, subreddits);
+		for (int doc = 0; doc < docs.length; doc++)
+			documents.add(new Instance(new FeatureSequence(alphabet, docs[doc]),
+									   subreddits.lookupLabel("sub0"), "doc" + doc, null));
+		RedditCorpus corpus = new RedditCorpus(documents, "sub0");
+
+		int[] tokenTypes = { 0, 0, 1, 1, 2, 2 };
+		int[] tokenDocs = { 0, 0, 0, 1, 1, 1 };
+		int numTokens = tokenTypes.length;
+		int numPairs = numTokens * (numTokens - 1) / 2;
+
+		// Exact probabilities, by enumerating every assignment
+		double[] exact = new double[numPairs];
+		double normalizer = 0;
+		int[] topics = new int[numTokens];
+		int numStates = (int) Math.pow(numTopics, numTokens);
+		for (int state = 0; state < numStates; state++) {
+			int code = state;
+			for (int i = 0; i < numTokens; i++) {
+				topics[i] = code % numTopics;
+				code /= numTopics;
+			}
+			int[][] docTopicCounts = new int[docs.length][numTopics];
+			int[][] typeTopicCounts = new int[numTypes][numTopics];
+			int[] tokensPerTopic = new int[numTopics];
+			for (int i = 0; i < numTokens; i++) {
+				docTopicCounts[tokenDocs[i]][topics[i]]++;
+				typeTopicCounts[tokenTypes[i]][topics[i]]++;
+				tokensPerTopic[topics[i]]++;
+			}
+			double logWeight = 0;
+			for (int topic = 0; topic < numTopics; topic++) {
+				for (int doc = 0; doc < docs.length; doc++)
+					logWeight += Gamma.logGamma(docTopicCounts[doc][topic] + alpha);
+				for (int type = 0; type < numTypes; type++)
+					logWeight += Gamma.logGamma(typeTopicCounts[type][topic] + beta);
+				logWeight -= Gamma.logGamma(tokensPerTopic[topic] + numTypes * beta);
+			}
+			double weight = Math.exp(logWeight);
+			normalizer += weight;
+			addSharedTopicPairs(topics, exact, weight);
+		}
+		for (int pair = 0; pair < numPairs; pair++)
+			exact[pair] /= normalizer;
+
+		double[] dense = sampleSharedTopicPairs(corpus, numTopics, alpha, beta, false, numPairs);
+		double[] sparse = sampleSharedTopicPairs(corpus, numTopics, alpha, beta, true, numPairs);
+		for (int pair = 0; pair < numPairs; pair++) {
+			assertEquals("dense, pair " + pair, exact[pair], dense[pair], 0.03);
+			assertEquals("sparse, pair " + pair, exact[pair], sparse[pair], 0.03);
+		}
+	}
+
+	// Add weight to every pair of tokens (i < j) with the same topic
+	static void addSharedTopicPairs(int[] topics, double[] pairs, double weight) {
+		int pair = 0;
+		for (int i = 0; i < topics.length; i++)
+			for (int j = i + 1; j < topics.length; j++, pair++)
+				if (topics[i] == topics[j])
+					pairs[pair] += weight;
+	}
+
+	static double[] sampleSharedTopicPairs(RedditCorpus corpus, int numTopics, double alpha, double beta,
+										   boolean sparse, int numPairs) {
+		int burnIn = 100, samples = 20000;
+		RedditLDA model = new RedditLDA(corpus, numTopics, alpha, beta, 1.0, 0.05, new Randoms(3));
+		model.setSparseSampling(sparse);
+		Randoms random = new Randoms(7);
+		double[] pairs = new double[numPairs];
+
+		// One sweep per call, without the progress output
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			public void write(int b) { }
+		}));
+		try {
+			for (int sweep = 0; sweep < burnIn + samples; sweep++) {
+				model.estimate(1, 0, random);
+				if (sweep >= burnIn)
+					addSharedTopicPairs(model.getTopics(), pairs, 1.0 / samples);
+			}
+		} finally {
+			System.setOut(out);
+		}
+		return pairs;
+	}
+
+	public static Test suite() {
+		return new TestSuite(TestRedditLDA.class);
+	}
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(suite());
+	}
+}
@@ -58,6 +58,11 @@ public class EvaluateTopics {
         (EvaluateTopics.class, "random-seed", "INTEGER", true, -1,
          "The random seed for the Gibbs sampler.  Default is -1, which will use the clock.", null);
 
+    static CommandOption.Integer numThreads = new CommandOption.Integer
+        (EvaluateTopics.class, "num-threads", "INTEGER", true, 1,
+         "The number of threads for left-to-right evaluation.  Results with more than " +
+         "one thread do not depend on the number of threads.", null);
+
 	public static void main (String[] args) {
 
         // Process the command-line options
@@ -94,6 +99,7 @@ public class EvaluateTopics {
 			evaluator.setPrintWords(showWords.value);
 			
 			evaluator.setRandomSeed(randomSeed.value);
+			evaluator.setNumThreads(numThreads.value);
 
 			InstanceList instances = InstanceList.load (new File(inputFile.value));
 
@@ -60,6 +60,10 @@ public class HierarchicalLDATUI {
 		(HierarchicalLDATUI.class, "eta", "DECIMAL", true, 0.1,
 		 "Eta parameter: smoothing over topic-word distributions", null);
 	
+	static CommandOption.Integer numThreads = new CommandOption.Integer
+		(HierarchicalLDATUI.class, "num-threads", "INTEGER", true, 1,
+		 "The number of threads used to score candidate paths. Sampling is sequential, so results do not depend on it.", null);
+	
 	public static void main (String[] args) throws java.io.IOException {
 
 		// Process the command-line options
@@ -87,6 +91,7 @@ public class HierarchicalLDATUI {
 		hlda.setAlpha(alpha.value());
 		hlda.setGamma(gamma.value());
 		hlda.setEta(eta.value());
+		hlda.setNumThreads(numThreads.value());
 		
 		// Display preferences
 
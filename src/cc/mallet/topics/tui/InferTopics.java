@@ -3,8 +3,12 @@ package cc.mallet.topics.tui;
 import cc.mallet.util.*;
 import cc.mallet.types.*;
 import cc.mallet.topics.*;
+import cc.mallet.pipe.Pipe;
+import cc.mallet.pipe.iterator.CsvIterator;
+import cc.mallet.classify.tui.Csv2Vectors;
 
 import java.io.*;
+import java.util.regex.Pattern;
 
 public class InferTopics {
 
@@ -17,7 +21,18 @@ public class InferTopics {
 		(InferTopics.class, "input", "FILENAME", true, null,
 		 "The filename from which to read the list of instances\n" +
 		 "for which topics should be inferred.  Use - for stdin.  " +
-		 "The instances must be FeatureSequence or FeatureSequenceWithBigrams, not FeatureVector", null);
+		 "The instances must be FeatureSequence or FeatureSequenceWithBigrams, not FeatureVector.  " +
+		 "With --use-pipe-from, this is instead a text file with one document per line.", null);
+
+	static CommandOption.File usePipeFrom = new CommandOption.File
+		(InferTopics.class, "use-pipe-from", "FILE", true, null,
+		 "Read --input as text, one document per line, and convert each document with\n" +
+		 "the pipe from this previously created vectors file as it is read, rather than\n" +
+		 "loading a whole instance list.", null);
+
+	static CommandOption.String lineRegex = new CommandOption.String
+		(InferTopics.class, "line-regex", "REGEX", true, Csv2Vectors.defaultLineRegex,
+		 "With --use-pipe-from, a regular expression containing regex-groups for name, label and data.", null);
 	
     static CommandOption.String docTopicsFile = new CommandOption.String
         (InferTopics.class, "output-doc-topics", "FILENAME", true, null,
@@ -52,6 +67,12 @@ public class InferTopics {
         (InferTopics.class, "random-seed", "INTEGER", true, 0,
          "The random seed for the Gibbs sampler.  Default is 0, which will use the clock.", null);
 
+    static CommandOption.Integer numThreads = new CommandOption.Integer
+        (InferTopics.class, "num-threads", "INTEGER", true, 1,
+         "The number of threads for parallel inference.  With more than one thread, " +
+         "documents are written in input order and each document's sampler is seeded " +
+         "from --random-seed and the document's position.", null);
+
 	public static void main (String[] args) {
 
         // Process the command-line options                                                                           
@@ -74,16 +95,52 @@ public class InferTopics {
 			TopicInferencer inferencer = 
 				TopicInferencer.read(new File(inferencerFilename.value));
 
-			InstanceList instances = InstanceList.load (new File(inputFile.value));
-
 			if (randomSeed.value != 0) {
 				inferencer.setRandomSeed(randomSeed.value);
 			}
 
-			inferencer.writeInferredDistributions(instances, new File(docTopicsFile.value),
-												  numIterations.value, sampleInterval.value,
-												  burnInIterations.value,
-												  docTopicsThreshold.value, docTopicsMax.value);
+			if (usePipeFrom.value != null) {
+				// Stream the documents through the pipe, so memory does not
+				//  depend on the size of the input
+				Pipe pipe = InstanceList.load(usePipeFrom.value).getPipe();
+
+				Reader reader;
+				if (inputFile.value.equals("-")) {
+					reader = new InputStreamReader(System.in);
+				}
+				else {
+					reader = new InputStreamReader(new FileInputStream(inputFile.value));
+				}
+
+				ParallelTopicInferencer parallelInferencer =
+					new ParallelTopicInferencer(inferencer, numThreads.value);
+				parallelInferencer.setRandomSeed(randomSeed.value);
+				parallelInferencer.writeInferredDistributions(new CsvIterator(reader, Pattern.compile(lineRegex.value), 3, 2, 1),
+															  pipe, new File(docTopicsFile.value),
+															  numIterations.value, sampleInterval.value,
+															  burnInIterations.value,
+															  docTopicsThreshold.value, docTopicsMax.value);
+				reader.close();
+				return;
+			}
+
+			InstanceList instances = InstanceList.load (new File(inputFile.value));
+
+			if (numThreads.value > 1) {
+				ParallelTopicInferencer parallelInferencer =
+					new ParallelTopicInferencer(inferencer, numThreads.value);
+				parallelInferencer.setRandomSeed(randomSeed.value);
+				parallelInferencer.writeInferredDistributions(instances.iterator(), new File(docTopicsFile.value),
+															  numIterations.value, sampleInterval.value,
+															  burnInIterations.value,
+															  docTopicsThreshold.value, docTopicsMax.value);
+			}
+			else {
+				inferencer.writeInferredDistributions(instances, new File(docTopicsFile.value),
+													  numIterations.value, sampleInterval.value,
+													  burnInIterations.value,
+													  docTopicsThreshold.value, docTopicsMax.value);
+			}
 			
 
 		} catch (Exception e) {